@@ -1,16 +1,29 @@
 package cs4620.anim;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 
 import cs4620.common.SceneObject;
+import egl.math.Matrix3;
 import egl.math.Matrix4;
+import egl.math.Quat;
 
 /**
  * A Container Of Keyframes For An Object
+ *
+ * Besides The Keyframes Themselves, Each Key Is Kept Decomposed Into Flat Arrays So That
+ * Sampling The Timeline Allocates Nothing And Never Decomposes A Matrix
  * @author Cristian
  *
  */
 public class AnimTimeline {
+	/**
+	 * Floats Per Baked Key: Translation (3), Rotation Quaternion W, X, Y, Z (4), Then The
+	 * Stretch Of The Polar Decomposition As A Column-Major 3x3 Matrix (9)
+	 */
+	private static final int KEY_SIZE = 16;
+	private static final int KEY_ROTATION = 3, KEY_STRETCH = 7;
+
 	/**
 	 * A Sorted Set Of Keyframes
 	 */
@@ -19,20 +32,32 @@ public class AnimTimeline {
 	 * The Object Found In This Timeline
 	 */
 	public final SceneObject object;
-	
+
+	/**
+	 * Frame Numbers Of The Keys, Sorted, And Their Baked Data
+	 */
+	private int[] keyFrames = new int[4];
+	private float[] keyData = new float[4 * KEY_SIZE];
+	private int keyCount = 0;
+	/**
+	 * Index Of The Key Starting The Segment Sampled Last
+	 */
+	private int cursor = 0;
+
 	/**
 	 * An Animation Timeline For An Object
 	 * @param o Object
 	 */
 	public AnimTimeline(SceneObject o) {
 		object = o;
-		
+
 		// Create A Default Keyframe
 		AnimKeyframe f = new AnimKeyframe(0);
 		f.transformation.set(o.transformation);
 		frames.add(f);
+		bakeKey(f.frame, f.transformation);
 	}
-	
+
 	/**
 	 * Add A Keyframe For This Object
 	 * @param frame Frame Number
@@ -43,8 +68,9 @@ public class AnimTimeline {
 		AnimKeyframe fTree = frames.floor(f);
 		if(fTree != null && f.frame == fTree.frame) f = fTree;
 		else frames.add(f);
-		
+
 		f.transformation.set(t);
+		bakeKey(frame, t);
 	}
 	/**
 	 * Remove A Keyframe For This Object
@@ -54,9 +80,16 @@ public class AnimTimeline {
 	public void removeKeyFrame(int frame, Matrix4 t) {
 		AnimKeyframe f = new AnimKeyframe(frame);
 		frames.remove(f);
+		int i = Arrays.binarySearch(keyFrames, 0, keyCount, frame);
+		if(i >= 0) {
+			System.arraycopy(keyFrames, i + 1, keyFrames, i, keyCount - i - 1);
+			System.arraycopy(keyData, (i + 1) * KEY_SIZE, keyData, i * KEY_SIZE, (keyCount - i - 1) * KEY_SIZE);
+			keyCount--;
+		}
 		if(frames.size() == 0) {
 			f.transformation.set(t);
 			frames.add(f);
+			bakeKey(frame, t);
 		}
 	}
 
@@ -70,4 +103,132 @@ public class AnimTimeline {
 	    if(outPair[0] == null) outPair[0] = outPair[1];
 	    else if(outPair[1] == null) outPair[1] = outPair[0];
 	}
+
+	/**
+	 * Decomposes A Keyframe's Transformation Into The Baked Arrays, Replacing Any Key At The Same Frame
+	 */
+	private void bakeKey(int frame, Matrix4 t) {
+		int i = Arrays.binarySearch(keyFrames, 0, keyCount, frame);
+		if(i < 0) {
+			i = -i - 1;
+			if(keyCount == keyFrames.length) {
+				keyFrames = Arrays.copyOf(keyFrames, keyCount * 2);
+				keyData = Arrays.copyOf(keyData, keyCount * 2 * KEY_SIZE);
+			}
+			System.arraycopy(keyFrames, i, keyFrames, i + 1, keyCount - i);
+			System.arraycopy(keyData, i * KEY_SIZE, keyData, (i + 1) * KEY_SIZE, (keyCount - i) * KEY_SIZE);
+			keyFrames[i] = frame;
+			keyCount++;
+		}
+
+		Matrix3 r = new Matrix3(), s = new Matrix3();
+		t.getAxes().polar_decomp(r, s);
+		Quat q = new Quat(r);
+		int o = i * KEY_SIZE;
+		keyData[o] = t.m[12];
+		keyData[o + 1] = t.m[13];
+		keyData[o + 2] = t.m[14];
+		keyData[o + KEY_ROTATION] = q.w;
+		keyData[o + KEY_ROTATION + 1] = q.x;
+		keyData[o + KEY_ROTATION + 2] = q.y;
+		keyData[o + KEY_ROTATION + 3] = q.z;
+		System.arraycopy(s.m, 0, keyData, o + KEY_STRETCH, 9);
+	}
+
+	/**
+	 * Interpolates The Object's Transformation At A Frame: Translation And Stretch Linearly,
+	 * Rotation Spherically
+	 * @param frame Frame Number
+	 * @param out Transformation To Overwrite
+	 * @return True If out Changed
+	 */
+	public boolean sample(int frame, Matrix4 out) {
+		// Find The Key At Or Before The Frame, Starting From Where The Last Sample Was
+		int i = cursor;
+		if(i >= keyCount || keyFrames[i] > frame || (i + 1 < keyCount && keyFrames[i + 1] <= frame)) {
+			if(i + 2 < keyCount && keyFrames[i + 1] <= frame && keyFrames[i + 2] > frame) i++;
+			else {
+				i = Arrays.binarySearch(keyFrames, 0, keyCount, frame);
+				if(i < 0) i = -i - 2;
+			}
+			cursor = Math.max(i, 0);
+		}
+
+		// Both Keys Are The Same When On A Key Or Outside Of Them
+		int k1, k2;
+		if(i < 0) k1 = k2 = 0;
+		else if(keyFrames[i] == frame || i == keyCount - 1) k1 = k2 = i;
+		else {
+			k1 = i;
+			k2 = i + 1;
+		}
+		float ratio = AnimationEngine.getRatio(keyFrames[k1], keyFrames[k2], frame);
+		float r1 = 1 - ratio;
+		int o1 = k1 * KEY_SIZE, o2 = k2 * KEY_SIZE;
+		float[] d = keyData;
+
+		// Rotation (Quat.slerp, In Place)
+		float w1 = d[o1 + KEY_ROTATION], x1 = d[o1 + KEY_ROTATION + 1], y1 = d[o1 + KEY_ROTATION + 2], z1 = d[o1 + KEY_ROTATION + 3];
+		float w2 = d[o2 + KEY_ROTATION], x2 = d[o2 + KEY_ROTATION + 1], y2 = d[o2 + KEY_ROTATION + 2], z2 = d[o2 + KEY_ROTATION + 3];
+		float cosTheta = x1 * x2 + y1 * y2 + z1 * z2 + w1 * w2;
+		if(cosTheta < 0) {
+			cosTheta = -cosTheta;
+			w2 = -w2;
+			x2 = -x2;
+			y2 = -y2;
+			z2 = -z2;
+		}
+		if(cosTheta > 1) cosTheta = 1;
+		float theta = (float)Math.acos(cosTheta);
+		float a, b;
+		if(theta < 0.01f) {
+			a = r1;
+			b = ratio;
+		}
+		else {
+			float sinTheta = (float)Math.sin(theta);
+			a = (float)Math.sin(r1 * theta) / sinTheta;
+			b = (float)Math.sin(ratio * theta) / sinTheta;
+		}
+		float w = w1 * a + w2 * b, x = x1 * a + x2 * b, y = y1 * a + y2 * b, z = z1 * a + z2 * b;
+
+		// Rotation Matrix (Quat.toRotationMatrix)
+		float sq = w * w + x * x + y * y + z * z;
+		float s = sq > 0 ? (2 / sq) : 0;
+		float xs = x * s, ys = y * s, zs = z * s;
+		float wx = w * xs, wy = w * ys, wz = w * zs;
+		float xx = x * xs, xy = x * ys, xz = x * zs;
+		float yy = y * ys, yz = y * zs, zz = z * zs;
+		float r00 = 1 - (yy + zz), r11 = 1 - (xx + zz), r22 = 1 - (xx + yy);
+		float r10 = xy + wz, r01 = xy - wz;
+		float r20 = xz - wy, r02 = xz + wy;
+		float r21 = yz + wx, r12 = yz - wx;
+
+		// Rotation Times The Interpolated Stretch, Column By Column
+		boolean changed = false;
+		for(int c = 0;c < 3;c++) {
+			int so1 = o1 + KEY_STRETCH + 3 * c, so2 = o2 + KEY_STRETCH + 3 * c;
+			float s0 = (d[so2] - d[so1]) * ratio + d[so1];
+			float s1 = (d[so2 + 1] - d[so1 + 1]) * ratio + d[so1 + 1];
+			float s2 = (d[so2 + 2] - d[so1 + 2]) * ratio + d[so1 + 2];
+			changed |= set(out, 4 * c, r00 * s0 + r01 * s1 + r02 * s2);
+			changed |= set(out, 4 * c + 1, r10 * s0 + r11 * s1 + r12 * s2);
+			changed |= set(out, 4 * c + 2, r20 * s0 + r21 * s1 + r22 * s2);
+			changed |= set(out, 4 * c + 3, 0);
+		}
+
+		// Translation (Vector3.lerp)
+		for(int k = 0;k < 3;k++) {
+			float t = d[o1 + k] * r1;
+			t += ratio * d[o2 + k];
+			changed |= set(out, 12 + k, t);
+		}
+		changed |= set(out, 15, 1);
+		return changed;
+	}
+	private static boolean set(Matrix4 m, int i, float v) {
+		if(m.m[i] == v) return false;
+		m.m[i] = v;
+		return true;
+	}
 }
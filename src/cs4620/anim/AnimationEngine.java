@@ -1,13 +1,12 @@
 package cs4620.anim;
 
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import cs4620.common.Scene;
 import cs4620.common.SceneObject;
-import cs4620.common.event.SceneTransformationEvent;
-import egl.math.Matrix4;
-import egl.math.Vector3;
-import egl.math.Matrix3;
-import egl.math.Quat;
+import cs4620.common.event.SceneTransformationBatchEvent;
 
 /**
  * A Component Resting Upon Scene That Gives
@@ -16,6 +15,19 @@ import egl.math.Quat;
  *
  */
 public class AnimationEngine {
+	/**
+	 * True To Sample Timelines On Several Threads When There Are Enough Of Them
+	 */
+	public static boolean PARALLEL = true;
+	/**
+	 * Fewest Timelines Sampled By One Task, Below Which Splitting Costs More Than It Saves
+	 */
+	private static final int TIMELINES_PER_TASK = 64;
+	/**
+	 * The Pool That Samples Timelines
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
 	/**
 	 * The First Frame In The Global Timeline
 	 */
@@ -36,6 +48,12 @@ public class AnimationEngine {
 	 * Animation Timelines That Map To Object Names
 	 */
 	public final HashMap<String, AnimTimeline> timelines = new HashMap<>();
+	/**
+	 * The Timelines As An Array (Rebuilt When Objects Are Added Or Removed) And Whether
+	 * Each Changed Its Object In The Last Update
+	 */
+	private AnimTimeline[] timelineArray = null;
+	private boolean[] changed = null;
 
 	/**
 	 * An Animation Engine That Works Only On A Certain Scene
@@ -69,6 +87,7 @@ public class AnimationEngine {
 	 */
 	public void addObject(String oName, SceneObject o) {
 		timelines.put(oName, new AnimTimeline(o));
+		timelineArray = null;
 	}
 	/**
 	 * Remove An Animating Object
@@ -76,6 +95,7 @@ public class AnimationEngine {
 	 */
 	public void removeObject(String oName) {
 		timelines.remove(oName);
+		timelineArray = null;
 	}
 
 	/**
@@ -140,50 +160,74 @@ public class AnimationEngine {
 	
 	/**
 	 * Loops Through All The Animating Objects And Updates Their Transformations To
-	 * The Current Frame - For Each Updated Transformation, An Event Has To Be 
-	 * Sent Through The Scene Notifying Everyone Of The Change
+	 * The Current Frame - The Updated Objects Are Sent Through The Scene Together
+	 * In One Event
 	 */
-	 public void updateTransformations() {
+	public void updateTransformations() {
+		if(timelineArray == null) {
+			timelineArray = timelines.values().toArray(new AnimTimeline[timelines.size()]);
+			changed = new boolean[timelineArray.length];
+		}
+		int n = timelineArray.length;
+		int frame = getCurrentFrame();
 
-		for (String k : timelines.keySet()) {
-			AnimTimeline t = timelines.get(k);
-			AnimKeyframe[] surrounding = new AnimKeyframe[2];
-			t.getSurroundingFrames(getCurrentFrame(), surrounding);
-			AnimKeyframe f1 = surrounding[0];
-			AnimKeyframe f2 = surrounding[1];
-			
-			float ratio = getRatio(f1.frame, f2.frame, getCurrentFrame());
-			
-			Vector3 trans1 = f1.transformation.getTrans();
-			Vector3 trans2 = f2.transformation.getTrans();
-			Matrix3 rs1 = f1.transformation.getAxes();
-			Matrix3 rs2 = f2.transformation.getAxes();
-			Matrix3 r1 = new Matrix3();
-			Matrix3 s1 = new Matrix3();
-			Matrix3 r2 = new Matrix3();
-			Matrix3 s2 = new Matrix3();
-			rs1.polar_decomp(r1,s1);
-			rs2.polar_decomp(r2, s2);
-			
-			Vector3 trans = trans1.clone().lerp(trans2, ratio);
-			Matrix3 scale = s1.clone().interpolate(s1, s2, ratio);
-			
-			Quat q1 = new Quat(r1);
-			Quat q2 = new Quat(r2);
-			
-			Quat q = Quat.slerp(q1, q2, ratio);
-			Matrix3 rotate = q.toRotationMatrix(new Matrix3());
-			
-			Matrix3 rs = rotate.clone().mulBefore(scale);
-			Matrix4 rst = new Matrix4(rs);
-			rst.set(0, 3, trans.x);
-			rst.set(1, 3, trans.y);
-			rst.set(2, 3, trans.z);
-			
-			t.object.transformation.set(rst);
-			this.scene.sendEvent(new SceneTransformationEvent(t.object));
+		// Each Timeline Only Writes Its Own Object, So They Can Be Sampled In Any Order
+		if(PARALLEL && n >= 2 * TIMELINES_PER_TASK && POOL.getParallelism() > 1) {
+			POOL.invoke(new SampleTask(timelineArray, changed, frame, 0, n));
 		}
-	 }
+		else {
+			sample(timelineArray, changed, frame, 0, n);
+		}
+
+		// Objects Whose Transformation Is Already Right Need No Notification
+		int count = 0;
+		for(int i = 0;i < n;i++) {
+			if(changed[i]) count++;
+		}
+		if(count == 0) return;
+		SceneObject[] dirty = new SceneObject[count];
+		count = 0;
+		for(int i = 0;i < n;i++) {
+			if(changed[i]) dirty[count++] = timelineArray[i].object;
+		}
+		scene.sendEvent(new SceneTransformationBatchEvent(dirty));
+	}
+	private static void sample(AnimTimeline[] tls, boolean[] changed, int frame, int from, int to) {
+		for(int i = from;i < to;i++) {
+			AnimTimeline t = tls[i];
+			changed[i] = t.sample(frame, t.object.transformation);
+		}
+	}
+
+	/**
+	 * Samples A Range Of Timelines, Splitting It Among The Pool's Threads
+	 */
+	private static class SampleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final AnimTimeline[] tls;
+		private final boolean[] changed;
+		private final int frame, from, to;
+
+		SampleTask(AnimTimeline[] tls, boolean[] changed, int frame, int from, int to) {
+			this.tls = tls;
+			this.changed = changed;
+			this.frame = frame;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from >= 2 * TIMELINES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SampleTask(tls, changed, frame, from, mid), new SampleTask(tls, changed, frame, mid, to));
+			}
+			else {
+				sample(tls, changed, frame, from, to);
+			}
+		}
+	}
 
          public static float getRatio(int min, int max, int cur) {
 	     if(min == max) return 0f;
@@ -0,0 +1,115 @@
+package cs4620.anim;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.lwjgl.BufferUtils;
+
+import cs4620.bench.Benchmark;
+import cs4620.bench.BenchmarkRunner;
+import cs4620.mesh.MeshData;
+import egl.math.Matrix4;
+
+/**
+ * Benchmarks of CPU skinning: serial and parallel Skinner.skin in each mode on synthetic
+ * meshes of 10k to 1M vertices, with the parallel runs also given relative to the
+ * serial ones.
+ *
+ * Usage: java cs4620.anim.SkinBenchmarks [options]
+ *
+ * The options are those of BenchmarkRunner. The exit status is 1 if any benchmark
+ * regressed or failed.
+ */
+public class SkinBenchmarks {
+
+	/** Vertex counts of the meshes the skinning benchmarks pose. */
+	private static final int[] VERTEX_COUNTS = { 10000, 100000, 1000000 };
+
+	public static void main(String[] args) {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		for (int i = 0; i < args.length; i++) {
+			int last = runner.parseOption(args, i);
+			if (last < 0) {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+			i = last;
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int vertices : VERTEX_COUNTS)
+			for (Skinner.Mode mode : Skinner.Mode.values()) {
+				benchmarks.add(new Skin(vertices, mode, false));
+				benchmarks.add(new Skin(vertices, mode, true));
+			}
+		runner.compareVariants(Arrays.asList("serial", "parallel"));
+		if (!runner.run(benchmarks)) System.exit(1);
+	}
+
+	/**
+	 * Skinner.skin of a random mesh whose vertices each have four random influences among
+	 * 64 bones, serially or in parallel vertex ranges.
+	 */
+	static class Skin extends Benchmark {
+		private static final int BONES = 64;
+
+		private final int vertices;
+		private final Skinner.Mode mode;
+		private final boolean parallel;
+		private Skinner skinner;
+		private Matrix4[] pose;
+
+		Skin(int vertices, Skinner.Mode mode, boolean parallel) {
+			super("Skinner.skin:" + shortCount(vertices)
+					+ ":" + mode + ":" + (parallel ? "parallel" : "serial"), "vertices");
+			this.vertices = vertices;
+			this.mode = mode;
+			this.parallel = parallel;
+		}
+
+		@Override
+		public void setUp() {
+			Random random = new Random(42);
+			MeshData mesh = new MeshData();
+			mesh.vertexCount = vertices;
+			mesh.positions = BufferUtils.createFloatBuffer(3 * vertices);
+			mesh.normals = BufferUtils.createFloatBuffer(3 * vertices);
+			FloatBuffer indices = BufferUtils.createFloatBuffer(4 * vertices);
+			FloatBuffer weights = BufferUtils.createFloatBuffer(4 * vertices);
+			for (int i = 0; i < 3 * vertices; i++) {
+				mesh.positions.put(i, 2 * random.nextFloat() - 1);
+				mesh.normals.put(i, i % 3 == 2 ? 1 : 0);
+			}
+			for (int i = 0; i < 4 * vertices; i++) {
+				indices.put(i, random.nextInt(BONES));
+				weights.put(i, random.nextFloat());
+			}
+			skinner = new Skinner(mesh, indices, weights, BONES);
+			skinner.mode = mode;
+
+			Matrix4[] bind = new Matrix4[BONES];
+			pose = new Matrix4[BONES];
+			for (int b = 0; b < BONES; b++) {
+				bind[b] = Matrix4.createTranslation(random.nextFloat(), random.nextFloat(), random.nextFloat());
+				pose[b] = Matrix4.createRotationX(random.nextFloat()).mulAfter(
+						Matrix4.createRotationY(random.nextFloat())).mulAfter(bind[b]);
+			}
+			skinner.setBindPose(bind);
+		}
+
+		@Override
+		public int run() {
+			skinner.skin(pose, parallel);
+			sink += Float.floatToRawIntBits(skinner.positions[vertices / 2]);
+			return vertices;
+		}
+
+		@Override
+		public void tearDown() {
+			skinner = null;
+		}
+	}
+}
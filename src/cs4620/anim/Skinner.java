@@ -1,5 +1,436 @@
 package cs4620.anim;
 
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cs4620.mesh.MeshData;
+import egl.math.Matrix4;
+
+/**
+ * Poses A Mesh On The CPU From Its Bind Pose And A Skeleton's Bone Transformations, For
+ * Consumers That Never See What The GPU Skins (Picking, Ray Tracing, Bounds)
+ *
+ * Every Vertex Has Four Bone Influences, Laid Out As In RenderMesh.addSkinningInformation.
+ * The Bones Are Kept In A Flat Palette Of 3x4 Matrices So The Inner Loop Is Straight
+ * Multiply-Adds Over Arrays, And Large Meshes Are Split Into Vertex Ranges Skinned In Parallel
+ * @author Cristian
+ *
+ */
 public class Skinner {
+	/**
+	 * How Bone Transformations Are Blended At A Vertex
+	 */
+	public static enum Mode {
+		/**
+		 * Weighted Sum Of The Matrices (Fast, But Joints Lose Volume When Twisted)
+		 */
+		LinearBlend,
+		/**
+		 * Weighted Sum Of Unit Dual Quaternions (Rigid, Scale In The Bone Transformations Is Dropped)
+		 */
+		DualQuaternion
+	}
+
+	/**
+	 * True To Skin Large Meshes On Several Threads Unless Told Otherwise
+	 */
+	public static boolean PARALLEL = true;
+	/**
+	 * Fewest Vertices Skinned By One Task
+	 */
+	private static final int VERTICES_PER_TASK = 8192;
+	/**
+	 * The Pool That Skins Vertex Ranges
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	private static final int INFLUENCES = 4;
+	/**
+	 * Floats Per Bone In The Palette: A 3x4 Matrix, Row By Row
+	 */
+	private static final int MATRIX_SIZE = 12;
+	/**
+	 * Floats Per Bone As A Dual Quaternion: Real W, X, Y, Z Then Dual W, X, Y, Z
+	 */
+	private static final int DUAL_QUAT_SIZE = 8;
+
+	/**
+	 * How Bones Are Blended
+	 */
+	public Mode mode = Mode.LinearBlend;
+
+	public final int vertexCount;
+	public final int boneCount;
+
+	/**
+	 * Posed Positions And Normals (3 Per Vertex), Overwritten By Every Call To skin
+	 * (normals Is Null If The Mesh Has None)
+	 */
+	public final float[] positions;
+	public final float[] normals;
+
+	private final float[] bindPositions;
+	private final float[] bindNormals;
+	/**
+	 * Influences Of Each Vertex: Bone Indices (Unused And Invalid Ones Point At The Identity
+	 * Bone boneCount) And Weights That Sum To One
+	 */
+	private final int[] influenceBones;
+	private final float[] influenceWeights;
+
+	/**
+	 * Inverse Bind Pose Matrices Of The Bones (Null If The Transformations Already Include Them)
+	 */
+	private float[] inverseBind = null;
+	/**
+	 * Skinning Matrices And Dual Quaternions Of The Bones, Plus The Identity After Them
+	 */
+	private final float[] palette;
+	private final float[] dualQuats;
+
+	/**
+	 * @param bindMesh Mesh In Its Bind Pose
+	 * @param indices Four Bone Indices Per Vertex
+	 * @param weights Four Bone Weights Per Vertex
+	 * @param numBones Number Of Bones In The Skeleton
+	 */
+	public Skinner(MeshData bindMesh, FloatBuffer indices, FloatBuffer weights, int numBones) {
+		vertexCount = bindMesh.vertexCount;
+		boneCount = numBones;
+
+		bindPositions = new float[vertexCount * 3];
+		read(bindMesh.positions, bindPositions);
+		positions = new float[vertexCount * 3];
+		if(bindMesh.hasNormals()) {
+			bindNormals = new float[vertexCount * 3];
+			read(bindMesh.normals, bindNormals);
+			normals = new float[vertexCount * 3];
+		}
+		else {
+			bindNormals = null;
+			normals = null;
+		}
+
+		influenceBones = new int[vertexCount * INFLUENCES];
+		influenceWeights = new float[vertexCount * INFLUENCES];
+		for(int v = 0;v < vertexCount;v++) {
+			float sum = 0;
+			for(int k = 0;k < INFLUENCES;k++) {
+				int i = v * INFLUENCES + k;
+				int b = (int)indices.get(i);
+				float w = weights.get(i);
+				if(b < 0 || b >= boneCount || !(w > 0)) {
+					b = boneCount;
+					w = 0;
+				}
+				influenceBones[i] = b;
+				influenceWeights[i] = w;
+				sum += w;
+			}
+
+			// Vertices Without Any Weight Stay In The Bind Pose
+			int i = v * INFLUENCES;
+			if(sum > 0) {
+				for(int k = 0;k < INFLUENCES;k++) influenceWeights[i + k] /= sum;
+			}
+			else {
+				influenceWeights[i] = 1;
+			}
+		}
+
+		palette = new float[(boneCount + 1) * MATRIX_SIZE];
+		dualQuats = new float[(boneCount + 1) * DUAL_QUAT_SIZE];
+		setIdentity(palette, boneCount * MATRIX_SIZE);
+		int o = boneCount * DUAL_QUAT_SIZE;
+		dualQuats[o] = 1;
+	}
+	private static void read(FloatBuffer src, float[] dst) {
+		FloatBuffer b = src.duplicate();
+		b.position(0);
+		b.get(dst, 0, dst.length);
+	}
+
+	/**
+	 * Give The Bone Transformations Of The Bind Pose, So That Later Transformations Are
+	 * Relative To It (Without One, skin Takes Transformations Relative To The Bind Pose)
+	 * @param bindTransforms Transformations From Skeleton.buildTransforms In The Bind Pose
+	 */
+	public void setBindPose(Matrix4[] bindTransforms) {
+		if(bindTransforms == null) {
+			inverseBind = null;
+			return;
+		}
+		inverseBind = new float[boneCount * MATRIX_SIZE];
+		for(int b = 0;b < boneCount;b++) {
+			Matrix4 m = b < bindTransforms.length ? bindTransforms[b] : null;
+			if(m == null) setIdentity(inverseBind, b * MATRIX_SIZE);
+			else toRows(m.clone().invert(), inverseBind, b * MATRIX_SIZE);
+		}
+	}
+
+	/**
+	 * Pose The Mesh Into positions And normals
+	 * @param transforms Bone Transformations From Skeleton.buildTransforms (Null Entries Are The Identity)
+	 */
+	public void skin(Matrix4[] transforms) {
+		skin(transforms, PARALLEL);
+	}
+	/**
+	 * Pose The Mesh Into positions And normals
+	 * @param transforms Bone Transformations From Skeleton.buildTransforms (Null Entries Are The Identity)
+	 * @param parallel True To Split The Vertices Among The Pool's Threads
+	 */
+	public void skin(Matrix4[] transforms, boolean parallel) {
+		buildPalette(transforms);
+		if(parallel && vertexCount >= 2 * VERTICES_PER_TASK && POOL.getParallelism() > 1) {
+			POOL.invoke(new SkinTask(this, 0, vertexCount));
+		}
+		else {
+			skinRange(0, vertexCount);
+		}
+	}
+
+	/**
+	 * Compose Each Bone's Transformation With Its Inverse Bind Matrix Into The Palette
+	 */
+	private void buildPalette(Matrix4[] transforms) {
+		for(int b = 0;b < boneCount;b++) {
+			int o = b * MATRIX_SIZE;
+			Matrix4 m = b < transforms.length ? transforms[b] : null;
+			if(m == null) setIdentity(palette, o);
+			else toRows(m, palette, o);
+
+			if(inverseBind != null) {
+				float[] p = palette, q = inverseBind;
+				for(int r = 0;r < 3;r++) {
+					int ro = o + 4 * r;
+					float a0 = p[ro], a1 = p[ro + 1], a2 = p[ro + 2], a3 = p[ro + 3];
+					for(int c = 0;c < 4;c++) {
+						p[ro + c] = a0 * q[o + c] + a1 * q[o + 4 + c] + a2 * q[o + 8 + c];
+					}
+					p[ro + 3] += a3;
+				}
+			}
+
+			if(mode == Mode.DualQuaternion) toDualQuat(palette, o, dualQuats, b * DUAL_QUAT_SIZE);
+		}
+	}
+	private static void toRows(Matrix4 m, float[] out, int o) {
+		for(int r = 0;r < 3;r++) {
+			for(int c = 0;c < 4;c++) {
+				out[o + 4 * r + c] = m.m[c * 4 + r];
+			}
+		}
+	}
+	private static void setIdentity(float[] out, int o) {
+		for(int i = 0;i < MATRIX_SIZE;i++) out[o + i] = 0;
+		out[o] = 1;
+		out[o + 5] = 1;
+		out[o + 10] = 1;
+	}
+	/**
+	 * Turn A 3x4 Palette Matrix Into A Unit Dual Quaternion, Dropping Any Scale Of Its Axes
+	 */
+	private static void toDualQuat(float[] p, int o, float[] out, int d) {
+		// Normalize The Columns
+		float sx = 1 / (float)Math.sqrt(p[o] * p[o] + p[o + 4] * p[o + 4] + p[o + 8] * p[o + 8]);
+		float sy = 1 / (float)Math.sqrt(p[o + 1] * p[o + 1] + p[o + 5] * p[o + 5] + p[o + 9] * p[o + 9]);
+		float sz = 1 / (float)Math.sqrt(p[o + 2] * p[o + 2] + p[o + 6] * p[o + 6] + p[o + 10] * p[o + 10]);
+		float r00 = p[o] * sx, r01 = p[o + 1] * sy, r02 = p[o + 2] * sz;
+		float r10 = p[o + 4] * sx, r11 = p[o + 5] * sy, r12 = p[o + 6] * sz;
+		float r20 = p[o + 8] * sx, r21 = p[o + 9] * sy, r22 = p[o + 10] * sz;
+
+		// Rotation Quaternion, Dividing By Its Largest Component
+		float w, x, y, z;
+		float trace = r00 + r11 + r22;
+		if(trace > 0) {
+			float s = (float)Math.sqrt(trace + 1) * 2;
+			w = 0.25f * s;
+			x = (r21 - r12) / s;
+			y = (r02 - r20) / s;
+			z = (r10 - r01) / s;
+		}
+		else if(r00 > r11 && r00 > r22) {
+			float s = (float)Math.sqrt(1 + r00 - r11 - r22) * 2;
+			w = (r21 - r12) / s;
+			x = 0.25f * s;
+			y = (r01 + r10) / s;
+			z = (r02 + r20) / s;
+		}
+		else if(r11 > r22) {
+			float s = (float)Math.sqrt(1 + r11 - r00 - r22) * 2;
+			w = (r02 - r20) / s;
+			x = (r01 + r10) / s;
+			y = 0.25f * s;
+			z = (r12 + r21) / s;
+		}
+		else {
+			float s = (float)Math.sqrt(1 + r22 - r00 - r11) * 2;
+			w = (r10 - r01) / s;
+			x = (r02 + r20) / s;
+			y = (r12 + r21) / s;
+			z = 0.25f * s;
+		}
+		float len = 1 / (float)Math.sqrt(w * w + x * x + y * y + z * z);
+		w *= len;
+		x *= len;
+		y *= len;
+		z *= len;
+
+		// Dual Part Is Half The Translation Times The Rotation
+		float tx = p[o + 3], ty = p[o + 7], tz = p[o + 11];
+		out[d] = w;
+		out[d + 1] = x;
+		out[d + 2] = y;
+		out[d + 3] = z;
+		out[d + 4] = -0.5f * (tx * x + ty * y + tz * z);
+		out[d + 5] = 0.5f * (tx * w + ty * z - tz * y);
+		out[d + 6] = 0.5f * (ty * w + tz * x - tx * z);
+		out[d + 7] = 0.5f * (tz * w + tx * y - ty * x);
+	}
+
+	private void skinRange(int from, int to) {
+		if(mode == Mode.DualQuaternion) skinDualQuat(from, to);
+		else skinLinear(from, to);
+	}
+
+	private void skinLinear(int from, int to) {
+		float[] p = palette, bp = bindPositions, bn = bindNormals, op = positions, on = normals;
+		int[] bones = influenceBones;
+		float[] weights = influenceWeights;
+		for(int v = from;v < to;v++) {
+			int i = v * INFLUENCES;
+			int b0 = bones[i] * MATRIX_SIZE, b1 = bones[i + 1] * MATRIX_SIZE;
+			int b2 = bones[i + 2] * MATRIX_SIZE, b3 = bones[i + 3] * MATRIX_SIZE;
+			float w0 = weights[i], w1 = weights[i + 1], w2 = weights[i + 2], w3 = weights[i + 3];
+
+			// Blend The Four Matrices
+			float m00 = w0 * p[b0] + w1 * p[b1] + w2 * p[b2] + w3 * p[b3];
+			float m01 = w0 * p[b0 + 1] + w1 * p[b1 + 1] + w2 * p[b2 + 1] + w3 * p[b3 + 1];
+			float m02 = w0 * p[b0 + 2] + w1 * p[b1 + 2] + w2 * p[b2 + 2] + w3 * p[b3 + 2];
+			float m03 = w0 * p[b0 + 3] + w1 * p[b1 + 3] + w2 * p[b2 + 3] + w3 * p[b3 + 3];
+			float m10 = w0 * p[b0 + 4] + w1 * p[b1 + 4] + w2 * p[b2 + 4] + w3 * p[b3 + 4];
+			float m11 = w0 * p[b0 + 5] + w1 * p[b1 + 5] + w2 * p[b2 + 5] + w3 * p[b3 + 5];
+			float m12 = w0 * p[b0 + 6] + w1 * p[b1 + 6] + w2 * p[b2 + 6] + w3 * p[b3 + 6];
+			float m13 = w0 * p[b0 + 7] + w1 * p[b1 + 7] + w2 * p[b2 + 7] + w3 * p[b3 + 7];
+			float m20 = w0 * p[b0 + 8] + w1 * p[b1 + 8] + w2 * p[b2 + 8] + w3 * p[b3 + 8];
+			float m21 = w0 * p[b0 + 9] + w1 * p[b1 + 9] + w2 * p[b2 + 9] + w3 * p[b3 + 9];
+			float m22 = w0 * p[b0 + 10] + w1 * p[b1 + 10] + w2 * p[b2 + 10] + w3 * p[b3 + 10];
+			float m23 = w0 * p[b0 + 11] + w1 * p[b1 + 11] + w2 * p[b2 + 11] + w3 * p[b3 + 11];
+
+			int o = v * 3;
+			float x = bp[o], y = bp[o + 1], z = bp[o + 2];
+			op[o] = m00 * x + m01 * y + m02 * z + m03;
+			op[o + 1] = m10 * x + m11 * y + m12 * z + m13;
+			op[o + 2] = m20 * x + m21 * y + m22 * z + m23;
+
+			if(bn != null) {
+				// The Blended Matrix Is Close Enough To Rigid That Its Axes Can Carry Normals
+				x = bn[o];
+				y = bn[o + 1];
+				z = bn[o + 2];
+				float nx = m00 * x + m01 * y + m02 * z;
+				float ny = m10 * x + m11 * y + m12 * z;
+				float nz = m20 * x + m21 * y + m22 * z;
+				float len = nx * nx + ny * ny + nz * nz;
+				len = len > 0 ? 1 / (float)Math.sqrt(len) : 0;
+				on[o] = nx * len;
+				on[o + 1] = ny * len;
+				on[o + 2] = nz * len;
+			}
+		}
+	}
+
+	private void skinDualQuat(int from, int to) {
+		float[] q = dualQuats, bp = bindPositions, bn = bindNormals, op = positions, on = normals;
+		int[] bones = influenceBones;
+		float[] weights = influenceWeights;
+		for(int v = from;v < to;v++) {
+			int i = v * INFLUENCES;
+			int b0 = bones[i] * DUAL_QUAT_SIZE, b1 = bones[i + 1] * DUAL_QUAT_SIZE;
+			int b2 = bones[i + 2] * DUAL_QUAT_SIZE, b3 = bones[i + 3] * DUAL_QUAT_SIZE;
+			float w0 = weights[i], w1 = weights[i + 1], w2 = weights[i + 2], w3 = weights[i + 3];
+
+			// Flip Influences Into The Same Hemisphere As The First So They Do Not Cancel
+			if(q[b0] * q[b1] + q[b0 + 1] * q[b1 + 1] + q[b0 + 2] * q[b1 + 2] + q[b0 + 3] * q[b1 + 3] < 0) w1 = -w1;
+			if(q[b0] * q[b2] + q[b0 + 1] * q[b2 + 1] + q[b0 + 2] * q[b2 + 2] + q[b0 + 3] * q[b2 + 3] < 0) w2 = -w2;
+			if(q[b0] * q[b3] + q[b0 + 1] * q[b3 + 1] + q[b0 + 2] * q[b3 + 2] + q[b0 + 3] * q[b3 + 3] < 0) w3 = -w3;
+
+			float rw = w0 * q[b0] + w1 * q[b1] + w2 * q[b2] + w3 * q[b3];
+			float rx = w0 * q[b0 + 1] + w1 * q[b1 + 1] + w2 * q[b2 + 1] + w3 * q[b3 + 1];
+			float ry = w0 * q[b0 + 2] + w1 * q[b1 + 2] + w2 * q[b2 + 2] + w3 * q[b3 + 2];
+			float rz = w0 * q[b0 + 3] + w1 * q[b1 + 3] + w2 * q[b2 + 3] + w3 * q[b3 + 3];
+			float dw = w0 * q[b0 + 4] + w1 * q[b1 + 4] + w2 * q[b2 + 4] + w3 * q[b3 + 4];
+			float dx = w0 * q[b0 + 5] + w1 * q[b1 + 5] + w2 * q[b2 + 5] + w3 * q[b3 + 5];
+			float dy = w0 * q[b0 + 6] + w1 * q[b1 + 6] + w2 * q[b2 + 6] + w3 * q[b3 + 6];
+			float dz = w0 * q[b0 + 7] + w1 * q[b1 + 7] + w2 * q[b2 + 7] + w3 * q[b3 + 7];
+
+			// Normalize By The Real Part
+			float len = rw * rw + rx * rx + ry * ry + rz * rz;
+			len = len > 0 ? 1 / (float)Math.sqrt(len) : 0;
+			rw *= len;
+			rx *= len;
+			ry *= len;
+			rz *= len;
+			dw *= len;
+			dx *= len;
+			dy *= len;
+			dz *= len;
+
+			// Translation Is Twice The Dual Part Times The Conjugate Of The Real Part
+			float tx = 2 * (rw * dx - dw * rx + ry * dz - rz * dy);
+			float ty = 2 * (rw * dy - dw * ry + rz * dx - rx * dz);
+			float tz = 2 * (rw * dz - dw * rz + rx * dy - ry * dx);
+
+			// Rotate: v + 2 r x (r x v + w v)
+			int o = v * 3;
+			float x = bp[o], y = bp[o + 1], z = bp[o + 2];
+			float cx = ry * z - rz * y + rw * x;
+			float cy = rz * x - rx * z + rw * y;
+			float cz = rx * y - ry * x + rw * z;
+			op[o] = x + 2 * (ry * cz - rz * cy) + tx;
+			op[o + 1] = y + 2 * (rz * cx - rx * cz) + ty;
+			op[o + 2] = z + 2 * (rx * cy - ry * cx) + tz;
+
+			if(bn != null) {
+				x = bn[o];
+				y = bn[o + 1];
+				z = bn[o + 2];
+				cx = ry * z - rz * y + rw * x;
+				cy = rz * x - rx * z + rw * y;
+				cz = rx * y - ry * x + rw * z;
+				on[o] = x + 2 * (ry * cz - rz * cy);
+				on[o + 1] = y + 2 * (rz * cx - rx * cz);
+				on[o + 2] = z + 2 * (rx * cy - ry * cx);
+			}
+		}
+	}
+
+	/**
+	 * Skins A Range Of Vertices, Splitting It Among The Pool's Threads
+	 */
+	private static class SkinTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Skinner skinner;
+		private final int from, to;
+
+		SkinTask(Skinner skinner, int from, int to) {
+			this.skinner = skinner;
+			this.from = from;
+			this.to = to;
+		}
 
+		@Override
+		protected void compute() {
+			if(to - from >= 2 * VERTICES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SkinTask(skinner, from, mid), new SkinTask(skinner, mid, to));
+			}
+			else {
+				skinner.skinRange(from, to);
+			}
+		}
+	}
 }
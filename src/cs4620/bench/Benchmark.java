@@ -0,0 +1,62 @@
+package cs4620.bench;
+
+/**
+ * One measurement run by a BenchmarkRunner. A benchmark does a fixed amount of work each
+ * time run() is called and reports how many operations (usually rays) that was; the
+ * runner calls it repeatedly, first to warm up and then to measure.
+ *
+ * Results must be folded into sink, so that the JIT cannot drop work whose result is
+ * never used.
+ */
+public abstract class Benchmark {
+
+	/** The name the benchmark is reported and filtered by. */
+	public final String name;
+
+	/** What run() counts, such as "rays". */
+	public final String unit;
+
+	/** Results folded in by run(); read by the runner once done. */
+	protected long sink = 0;
+
+	/**
+	 * Thrown by setUp() when a benchmark does not apply, such as a mesh benchmark on a
+	 * scene without meshes. The runner skips the benchmark instead of failing.
+	 */
+	public static class NotApplicableException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public NotApplicableException(String message) {
+			super(message);
+		}
+	}
+
+	protected Benchmark(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	/**
+	 * Prepare everything run() needs. Called once before warming up, and not measured.
+	 */
+	public void setUp() { }
+
+	/**
+	 * Do one batch of work.
+	 *
+	 * @return the number of operations done
+	 */
+	public abstract int run();
+
+	/**
+	 * Release anything setUp() made. Called once after measuring.
+	 */
+	public void tearDown() { }
+
+	/**
+	 * @return a count such as 100000 written as "100k", or 1000000 as "1M"
+	 */
+	public static String shortCount(int count) {
+		return count >= 1000000 ? count / 1000000 + "M" : count / 1000 + "k";
+	}
+}
@@ -0,0 +1,323 @@
+package cs4620.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs benchmarks and reports on them; the entry points of the benchmark suites hand it
+ * their command line options and their benchmarks.
+ *
+ * Each benchmark is warmed up for a few iterations and then measured for a few more;
+ * an iteration calls the benchmark until its time is up. For every benchmark the runner
+ * reports the operations per second with their standard deviation over the iterations,
+ * the bytes allocated per operation and per second, and the collections the garbage
+ * collectors ran while measuring. Benchmarks whose names differ only in a variant, such
+ * as serial and parallel, may also be given relative to the first variant.
+ *
+ * Options:
+ *
+ *   -filter regex          only run benchmarks whose name contains a match
+ *   -warmup n              warmup iterations (default 3)
+ *   -iterations n          measured iterations (default 5)
+ *   -time ms               length of each iteration (default 500)
+ *   -out file.csv          save the results
+ *   -baseline file.csv     compare with results saved earlier
+ *   -tolerance f           the slowdown that counts as a regression (default 0.1)
+ *   -list                  list the benchmarks without running them
+ *
+ * With -baseline, a benchmark regresses if it is more than the tolerance slower than its
+ * baseline, or allocates more per operation.
+ */
+public class BenchmarkRunner {
+
+	private Pattern filter = null;
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationTime = 500;
+	private double tolerance = 0.1;
+	private String out = null, baseline = null;
+	private boolean list = false;
+
+	/** The variants benchmarks are compared across, each relative to its first. */
+	private final List<List<String>> comparisons = new ArrayList<List<String>>();
+
+	/** Where the benchmarks' results end up, so that their work cannot be optimized away. */
+	static volatile long blackhole;
+
+	/** The number of benchmarks in the last runAll that did not apply. */
+	private int skipped = 0;
+
+	/**
+	 * The outcome of one benchmark.
+	 */
+	static class Result {
+		String name, unit;
+		double score, error, bytesPerOp, bytesPerSecond;
+		long gcCount, gcTime;
+	}
+
+	/**
+	 * Read the option at args[i], if it is one of the runner's.
+	 *
+	 * @return the index of the last argument the option used, or -1 if args[i] is not
+	 * an option of the runner
+	 */
+	public int parseOption(String[] args, int i) {
+		String arg = args[i];
+		if (arg.equals("-filter")) filter = Pattern.compile(args[++i]);
+		else if (arg.equals("-warmup")) warmupIterations = Integer.parseInt(args[++i]);
+		else if (arg.equals("-iterations")) iterations = Math.max(1, Integer.parseInt(args[++i]));
+		else if (arg.equals("-time")) iterationTime = Long.parseLong(args[++i]);
+		else if (arg.equals("-out")) out = args[++i];
+		else if (arg.equals("-baseline")) baseline = args[++i];
+		else if (arg.equals("-tolerance")) tolerance = Double.parseDouble(args[++i]);
+		else if (arg.equals("-list")) list = true;
+		else return -1;
+		return i;
+	}
+
+	/**
+	 * Report each benchmark whose name ends in one of variants, such as ":parallel",
+	 * relative to the benchmark of the same name ending in the first of them.
+	 */
+	public void compareVariants(List<String> variants) {
+		comparisons.add(variants);
+	}
+
+	/**
+	 * List or run the benchmarks selected by -filter, then save and compare the results
+	 * as asked.
+	 *
+	 * @return false if a benchmark failed or regressed
+	 */
+	public boolean run(List<Benchmark> all) {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (Benchmark b : all)
+			if (filter == null || filter.matcher(b.name).find()) benchmarks.add(b);
+		if (list) {
+			for (Benchmark b : benchmarks) System.out.println(b.name);
+			return true;
+		}
+
+		boolean ok = true;
+		List<Result> results = runAll(benchmarks);
+		if (results.size() + skipped < benchmarks.size()) ok = false;
+		try {
+			if (out != null) writeResults(results, out);
+			if (baseline != null) ok &= compare(results, readResults(baseline));
+		} catch (IOException e) {
+			System.err.println(e);
+			ok = false;
+		}
+		return ok;
+	}
+
+	/**
+	 * Run every benchmark and print its result as soon as it is known. The output of the
+	 * code under test, such as a parser's, is suppressed while benchmarks run.
+	 *
+	 * @return the results of the benchmarks that did not fail or get skipped
+	 */
+	List<Result> runAll(List<Benchmark> benchmarks) {
+		PrintStream out = System.out;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		});
+
+		out.printf("%d benchmarks, %d warmup and %d measured iterations of %d ms each%n",
+				benchmarks.size(), warmupIterations, iterations, iterationTime);
+		out.printf("%-52s %16s %10s %12s %10s %8s %8s%n",
+				"benchmark", "ops/s", "error", "bytes/op", "MB/s", "gc", "gc ms");
+
+		List<Result> results = new ArrayList<Result>();
+		skipped = 0;
+		long sink = 0;
+		for (Benchmark b : benchmarks) {
+			System.setOut(quiet);
+			Result r = null;
+			try {
+				r = measure(b);
+				sink += b.sink;
+			} catch (Benchmark.NotApplicableException e) {
+				System.setOut(out);
+				out.printf("%-52s skipped: %s%n", b.name, e.getMessage());
+				skipped++;
+				continue;
+			} catch (Throwable t) {
+				System.setOut(out);
+				out.printf("%-52s failed: %s%n", b.name, t);
+				continue;
+			} finally {
+				System.setOut(out);
+				try { b.tearDown(); } catch (Throwable t) { }
+			}
+			results.add(r);
+			out.printf("%-52s %16.1f %9.1f%% %12.3f %10.2f %8d %8d   %s/s%n", r.name, r.score,
+					100 * r.error / r.score, r.bytesPerOp, r.bytesPerSecond / 1e6, r.gcCount, r.gcTime, r.unit);
+		}
+		blackhole = sink;
+
+		for (List<String> variants : comparisons)
+			printComparison(out, results, variants);
+		return results;
+	}
+
+	/**
+	 * Warm up and measure one benchmark.
+	 */
+	Result measure(Benchmark b) {
+		b.setUp();
+		for (int i = 0; i < warmupIterations; i++)
+			iterate(b);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean gc : collectors) {
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+		long startBytes = threads.getThreadAllocatedBytes(threadId);
+		long startTime = System.nanoTime();
+
+		double[] scores = new double[iterations];
+		long ops = 0;
+		for (int i = 0; i < iterations; i++) {
+			long iterationStart = System.nanoTime();
+			long iterationOps = iterate(b);
+			scores[i] = iterationOps / ((System.nanoTime() - iterationStart) / 1e9);
+			ops += iterationOps;
+		}
+
+		long time = System.nanoTime() - startTime;
+		long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+		for (GarbageCollectorMXBean gc : collectors) {
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+
+		Result r = new Result();
+		r.name = b.name;
+		r.unit = b.unit;
+		double mean = 0;
+		for (double s : scores) mean += s / iterations;
+		double variance = 0;
+		for (double s : scores) variance += (s - mean) * (s - mean);
+		r.score = mean;
+		r.error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		r.bytesPerOp = (double) bytes / ops;
+		r.bytesPerSecond = bytes / (time / 1e9);
+		r.gcCount = gcCount;
+		r.gcTime = gcTime;
+		return r;
+	}
+
+	/**
+	 * Call the benchmark until an iteration's time is used up.
+	 *
+	 * @return the number of operations done
+	 */
+	private long iterate(Benchmark b) {
+		long end = System.nanoTime() + iterationTime * 1000000L;
+		long ops = 0;
+		do {
+			ops += b.run();
+		} while (System.nanoTime() < end);
+		return ops;
+	}
+
+	/**
+	 * Print each benchmark whose name ends in one of variants relative to the benchmark
+	 * of the same name ending in the first of them.
+	 */
+	private void printComparison(PrintStream out, List<Result> results, List<String> variants) {
+		if (variants.size() < 2) return;
+		Map<String, Result> reference = new HashMap<String, Result>();
+		for (Result r : results)
+			if (r.name.endsWith(":" + variants.get(0)))
+				reference.put(r.name.substring(0, r.name.lastIndexOf(':')), r);
+		if (reference.isEmpty()) return;
+
+		out.println();
+		out.printf("%-52s %10s%n", "relative to " + variants.get(0), "speedup");
+		for (Result r : results) {
+			int colon = r.name.lastIndexOf(':');
+			if (colon < 0 || !variants.contains(r.name.substring(colon + 1))) continue;
+			Result ref = reference.get(r.name.substring(0, colon));
+			if (ref != null && ref != r)
+				out.printf("%-52s %9.2fx%n", r.name, r.score / ref.score);
+		}
+	}
+
+	/**
+	 * Compare results with a baseline and print the regressions.
+	 *
+	 * @return true if nothing regressed
+	 */
+	boolean compare(List<Result> results, Map<String, Result> baseline) {
+		System.out.println();
+		System.out.printf("%-52s %10s %12s%n", "compared with baseline", "speed", "bytes/op");
+		boolean ok = true;
+		for (Result r : results) {
+			Result base = baseline.get(r.name);
+			if (base == null) continue;
+			double ratio = r.score / base.score;
+			boolean slower = ratio < 1 - tolerance;
+			// Even one object per operation is several bytes, so allow for the stray
+			// allocations of class loading and the JIT that a short run may catch
+			boolean allocates = r.bytesPerOp > base.bytesPerOp * (1 + tolerance) + 1;
+			System.out.printf("%-52s %9.2fx %12.3f%s%s%n", r.name, ratio, r.bytesPerOp,
+					slower ? "  SLOWER" : "", allocates ? "  ALLOCATES MORE" : "");
+			if (slower || allocates) ok = false;
+		}
+		System.out.println(ok ? "No regressions." : "Regressions found.");
+		return ok;
+	}
+
+	static void writeResults(List<Result> results, String file) throws IOException {
+		PrintWriter w = new PrintWriter(file);
+		try {
+			w.println("name,unit,score,error,bytesPerOp");
+			for (Result r : results)
+				w.println(r.name + "," + r.unit + "," + r.score + "," + r.error + "," + r.bytesPerOp);
+		} finally {
+			w.close();
+		}
+	}
+
+	static Map<String, Result> readResults(String file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			while ((line = in.readLine()) != null) {
+				String[] f = line.split(",");
+				if (f.length < 5) continue;
+				Result r = new Result();
+				r.name = f[0];
+				r.unit = f[1];
+				r.score = Double.parseDouble(f[2]);
+				r.error = Double.parseDouble(f[3]);
+				r.bytesPerOp = Double.parseDouble(f[4]);
+				results.put(r.name, r);
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+}
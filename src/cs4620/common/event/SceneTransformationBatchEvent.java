@@ -0,0 +1,19 @@
+package cs4620.common.event;
+
+import cs4620.common.SceneObject;
+
+/**
+ * Many Objects Whose Transformations Changed Together (Such As In One Animation Frame),
+ * Sent As A Single Event Instead Of One Per Object
+ */
+public class SceneTransformationBatchEvent extends SceneEvent {
+	/**
+	 * The Changed Objects, Each Appearing Once
+	 */
+	public final SceneObject[] objects;
+	
+	public SceneTransformationBatchEvent(SceneObject[] o) {
+		super(SceneDataType.Object);
+		objects = o;
+	}
+}
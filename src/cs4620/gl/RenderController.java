@@ -1,6 +1,7 @@
 package cs4620.gl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import cs4620.anim.AnimationEngine;
 import cs4620.common.Material;
@@ -14,6 +15,7 @@ import cs4620.common.event.SceneEvent;
 import cs4620.common.event.SceneEventQueue;
 import cs4620.common.event.SceneObjectResourceEvent;
 import cs4620.common.event.SceneReloadEvent;
+import cs4620.common.event.SceneTransformationBatchEvent;
 import cs4620.common.event.SceneTransformationEvent;
 import egl.IDisposable;
 import egl.math.Vector2;
@@ -24,6 +26,11 @@ public class RenderController implements IDisposable {
 	public RenderEnvironment env;
 	public AnimationEngine animEngine;
 	private boolean requestNewScene = false;
+	/**
+	 * Objects Whose Transformations Changed Since The Last Update
+	 */
+	private SceneObject[] dirty = new SceneObject[16];
+	private int dirtyCount = 0;
 	
 	public RenderController(Scene s, Vector2 viewSize) {
 		scene = s;
@@ -55,8 +62,8 @@ public class RenderController implements IDisposable {
 		if(le.size() == 0) return;
 		
 		boolean isTreeModified = false;
-		boolean areTransformsModified = false;
 		boolean areResourcesModified = false;
+		dirtyCount = 0;
 		
 		for(SceneEvent e : le) {
 			if(e instanceof SceneCollectionModifiedEvent) {
@@ -108,7 +115,10 @@ public class RenderController implements IDisposable {
 				}
 			}
 			else if(e instanceof SceneTransformationEvent) {
-				areTransformsModified = true;
+				addDirty(((SceneTransformationEvent)e).object);
+			}
+			else if(e instanceof SceneTransformationBatchEvent) {
+				for(SceneObject o : ((SceneTransformationBatchEvent)e).objects) addDirty(o);
 			}
 			else if(e instanceof SceneObjectResourceEvent) {
 				areResourcesModified = true;
@@ -133,8 +143,8 @@ public class RenderController implements IDisposable {
 				camController.camera = env.cameras.get(0);
 			}
 		}
-		else if(areTransformsModified) {
-			RenderTreeBuilder.rippleTransformations(env);
+		else if(dirtyCount > 0) {
+			RenderTreeBuilder.rippleTransformations(env, dirty, dirtyCount);
 		}
 		
 		if(areResourcesModified || isTreeModified) {
@@ -142,4 +152,8 @@ public class RenderController implements IDisposable {
 			r.buildPasses(env.root);
 		}
 	}
+	private void addDirty(SceneObject o) {
+		if(dirtyCount == dirty.length) dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+		dirty[dirtyCount++] = o;
+	}
 }
\ No newline at end of file
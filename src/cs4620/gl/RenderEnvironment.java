@@ -13,8 +13,11 @@ import cs4620.common.Mesh;
 import cs4620.common.SceneObject;
 import cs4620.common.Texture;
 import cs4620.common.texture.TexCubeMap;
+import cs4620.mesh.MeshCache;
 import cs4620.mesh.MeshConverter;
 import cs4620.mesh.MeshData;
+import cs4620.mesh.MeshOptimizer;
+import cs4620.mesh.MeshSimplifier;
 import cs4620.mesh.OBJMesh;
 import cs4620.mesh.OBJParser;
 import egl.GL.PixelFormat;
@@ -47,6 +50,10 @@ public class RenderEnvironment implements IDisposable {
 	 * Scene Root Node
 	 */
 	public RenderObject root;
+	/**
+	 * Every Node In The Tree, By The SceneObject It Renders
+	 */
+	public final HashMap<SceneObject, RenderObject> objects = new HashMap<>();
 	/**
 	 * List Of Cameras In The Scene
 	 */
@@ -133,10 +140,32 @@ public class RenderEnvironment implements IDisposable {
 		}
 	}
 	
+	/**
+	 * Meshes Are Processed Differently Here Than By OBJReader, So They Are Cached Apart
+	 */
+	private static final String MESH_CACHE_VARIANT = "gl", OPTIMIZED_MESH_CACHE_VARIANT = "gl-optimized";
+
+	/**
+	 * True To Reorder Meshes For The GPU's Vertex Cache When They Are Loaded (See MeshOptimizer)
+	 */
+	public static boolean OPTIMIZE_MESHES = false;
+	/**
+	 * True To Build Simpler Levels Of Detail Of Meshes For The Renderer To Draw When They Look Small (See MeshSimplifier)
+	 */
+	public static boolean BUILD_LODS = false;
+
 	public void addMesh(Mesh m) {
 		MeshData md = new MeshData();
+		String variant = OPTIMIZE_MESHES ? OPTIMIZED_MESH_CACHE_VARIANT : MESH_CACHE_VARIANT;
 		switch (m.type) {
 		case FILE:
+			// Load From The Binary Cache If The OBJ Has Not Changed
+			MeshData cached = MeshCache.get(m.file, variant);
+			if(cached != null) {
+				md = cached;
+				break;
+			}
+
 			// Load From OBJ
 			OBJMesh om = OBJParser.parse(m.file);
 			if(om == null || !om.hasData()) return;
@@ -200,6 +229,8 @@ public class RenderEnvironment implements IDisposable {
 					md.uvs.put(v++, 1); md.uvs.put(v, 1);
 				}
 			}
+			if(OPTIMIZE_MESHES) MeshOptimizer.optimize(md);
+			MeshCache.put(m.file, variant, md);
 			break;
 		case GENERATOR:
 			// Generate Mesh
@@ -208,6 +239,7 @@ public class RenderEnvironment implements IDisposable {
 				System.err.println("Mesh Conversion Error - No Output Data");
 				return;
 			}
+			if(OPTIMIZE_MESHES) MeshOptimizer.optimize(md);
 			break;
 		default:
 			return;
@@ -216,10 +248,38 @@ public class RenderEnvironment implements IDisposable {
 		// Create OpenGL Resource
 		RenderMesh rm = new RenderMesh(m);
 		rm.build(md);
+		if(BUILD_LODS) {
+			MeshData[] levels = loadLODs(m, variant, md);
+			for(int i = 1;i < levels.length;i++) {
+				RenderMesh lod = new RenderMesh(m);
+				lod.build(levels[i]);
+				rm.lods.add(lod);
+			}
+		}
 
 		// Add To Dictionary
 		meshes.put(m.getID().name, rm);
 	}
+	/**
+	 * Simplifies A Mesh Into Levels Of Detail, Or Loads Them From The Cache
+	 * @return The Mesh Itself Followed By Its Simpler Levels
+	 */
+	private static MeshData[] loadLODs(Mesh m, String variant, MeshData md) {
+		if(m.type == Mesh.Type.FILE) {
+			ArrayList<MeshData> levels = new ArrayList<>();
+			levels.add(md);
+			MeshData level;
+			while((level = MeshCache.get(m.file, variant + "-lod" + levels.size())) != null) levels.add(level);
+			if(levels.size() > 1) return levels.toArray(new MeshData[levels.size()]);
+		}
+
+		MeshData[] levels = MeshSimplifier.buildLODs(md, MeshSimplifier.DEFAULT_LOD_RATIOS);
+		for(int i = 1;i < levels.length;i++) {
+			if(OPTIMIZE_MESHES) MeshOptimizer.optimize(levels[i]);
+			if(m.type == Mesh.Type.FILE) MeshCache.put(m.file, variant + "-lod" + i, levels[i]);
+		}
+		return levels;
+	}
 	public boolean removeMesh(String name) {
 		RenderMesh m = meshes.get(name);
 		if(m == null) return false;
@@ -92,7 +92,7 @@ public class RenderMaterial implements IDisposable {
 
 	public final GLProgram program = new GLProgram(false);
 	public final ShaderInterface shaderInterface = new ShaderInterface(RenderMesh.VERTEX_DECLARATION);
-	public final ShaderInterface shaderInterfaceTangentSpace = new ShaderInterface(RenderMesh.VERTEX_DECLARATION_TANGENT_SPACE);
+	public final ShaderInterface shaderInterfacePacked = new ShaderInterface(RenderMesh.VERTEX_DECLARATION_PACKED);
 	public final ShaderInterface shaderInterfaceSkinned = new ShaderInterface(RenderMesh.VERTEX_DECLARATION_SKINNED);
 	
 	private IProvider pDiffuse = null;
@@ -118,6 +118,13 @@ public class RenderMaterial implements IDisposable {
 	public void dispose() {
 		program.dispose();
 	}
+
+	/**
+	 * @return The Interface Matching How A Mesh's Vertices Are Laid Out
+	 */
+	public ShaderInterface getShaderInterface(RenderMesh mesh) {
+		return mesh.packed ? shaderInterfacePacked : shaderInterface;
+	}
 	
 	private String readFullResource(String name) {
 		BufferedReader reader = IOUtils.openReaderResource(name);
@@ -167,7 +174,7 @@ public class RenderMaterial implements IDisposable {
 		
 		// Create Mappings
 		shaderInterface.build(program.semanticLinks);
-		shaderInterfaceTangentSpace.build(program.semanticLinks);
+		shaderInterfacePacked.build(program.semanticLinks);
 		shaderInterfaceSkinned.build(program.semanticLinks);
 		System.out.print("Your shader program's registered uniforms: ");
 		program.printUniforms();
@@ -3,6 +3,8 @@ package cs4620.gl;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 
 import cs4620.common.Mesh;
 import cs4620.mesh.MeshData;
@@ -15,21 +17,33 @@ import egl.GLError;
 import egl.IDisposable;
 import egl.NativeMem;
 import egl.Semantic;
-import egl.math.Vector2;
 import egl.math.Vector3;
-import egl.math.Vector3i;
 
 public class RenderMesh implements IDisposable {
-	private static final int VERTEX_SIZE = 8 * 4;
+	/**
+	 * True To Build Meshes With Packed Vertices (VERTEX_DECLARATION_PACKED), Half The Size Of Float Ones
+	 */
+	public static boolean PACK_VERTICES = false;
+
+	private static final int VERTEX_SIZE = 14 * 4;
 	public static final ArrayBind[] VERTEX_DECLARATION = {
 		new ArrayBind(Semantic.Position, GLType.Float, 3, 0),
 		new ArrayBind(Semantic.Normal, GLType.Float, 3, 3 * 4),
-		new ArrayBind(Semantic.TexCoord, GLType.Float, 2, 6 * 4)
+		new ArrayBind(Semantic.TexCoord, GLType.Float, 2, 6 * 4),
+		new ArrayBind(Semantic.Tangent, GLType.Float, 3, 8 * 4),
+		new ArrayBind(Semantic.Bitangent, GLType.Float, 3, 11 * 4)
 	};
-	private static final int VERTEX_SIZE_TANGENT_SPACE = 6 * 4;
-	public static final ArrayBind[] VERTEX_DECLARATION_TANGENT_SPACE = {
-		new ArrayBind(Semantic.Tangent, GLType.Float, 3, 0),
-		new ArrayBind(Semantic.Bitangent, GLType.Float, 3, 3 * 4)
+	/**
+	 * Directions Are Signed Normalized 10:10:10:2 Integers And UVs Are Half Floats, Which
+	 * The GPU Turns Back Into Floats Before The Shaders See Them
+	 */
+	private static final int VERTEX_SIZE_PACKED = 7 * 4;
+	public static final ArrayBind[] VERTEX_DECLARATION_PACKED = {
+		new ArrayBind(Semantic.Position, GLType.Float, 3, 0),
+		new ArrayBind(Semantic.Normal, GLType.Int2101010Rev, 4, 3 * 4, true),
+		new ArrayBind(Semantic.TexCoord, GLType.HalfFloat, 2, 4 * 4),
+		new ArrayBind(Semantic.Tangent, GLType.Int2101010Rev, 4, 5 * 4, true),
+		new ArrayBind(Semantic.Bitangent, GLType.Int2101010Rev, 4, 6 * 4, true)
 	};
 	private static final int VERTEX_SIZE_SKINNED = 8 * 4;
 	public static final ArrayBind[] VERTEX_DECLARATION_SKINNED = {
@@ -37,12 +51,28 @@ public class RenderMesh implements IDisposable {
 		new ArrayBind(Semantic.BlendWeight, GLType.Float, 4, 4 * 4)
 	};
 
+	/**
+	 * Positions, Normals, UVs And Tangent Frames, Interleaved
+	 */
 	public final GLBuffer vBuffer = new GLBuffer(BufferTarget.ArrayBuffer, BufferUsageHint.StaticDraw, false);
-	public final GLBuffer vBufferTangentSpace = new GLBuffer(BufferTarget.ArrayBuffer, BufferUsageHint.StaticDraw, false);
 	public final GLBuffer vBufferSkinned = new GLBuffer(BufferTarget.ArrayBuffer, BufferUsageHint.StaticDraw, false);
 	public final GLBuffer iBuffer = new GLBuffer(BufferTarget.ElementArrayBuffer, BufferUsageHint.StaticDraw, false);
 	public int vertexCount;
 	public int indexCount;
+	/**
+	 * True If vBuffer Follows VERTEX_DECLARATION_PACKED Instead Of VERTEX_DECLARATION
+	 */
+	public boolean packed;
+
+	/**
+	 * Simpler Versions Of This Mesh, Each With Fewer Triangles Than The One Before (Empty If None Were Built)
+	 */
+	public final ArrayList<RenderMesh> lods = new ArrayList<>();
+	/**
+	 * Bounding Sphere In Object Space, To Tell How Large The Mesh Looks
+	 */
+	public final Vector3 boundsCenter = new Vector3();
+	public float boundsRadius;
 
 	public final Mesh sceneMesh;
 
@@ -52,38 +82,87 @@ public class RenderMesh implements IDisposable {
 	@Override
 	public void dispose() {
 		vBuffer.dispose();
-		vBufferTangentSpace.dispose();
 		vBufferSkinned.dispose();
 		iBuffer.dispose();
+		for(RenderMesh lod : lods) lod.dispose();
+	}
+
+	/**
+	 * Chooses The Level Of Detail To Draw
+	 * @param screenRadius Radius Of The Bounding Sphere On Screen, In Pixels
+	 * @param pixelsPerTriangle Screen Area To Spend Per Triangle
+	 * @return The Most Detailed Level With No More Triangles Than The Area Covered Affords, Or The Simplest Level
+	 */
+	public RenderMesh getLOD(float screenRadius, float pixelsPerTriangle) {
+		float budget = (float)Math.PI * screenRadius * screenRadius / pixelsPerTriangle;
+		RenderMesh level = this;
+		for(RenderMesh lod : lods) {
+			if(level.indexCount / 3 <= budget) break;
+			level = lod;
+		}
+		return level;
 	}
 
 	public void build(MeshData data) {
 		vertexCount = data.vertexCount;
 		indexCount = data.indexCount;
+		packed = PACK_VERTICES;
 
-		// Interlace The Data
-		ByteBuffer bb = NativeMem.createByteBuffer(vertexCount * VERTEX_SIZE);
-		data.positions.position(0);
-		data.positions.limit(vertexCount * 3);
-		data.normals.position(0);
-		data.normals.limit(vertexCount * 3);
-		data.uvs.position(0);
-		data.uvs.limit(vertexCount * 2);
-		for(int i = 0;i < vertexCount;i++) {
-			bb.putFloat(data.positions.get());
-			bb.putFloat(data.positions.get());
-			bb.putFloat(data.positions.get());
-			bb.putFloat(data.normals.get());
-			bb.putFloat(data.normals.get());
-			bb.putFloat(data.normals.get());
-			bb.putFloat(data.uvs.get());
-			bb.putFloat(data.uvs.get());
+		// Read The Attributes In Bulk
+		float[] positions = new float[vertexCount * 3];
+		float[] normals = new float[vertexCount * 3];
+		float[] uvs = new float[vertexCount * 2];
+		int[] indices = new int[indexCount];
+		read(data.positions, positions);
+		read(data.normals, normals);
+		read(data.uvs, uvs);
+		IntBuffer ib = data.indices.duplicate();
+		ib.clear();
+		ib.get(indices);
+
+		// Bound The Mesh By The Sphere Around Its Bounding Box
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for(int i = 0;i < positions.length;i++) {
+			min[i % 3] = Math.min(min[i % 3], positions[i]);
+			max[i % 3] = Math.max(max[i % 3], positions[i]);
 		}
-		bb.flip();
+		if(vertexCount > 0) {
+			boundsCenter.set(min[0] + max[0], min[1] + max[1], min[2] + max[2]).mul(0.5f);
+			boundsRadius = new Vector3(max[0] - min[0], max[1] - min[1], max[2] - min[2]).len() * 0.5f;
+		}
+
+		float[] tangents = new float[vertexCount * 3], bitangents = new float[vertexCount * 3];
+		computeTangentFrames(positions, normals, uvs, indices, tangents, bitangents);
+
+		// Interlace The Data, Every Field Being 4 Bytes
+		int vertexInts = (packed ? VERTEX_SIZE_PACKED : VERTEX_SIZE) / 4;
+		int[] vertices = new int[vertexCount * vertexInts];
+		for(int v = 0, o = 0;v < vertexCount;v++) {
+			int v2 = v * 2, v3 = v * 3;
+			vertices[o++] = Float.floatToRawIntBits(positions[v3]);
+			vertices[o++] = Float.floatToRawIntBits(positions[v3 + 1]);
+			vertices[o++] = Float.floatToRawIntBits(positions[v3 + 2]);
+			if(packed) {
+				vertices[o++] = packDirection(normals, v3);
+				vertices[o++] = (halfBits(uvs[v2 + 1]) << 16) | halfBits(uvs[v2]);
+				vertices[o++] = packDirection(tangents, v3);
+				vertices[o++] = packDirection(bitangents, v3);
+			}
+			else {
+				for(int k = 0;k < 3;k++) vertices[o++] = Float.floatToRawIntBits(normals[v3 + k]);
+				vertices[o++] = Float.floatToRawIntBits(uvs[v2]);
+				vertices[o++] = Float.floatToRawIntBits(uvs[v2 + 1]);
+				for(int k = 0;k < 3;k++) vertices[o++] = Float.floatToRawIntBits(tangents[v3 + k]);
+				for(int k = 0;k < 3;k++) vertices[o++] = Float.floatToRawIntBits(bitangents[v3 + k]);
+			}
+		}
+		ByteBuffer bb = NativeMem.createByteBuffer(vertices.length * 4);
+		bb.asIntBuffer().put(vertices);
 
 		// Send Data To GPU
 		vBuffer.init();
-		vBuffer.setAsVertex(VERTEX_SIZE);
+		vBuffer.setAsVertex(packed ? VERTEX_SIZE_PACKED : VERTEX_SIZE);
 		vBuffer.setDataInitial(bb);
 		GLError.get("RenderMesh init: vertex setDataInitial");
 		
@@ -92,69 +171,135 @@ public class RenderMesh implements IDisposable {
 		data.indices.position(0);
 		data.indices.limit(indexCount);
 		iBuffer.setDataInitial(data.indices);
+		GLError.get("RenderMesh init: index setDataInitial");
+	}
+	private static void read(FloatBuffer src, float[] dst) {
+		FloatBuffer b = src.duplicate();
+		b.clear();
+		b.get(dst);
+	}
+
+	/**
+	 * Calculates Tangent Space Information: The Directions Of Increasing U And V On The
+	 * Surface, Summed Over Every Triangle At A Vertex And Made Orthonormal To Its Normal
+	 */
+	public static void computeTangentFrames(float[] positions, float[] normals, float[] uvs, int[] indices, float[] tangents, float[] bitangents) {
+		for(int i = 0;i + 2 < indices.length;i += 3) {
+			int i0 = indices[i], i1 = indices[i + 1], i2 = indices[i + 2];
+			float e1x = positions[i1 * 3] - positions[i0 * 3];
+			float e1y = positions[i1 * 3 + 1] - positions[i0 * 3 + 1];
+			float e1z = positions[i1 * 3 + 2] - positions[i0 * 3 + 2];
+			float e2x = positions[i2 * 3] - positions[i0 * 3];
+			float e2y = positions[i2 * 3 + 1] - positions[i0 * 3 + 1];
+			float e2z = positions[i2 * 3 + 2] - positions[i0 * 3 + 2];
+			float du1 = uvs[i1 * 2] - uvs[i0 * 2], dv1 = uvs[i1 * 2 + 1] - uvs[i0 * 2 + 1];
+			float du2 = uvs[i2 * 2] - uvs[i0 * 2], dv2 = uvs[i2 * 2 + 1] - uvs[i0 * 2 + 1];
+			float det = du1 * dv2 - dv1 * du2;
+			if(det == 0) continue;
+
+			// Leaving Out The Division By det Weights Each Triangle By Its Area
+			float s = Math.signum(det);
+			float tx = (e1x * dv2 - e2x * dv1) * s, ty = (e1y * dv2 - e2y * dv1) * s, tz = (e1z * dv2 - e2z * dv1) * s;
+			float bx = (e2x * du1 - e1x * du2) * s, by = (e2y * du1 - e1y * du2) * s, bz = (e2z * du1 - e1z * du2) * s;
+			for(int k = 0;k < 3;k++) {
+				int o = indices[i + k] * 3;
+				tangents[o] += tx;
+				tangents[o + 1] += ty;
+				tangents[o + 2] += tz;
+				bitangents[o] += bx;
+				bitangents[o + 1] += by;
+				bitangents[o + 2] += bz;
+			}
+		}
 
-		// Calculate Tangent Space Information
-		FloatBuffer fb = NativeMem.createFloatBuffer(vertexCount * VERTEX_SIZE_TANGENT_SPACE / 4);
-		int ii = 0;
-		Vector3[] pos = {
-				new Vector3(),
-				new Vector3(),
-				new Vector3()
-		};
-		Vector2[] uv = {
-				new Vector2(),
-				new Vector2(),
-				new Vector2()
-		};
-		Vector3i vertIndices = new Vector3i();
-		while(ii < indexCount) {
-			vertIndices.set(
-					data.indices.get(ii),
-					data.indices.get(ii + 1),
-					data.indices.get(ii + 2)
-					);
-			ii += 3;
-
-			// Get All The Positions And UVs On The Triangle
-			for(int vi = 0;vi < 3;vi++) {
-				int vpo = vertIndices.get(vi) * 3;
-				pos[vi].set(
-						data.positions.get(vpo),
-						data.positions.get(vpo + 1),
-						data.positions.get(vpo + 2)
-						);
-				int vto = vertIndices.get(vi) * 2;
-				uv[vi].set(
-						data.uvs.get(vto),
-						data.uvs.get(vto + 1)
-						);
+		// Gram-Schmidt Against The Normal (And The Tangent)
+		for(int o = 0;o < tangents.length;o += 3) {
+			float nx = normals[o], ny = normals[o + 1], nz = normals[o + 2];
+			float nl = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if(nl > 0) {
+				nx /= nl;
+				ny /= nl;
+				nz /= nl;
+			}
+			float tx = tangents[o], ty = tangents[o + 1], tz = tangents[o + 2];
+			float d = tx * nx + ty * ny + tz * nz;
+			tx -= d * nx;
+			ty -= d * ny;
+			tz -= d * nz;
+			float tl = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+			if(tl < 1e-20f) {
+				// No Usable UVs: Any Direction Across The Surface
+				if(Math.abs(nx) < 0.9f) {
+					tx = 0; ty = nz; tz = -ny;
+				}
+				else {
+					tx = -nz; ty = 0; tz = nx;
+				}
+				tl = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
 			}
+			tx /= tl;
+			ty /= tl;
+			tz /= tl;
 
-			pos[1].sub(pos[0]);
-			pos[2].sub(pos[0]);
-			uv[1].sub(uv[0]);
-			uv[2].sub(uv[0]).negate();
-
-			float r = 1.0f / (uv[1].x * uv[2].y - uv[1].y * uv[2].x);
-			Vector3 tangent = (pos[1].clone().mul(uv[2].y).sub(pos[2].clone().mul(uv[1].y))).mul(r).normalize();
-			Vector3 bitangent = (pos[2].mul(uv[1].x).sub(pos[1].mul(uv[2].x))).mul(r).normalize();
-			for(int vi = 0;vi < 3;vi++) {
-				int vo = vertIndices.get(vi) * (VERTEX_SIZE_TANGENT_SPACE / 4);
-				fb.put(vo, tangent.x);
-				fb.put(vo + 1, tangent.y);
-				fb.put(vo + 2, tangent.z);
-				fb.put(vo + 3, bitangent.x);
-				fb.put(vo + 4, bitangent.y);
-				fb.put(vo + 5, bitangent.z);
+			float bx = bitangents[o], by = bitangents[o + 1], bz = bitangents[o + 2];
+			// Keep The Bitangent's Side, Which Flips Where The Texture Is Mirrored
+			float cx = ny * tz - nz * ty, cy = nz * tx - nx * tz, cz = nx * ty - ny * tx;
+			if(cx * bx + cy * by + cz * bz < 0) {
+				cx = -cx;
+				cy = -cy;
+				cz = -cz;
 			}
+
+			tangents[o] = tx;
+			tangents[o + 1] = ty;
+			tangents[o + 2] = tz;
+			bitangents[o] = cx;
+			bitangents[o + 1] = cy;
+			bitangents[o + 2] = cz;
 		}
-		fb.position(0);
-		fb.limit(vertexCount * VERTEX_SIZE_TANGENT_SPACE / 4);
-		GLError.get("RenderMesh init: index setDataInitial");
-		
-		vBufferTangentSpace.init();
-		vBufferTangentSpace.setAsVertex(VERTEX_SIZE_TANGENT_SPACE);
-		vBufferTangentSpace.setDataInitial(fb);
+	}
+
+	/**
+	 * Packs A Direction As A Signed Normalized 10:10:10:2 Integer (x In The Low Bits)
+	 */
+	private static int packDirection(float[] a, int o) {
+		float x = a[o], y = a[o + 1], z = a[o + 2];
+		float l = (float)Math.sqrt(x * x + y * y + z * z);
+		if(l > 0) l = 1 / l;
+		return packSNorm10(x * l) | (packSNorm10(y * l) << 10) | (packSNorm10(z * l) << 20);
+	}
+	private static int packSNorm10(float f) {
+		return Math.round(Math.max(-1, Math.min(1, f)) * 511) & 0x3ff;
+	}
+	/**
+	 * @return The Bits Of The Nearest Half Float (Ties To Even)
+	 */
+	private static int halfBits(float f) {
+		int bits = Float.floatToRawIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+
+		if(exponent >= 0x1f) {
+			// Too Large, Infinite Or NaN
+			if(((bits >>> 23) & 0xff) == 0xff && mantissa != 0) return sign | 0x7e00;
+			return sign | 0x7c00;
+		}
+		if(exponent <= 0) {
+			// Subnormal Or Zero
+			if(exponent < -10) return sign;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >>> shift;
+			int rest = mantissa & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+			if(rest > halfway || (rest == halfway && (half & 1) != 0)) half++;
+			return sign | half;
+		}
+		int half = (exponent << 10) | (mantissa >>> 13);
+		int rest = mantissa & 0x1fff;
+		// Rounding Up May Carry Into The Exponent, Which Is Still Right
+		if(rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) half++;
+		return sign | half;
 	}
 	public void addSkinningInformation(FloatBuffer indices, FloatBuffer weights) {
 		ByteBuffer bb = NativeMem.createByteBuffer(vertexCount * VERTEX_SIZE_SKINNED);
@@ -1,6 +1,7 @@
 package cs4620.gl;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import cs4620.common.Cubemap;
 import cs4620.common.Material;
@@ -59,6 +60,7 @@ public class RenderTreeBuilder {
 		// Clear Out Any Old Data
 		env.cameras.clear();
 		env.lights.clear();
+		env.objects.clear();
 		
 		// Pass 1: Create The Render Object Mapping
 		HashMap<String, RenderObject> dict = new HashMap<>();
@@ -77,6 +79,7 @@ public class RenderTreeBuilder {
 				ro = new RenderObject(so);
 			}
 			dict.put(so.getID().name, ro);
+			env.objects.put(so, ro);
 
 		}
 
@@ -130,6 +133,44 @@ public class RenderTreeBuilder {
 		}
 	}
 	
+	/**
+	 * Recompute the frame-to-world transformations of only the given objects and their
+	 * descendants, each subtree once even when several of its objects are listed.
+	 * 
+	 * @param env  The environment containing the hierarchy to be processed.
+	 * @param dirty  The SceneObjects whose transformations changed.
+	 * @param count  The number of entries of <dirty> to use.
+	 */
+	public static void rippleTransformations(RenderEnvironment env, SceneObject[] dirty, int count) {
+		// Mark Every Listed Node
+		IdentityHashMap<RenderObject, Boolean> marked = new IdentityHashMap<>();
+		for(int i = 0;i < count;i++) {
+			RenderObject ro = env.objects.get(dirty[i]);
+			if(ro != null) marked.put(ro, Boolean.TRUE);
+		}
+		if(marked.isEmpty()) return;
+
+		// Ripple From The Marked Nodes That Have No Marked Ancestor
+		for(RenderObject ro : marked.keySet()) {
+			RenderObject p = ro.parent;
+			while(p != null && !marked.containsKey(p)) p = p.parent;
+			if(p != null) continue;
+			
+			if(ro.parent == null) {
+				// The Root's Own Transformation Is Not Applied, As In The Full Ripple
+				for(RenderObject c : ro.children) {
+					rippleTransformationHelper(c);
+				}
+			}
+			else {
+				rippleTransformationHelper(ro);
+			}
+		}
+		for (RenderCamera cam : env.cameras) {
+			cam.updateCameraMatrix(env.viewportSize);
+		}
+	}
+	
 	private static void rippleTransformationHelper(RenderObject node) {
 		node.mWorldTransform.set(node.sceneObject.transformation).mulAfter(node.parent.mWorldTransform);
 		
@@ -16,6 +16,8 @@ import egl.GL.GLType;
 import egl.GL.PrimitiveType;
 import egl.GLError;
 import egl.RasterizerState;
+import egl.math.Matrix4;
+import egl.math.Vector3;
 
 public class Renderer implements IDisposable {
 	private static final Comparator<RenderObject> cmpMesh = new Comparator<RenderObject>() {
@@ -32,6 +34,12 @@ public class Renderer implements IDisposable {
 	};
 
 	public final PickingProgram pickProgram = new PickingProgram();
+
+	/**
+	 * Screen Area In Pixels Each Triangle Should Cover, When Choosing Among A Mesh's Levels Of Detail
+	 */
+	public static float LOD_PIXELS_PER_TRIANGLE = 2;
+	private final Vector3 lodCenter = new Vector3();
 	
 	private static class RenderPass {
 		public RenderMaterial material;
@@ -102,12 +110,18 @@ public class Renderer implements IDisposable {
 				mesh.iBuffer.bind();
 			}
 
-			mesh.vBuffer.useAsAttrib(material.shaderInterface);
-			mesh.vBufferTangentSpace.useAsAttrib(material.shaderInterfaceTangentSpace);
+			mesh.vBuffer.useAsAttrib(material.getShaderInterface(mesh));
 			if(mesh.vBufferSkinned.getIsCreated()) {
 				mesh.vBufferSkinned.useAsAttrib(material.shaderInterfaceSkinned);
 			}
 			for(RenderObject ro : p.objects) {
+				RenderMesh level = chooseLOD(camera, p.mesh, ro);
+				if(level != mesh) {
+					mesh.iBuffer.unbind();
+					mesh = level;
+					mesh.iBuffer.bind();
+					mesh.vBuffer.useAsAttrib(material.getShaderInterface(mesh));
+				}
 				material.useObject(ro);
 				GL11.glDrawElements(PrimitiveType.Triangles, mesh.indexCount, GLType.UnsignedInt, 0);
 				GLError.get("Draw");
@@ -141,8 +155,15 @@ public class Renderer implements IDisposable {
 				mesh.iBuffer.bind();
 			}
 
-			mesh.vBuffer.useAsAttrib(material.shaderInterface);
+			mesh.vBuffer.useAsAttrib(material.getShaderInterface(mesh));
 			for(RenderObject ro : p.objects) {
+				RenderMesh level = chooseLOD(camera, p.mesh, ro);
+				if(level != mesh) {
+					mesh.iBuffer.unbind();
+					mesh = level;
+					mesh.iBuffer.bind();
+					mesh.vBuffer.useAsAttrib(material.getShaderInterface(mesh));
+				}
 				material.useObject(ro);
 				GL11.glDrawElements(PrimitiveType.Triangles, mesh.indexCount, GLType.UnsignedInt, 0);
 				GLError.get("Draw");
@@ -151,6 +172,31 @@ public class Renderer implements IDisposable {
 		GLProgram.unuse();
 	}
 
+	/**
+	 * Chooses Which Level Of Detail Of Its Mesh To Draw An Object With, By How Large It Looks
+	 */
+	private RenderMesh chooseLOD(RenderCamera camera, RenderMesh mesh, RenderObject ro) {
+		// Skinning Information Is Only Kept For The Full Mesh
+		if(mesh.lods.isEmpty() || mesh.vBufferSkinned.getIsCreated()) return mesh;
+
+		// Bounding Sphere In World Space
+		Matrix4 mWorld = ro.mWorldTransform;
+		mWorld.mulPos(lodCenter.set(mesh.boundsCenter));
+		float scale = 0;
+		for(int c = 0;c < 3;c++) {
+			float x = mWorld.m[4 * c], y = mWorld.m[4 * c + 1], z = mWorld.m[4 * c + 2];
+			scale = Math.max(scale, x * x + y * y + z * z);
+		}
+		float radius = mesh.boundsRadius * (float)Math.sqrt(scale);
+
+		// Divide By The Depth (Clip w), Unless The Camera Is Inside Or Behind
+		Matrix4 mVP = camera.mViewProjection;
+		float w = mVP.m[3] * lodCenter.x + mVP.m[7] * lodCenter.y + mVP.m[11] * lodCenter.z + mVP.m[15];
+		if(w <= radius * Math.abs(camera.mProj.m[11])) return mesh;
+		float screenRadius = radius * camera.mProj.m[5] / w * camera.viewportSize.y * 0.5f;
+		return mesh.getLOD(screenRadius, LOD_PIXELS_PER_TRIANGLE);
+	}
+
 	public void beginPickingPass(RenderCamera camera) {
 		GL11.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
 		GL11.glClearDepth(1.0);
@@ -0,0 +1,92 @@
+package cs4620.mesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cs4620.bench.Benchmark;
+import cs4620.bench.BenchmarkRunner;
+
+/**
+ * Benchmarks of mesh loading: serial and parallel OBJReader.read on every mesh in
+ * data/meshes, with the parallel reads also given relative to the serial ones.
+ *
+ * Usage: java cs4620.mesh.MeshBenchmarks [options] [mesh1.obj mesh2.obj ...]
+ *
+ * The options are those of BenchmarkRunner. With no meshes, every OBJ file in
+ * data/meshes is read. The exit status is 1 if any benchmark regressed or failed.
+ */
+public class MeshBenchmarks {
+
+	/** Where the meshes read by default are. */
+	private static final String MESH_DIRECTORY = "data/meshes";
+
+	public static void main(String[] args) {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			int last = runner.parseOption(args, i);
+			if (last >= 0) i = last;
+			else if (args[i].startsWith("-")) {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+			else files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			File[] meshFiles = new File(MESH_DIRECTORY).listFiles();
+			if (meshFiles != null) {
+				Arrays.sort(meshFiles);
+				for (File f : meshFiles)
+					if (f.getName().endsWith(".obj")) files.add(f.getPath());
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (String file : files) {
+			benchmarks.add(new OBJRead(file, false));
+			benchmarks.add(new OBJRead(file, true));
+		}
+		runner.compareVariants(Arrays.asList("serial", "parallel"));
+		if (!runner.run(benchmarks)) System.exit(1);
+	}
+
+	/**
+	 * OBJReader.read of one mesh, serially or in parallel chunks.
+	 */
+	static class OBJRead extends Benchmark {
+		private final String file;
+		private final boolean parallel;
+		private int lines;
+
+		OBJRead(String file, boolean parallel) {
+			super("OBJReader.read:" + new File(file).getName().replace(".obj", "") + ":"
+					+ (parallel ? "parallel" : "serial"), "lines");
+			this.file = file;
+			this.parallel = parallel;
+		}
+
+		@Override
+		public void setUp() {
+			try {
+				byte[] bytes = Files.readAllBytes(Paths.get(file));
+				lines = 1;
+				for (byte b : bytes)
+					if (b == '\n') lines++;
+			} catch (IOException e) {
+				throw new NotApplicableException("cannot read " + file);
+			}
+		}
+
+		@Override
+		public int run() {
+			MeshData mesh = OBJReader.read(file, false, false, parallel);
+			sink += mesh == null ? 0 : mesh.vertexCount;
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package cs4620.mesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Binary Copies Of Meshes, Kept Next To The OBJ Files They Were Read From
+ *
+ * The First Time An OBJ Is Loaded, Its MeshData Is Written To A Cache File Beside It
+ * ("mesh.obj" Gets "mesh.obj.bmesh"). Later Loads Memory-Map The Cache And Wrap Its
+ * Blocks As Buffers, With No Parsing At All. Such Buffers Are Read-Only.
+ *
+ * File Layout (Little-Endian):
+ *   int Magic, int Version, int Flags (1 = Normals, 2 = UVs), int Vertex Count,
+ *   int Index Count, int Padding, long OBJ Length, long OBJ Modification Time,
+ *   long OBJ Checksum, Then The Positions, Normals, UVs And Indices Blocks Exactly As
+ *   In MeshData.
+ *
+ * A Cache Is Used If The OBJ's Length And Modification Time Are Those Recorded. If Only
+ * The Time Differs (The File Was Copied Or Checked Out Again), The OBJ Is Checksummed
+ * And The Cache Is Still Used If The Checksum Matches. Otherwise The OBJ Is Read Again
+ * And The Cache Rewritten.
+ */
+public class MeshCache {
+	/**
+	 * False To Always Read OBJ Files And Never Touch Caches
+	 */
+	public static boolean ENABLED = true;
+
+	/**
+	 * Appended To The OBJ File Name
+	 */
+	public static final String EXTENSION = ".bmesh";
+
+	private static final int MAGIC = 0x48534d42; // "BMSH"
+	private static final int VERSION = 1;
+	private static final int FLAG_NORMALS = 1, FLAG_UVS = 2;
+	private static final int HEADER_SIZE = 48;
+
+	/**
+	 * Reads An OBJ Mesh As OBJReader.read Does, Through Its Cache
+	 * @param file OBJ File
+	 * @return A Mesh, Or Null If The File Holds No Triangles
+	 */
+	public static MeshData read(String file) {
+		MeshData data = get(file, null);
+		if(data != null) return data;
+
+		data = OBJReader.read(file);
+		if(data != null) put(file, null, data);
+		return data;
+	}
+
+	/**
+	 * Loads A Cached Mesh
+	 * @param file OBJ File The Mesh Was Made From
+	 * @param variant Distinguishes Meshes Processed Differently From The Same OBJ, Or Null For What OBJReader Reads
+	 * @return The Mesh, Or Null If There Is No Cache Or The OBJ Changed Since It Was Written
+	 */
+	public static MeshData get(String file, String variant) {
+		if(!ENABLED) return null;
+		File obj = new File(file);
+		File cache = cacheFile(file, variant);
+		if(!obj.isFile() || !cache.isFile()) return null;
+
+		try (RandomAccessFile raf = new RandomAccessFile(cache, "r"); FileChannel ch = raf.getChannel()) {
+			if(ch.size() < HEADER_SIZE || ch.size() > Integer.MAX_VALUE) return null;
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(map.getInt(0) != MAGIC || map.getInt(4) != VERSION) return null;
+			int flags = map.getInt(8);
+			int vertexCount = map.getInt(12);
+			int indexCount = map.getInt(16);
+			long length = map.getLong(24), modified = map.getLong(32), checksum = map.getLong(40);
+			if(vertexCount < 0 || indexCount < 0) return null;
+
+			// Check The OBJ Has Not Changed
+			if(length != obj.length()) return null;
+			if(modified != obj.lastModified()) {
+				if(checksum != checksum(obj)) return null;
+				touch(cache, obj.lastModified());
+			}
+
+			long size = HEADER_SIZE + 4L * (3L * vertexCount + indexCount);
+			if((flags & FLAG_NORMALS) != 0) size += 4L * 3 * vertexCount;
+			if((flags & FLAG_UVS) != 0) size += 4L * 2 * vertexCount;
+			if(size != ch.size()) return null;
+
+			// Wrap The Blocks Without Copying Them
+			MeshData data = new MeshData();
+			data.vertexCount = vertexCount;
+			data.indexCount = indexCount;
+			int offset = HEADER_SIZE;
+			data.positions = block(map, offset, 3 * vertexCount).asFloatBuffer();
+			offset += 4 * 3 * vertexCount;
+			if((flags & FLAG_NORMALS) != 0) {
+				data.normals = block(map, offset, 3 * vertexCount).asFloatBuffer();
+				offset += 4 * 3 * vertexCount;
+			}
+			if((flags & FLAG_UVS) != 0) {
+				data.uvs = block(map, offset, 2 * vertexCount).asFloatBuffer();
+				offset += 4 * 2 * vertexCount;
+			}
+			data.indices = block(map, offset, indexCount).asIntBuffer();
+			return data;
+		} catch (IOException e) {
+			System.err.println("Could Not Read Mesh Cache " + cache + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes A Mesh To The Cache Of An OBJ File, Keyed To The OBJ's Current Contents
+	 * @param file OBJ File The Mesh Was Made From
+	 * @param variant Distinguishes Meshes Processed Differently From The Same OBJ, Or Null For What OBJReader Reads
+	 * @param data The Mesh
+	 */
+	public static void put(String file, String variant, MeshData data) {
+		if(!ENABLED || data == null || !data.hasData()) return;
+		File obj = new File(file);
+		File cache = cacheFile(file, variant);
+		File temp = new File(cache.getPath() + ".tmp");
+
+		try {
+			long length = obj.length(), modified = obj.lastModified();
+			long checksum = checksum(obj);
+
+			int vertexCount = data.vertexCount, indexCount = data.indexCount;
+			boolean hasNormals = data.hasNormals(), hasUVs = data.hasUVs();
+			long size = HEADER_SIZE + 4L * (3L * vertexCount + indexCount);
+			if(hasNormals) size += 4L * 3 * vertexCount;
+			if(hasUVs) size += 4L * 2 * vertexCount;
+			if(size > Integer.MAX_VALUE) return;
+
+			// Write Beside The Cache And Rename, So No Reader Ever Sees Half A File
+			try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel ch = raf.getChannel()) {
+				raf.setLength(size);
+				MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				map.order(ByteOrder.LITTLE_ENDIAN);
+				map.putInt(MAGIC).putInt(VERSION);
+				map.putInt((hasNormals ? FLAG_NORMALS : 0) | (hasUVs ? FLAG_UVS : 0));
+				map.putInt(vertexCount).putInt(indexCount).putInt(0);
+				map.putLong(length).putLong(modified).putLong(checksum);
+
+				int offset = HEADER_SIZE;
+				copy(data.positions, 3 * vertexCount, block(map, offset, 3 * vertexCount).asFloatBuffer());
+				offset += 4 * 3 * vertexCount;
+				if(hasNormals) {
+					copy(data.normals, 3 * vertexCount, block(map, offset, 3 * vertexCount).asFloatBuffer());
+					offset += 4 * 3 * vertexCount;
+				}
+				if(hasUVs) {
+					copy(data.uvs, 2 * vertexCount, block(map, offset, 2 * vertexCount).asFloatBuffer());
+					offset += 4 * 2 * vertexCount;
+				}
+				IntBuffer src = data.indices.duplicate();
+				src.clear().limit(indexCount);
+				block(map, offset, indexCount).asIntBuffer().put(src);
+				map.force();
+			}
+			if(!temp.renameTo(cache)) {
+				cache.delete();
+				if(!temp.renameTo(cache)) throw new IOException("Cannot Rename " + temp);
+			}
+		} catch (IOException e) {
+			// The Cache Is Only An Optimization, E.g. The Directory May Be Read-Only
+			System.err.println("Could Not Write Mesh Cache " + cache + ": " + e);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Records A New OBJ Modification Time In A Cache, If The Cache Can Be Written
+	 */
+	private static void touch(File cache, long modified) {
+		try (RandomAccessFile raf = new RandomAccessFile(cache, "rw"); FileChannel ch = raf.getChannel()) {
+			ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			time.putLong(0, modified);
+			ch.write(time, 32);
+		} catch (IOException e) {
+			// Then The OBJ Is Checksummed Again Next Time
+		}
+	}
+
+	/**
+	 * Copies The First count Values Of src Into dst
+	 */
+	private static void copy(FloatBuffer src, int count, FloatBuffer dst) {
+		FloatBuffer b = src.duplicate();
+		b.clear().limit(count);
+		dst.put(b);
+	}
+
+	/**
+	 * @return The Cache File For An OBJ File And Variant
+	 */
+	public static File cacheFile(String file, String variant) {
+		return new File(variant == null ? file + EXTENSION : file + "." + variant + EXTENSION);
+	}
+
+	/**
+	 * @return A Little-Endian View Of count 4-Byte Values At offset
+	 */
+	private static ByteBuffer block(MappedByteBuffer map, int offset, int count) {
+		ByteBuffer b = map.duplicate();
+		b.position(offset);
+		b.limit(offset + 4 * count);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return The CRC-32 Of A File's Contents
+	 */
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[1 << 16];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+			ByteBuffer b = ByteBuffer.wrap(chunk);
+			long offset = 0;
+			while(true) {
+				b.clear();
+				int n = ch.read(b, offset);
+				if(n <= 0) break;
+				crc.update(chunk, 0, n);
+				offset += n;
+			}
+		}
+		return crc.getValue();
+	}
+}
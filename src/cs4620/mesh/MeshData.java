@@ -42,7 +42,24 @@ public class MeshData {
 		indexCount = vertexCount = 0;
 	}
 	
+	/**
+	 * Cache Variant Of Meshes Flattened By loadOBJ, Which Lays Out Vertices Differently From OBJReader
+	 */
+	private static final String MESH_CACHE_VARIANT = "parsed";
+
 	public boolean loadOBJ(String fName) {
+		// A Mesh With UVs And Normals Is Cached Exactly As It Is Flattened Below
+		MeshData cached = MeshCache.get(fName, MESH_CACHE_VARIANT);
+		if(cached != null && cached.hasUVs() && cached.hasNormals()) {
+			positions = cached.positions;
+			normals = cached.normals;
+			uvs = cached.uvs;
+			indices = cached.indices;
+			vertexCount = cached.vertexCount;
+			indexCount = cached.indexCount;
+			return true;
+		}
+
 		OBJMesh om = OBJParser.parse(fName);
 		if(om == null || !om.hasData()) return false;
 		if(om.hasUVs()) {
@@ -78,6 +95,7 @@ public class MeshData {
 				indices.put(t.y);
 				indices.put(t.z);
 			}
+			MeshCache.put(fName, MESH_CACHE_VARIANT, this);
 		}
 		else {
 			// TODO this branch currently doesn't do something sensible.s
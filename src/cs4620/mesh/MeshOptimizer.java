@@ -0,0 +1,431 @@
+package cs4620.mesh;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import egl.NativeMem;
+
+/**
+ * Reorders A Mesh So The GPU Draws It With Less Work
+ *
+ * optimizeVertexCache Reorders Triangles So That Vertices Are Reused While Still In The
+ * Post-Transform Vertex Cache (Forsyth's Linear-Speed Vertex Cache Optimization).
+ * optimizeOverdraw Then Moves Whole Runs Of That Order So Outward-Facing Parts Come
+ * First, Which Lets Early Depth Testing Reject More Hidden Fragments, At A Small Cost
+ * In Cache Efficiency (After Sander Et Al.'s Tipsify). optimizeVertexFetch Finally
+ * Renumbers Vertices In The Order They Are First Used, So Vertex Fetches Walk Memory
+ * Mostly Forward.
+ *
+ * The Effect On The Cache Is Measured As The ACMR (Average Cache Miss Ratio: Vertices
+ * Transformed Per Triangle, Between 0.5 And 3) And The ATVR (Average Transform To Vertex
+ * Ratio: Vertices Transformed Per Vertex, At Least 1) Of A Simulated FIFO Cache.
+ *
+ * Run As A Program To Report Both Before And After Optimizing OBJ Files:
+ *   java cs4620.mesh.MeshOptimizer [-cache n] [-out directory] mesh.obj ...
+ * With -out, The Optimized Meshes Are Also Written To OBJ Files Of The Same Names In
+ * That Directory, To Be Loaded Instead Of The Originals.
+ */
+public class MeshOptimizer {
+	/**
+	 * Size Of The Simulated FIFO Cache Used For Reporting, Like That Of Common GPUs
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+	/**
+	 * Size Of The LRU Cache The Triangle Order Is Optimized For
+	 */
+	private static final int OPTIMIZE_CACHE_SIZE = 32;
+	/**
+	 * How Much Worse The ACMR May Get For The Sake Of Overdraw
+	 */
+	public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+
+	/*
+	 * Forsyth's Vertex Scoring Constants
+	 */
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	/**
+	 * Runs Every Optimization With Default Settings
+	 * @param data Mesh, Whose Indices (And Vertices) Are Replaced
+	 */
+	public static void optimize(MeshData data) {
+		optimizeVertexCache(data);
+		optimizeOverdraw(data, DEFAULT_OVERDRAW_THRESHOLD);
+		optimizeVertexFetch(data);
+	}
+
+	/**
+	 * Reorders Triangles For Vertex Cache Locality
+	 * @param data Mesh, Whose Indices Are Replaced
+	 */
+	public static void optimizeVertexCache(MeshData data) {
+		int triCount = data.indexCount / 3;
+		int vertexCount = data.vertexCount;
+		if(triCount == 0) return;
+		int[] indices = toArray(data.indices, triCount * 3);
+
+		// Triangles Around Each Vertex, Packed Into One Array
+		int[] adjacencyStart = new int[vertexCount + 1];
+		for(int i : indices) adjacencyStart[i + 1]++;
+		for(int v = 0;v < vertexCount;v++) adjacencyStart[v + 1] += adjacencyStart[v];
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(adjacencyStart, vertexCount);
+		for(int i = 0;i < indices.length;i++) adjacency[fill[indices[i]]++] = i / 3;
+
+		// Triangles Not Yet Emitted Around Each Vertex Are Kept At The Front Of Its Range
+		int[] remaining = new int[vertexCount];
+		for(int v = 0;v < vertexCount;v++) remaining[v] = adjacencyStart[v + 1] - adjacencyStart[v];
+
+		int[] cachePosition = new int[vertexCount];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScore = new float[vertexCount];
+		for(int v = 0;v < vertexCount;v++) vertexScore[v] = vertexScore(-1, remaining[v]);
+		float[] triangleScore = new float[triCount];
+		for(int t = 0;t < triCount;t++) {
+			triangleScore[t] = vertexScore[indices[3 * t]] + vertexScore[indices[3 * t + 1]] + vertexScore[indices[3 * t + 2]];
+		}
+		boolean[] emitted = new boolean[triCount];
+
+		int[] cache = new int[OPTIMIZE_CACHE_SIZE + 3], newCache = new int[OPTIMIZE_CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int[] output = new int[indices.length];
+		int nextInput = 0;
+
+		int best = -1;
+		for(int out = 0;out < triCount;out++) {
+			if(best < 0) {
+				// Nothing In The Cache Helps, So Start Anew At The Next Triangle Left
+				while(emitted[nextInput]) nextInput++;
+				best = nextInput;
+			}
+
+			// Emit The Triangle And Move Its Vertices To The Front Of The Cache
+			emitted[best] = true;
+			int newCount = 0;
+			for(int k = 0;k < 3;k++) {
+				int v = indices[3 * best + k];
+				output[3 * out + k] = v;
+				newCache[newCount++] = v;
+
+				// Remove The Triangle From The Vertex's Remaining Ones
+				int s = adjacencyStart[v], e = s + remaining[v];
+				for(int j = s;j < e;j++) {
+					if(adjacency[j] == best) {
+						adjacency[j] = adjacency[e - 1];
+						adjacency[e - 1] = best;
+						break;
+					}
+				}
+				remaining[v]--;
+			}
+			for(int c = 0;c < cacheCount;c++) {
+				int v = cache[c];
+				if(v != indices[3 * best] && v != indices[3 * best + 1] && v != indices[3 * best + 2]) newCache[newCount++] = v;
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheCount = newCount;
+
+			// Rescore The Vertices Whose Cache Position Changed, And Their Triangles
+			best = -1;
+			float bestScore = 0;
+			for(int c = 0;c < cacheCount;c++) {
+				int v = cache[c];
+				cachePosition[v] = c < OPTIMIZE_CACHE_SIZE ? c : -1;
+				float score = vertexScore(cachePosition[v], remaining[v]);
+				float delta = score - vertexScore[v];
+				vertexScore[v] = score;
+				for(int j = adjacencyStart[v], e = j + remaining[v];j < e;j++) {
+					int t = adjacency[j];
+					triangleScore[t] += delta;
+					if(triangleScore[t] > bestScore) {
+						bestScore = triangleScore[t];
+						best = t;
+					}
+				}
+			}
+			if(cacheCount > OPTIMIZE_CACHE_SIZE) cacheCount = OPTIMIZE_CACHE_SIZE;
+		}
+
+		// Some Meshes Come Well Ordered Already (E.g. As Strips)
+		if(acmr(output, output.length, DEFAULT_CACHE_SIZE) < acmr(indices, indices.length, DEFAULT_CACHE_SIZE)) {
+			data.indices = toIntBuffer(output, data.indexCount, data.indices);
+		}
+	}
+	/**
+	 * Forsyth's Score Of A Vertex, Higher For Vertices Worth Using Next
+	 * @param position Position In The Cache, Or -1 If Not In It
+	 * @param remaining Triangles Left To Emit That Use The Vertex
+	 */
+	private static float vertexScore(int position, int remaining) {
+		if(remaining == 0) return -1;
+
+		float score = 0;
+		if(position >= 0) {
+			if(position < 3) {
+				// Used By The Last Triangle, Whose Exact Order Does Not Matter
+				score = LAST_TRIANGLE_SCORE;
+			}
+			else {
+				float scale = 1.0f / (OPTIMIZE_CACHE_SIZE - 3);
+				score = (float)Math.pow(1.0f - (position - 3) * scale, CACHE_DECAY_POWER);
+			}
+		}
+
+		// Favor Vertices With Few Triangles Left, So No Lone Triangles Are Left Behind
+		score += VALENCE_BOOST_SCALE * (float)Math.pow(remaining, -VALENCE_BOOST_POWER);
+		return score;
+	}
+
+	/**
+	 * Reorders Clusters Of A Cache-Optimized Triangle Order So Outward-Facing Ones Come First
+	 *
+	 * The Order Is Cut Wherever The Simulated Cache Has To Start Over, Which Splits It Into
+	 * Clusters That Can Move Without Hurting The Cache Much. Clusters Are Sorted By How Far
+	 * Out Along Their Own Average Normal They Lie From The Mesh's Center. The Sort Is Kept
+	 * Only If The ACMR Stays Within threshold Times What It Was.
+	 * @param data Mesh, Whose Indices Are Replaced
+	 * @param threshold Largest Allowed Ratio Between The New And Old ACMR (At Least 1)
+	 */
+	public static void optimizeOverdraw(MeshData data, float threshold) {
+		int triCount = data.indexCount / 3;
+		if(triCount < 2) return;
+		int[] indices = toArray(data.indices, triCount * 3);
+
+		// Cut Where A Triangle Misses The Cache With All Its Vertices
+		ArrayList<Integer> starts = new ArrayList<>();
+		int[] cache = new int[DEFAULT_CACHE_SIZE];
+		Arrays.fill(cache, -1);
+		int head = 0;
+		for(int t = 0;t < triCount;t++) {
+			int misses = 0;
+			for(int k = 0;k < 3;k++) {
+				int v = indices[3 * t + k];
+				if(!contains(cache, v)) {
+					cache[head] = v;
+					head = (head + 1) % cache.length;
+					misses++;
+				}
+			}
+			if(misses == 3 || t == 0) starts.add(t);
+		}
+		int clusterCount = starts.size();
+		if(clusterCount < 2) return;
+		starts.add(triCount);
+
+		// Mesh Center
+		double cx = 0, cy = 0, cz = 0;
+		for(int v = 0;v < data.vertexCount;v++) {
+			cx += data.positions.get(3 * v);
+			cy += data.positions.get(3 * v + 1);
+			cz += data.positions.get(3 * v + 2);
+		}
+		cx /= data.vertexCount;
+		cy /= data.vertexCount;
+		cz /= data.vertexCount;
+
+		// Sort Clusters By dot(Cluster Center - Mesh Center, Cluster Normal), Largest First
+		final double[] sortKey = new double[clusterCount];
+		Integer[] order = new Integer[clusterCount];
+		for(int c = 0;c < clusterCount;c++) {
+			order[c] = c;
+			double px = 0, py = 0, pz = 0, nx = 0, ny = 0, nz = 0, area = 0;
+			for(int t = starts.get(c);t < starts.get(c + 1);t++) {
+				int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], d = 3 * indices[3 * t + 2];
+				double e1x = data.positions.get(b) - data.positions.get(a);
+				double e1y = data.positions.get(b + 1) - data.positions.get(a + 1);
+				double e1z = data.positions.get(b + 2) - data.positions.get(a + 2);
+				double e2x = data.positions.get(d) - data.positions.get(a);
+				double e2y = data.positions.get(d + 1) - data.positions.get(a + 1);
+				double e2z = data.positions.get(d + 2) - data.positions.get(a + 2);
+				// Area-Weighted Normal And Centroid
+				double tx = e1y * e2z - e1z * e2y, ty = e1z * e2x - e1x * e2z, tz = e1x * e2y - e1y * e2x;
+				double w = Math.sqrt(tx * tx + ty * ty + tz * tz);
+				nx += tx;
+				ny += ty;
+				nz += tz;
+				px += w * (data.positions.get(a) + data.positions.get(b) + data.positions.get(d)) / 3;
+				py += w * (data.positions.get(a + 1) + data.positions.get(b + 1) + data.positions.get(d + 1)) / 3;
+				pz += w * (data.positions.get(a + 2) + data.positions.get(b + 2) + data.positions.get(d + 2)) / 3;
+				area += w;
+			}
+			double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if(area > 0 && len > 0) {
+				sortKey[c] = ((px / area - cx) * nx + (py / area - cy) * ny + (pz / area - cz) * nz) / len;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(sortKey[b], sortKey[a]);
+			}
+		});
+
+		int[] output = new int[indices.length];
+		int o = 0;
+		for(int c : order) {
+			int from = 3 * starts.get(c), to = 3 * starts.get(c + 1);
+			System.arraycopy(indices, from, output, o, to - from);
+			o += to - from;
+		}
+
+		// Keep The New Order Only If The Cache Still Does Well
+		if(acmr(output, output.length, DEFAULT_CACHE_SIZE) <= threshold * acmr(indices, indices.length, DEFAULT_CACHE_SIZE)) {
+			data.indices = toIntBuffer(output, data.indexCount, data.indices);
+		}
+	}
+	private static boolean contains(int[] a, int v) {
+		for(int x : a) if(x == v) return true;
+		return false;
+	}
+
+	/**
+	 * Renumbers Vertices In The Order Triangles First Use Them; Unused Vertices Go Last
+	 * @param data Mesh, Whose Vertices And Indices Are Replaced
+	 */
+	public static void optimizeVertexFetch(MeshData data) {
+		int vertexCount = data.vertexCount;
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		IntBuffer indices = NativeMem.createIntBuffer(data.indexCount);
+		for(int i = 0;i < data.indexCount;i++) {
+			int v = data.indices.get(i);
+			if(remap[v] < 0) remap[v] = next++;
+			indices.put(i, remap[v]);
+		}
+		for(int v = 0;v < vertexCount;v++) {
+			if(remap[v] < 0) remap[v] = next++;
+		}
+
+		data.positions = remapVertices(data.positions, 3, remap, vertexCount);
+		if(data.hasNormals()) data.normals = remapVertices(data.normals, 3, remap, vertexCount);
+		if(data.hasUVs()) data.uvs = remapVertices(data.uvs, 2, remap, vertexCount);
+		data.indices = indices;
+	}
+	private static FloatBuffer remapVertices(FloatBuffer in, int size, int[] remap, int vertexCount) {
+		FloatBuffer out = NativeMem.createFloatBuffer(vertexCount * size);
+		for(int v = 0;v < vertexCount;v++) {
+			for(int k = 0;k < size;k++) out.put(remap[v] * size + k, in.get(v * size + k));
+		}
+		return out;
+	}
+
+	/**
+	 * Average Cache Miss Ratio Of A Mesh
+	 * @param data Mesh
+	 * @param cacheSize Number Of Vertices The Simulated FIFO Cache Holds
+	 * @return Vertices Transformed Per Triangle
+	 */
+	public static float acmr(MeshData data, int cacheSize) {
+		return acmr(toArray(data.indices, data.indexCount), data.indexCount, cacheSize);
+	}
+	/**
+	 * Average Transform To Vertex Ratio Of A Mesh
+	 * @param data Mesh
+	 * @param cacheSize Number Of Vertices The Simulated FIFO Cache Holds
+	 * @return Vertices Transformed Per Vertex Used
+	 */
+	public static float atvr(MeshData data, int cacheSize) {
+		int[] indices = toArray(data.indices, data.indexCount);
+		boolean[] used = new boolean[data.vertexCount];
+		int usedCount = 0;
+		for(int v : indices) {
+			if(!used[v]) {
+				used[v] = true;
+				usedCount++;
+			}
+		}
+		return usedCount == 0 ? 0 : (float)transforms(indices, indices.length, cacheSize) / usedCount;
+	}
+	private static float acmr(int[] indices, int count, int cacheSize) {
+		return count < 3 ? 0 : (float)transforms(indices, count, cacheSize) / (count / 3);
+	}
+	/**
+	 * @return Number Of Vertices A FIFO Cache Of cacheSize Has To Transform
+	 */
+	private static int transforms(int[] indices, int count, int cacheSize) {
+		int max = 0;
+		for(int i = 0;i < count;i++) max = Math.max(max, indices[i]);
+		// Each Vertex Remembers When It Entered The Cache
+		int[] entered = new int[max + 1];
+		Arrays.fill(entered, Integer.MIN_VALUE / 2);
+		int misses = 0;
+		for(int i = 0;i < count;i++) {
+			int v = indices[i];
+			if(misses - entered[v] >= cacheSize) {
+				entered[v] = misses;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	private static int[] toArray(IntBuffer b, int count) {
+		int[] a = new int[count];
+		for(int i = 0;i < count;i++) a[i] = b.get(i);
+		return a;
+	}
+	private static IntBuffer toIntBuffer(int[] a, int indexCount, IntBuffer old) {
+		IntBuffer b = NativeMem.createIntBuffer(indexCount);
+		b.put(a, 0, a.length);
+		// Keep Any Indices Of An Unfinished Last Triangle
+		for(int i = a.length;i < indexCount;i++) b.put(old.get(i));
+		b.rewind();
+		return b;
+	}
+
+	public static void main(String[] args) {
+		int cacheSize = DEFAULT_CACHE_SIZE;
+		String out = null;
+		ArrayList<String> files = new ArrayList<>();
+		for(int i = 0;i < args.length;i++) {
+			switch(args[i]) {
+			case "-cache":
+				cacheSize = Integer.parseInt(args[++i]);
+				break;
+			case "-out":
+				out = args[++i];
+				break;
+			default:
+				files.add(args[i]);
+				break;
+			}
+		}
+		if(files.isEmpty()) {
+			System.out.println("Usage: MeshOptimizer [-cache n] [-out directory] mesh.obj ...");
+			return;
+		}
+
+		System.out.printf("%-32s %9s %9s %9s %9s %9s   %s%n", "Mesh (FIFO " + cacheSize + ")", "Triangles", "ACMR", "ATVR", "ACMR Opt", "ATVR Opt", "Time");
+		for(String file : files) {
+			MeshData data = OBJReader.read(file);
+			if(data == null) continue;
+			float acmr = acmr(data, cacheSize), atvr = atvr(data, cacheSize);
+			long time = System.nanoTime();
+			optimize(data);
+			time = System.nanoTime() - time;
+			System.out.printf("%-32s %9d %9.3f %9.3f %9.3f %9.3f   %.1f ms%n", file, data.indexCount / 3,
+					acmr, atvr, acmr(data, cacheSize), atvr(data, cacheSize), time / 1e6);
+
+			if(out != null) {
+				// Writing Keeps The Order, As Vertices Are Written In The Order Triangles Use Them
+				try (PrintWriter w = new PrintWriter(new File(out, new File(file).getName()))) {
+					OBJParser.write(w, OBJParser.convert(data));
+				} catch (FileNotFoundException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package cs4620.mesh;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import egl.NativeMem;
+
+/**
+ * Reduces The Triangle Count Of A Mesh For Levels Of Detail
+ *
+ * Edges Are Collapsed Cheapest First, As Measured By Garland And Heckbert's Quadric Error
+ * Metric: Each Vertex Keeps The Sum Of The Squared-Distance Quadrics Of The Planes Of Its
+ * Triangles. A Collapse Moves One Vertex Onto Its Neighbor (A Half-Edge Collapse), So No
+ * New Positions, Normals Or UVs Are Ever Made Up.
+ *
+ * MeshData Splits A Vertex Wherever Its Normal Or UV Changes, So Such Seams Show Up As
+ * Several Vertices At One Position. Vertices Are Handled By Position, And Classified As:
+ *   Manifold - Inside A Single Attribute Region; May Collapse Onto Any Neighbor
+ *   Border   - On An Open Edge Of The Mesh; May Only Collapse Along It
+ *   Seam     - On A Seam Between Two Regions; May Only Collapse Along The Seam, Taking
+ *              The Vertices On Both Sides With It
+ *   Locked   - Anything Else (E.g. Where Seams Meet); Never Collapses
+ * So Seams And Borders Stay Where They Are, Only With Fewer Vertices Along Them.
+ */
+public class MeshSimplifier {
+	/**
+	 * Triangle Ratios Of The Levels buildLODs Makes By Default, Relative To The Full Mesh
+	 */
+	public static final float[] DEFAULT_LOD_RATIOS = { 0.5f, 0.25f, 0.125f };
+	/**
+	 * Largest Distance A Collapse May Move The Surface, Relative To The Mesh's Size
+	 */
+	public static final float DEFAULT_MAX_ERROR = 0.01f;
+
+	private static final byte KIND_MANIFOLD = 0, KIND_BORDER = 1, KIND_SEAM = 2, KIND_LOCKED = 3;
+	private static final int QUADRIC_SIZE = 11;
+
+	/**
+	 * How Much More It Costs To Move A Vertex Off A Border Or Seam Than Off A Face
+	 */
+	private static final double EDGE_WEIGHT = 10;
+	/**
+	 * Collapses That Turn A Triangle's Normal By More Than acos(This) Are Refused
+	 */
+	private static final double MIN_NORMAL_COSINE = 0.25;
+
+	/**
+	 * Builds A Chain Of Levels Of Detail, Each Simplified From The One Before
+	 * @param data Full Mesh
+	 * @param ratios Decreasing Triangle Ratios Of The Levels, Relative To The Full Mesh
+	 * @return The Full Mesh Followed By One Mesh Per Ratio, Stopping Early Once A Level Saves Less Than A Tenth Of The Triangles Before It
+	 */
+	public static MeshData[] buildLODs(MeshData data, float[] ratios) {
+		MeshData[] chain = new MeshData[ratios.length + 1];
+		chain[0] = data;
+		int levels = 1;
+		int triCount = data.indexCount / 3;
+		for(float ratio : ratios) {
+			MeshData prev = chain[levels - 1];
+			MeshData next = simplify(prev, (int)(triCount * ratio), DEFAULT_MAX_ERROR);
+			if(next.indexCount > prev.indexCount * 0.9f) break;
+			chain[levels++] = next;
+		}
+		return Arrays.copyOf(chain, levels);
+	}
+
+	/**
+	 * Simplifies A Mesh To A Fraction Of Its Triangles
+	 * @param data Mesh, Which Is Left Unchanged
+	 * @param ratio Fraction Of The Triangles To Keep, In (0, 1]
+	 * @return A New Mesh With The Same Attributes, As Close To The Target As Seams Allow
+	 */
+	public static MeshData simplify(MeshData data, float ratio) {
+		return simplify(data, (int)(data.indexCount / 3 * ratio), DEFAULT_MAX_ERROR);
+	}
+	/**
+	 * Simplifies A Mesh Toward A Number Of Triangles
+	 * @param data Mesh, Which Is Left Unchanged
+	 * @param targetTriangles Triangle Count To Reach
+	 * @param maxError Largest Distance A Collapse May Move The Surface, Relative To The Diagonal Of The Mesh's Bounding Box
+	 * @return A New Mesh With The Same Attributes, As Close To The Target As Seams And maxError Allow
+	 */
+	public static MeshData simplify(MeshData data, int targetTriangles, float maxError) {
+		int vertexCount = data.vertexCount;
+		int triCount = data.indexCount / 3;
+		int[] indices = new int[triCount * 3];
+		for(int i = 0;i < indices.length;i++) indices[i] = data.indices.get(i);
+		float[] pos = new float[vertexCount * 3];
+		for(int i = 0;i < pos.length;i++) pos[i] = data.positions.get(i);
+		double maxErrorSq = maxError * diagonal(pos);
+		maxErrorSq *= maxErrorSq;
+
+		// Vertices At The Same Position Share A Group, Named By Its First Vertex
+		int[] group = new int[vertexCount];
+		int[] nextWedge = new int[vertexCount];
+		HashMap<PositionKey, Integer> firstAt = new HashMap<>();
+		for(int v = 0;v < vertexCount;v++) {
+			PositionKey key = new PositionKey(pos[3 * v], pos[3 * v + 1], pos[3 * v + 2]);
+			Integer first = firstAt.get(key);
+			if(first == null) {
+				firstAt.put(key, v);
+				group[v] = v;
+				nextWedge[v] = v;
+			}
+			else {
+				// Link Into The Circular List Of The Group's Vertices
+				group[v] = first;
+				nextWedge[v] = nextWedge[first];
+				nextWedge[first] = v;
+			}
+		}
+
+		byte[] kind = new byte[vertexCount];
+		int[] openNeighbor = new int[vertexCount * 2];
+		double[] quadric = new double[vertexCount * QUADRIC_SIZE];
+		classify(indices, group, nextWedge, kind, openNeighbor);
+		computeQuadrics(indices, pos, group, quadric);
+
+		int[] remap = new int[vertexCount];
+		for(int v = 0;v < vertexCount;v++) remap[v] = v;
+		boolean[] touched = new boolean[vertexCount];
+		int liveCount = triCount;
+
+		while(liveCount > targetTriangles) {
+			// Triangles Around Each Vertex
+			int[] adjacencyStart = new int[vertexCount + 1];
+			for(int i : indices) adjacencyStart[i + 1]++;
+			for(int v = 0;v < vertexCount;v++) adjacencyStart[v + 1] += adjacencyStart[v];
+			int[] adjacency = new int[indices.length];
+			int[] fill = Arrays.copyOf(adjacencyStart, vertexCount);
+			for(int i = 0;i < indices.length;i++) adjacency[fill[indices[i]]++] = i / 3;
+			boolean[] dead = new boolean[indices.length / 3];
+
+			// Every Allowed Collapse Along An Edge, Cheapest First: Each Is Sorted By A Key
+			// Holding Its Error (A Non-Negative Float, Whose Bits Sort Like It) Above Its Index
+			int edgeCount = indices.length;
+			int[] candidates = new int[edgeCount * 4];
+			long[] order = new long[edgeCount * 2];
+			int candidateCount = 0;
+			for(int i = 0;i < edgeCount;i++) {
+				int a = group[indices[i]];
+				int b = group[indices[i - i % 3 + (i + 1) % 3]];
+				for(int dir = 0;dir < 2;dir++) {
+					int from = dir == 0 ? a : b, to = dir == 0 ? b : a;
+					if(!canCollapse(from, to, kind, openNeighbor)) continue;
+					double error = collapseError(quadric, from, to, pos);
+					if(error > maxErrorSq) continue;
+					candidates[2 * candidateCount] = from;
+					candidates[2 * candidateCount + 1] = to;
+					order[candidateCount] = ((long)Float.floatToIntBits((float)error) << 32) | candidateCount;
+					candidateCount++;
+				}
+			}
+			Arrays.sort(order, 0, candidateCount);
+
+			// Collapse As Many As Possible Without Touching A Vertex Twice
+			Arrays.fill(touched, false);
+			int collapsed = 0;
+			for(int o = 0;o < candidateCount;o++) {
+				if(liveCount <= targetTriangles) break;
+				int c = (int)order[o];
+				int from = candidates[2 * c], to = candidates[2 * c + 1];
+				if(touched[from] || touched[to]) continue;
+				int removed = collapse(from, to, indices, group, nextWedge, remap, adjacency, adjacencyStart, dead, pos);
+				if(removed < 0) continue;
+
+				// The Collapsed Vertex's Neighbors Along An Open Edge Now Neighbor Its Target
+				if(kind[from] == KIND_BORDER || kind[from] == KIND_SEAM) {
+					int other = openNeighbor[2 * from] == to ? openNeighbor[2 * from + 1] : openNeighbor[2 * from];
+					replaceNeighbor(openNeighbor, to, from, other);
+					replaceNeighbor(openNeighbor, other, from, to);
+				}
+				for(int k = 0;k < QUADRIC_SIZE;k++) quadric[QUADRIC_SIZE * to + k] += quadric[QUADRIC_SIZE * from + k];
+
+				touched[from] = touched[to] = true;
+				liveCount -= removed;
+				collapsed++;
+			}
+			if(collapsed == 0) break;
+
+			// Rewrite The Triangles Through The Collapses, Dropping Those That Vanished
+			int n = 0;
+			for(int t = 0;t < indices.length / 3;t++) {
+				int i0 = remap[indices[3 * t]], i1 = remap[indices[3 * t + 1]], i2 = remap[indices[3 * t + 2]];
+				if(group[i0] == group[i1] || group[i1] == group[i2] || group[i2] == group[i0]) continue;
+				indices[n++] = i0;
+				indices[n++] = i1;
+				indices[n++] = i2;
+			}
+			indices = Arrays.copyOf(indices, n);
+			liveCount = n / 3;
+			for(int v = 0;v < vertexCount;v++) remap[v] = v;
+		}
+
+		return compact(data, indices);
+	}
+
+	/**
+	 * Finds The Kind Of Every Position Group, And For Borders And Seams The Two Groups Next To It Along The Open Edges
+	 */
+	private static void classify(int[] indices, int[] group, int[] nextWedge, byte[] kind, int[] openNeighbor) {
+		int vertexCount = group.length;
+		HashSet<Long> vertexEdges = new HashSet<>(), groupEdges = new HashSet<>();
+		for(int i = 0;i < indices.length;i++) {
+			int a = indices[i], b = indices[i - i % 3 + (i + 1) % 3];
+			vertexEdges.add(edgeKey(a, b));
+			groupEdges.add(edgeKey(group[a], group[b]));
+		}
+
+		// An Edge Without A Twin Between The Same Vertices Is Open: A Seam If The Twin Exists
+		// Between Other Vertices At The Same Positions, Else A Border
+		int[] borderOut = new int[vertexCount], borderIn = new int[vertexCount];
+		int[] seamOut = new int[vertexCount], seamIn = new int[vertexCount];
+		Arrays.fill(openNeighbor, -1);
+		boolean[] badNeighbors = new boolean[vertexCount];
+		for(int i = 0;i < indices.length;i++) {
+			int a = indices[i], b = indices[i - i % 3 + (i + 1) % 3];
+			if(vertexEdges.contains(edgeKey(b, a))) continue;
+			boolean seam = groupEdges.contains(edgeKey(group[b], group[a]));
+			if(seam) {
+				seamOut[a]++;
+				seamIn[b]++;
+			}
+			else {
+				borderOut[a]++;
+				borderIn[b]++;
+			}
+			badNeighbors[group[a]] |= !addNeighbor(openNeighbor, group[a], group[b]);
+			badNeighbors[group[b]] |= !addNeighbor(openNeighbor, group[b], group[a]);
+		}
+
+		for(int g = 0;g < vertexCount;g++) {
+			if(group[g] != g) continue;
+			int wedges = 0, borderWedges = 0, seamWedges = 0, open = 0;
+			int v = g;
+			do {
+				wedges++;
+				open += borderOut[v] + borderIn[v] + seamOut[v] + seamIn[v];
+				if(borderOut[v] == 1 && borderIn[v] == 1 && seamOut[v] + seamIn[v] == 0) borderWedges++;
+				if(seamOut[v] == 1 && seamIn[v] == 1 && borderOut[v] + borderIn[v] == 0) seamWedges++;
+				v = nextWedge[v];
+			} while(v != g);
+
+			boolean twoNeighbors = !badNeighbors[g] && openNeighbor[2 * g + 1] >= 0;
+			if(open == 0) kind[g] = wedges == 1 ? KIND_MANIFOLD : KIND_LOCKED;
+			else if(wedges == 1 && borderWedges == 1 && twoNeighbors) kind[g] = KIND_BORDER;
+			else if(wedges == 2 && seamWedges == 2 && twoNeighbors) kind[g] = KIND_SEAM;
+			else kind[g] = KIND_LOCKED;
+		}
+	}
+	/**
+	 * Records n As A Neighbor Of g Along An Open Edge
+	 * @return False If g Already Has Two Other Such Neighbors
+	 */
+	private static boolean addNeighbor(int[] openNeighbor, int g, int n) {
+		if(openNeighbor[2 * g] == n || openNeighbor[2 * g + 1] == n) return true;
+		if(openNeighbor[2 * g] < 0) openNeighbor[2 * g] = n;
+		else if(openNeighbor[2 * g + 1] < 0) openNeighbor[2 * g + 1] = n;
+		else return false;
+		return true;
+	}
+	private static void replaceNeighbor(int[] openNeighbor, int g, int old, int n) {
+		if(openNeighbor[2 * g] == old) openNeighbor[2 * g] = n;
+		else if(openNeighbor[2 * g + 1] == old) openNeighbor[2 * g + 1] = n;
+	}
+	private static long edgeKey(int a, int b) {
+		return ((long)a << 32) | (b & 0xffffffffL);
+	}
+
+	/**
+	 * Sums The Face Quadrics Into Each Position Group, Plus Heavier Quadrics Of Planes
+	 * Standing On Open Edges So Borders And Seams Keep Their Shape
+	 */
+	private static void computeQuadrics(int[] indices, float[] pos, int[] group, double[] quadric) {
+		HashSet<Long> vertexEdges = new HashSet<>();
+		for(int i = 0;i < indices.length;i++) vertexEdges.add(edgeKey(indices[i], indices[i - i % 3 + (i + 1) % 3]));
+
+		double[] n = new double[3];
+		for(int t = 0;t < indices.length / 3;t++) {
+			int i0 = indices[3 * t], i1 = indices[3 * t + 1], i2 = indices[3 * t + 2];
+			double area = normal(pos, i0, i1, i2, n);
+			if(area == 0) continue;
+			double d = -(n[0] * pos[3 * i0] + n[1] * pos[3 * i0 + 1] + n[2] * pos[3 * i0 + 2]);
+			addPlane(quadric, group[i0], n, d, area);
+			addPlane(quadric, group[i1], n, d, area);
+			addPlane(quadric, group[i2], n, d, area);
+
+			// Open Edges Of This Triangle
+			for(int k = 0;k < 3;k++) {
+				int a = indices[3 * t + k], b = indices[3 * t + (k + 1) % 3];
+				if(vertexEdges.contains(edgeKey(b, a))) continue;
+				double ex = pos[3 * b] - pos[3 * a], ey = pos[3 * b + 1] - pos[3 * a + 1], ez = pos[3 * b + 2] - pos[3 * a + 2];
+				double length = Math.sqrt(ex * ex + ey * ey + ez * ez);
+				if(length == 0) continue;
+				// Plane Through The Edge, Perpendicular To The Triangle
+				double px = ey * n[2] - ez * n[1], py = ez * n[0] - ex * n[2], pz = ex * n[1] - ey * n[0];
+				double pl = Math.sqrt(px * px + py * py + pz * pz);
+				if(pl == 0) continue;
+				double[] p = { px / pl, py / pl, pz / pl };
+				double pd = -(p[0] * pos[3 * a] + p[1] * pos[3 * a + 1] + p[2] * pos[3 * a + 2]);
+				addPlane(quadric, group[a], p, pd, EDGE_WEIGHT * length * length);
+				addPlane(quadric, group[b], p, pd, EDGE_WEIGHT * length * length);
+			}
+		}
+	}
+	/**
+	 * Adds weight Times The Quadric Of The Plane n.x + d = 0 (Stored As Its Upper Triangle, Then The Total Weight)
+	 */
+	private static void addPlane(double[] quadric, int g, double[] n, double d, double weight) {
+		int o = QUADRIC_SIZE * g;
+		quadric[o] += weight * n[0] * n[0];
+		quadric[o + 1] += weight * n[0] * n[1];
+		quadric[o + 2] += weight * n[0] * n[2];
+		quadric[o + 3] += weight * n[0] * d;
+		quadric[o + 4] += weight * n[1] * n[1];
+		quadric[o + 5] += weight * n[1] * n[2];
+		quadric[o + 6] += weight * n[1] * d;
+		quadric[o + 7] += weight * n[2] * n[2];
+		quadric[o + 8] += weight * n[2] * d;
+		quadric[o + 9] += weight * d * d;
+		quadric[o + 10] += weight;
+	}
+	/**
+	 * @return The Error Of Moving from Onto to: The Summed Quadrics Of Both At to's Position, Over Their Weight
+	 */
+	private static double collapseError(double[] quadric, int from, int to, float[] pos) {
+		double x = pos[3 * to], y = pos[3 * to + 1], z = pos[3 * to + 2];
+		double error = 0, weight = 0;
+		for(int g : new int[] { from, to }) {
+			int o = QUADRIC_SIZE * g;
+			error += quadric[o] * x * x + 2 * quadric[o + 1] * x * y + 2 * quadric[o + 2] * x * z + 2 * quadric[o + 3] * x
+					+ quadric[o + 4] * y * y + 2 * quadric[o + 5] * y * z + 2 * quadric[o + 6] * y
+					+ quadric[o + 7] * z * z + 2 * quadric[o + 8] * z
+					+ quadric[o + 9];
+			weight += quadric[o + 10];
+		}
+		return weight > 0 ? Math.abs(error) / weight : 0;
+	}
+
+	private static boolean canCollapse(int from, int to, byte[] kind, int[] openNeighbor) {
+		switch(kind[from]) {
+		case KIND_MANIFOLD:
+			return true;
+		case KIND_BORDER:
+		case KIND_SEAM:
+			// Only Along The Open Edge, Onto The Same Kind Or A Locked Vertex
+			if(openNeighbor[2 * from] == openNeighbor[2 * from + 1]) return false;
+			if(openNeighbor[2 * from] != to && openNeighbor[2 * from + 1] != to) return false;
+			return kind[to] == kind[from] || kind[to] == KIND_LOCKED;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Moves Every Vertex Of Group from Onto The Vertex Of Group to Beside It, Unless That Folds A Triangle Over
+	 * @return The Number Of Triangles That Vanish, Or -1 If The Collapse Was Refused
+	 */
+	private static int collapse(int from, int to, int[] indices, int[] group, int[] nextWedge, int[] remap,
+			int[] adjacency, int[] adjacencyStart, boolean[] dead, float[] pos) {
+		double[] n0 = new double[3], n1 = new double[3];
+
+		// Find Each Vertex's Target, And Check The Triangles That Move
+		int w = from;
+		do {
+			int target = -1;
+			for(int j = adjacencyStart[w];j < adjacencyStart[w + 1];j++) {
+				int t = adjacency[j];
+				if(dead[t]) continue;
+				int i0 = remap[indices[3 * t]], i1 = remap[indices[3 * t + 1]], i2 = remap[indices[3 * t + 2]];
+				if(group[i0] == to || group[i1] == to || group[i2] == to) {
+					target = group[i0] == to ? i0 : group[i1] == to ? i1 : i2;
+					continue;
+				}
+				double a0 = normal(pos, i0, i1, i2, n0);
+				double a1 = normal(pos, i0 == w ? to : i0, i1 == w ? to : i1, i2 == w ? to : i2, n1);
+				if(a0 == 0) continue;
+				if(a1 == 0 || n0[0] * n1[0] + n0[1] * n1[1] + n0[2] * n1[2] < MIN_NORMAL_COSINE) return -1;
+			}
+			if(target < 0) return -1;
+			w = nextWedge[w];
+		} while(w != from);
+
+		// Apply It, Removing The Triangles Between The Two Groups
+		int removed = 0;
+		w = from;
+		do {
+			int target = -1;
+			for(int j = adjacencyStart[w];j < adjacencyStart[w + 1];j++) {
+				int t = adjacency[j];
+				if(dead[t]) continue;
+				int i0 = remap[indices[3 * t]], i1 = remap[indices[3 * t + 1]], i2 = remap[indices[3 * t + 2]];
+				if(group[i0] == to || group[i1] == to || group[i2] == to) {
+					target = group[i0] == to ? i0 : group[i1] == to ? i1 : i2;
+					dead[t] = true;
+					removed++;
+				}
+			}
+			remap[w] = target;
+			w = nextWedge[w];
+		} while(w != from);
+		return removed;
+	}
+
+	/**
+	 * @return The Length Of The Diagonal Of The Positions' Bounding Box
+	 */
+	private static double diagonal(float[] pos) {
+		if(pos.length == 0) return 0;
+		double[] min = { pos[0], pos[1], pos[2] }, max = { pos[0], pos[1], pos[2] };
+		for(int i = 0;i < pos.length;i++) {
+			min[i % 3] = Math.min(min[i % 3], pos[i]);
+			max[i % 3] = Math.max(max[i % 3], pos[i]);
+		}
+		double dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Unit Normal Of A Triangle
+	 * @return Twice Its Area
+	 */
+	private static double normal(float[] pos, int i0, int i1, int i2, double[] n) {
+		double e1x = pos[3 * i1] - pos[3 * i0], e1y = pos[3 * i1 + 1] - pos[3 * i0 + 1], e1z = pos[3 * i1 + 2] - pos[3 * i0 + 2];
+		double e2x = pos[3 * i2] - pos[3 * i0], e2y = pos[3 * i2 + 1] - pos[3 * i0 + 1], e2z = pos[3 * i2 + 2] - pos[3 * i0 + 2];
+		n[0] = e1y * e2z - e1z * e2y;
+		n[1] = e1z * e2x - e1x * e2z;
+		n[2] = e1x * e2y - e1y * e2x;
+		double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if(length > 0) {
+			n[0] /= length;
+			n[1] /= length;
+			n[2] /= length;
+		}
+		return length;
+	}
+
+	/**
+	 * @return A New Mesh Holding Only The Vertices The Triangles Still Use
+	 */
+	private static MeshData compact(MeshData data, int[] indices) {
+		int[] newIndex = new int[data.vertexCount];
+		Arrays.fill(newIndex, -1);
+		int count = 0;
+		for(int v : indices) {
+			if(newIndex[v] < 0) newIndex[v] = count++;
+		}
+
+		MeshData out = new MeshData();
+		out.vertexCount = count;
+		out.indexCount = indices.length;
+		out.positions = compact(data.positions, 3, newIndex, count);
+		if(data.hasNormals()) out.normals = compact(data.normals, 3, newIndex, count);
+		if(data.hasUVs()) out.uvs = compact(data.uvs, 2, newIndex, count);
+		out.indices = NativeMem.createIntBuffer(indices.length);
+		for(int i = 0;i < indices.length;i++) out.indices.put(i, newIndex[indices[i]]);
+		return out;
+	}
+	private static FloatBuffer compact(FloatBuffer in, int size, int[] newIndex, int count) {
+		FloatBuffer out = NativeMem.createFloatBuffer(count * size);
+		for(int v = 0;v < newIndex.length;v++) {
+			if(newIndex[v] < 0) continue;
+			for(int k = 0;k < size;k++) out.put(newIndex[v] * size + k, in.get(v * size + k));
+		}
+		return out;
+	}
+
+	/**
+	 * Exact Position, For Finding Vertices That Coincide
+	 */
+	private static class PositionKey {
+		private final int x, y, z;
+
+		PositionKey(float x, float y, float z) {
+			// Adding 0 Makes -0 And 0 The Same
+			this.x = Float.floatToIntBits(x + 0.0f);
+			this.y = Float.floatToIntBits(y + 0.0f);
+			this.z = Float.floatToIntBits(z + 0.0f);
+		}
+		@Override
+		public int hashCode() {
+			return (x * 31 + y) * 31 + z;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof PositionKey)) return false;
+			PositionKey k = (PositionKey)o;
+			return k.x == x && k.y == y && k.z == z;
+		}
+	}
+}
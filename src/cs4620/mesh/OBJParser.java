@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 
 import egl.math.Vector2;
@@ -73,9 +72,9 @@ public class OBJParser {
 
 			// For Minifying The Mesh
 			ArrayList<Integer> posInds = new ArrayList<>(), uvInds = new ArrayList<>(), normInds = new ArrayList<>();
-			PosComparer cmpPos = new PosComparer(tPosSq);
-			UVComparer cmpUV = new UVComparer(tUVSq);
-			NormComparer cmpNorm = new NormComparer(tNormDot);
+			VertexWelder weldPos = VertexWelder.positions(tPosSq);
+			VertexWelder weldUV = VertexWelder.uvs(tUVSq);
+			VertexWelder weldNorm = VertexWelder.normals(tNormDot);
 			
 			OBJMesh mesh = new OBJMesh();
 			HashMap<Vector3i, Integer> vertMap = new HashMap<>();
@@ -95,7 +94,7 @@ public class OBJParser {
 					v3.x = Float.parseFloat(splits[1]);
 					v3.y = Float.parseFloat(splits[2]);
 					v3.z = Float.parseFloat(splits[3]);
-					posInds.add(indexOfUnique(mesh.positions, v3, cmpPos));
+					posInds.add(addUnique(mesh.positions, v3, weldPos.add(v3.x, v3.y, v3.z)));
 				}
 				else if(splits[0].equals("vn")) {
 					if(discardNormals) continue;
@@ -106,7 +105,7 @@ public class OBJParser {
 					v3.x = Float.parseFloat(splits[1]);
 					v3.y = Float.parseFloat(splits[2]);
 					v3.z = Float.parseFloat(splits[3]);
-					normInds.add(indexOfUnique(mesh.normals, v3, cmpNorm));
+					normInds.add(addUnique(mesh.normals, v3, weldNorm.add(v3.x, v3.y, v3.z)));
 				}
 				else if(splits[0].equals("vt")) {
 					if(discardTexCoords) continue;
@@ -116,7 +115,7 @@ public class OBJParser {
 					v2 = new Vector2();
 					v2.x = Float.parseFloat(splits[1]);
 					v2.y = Float.parseFloat(splits[2]);
-					uvInds.add(indexOfUnique(mesh.uvs, v2, cmpUV));
+					uvInds.add(addUnique(mesh.uvs, v2, weldUV.add(v2.x, v2.y)));
 				}
 				else if(splits[0].equals("f")) {
 					// Add A Triangle
@@ -219,63 +218,46 @@ public class OBJParser {
 		
 		// For Minifying The Mesh
 		int[] posInds = null, uvInds = null, normInds = null;
-		PosComparer cmpPos = new PosComparer(tPosSq);
-		UVComparer cmpUV = new UVComparer(tUVSq);
-		NormComparer cmpNorm = new NormComparer(tNormDot);		
+		VertexWelder weldPos = VertexWelder.positions(tPosSq);
+		VertexWelder weldUV = VertexWelder.uvs(tUVSq);
+		VertexWelder weldNorm = VertexWelder.normals(tNormDot);
 		
 		// Hash Positions
 		posInds = new int[data.vertexCount];
-		posInds[0] = 0;
-		mesh.positions.add(new Vector3(
-			data.positions.get(0),	
-			data.positions.get(1),	
-			data.positions.get(2)
-			));
-		for(int i = 1;i < posInds.length;i++) {
+		for(int i = 0;i < posInds.length;i++) {
 			// Extract Position
 			v3 = new Vector3(
 				data.positions.get(i * 3),
 				data.positions.get(i * 3 + 1),
 				data.positions.get(i * 3 + 2)
 				);
-			posInds[i] = indexOfUnique(mesh.positions, v3, cmpPos);
+			posInds[i] = addUnique(mesh.positions, v3, weldPos.add(v3.x, v3.y, v3.z));
 		}
 		
 		// Hash Normals
 		if(data.hasNormals()) {
 			normInds = new int[data.vertexCount];
-			normInds[0] = 0;
-			mesh.normals.add(new Vector3(
-				data.normals.get(0),	
-				data.normals.get(1),	
-				data.normals.get(2)
-				));
-			for(int i = 1;i < normInds.length;i++) {
-				// Extract Position
+			for(int i = 0;i < normInds.length;i++) {
+				// Extract Normal
 				v3 = new Vector3(
 					data.normals.get(i * 3),
 					data.normals.get(i * 3 + 1),
 					data.normals.get(i * 3 + 2)
 					);
-				normInds[i] = indexOfUnique(mesh.normals, v3, cmpNorm);
+				normInds[i] = addUnique(mesh.normals, v3, weldNorm.add(v3.x, v3.y, v3.z));
 			}
 		}
 		
 		// Hash UVs
 		if(data.hasUVs()) {
 			uvInds = new int[data.vertexCount];
-			uvInds[0] = 0;
-			mesh.uvs.add(new Vector2(
-				data.uvs.get(0),	
-				data.uvs.get(1)	
-				));
-			for(int i = 1;i < uvInds.length;i++) {
-				// Extract Position
+			for(int i = 0;i < uvInds.length;i++) {
+				// Extract UV
 				v2 = new Vector2(
 					data.uvs.get(i * 2),
 					data.uvs.get(i * 2 + 1)
 					);
-				uvInds[i] = indexOfUnique(mesh.uvs, v2, cmpUV);
+				uvInds[i] = addUnique(mesh.uvs, v2, weldUV.add(v2.x, v2.y));
 			}
 		}
 		
@@ -306,24 +288,16 @@ public class OBJParser {
 		return mesh;
 	}
 	
-	private static <T> int indexOfUnique(ArrayList<T> arr, T obj, Comparator<T> comp) {
-		// Find It Was Already Put In
-		boolean foundDuplicate = false;
-		for(int ii = 0;ii < arr.size() && !foundDuplicate;ii++) {
-			if(comp.compare(arr.get(ii), obj) == 0) {
-				foundDuplicate = true;
-				return ii;
-			}
-		}
-		
-		if(!foundDuplicate) {
-			// Add The New Position
-			int ii = arr.size();
-			arr.add(obj);
-			return ii;
-		}
-		
-		return -1;
+	/**
+	 * Adds An Attribute To The Mesh If The Welder Found It To Be New
+	 * @param arr The Mesh's Unique Attributes
+	 * @param obj The Attribute
+	 * @param index Index The Welder Returned For The Attribute
+	 * @return index
+	 */
+	private static <T> int addUnique(ArrayList<T> arr, T obj, int index) {
+		if(index == arr.size()) arr.add(obj);
+		return index;
 	}
 	
 	/**
@@ -391,30 +365,4 @@ public class OBJParser {
 			}
 		}
 	}
-
-	static class PosComparer implements Comparator<Vector3> {
-		private float d;
-		public PosComparer(float _d) { d = _d; }
-		@Override
-		public int compare(Vector3 o1, Vector3 o2) {
-			return o1.distSq(o2) <= d ? 0 : 1;
-		}
-	}
-	static class UVComparer implements Comparator<Vector2> {
-		private float d;
-		public UVComparer(float _d) { d = _d; }
-		@Override
-		public int compare(Vector2 o1, Vector2 o2) {
-			return o1.distSq(o2) <= d ? 0 : 1;
-		}
-	}
-	static class NormComparer implements Comparator<Vector3> {
-		private float d;
-		public NormComparer(float _d) { d = _d; }
-		@Override
-		public int compare(Vector3 o1, Vector3 o2) {
-			return o1.dot(o2) >= d ? 0 : 1;
-		}
-	}
 }
-
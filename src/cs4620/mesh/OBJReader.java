@@ -0,0 +1,706 @@
+package cs4620.mesh;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import egl.NativeMem;
+
+/**
+ * Reads An OBJ File Straight Into MeshData
+ *
+ * Produces The Same Mesh As OBJParser.parse(file).flatten(), Without Creating An Object
+ * Per Line Or Per Element: The File Is Memory-Mapped And Tokenized In Place, Attributes
+ * And Vertices Go Into Growable Primitive Arrays, And Only Those Are Copied Into The
+ * Native Buffers Of The MeshData. The Heap Used While Reading Is About The Size Of The
+ * Mesh Itself, However Large The File Is.
+ *
+ * Large Files Can Be Read In Parallel: The File Is Split Into Chunks At Line Boundaries,
+ * A First Pass Counts The Attributes In Each Chunk So That Every Chunk Knows The Global
+ * Index Of Its First Position, UV And Normal, And A Second Pass Parses The Chunks Into
+ * Shared Attribute Arrays. Both Passes Run On A Fork/Join Pool. Faces Are Resolved To
+ * Global Attribute Indices While Parsing, So Negative Indices And References Across
+ * Chunks Need No Fixing Up, And Vertices Are Then Numbered In File Order, Giving The
+ * Same Mesh As Reading Serially.
+ *
+ * Unlike OBJParser, Polygons Are Triangulated As Fans, Negative (Relative) Indices Are
+ * Resolved, And Extra Components (Vertex Colors, A Third Texture Coordinate) Are Skipped.
+ */
+public class OBJReader {
+	/**
+	 * True To Read Files In Parallel Chunks Unless Told Otherwise
+	 */
+	public static boolean PARALLEL = true;
+
+	/**
+	 * Bytes Of The File Mapped At Once (Lines Never Straddle Two Windows)
+	 */
+	private static final int WINDOW_SIZE = 1 << 26;
+	/**
+	 * Smallest And Largest Number Of Bytes In A Parallel Chunk
+	 */
+	private static final long MIN_CHUNK_SIZE = 1 << 16, MAX_CHUNK_SIZE = 1 << 30;
+	/**
+	 * Chunks Per Pool Thread, So That Uneven Chunks Still Keep Every Thread Busy
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/**
+	 * The Pool That Parses Chunks
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+	/**
+	 * Powers Of Ten That Are Exact As Floats And As Doubles, For The Float Tokenizer
+	 */
+	private static final float[] FLOAT_POW10 = new float[11];
+	private static final double[] DOUBLE_POW10 = new double[23];
+	static {
+		FLOAT_POW10[0] = 1;
+		for(int i = 1;i < FLOAT_POW10.length;i++) FLOAT_POW10[i] = FLOAT_POW10[i - 1] * 10;
+		DOUBLE_POW10[0] = 1;
+		for(int i = 1;i < DOUBLE_POW10.length;i++) DOUBLE_POW10[i] = DOUBLE_POW10[i - 1] * 10;
+	}
+
+	/**
+	 * Reads In An OBJ Mesh
+	 * @param file OBJ File
+	 * @return A Mesh, Or Null If The File Holds No Triangles
+	 */
+	public static MeshData read(String file) {
+		return read(file, false, false);
+	}
+	/**
+	 * Reads In An OBJ Mesh With Possibility To Discard Certain Information
+	 * @param file OBJ File
+	 * @param discardTexCoords True If Mesh Should Not Contain Texture Coordinates
+	 * @param discardNormals True If Mesh Should Not Contain Normals
+	 * @return A Mesh, Or Null If The File Holds No Triangles
+	 */
+	public static MeshData read(String file, boolean discardTexCoords, boolean discardNormals) {
+		return read(file, discardTexCoords, discardNormals, PARALLEL);
+	}
+	/**
+	 * Reads In An OBJ Mesh With Possibility To Discard Certain Information
+	 * @param file OBJ File
+	 * @param discardTexCoords True If Mesh Should Not Contain Texture Coordinates
+	 * @param discardNormals True If Mesh Should Not Contain Normals
+	 * @param parallel True To Parse Chunks Of The File In Parallel, False To Read It Serially
+	 * @return A Mesh, Or Null If The File Holds No Triangles
+	 */
+	public static MeshData read(String file, boolean discardTexCoords, boolean discardNormals, boolean parallel) {
+		try {
+			OBJReader r = new OBJReader(discardTexCoords, discardNormals);
+			if(parallel) r.readFileParallel(file);
+			else r.readFile(file);
+			return r.toMeshData();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+
+		return null;
+	}
+
+	private final boolean discardTexCoords, discardNormals;
+
+	/**
+	 * Attributes In File Order
+	 */
+	private float[] positions, uvs, normals;
+	private int positionCount, uvCount, normalCount;
+
+	/**
+	 * Unique Vertices As (Position, UV, Normal) Index Triples, -1 For A Missing Attribute
+	 */
+	private int[] vertices;
+	private int vertexCount;
+	/**
+	 * Open-Addressed Table Of Vertex Indices Hashed By Their Triple, -1 For Empty Slots
+	 */
+	private int[] vertexTable;
+	private int tableMask;
+
+	/**
+	 * Triangle Vertex Indices
+	 */
+	private int[] indices;
+	private int indexCount;
+
+	/**
+	 * For A Parallel Chunk, The (Position, UV, Normal) Triples Of Its Triangle Corners,
+	 * Which Are Numbered As Vertices Once All Chunks Are Parsed (Null When Reading Serially)
+	 */
+	private int[] corners;
+	private int cornerCount;
+
+	/**
+	 * The (Position, UV, Normal) Triples Of The Face Being Read
+	 */
+	private int[] polygon = new int[3 * 16];
+
+	/**
+	 * The Bytes Being Tokenized And The Cursor Within Them
+	 */
+	private ByteBuffer buf;
+	private int p, end;
+
+	/**
+	 * Creates A Reader For A Whole File
+	 */
+	private OBJReader(boolean discardTexCoords, boolean discardNormals) {
+		this.discardTexCoords = discardTexCoords;
+		this.discardNormals = discardNormals;
+		positions = new float[3 * 1024];
+		uvs = new float[2 * 1024];
+		normals = new float[3 * 1024];
+		vertices = new int[3 * 1024];
+		indices = new int[3 * 1024];
+		vertexTable = new int[2048];
+		Arrays.fill(vertexTable, -1);
+		tableMask = vertexTable.length - 1;
+	}
+	/**
+	 * Creates A Reader For One Chunk Of A File
+	 */
+	private OBJReader(OBJReader file, ByteBuffer chunk) {
+		discardTexCoords = file.discardTexCoords;
+		discardNormals = file.discardNormals;
+		buf = chunk;
+		corners = new int[3 * 1024];
+	}
+
+	/**
+	 * Maps The File Window By Window And Reads Every Line
+	 */
+	private void readFile(String file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+			long size = ch.size();
+			long offset = 0;
+			while(offset < size) {
+				long length = Math.min(WINDOW_SIZE, size - offset);
+				MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				int windowEnd = (int)length;
+				if(offset + length < size) {
+					// Stop After The Last Complete Line; The Next Window Starts There
+					while(windowEnd > 0 && window.get(windowEnd - 1) != '\n') windowEnd--;
+					if(windowEnd == 0) throw new IOException("Line Longer Than " + WINDOW_SIZE + " Bytes In " + file);
+				}
+				readLines(window, 0, windowEnd);
+				offset += windowEnd;
+			}
+		}
+	}
+
+	/**
+	 * Splits The File Into Chunks, Parses Them In Parallel And Numbers Their Vertices
+	 */
+	private void readFileParallel(String file) throws IOException {
+		OBJReader[] chunks;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+			long size = ch.size();
+			long count = Math.min(size / MIN_CHUNK_SIZE, (long)CHUNKS_PER_THREAD * POOL.getParallelism());
+			count = Math.max(count, (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+			if(count <= 1 || POOL.getParallelism() == 1) {
+				// Too Small To Be Worth Splitting, Or Nothing To Split It Among
+				readFile(file);
+				return;
+			}
+
+			// Each Chunk Starts At The First Line Starting At Or After An Even Split
+			chunks = new OBJReader[(int)count];
+			long start = 0;
+			for(int i = 0;i < count;i++) {
+				long stop = i == count - 1 ? size : nextLineStart(ch, Math.max(start, size * (i + 1) / count), size);
+				if(stop - start > Integer.MAX_VALUE) throw new IOException("Line Longer Than " + MAX_CHUNK_SIZE + " Bytes In " + file);
+				chunks[i] = new OBJReader(this, ch.map(FileChannel.MapMode.READ_ONLY, start, stop - start));
+				start = stop;
+			}
+		}
+
+		// Count The Attributes Of Every Chunk And Give Each Its First Global Indices
+		POOL.invoke(new ChunkTask(chunks, 0, chunks.length, true));
+		int[] counts = new int[3];
+		for(OBJReader c : chunks) {
+			int chunkPositions = c.positionCount, chunkUVs = c.uvCount, chunkNormals = c.normalCount;
+			c.positionCount = counts[0];
+			c.uvCount = counts[1];
+			c.normalCount = counts[2];
+			counts[0] += chunkPositions;
+			counts[1] += chunkUVs;
+			counts[2] += chunkNormals;
+			if(counts[0] < 0 || counts[1] < 0 || counts[2] < 0 || counts[0] > Integer.MAX_VALUE / 3 || counts[2] > Integer.MAX_VALUE / 3)
+				throw new IOException("Too Many Attributes In " + file);
+		}
+		positions = new float[3 * counts[0]];
+		uvs = new float[2 * counts[1]];
+		normals = new float[3 * counts[2]];
+		positionCount = counts[0];
+		uvCount = counts[1];
+		normalCount = counts[2];
+		for(OBJReader c : chunks) {
+			c.positions = positions;
+			c.uvs = uvs;
+			c.normals = normals;
+		}
+
+		// Parse Every Chunk Into The Shared Attribute Arrays
+		POOL.invoke(new ChunkTask(chunks, 0, chunks.length, false));
+
+		// Number The Vertices In File Order, As Reading Serially Would
+		long total = 0;
+		for(OBJReader c : chunks) total += c.cornerCount / 3;
+		if(total > Integer.MAX_VALUE) throw new IOException("Too Many Triangles In " + file);
+		indices = new int[(int)total];
+		for(int i = 0;i < chunks.length;i++) {
+			OBJReader c = chunks[i];
+			for(int k = 0;k < c.cornerCount;k += 3) {
+				indices[indexCount++] = vertexIndex(c.corners[k], c.corners[k + 1], c.corners[k + 2]);
+			}
+			chunks[i] = null;
+		}
+	}
+
+	/**
+	 * Finds The First Line Start At Or After from
+	 */
+	private static long nextLineStart(FileChannel ch, long from, long size) throws IOException {
+		if(from == 0) return 0;
+		ByteBuffer b = ByteBuffer.allocate(4096);
+		long offset = from - 1;
+		while(offset < size) {
+			b.clear();
+			int n = ch.read(b, offset);
+			if(n <= 0) break;
+			for(int i = 0;i < n;i++) {
+				if(b.get(i) == '\n') return offset + i + 1;
+			}
+			offset += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Counts Or Parses A Range Of Chunks, Splitting It Among The Pool's Threads
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final OBJReader[] chunks;
+		private final int from, to;
+		private final boolean counting;
+
+		ChunkTask(OBJReader[] chunks, int from, int to, boolean counting) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+			this.counting = counting;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ChunkTask(chunks, from, mid, counting), new ChunkTask(chunks, mid, to, counting));
+			}
+			else if(counting) {
+				chunks[from].countLines();
+			}
+			else {
+				OBJReader c = chunks[from];
+				c.readLines(c.buf, 0, c.buf.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Kinds Of Lines
+	 */
+	private static final int LINE_OTHER = 0, LINE_POSITION = 1, LINE_UV = 2, LINE_NORMAL = 3, LINE_FACE = 4;
+
+	/**
+	 * Identifies The Line At The Cursor And Moves Past Its Keyword
+	 */
+	private int lineType() {
+		byte c = buf.get(p);
+		byte c1 = p + 1 < end ? buf.get(p + 1) : (byte)'\n';
+		if(c == 'v' && isSpace(c1)) {
+			p++;
+			return LINE_POSITION;
+		}
+		else if(c == 'v' && c1 == 't' && p + 2 < end && isSpace(buf.get(p + 2))) {
+			p += 2;
+			return LINE_UV;
+		}
+		else if(c == 'v' && c1 == 'n' && p + 2 < end && isSpace(buf.get(p + 2))) {
+			p += 2;
+			return LINE_NORMAL;
+		}
+		else if(c == 'f' && isSpace(c1)) {
+			p++;
+			return LINE_FACE;
+		}
+		return LINE_OTHER;
+	}
+
+	/**
+	 * Counts The Attributes In This Chunk, As readLines Would Add Them
+	 */
+	private void countLines() {
+		p = 0;
+		end = buf.capacity();
+		while(p < end) {
+			skipSpaces();
+			if(p >= end) break;
+			switch(lineType()) {
+			case LINE_POSITION: positionCount++; break;
+			case LINE_UV: if(!discardTexCoords) uvCount++; break;
+			case LINE_NORMAL: if(!discardNormals) normalCount++; break;
+			default: break;
+			}
+			skipLine();
+		}
+	}
+
+	/**
+	 * Reads The Complete Lines In [start, stop) Of b
+	 */
+	private void readLines(ByteBuffer b, int start, int stop) {
+		buf = b;
+		p = start;
+		end = stop;
+		while(p < end) {
+			skipSpaces();
+			if(p >= end) break;
+			switch(lineType()) {
+			case LINE_POSITION: readPosition(); break;
+			case LINE_UV: if(!discardTexCoords) readUV(); break;
+			case LINE_NORMAL: if(!discardNormals) readNormal(); break;
+			case LINE_FACE: readFace(); break;
+			default: break;
+			}
+			skipLine();
+		}
+		buf = null;
+	}
+
+	private void readPosition() {
+		if(3 * positionCount + 3 > positions.length) positions = Arrays.copyOf(positions, positions.length * 2);
+		int o = 3 * positionCount++;
+		positions[o] = parseFloat();
+		positions[o + 1] = parseFloat();
+		positions[o + 2] = parseFloat();
+	}
+	private void readUV() {
+		if(2 * uvCount + 2 > uvs.length) uvs = Arrays.copyOf(uvs, uvs.length * 2);
+		int o = 2 * uvCount++;
+		uvs[o] = parseFloat();
+		skipSpaces();
+		uvs[o + 1] = atLineEnd() ? 0 : parseFloat();
+	}
+	private void readNormal() {
+		if(3 * normalCount + 3 > normals.length) normals = Arrays.copyOf(normals, normals.length * 2);
+		int o = 3 * normalCount++;
+		normals[o] = parseFloat();
+		normals[o + 1] = parseFloat();
+		normals[o + 2] = parseFloat();
+	}
+
+	/**
+	 * Reads The Corners Of A Face And Adds It As A Fan Of Triangles
+	 */
+	private void readFace() {
+		int n = 0;
+		while(true) {
+			skipSpaces();
+			if(atLineEnd()) break;
+
+			// Read A "v", "v/t", "v//n" Or "v/t/n" Corner
+			int pos = resolve(parseInt(), positionCount);
+			int uv = -1, norm = -1;
+			if(p < end && buf.get(p) == '/') {
+				p++;
+				if(p < end && buf.get(p) != '/' && !isSpace(buf.get(p))) uv = resolve(parseInt(), uvCount);
+				if(p < end && buf.get(p) == '/') {
+					p++;
+					norm = resolve(parseInt(), normalCount);
+				}
+			}
+			if(discardTexCoords) uv = -1;
+			if(discardNormals) norm = -1;
+
+			if(3 * n + 3 > polygon.length) polygon = Arrays.copyOf(polygon, polygon.length * 2);
+			polygon[3 * n] = pos;
+			polygon[3 * n + 1] = uv;
+			polygon[3 * n + 2] = norm;
+			n++;
+		}
+
+		for(int i = 2;i < n;i++) {
+			addCorner(0);
+			addCorner(i - 1);
+			addCorner(i);
+		}
+	}
+	/**
+	 * Adds Corner i Of The Current Face To A Triangle
+	 */
+	private void addCorner(int i) {
+		int pos = polygon[3 * i], uv = polygon[3 * i + 1], norm = polygon[3 * i + 2];
+		if(corners != null) {
+			// A Parallel Chunk Cannot Number Vertices Yet
+			if(cornerCount + 3 > corners.length) corners = Arrays.copyOf(corners, corners.length * 2);
+			corners[cornerCount++] = pos;
+			corners[cornerCount++] = uv;
+			corners[cornerCount++] = norm;
+		}
+		else {
+			if(indexCount == indices.length) indices = Arrays.copyOf(indices, indices.length * 2);
+			indices[indexCount++] = vertexIndex(pos, uv, norm);
+		}
+	}
+
+	/**
+	 * Converts A One-Based Or Negative (Relative To The End) OBJ Index To A Zero-Based One
+	 */
+	private static int resolve(int index, int count) {
+		if(index > 0) return index - 1;
+		if(index < 0) return count + index;
+		throw new NumberFormatException("OBJ Indices Cannot Be 0");
+	}
+
+	/**
+	 * Gets The Index Of The Vertex With These Attributes, Adding It If It Is New
+	 */
+	private int vertexIndex(int pos, int uv, int norm) {
+		int slot = hash(pos, uv, norm) & tableMask;
+		while(true) {
+			int v = vertexTable[slot];
+			if(v < 0) break;
+			if(vertices[3 * v] == pos && vertices[3 * v + 1] == uv && vertices[3 * v + 2] == norm) return v;
+			slot = (slot + 1) & tableMask;
+		}
+
+		if(3 * vertexCount + 3 > vertices.length) vertices = Arrays.copyOf(vertices, vertices.length * 2);
+		int v = vertexCount++;
+		vertices[3 * v] = pos;
+		vertices[3 * v + 1] = uv;
+		vertices[3 * v + 2] = norm;
+		vertexTable[slot] = v;
+		if(2 * vertexCount > vertexTable.length) growTable();
+		return v;
+	}
+	private void growTable() {
+		vertexTable = new int[vertexTable.length * 2];
+		Arrays.fill(vertexTable, -1);
+		tableMask = vertexTable.length - 1;
+		for(int v = 0;v < vertexCount;v++) {
+			int slot = hash(vertices[3 * v], vertices[3 * v + 1], vertices[3 * v + 2]) & tableMask;
+			while(vertexTable[slot] >= 0) slot = (slot + 1) & tableMask;
+			vertexTable[slot] = v;
+		}
+	}
+
+	private static int hash(int pos, int uv, int norm) {
+		int h = pos * 73856093 ^ uv * 19349663 ^ norm * 83492791;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Copies The Vertices And Triangles Into Native Buffers
+	 */
+	private MeshData toMeshData() {
+		vertexTable = null;
+		if(positionCount < 3 || indexCount == 0 || vertexCount < 3) return null;
+
+		MeshData data = new MeshData();
+		data.vertexCount = vertexCount;
+		data.indexCount = indexCount;
+
+		data.positions = NativeMem.createFloatBuffer(vertexCount * 3);
+		for(int v = 0;v < vertexCount;v++) {
+			int o = 3 * attribute(vertices[3 * v], positionCount);
+			data.positions.put(positions[o]).put(positions[o + 1]).put(positions[o + 2]);
+		}
+		data.positions.rewind();
+		positions = null;
+
+		if(uvCount > 0) {
+			data.uvs = NativeMem.createFloatBuffer(vertexCount * 2);
+			for(int v = 0;v < vertexCount;v++) {
+				int uv = vertices[3 * v + 1];
+				if(uv < 0) data.uvs.put(0).put(0);
+				else data.uvs.put(uvs[2 * attribute(uv, uvCount)]).put(uvs[2 * attribute(uv, uvCount) + 1]);
+			}
+			data.uvs.rewind();
+		}
+		uvs = null;
+
+		if(normalCount > 0) {
+			data.normals = NativeMem.createFloatBuffer(vertexCount * 3);
+			for(int v = 0;v < vertexCount;v++) {
+				int norm = vertices[3 * v + 2];
+				if(norm < 0) data.normals.put(0).put(0).put(0);
+				else {
+					int o = 3 * attribute(norm, normalCount);
+					data.normals.put(normals[o]).put(normals[o + 1]).put(normals[o + 2]);
+				}
+			}
+			data.normals.rewind();
+		}
+		normals = null;
+		vertices = null;
+
+		data.indices = NativeMem.createIntBuffer(indexCount);
+		data.indices.put(indices, 0, indexCount);
+		data.indices.rewind();
+		indices = null;
+
+		return data;
+	}
+	/**
+	 * Checks An Attribute Index Read From The File
+	 */
+	private static int attribute(int index, int count) {
+		if(index < 0 || index >= count) throw new IndexOutOfBoundsException("OBJ Index " + index + " Out Of Range [0, " + count + ")");
+		return index;
+	}
+
+	/*
+	 * Tokenizing
+	 */
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+	private void skipSpaces() {
+		while(p < end) {
+			byte c = buf.get(p);
+			if(c != ' ' && c != '\t' && c != '\r') break;
+			p++;
+		}
+	}
+	private boolean atLineEnd() {
+		return p >= end || buf.get(p) == '\n' || buf.get(p) == '#';
+	}
+	private void skipLine() {
+		while(p < end && buf.get(p) != '\n') p++;
+		p++;
+	}
+
+	/**
+	 * Parses A Signed Decimal Integer
+	 */
+	private int parseInt() {
+		skipSpaces();
+		boolean negative = false;
+		if(p < end && (buf.get(p) == '-' || buf.get(p) == '+')) negative = buf.get(p++) == '-';
+		int start = p;
+		long value = 0;
+		while(p < end) {
+			int d = buf.get(p) - '0';
+			if(d < 0 || d > 9) break;
+			value = value * 10 + d;
+			if(value > Integer.MAX_VALUE) throw new NumberFormatException("OBJ Index Too Large: " + token(start));
+			p++;
+		}
+		if(p == start) throw new NumberFormatException("Expected An Index But Found: " + token(start));
+		return (int)(negative ? -value : value);
+	}
+
+	/**
+	 * Parses A Float Such As "-1.25e-3"
+	 *
+	 * The Result Is Always What Float.parseFloat Would Return. Short Mantissas With Small
+	 * Exponents Are Exact Floats, So One Float Multiply Or Divide Rounds Them Correctly;
+	 * Longer Ones Go Through A Double Unless Rounding That To A Float Could Round Twice.
+	 * Anything Else (Very Long Mantissas, Huge Exponents, "nan", "inf") Falls Back To
+	 * Float.parseFloat.
+	 */
+	private float parseFloat() {
+		skipSpaces();
+		int start = p;
+		boolean negative = false;
+		if(p < end && (buf.get(p) == '-' || buf.get(p) == '+')) negative = buf.get(p++) == '-';
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false, truncated = false;
+		while(p < end) {
+			int d = buf.get(p) - '0';
+			if(d < 0 || d > 9) break;
+			any = true;
+			if(digits < 18) {
+				mantissa = mantissa * 10 + d;
+				if(mantissa != 0) digits++;
+			}
+			else {
+				exponent++;
+				truncated |= d != 0;
+			}
+			p++;
+		}
+		if(p < end && buf.get(p) == '.') {
+			p++;
+			while(p < end) {
+				int d = buf.get(p) - '0';
+				if(d < 0 || d > 9) break;
+				any = true;
+				if(digits < 18) {
+					mantissa = mantissa * 10 + d;
+					if(mantissa != 0) digits++;
+					exponent--;
+				}
+				else truncated |= d != 0;
+				p++;
+			}
+		}
+		if(any && p < end && (buf.get(p) == 'e' || buf.get(p) == 'E')) {
+			p++;
+			boolean negativeExp = false;
+			if(p < end && (buf.get(p) == '-' || buf.get(p) == '+')) negativeExp = buf.get(p++) == '-';
+			int e = 0;
+			while(p < end) {
+				int d = buf.get(p) - '0';
+				if(d < 0 || d > 9) break;
+				if(e < 10000) e = e * 10 + d;
+				p++;
+			}
+			exponent += negativeExp ? -e : e;
+		}
+		if(!any || (p < end && !isSpace(buf.get(p)) && buf.get(p) != '/' && buf.get(p) != '#')) {
+			// Not A Plain Decimal Number
+			while(p < end && !isSpace(buf.get(p))) p++;
+			return Float.parseFloat(token(start));
+		}
+
+		float value;
+		if(mantissa == 0) value = 0;
+		else if(truncated) return Float.parseFloat(token(start));
+		else if(mantissa < (1L << 24) && exponent >= -10 && exponent <= 10) {
+			value = exponent >= 0 ? mantissa * FLOAT_POW10[exponent] : mantissa / FLOAT_POW10[-exponent];
+		}
+		else if(mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+			double d = exponent >= 0 ? mantissa * DOUBLE_POW10[exponent] : mantissa / DOUBLE_POW10[-exponent];
+			// A Double Exactly Halfway Between Two Floats May Have Been Rounded To It
+			if((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L) return Float.parseFloat(token(start));
+			value = (float)d;
+		}
+		else return Float.parseFloat(token(start));
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return The Text From start To The Cursor (Or The Next Space)
+	 */
+	private String token(int start) {
+		int stop = Math.max(p, start);
+		while(stop < end && !isSpace(buf.get(stop))) stop++;
+		StringBuilder sb = new StringBuilder(stop - start);
+		for(int i = start;i < stop;i++) sb.append((char)buf.get(i));
+		return sb.toString();
+	}
+}
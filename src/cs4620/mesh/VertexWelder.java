@@ -0,0 +1,222 @@
+package cs4620.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Merges Vertex Attributes That Lie Within A Tolerance Of One Another
+ *
+ * Attributes Are Kept In A Spatial Hash Whose Cells Are At Least As Wide As The
+ * Tolerance Distance, So Any Match Lies In The Same Or A Neighboring Cell. Adding An
+ * Attribute Only Tests The Few Attributes In Those Cells Instead Of All Previous Ones.
+ *
+ * Like A Linear Scan, add() Returns The Lowest Index Of A Previous Attribute Within
+ * Tolerance, Or Appends The Attribute If There Is None.
+ */
+class VertexWelder {
+	/**
+	 * The Smallest Cell Width, So That Tiny Tolerances Do Not Scatter Attributes Over
+	 * An Enormous Number Of Cells
+	 */
+	private static final float MIN_CELL_SIZE = 1e-4f;
+	/**
+	 * How Far From Unit Length Normals May Be While Still Finding Every Match, Which
+	 * Covers Normals Written With A Few Decimals And Rounding In The Dot Product
+	 */
+	private static final float NORMAL_LENGTH_SLACK = 1e-3f;
+	/**
+	 * Initial Number Of Hash Buckets (A Power Of 2)
+	 */
+	private static final int INITIAL_BUCKETS = 1024;
+
+	/**
+	 * How Attributes Are Compared
+	 */
+	private static enum Test { DIST_SQ, DOT }
+
+	private final int dim;
+	private final Test test;
+	private final float tolerance;
+	/**
+	 * False If No Two Attributes Can Ever Be Merged
+	 */
+	private final boolean merging;
+	private final float invCellSize;
+
+	/**
+	 * Attribute Components, dim Per Attribute
+	 */
+	private float[] values;
+	private int count;
+
+	/**
+	 * First Attribute In Each Bucket And The Next Attribute In The Same Bucket
+	 */
+	private int[] heads, next;
+	private int mask;
+
+	private final int[] cell = new int[3];
+
+	private VertexWelder(int dim, Test test, float tolerance, float cellSize, boolean merging) {
+		this.dim = dim;
+		this.test = test;
+		this.tolerance = tolerance;
+		this.merging = merging;
+		invCellSize = 1 / Math.max(cellSize, MIN_CELL_SIZE);
+
+		values = new float[dim * 64];
+		next = new int[64];
+		heads = new int[INITIAL_BUCKETS];
+		Arrays.fill(heads, -1);
+		mask = INITIAL_BUCKETS - 1;
+	}
+
+	/**
+	 * Welds Positions Whose Squared Distance Is At Most tPosSq
+	 * @param tPosSq Tolerance For Squared Distance Between Positions (Negative For No Merging)
+	 */
+	public static VertexWelder positions(float tPosSq) {
+		return new VertexWelder(3, Test.DIST_SQ, tPosSq, (float)Math.sqrt(Math.max(tPosSq, 0)), tPosSq >= 0);
+	}
+	/**
+	 * Welds Texture Coordinates Whose Squared Distance Is At Most tUVSq
+	 * @param tUVSq Tolerance For Squared Distance Between Texture Coordinates (Negative For No Merging)
+	 */
+	public static VertexWelder uvs(float tUVSq) {
+		return new VertexWelder(2, Test.DIST_SQ, tUVSq, (float)Math.sqrt(Math.max(tUVSq, 0)), tUVSq >= 0);
+	}
+	/**
+	 * Welds Normals Whose Dot Product Is At Least tNormDot
+	 *
+	 * Normals Are Hashed By Direction. For Unit Normals A Dot Product Of At Least tNormDot
+	 * Means The Directions Are At Most sqrt(2 - 2 tNormDot) Apart. Cells Are A Little Wider
+	 * Than That, So Normals Within NORMAL_LENGTH_SLACK Of Unit Length Find Every Match;
+	 * Normals Far From Unit Length Might Miss A Match, But Never Merge Wrongly.
+	 * @param tNormDot Tolerance For Dot Product Between Normals [-1,1] (Far Above 1 For No Merging)
+	 */
+	public static VertexWelder normals(float tNormDot) {
+		// Lowest Cosine Between The Directions Of Matching Normals Of Nearly Unit Length
+		float s = tNormDot > 0 ? 1 + NORMAL_LENGTH_SLACK : 1 - NORMAL_LENGTH_SLACK;
+		float minCos = tNormDot / (s * s);
+		return new VertexWelder(3, Test.DOT, tNormDot, (float)Math.sqrt(Math.max(2 - 2 * minCos, 0)), minCos <= 1);
+	}
+
+	/**
+	 * @return Number Of Unique Attributes
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Finds A 2D Attribute Within Tolerance, Adding It If There Is None
+	 * @return Index Of The Unique Attribute
+	 */
+	public int add(float x, float y) {
+		return add(x, y, 0);
+	}
+	/**
+	 * Finds A 3D Attribute Within Tolerance, Adding It If There Is None
+	 * @return Index Of The Unique Attribute (Equal To The Previous size() If It Was Added)
+	 */
+	public int add(float x, float y, float z) {
+		if(merging) {
+			cellOf(x, y, z, cell);
+			int found = find(x, y, z);
+			if(found >= 0) return found;
+		}
+
+		// Append The New Attribute
+		if(count == next.length) {
+			next = Arrays.copyOf(next, count * 2);
+			values = Arrays.copyOf(values, count * 2 * dim);
+		}
+		int i = count++;
+		values[i * dim] = x;
+		values[i * dim + 1] = y;
+		if(dim == 3) values[i * dim + 2] = z;
+
+		if(merging) {
+			if(count > heads.length) rehash();
+			int b = bucket(cell[0], cell[1], cell[2]);
+			next[i] = heads[b];
+			heads[b] = i;
+		}
+		return i;
+	}
+
+	/**
+	 * Searches The Cells Around cell For The Lowest Matching Index
+	 * @return The Index, Or -1 If Nothing Matches
+	 */
+	private int find(float x, float y, float z) {
+		int cx = cell[0], cy = cell[1], cz = cell[2];
+		int dz = dim == 3 ? 1 : 0;
+		int best = -1;
+		for(int ix = cx - 1;ix <= cx + 1;ix++) {
+			for(int iy = cy - 1;iy <= cy + 1;iy++) {
+				for(int iz = cz - dz;iz <= cz + dz;iz++) {
+					// Distinct Cells May Share A Bucket, So Every Candidate Is Tested
+					for(int i = heads[bucket(ix, iy, iz)];i >= 0;i = next[i]) {
+						if((best < 0 || i < best) && matches(i, x, y, z)) best = i;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private boolean matches(int i, float x, float y, float z) {
+		int o = i * dim;
+		if(test == Test.DOT) {
+			return values[o] * x + values[o + 1] * y + values[o + 2] * z >= tolerance;
+		}
+		float dx = values[o] - x, dy = values[o + 1] - y;
+		float dSq = dx * dx + dy * dy;
+		if(dim == 3) {
+			float dz = values[o + 2] - z;
+			dSq += dz * dz;
+		}
+		return dSq <= tolerance;
+	}
+
+	/**
+	 * Computes The Cell Holding An Attribute
+	 */
+	private void cellOf(float x, float y, float z, int[] out) {
+		if(test == Test.DOT) {
+			// Hash Normals By Their Direction
+			float len = (float)Math.sqrt(x * x + y * y + z * z);
+			if(len > 0) {
+				x /= len;
+				y /= len;
+				z /= len;
+			}
+		}
+		out[0] = (int)Math.floor(x * invCellSize);
+		out[1] = (int)Math.floor(y * invCellSize);
+		out[2] = dim == 3 ? (int)Math.floor(z * invCellSize) : 0;
+	}
+
+	private int bucket(int x, int y, int z) {
+		int h = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * Doubles The Number Of Buckets And Reinserts All But The Newest Attribute
+	 */
+	private void rehash() {
+		heads = new int[heads.length * 2];
+		Arrays.fill(heads, -1);
+		mask = heads.length - 1;
+		int[] c = new int[3];
+		for(int i = 0;i < count - 1;i++) {
+			int o = i * dim;
+			cellOf(values[o], values[o + 1], dim == 3 ? values[o + 2] : 0, c);
+			int b = bucket(c[0], c[1], c[2]);
+			next[i] = heads[b];
+			heads[b] = i;
+		}
+	}
+}
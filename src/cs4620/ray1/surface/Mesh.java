@@ -3,7 +3,7 @@ package cs4620.ray1.surface;
 import java.util.ArrayList;
 
 import cs4620.mesh.MeshData;
-import cs4620.mesh.OBJParser;
+import cs4620.mesh.MeshCache;
 import cs4620.ray1.IntersectionRecord;
 import cs4620.ray1.Ray;
 import cs4620.ray1.RayTracer;
@@ -44,7 +44,7 @@ public class Mesh extends Surface {
 	 */
 	public void setData(String fileName) {
 		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		mesh = (OBJParser.parse(RayTracer.sceneWorkspace.resolve(fileName))).flatten();
+		mesh = MeshCache.read(RayTracer.sceneWorkspace.resolve(fileName));
 	}
 	
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
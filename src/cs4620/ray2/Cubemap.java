@@ -19,9 +19,16 @@ public class Cubemap {
 	double scaleFactor = 1.0;
 
 	int width, height, blockSz;
-	int mapBits; // 2^(mapBits-1) < width*height <= 2^mapBits
 	float[] imageData;
-	float[] cumProb;
+
+	/**
+	 * The probability of choosing each pixel in generate, in proportion to its radiance
+	 * times its solid angle, and an alias table to choose one in constant time: pixel k
+	 * is kept with probability aliasProb[k] and replaced by alias[k] otherwise.
+	 */
+	float[] pixelProb;
+	float[] aliasProb;
+	int[] alias;
 
 	Vector2d faceUV = new Vector2d();
 
@@ -37,16 +44,56 @@ public class Cubemap {
 		height = hdr.height;
 		blockSz = width / 3;
 
-		for (mapBits = 0; (1 << mapBits) < width*height; mapBits++);
+		int n = width*height;
+		pixelProb = new float[n];
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			pixelProb[k] = calcPixelProb(k);
+			sum += pixelProb[k];
+		}
+		for (int k = 0; k < n; k++)
+			pixelProb[k] /= sum;
 
-		cumProb = new float[width*height+1];
-		cumProb[0] = 0;
+		buildAliasTable();
+	}
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
+	/**
+	 * Build the alias table of pixelProb (Vose's method): pixels more likely than 1/n
+	 * give the excess to fill up the slots of the less likely ones.
+	 */
+	private void buildAliasTable() {
+		int n = pixelProb.length;
+		aliasProb = new float[n];
+		alias = new int[n];
+
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		for (int k = 0; k < n; k++) {
+			scaled[k] = pixelProb[k] * (double) n;
+			if (scaled[k] < 1) small[numSmall++] = k;
+			else large[numLarge++] = k;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall], l = large[--numLarge];
+			aliasProb[s] = (float) scaled[s];
+			alias[s] = l;
+			scaled[l] -= 1 - scaled[s];
+			if (scaled[l] < 1) small[numSmall++] = l;
+			else large[numLarge++] = l;
+		}
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] /= cumProb[width*height];
+		// Whatever is left is 1 up to rounding
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			aliasProb[l] = 1;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			aliasProb[s] = 1;
+			alias[s] = s;
+		}
 	}
 
 	public void setScaleFactor(double scaleFactor) {
@@ -54,24 +101,28 @@ public class Cubemap {
 	}
 
 
-	public void evaluate(Vector3d dir, Colord outRadiance) {
+	/**
+	 * Look up the radiance of the environment in a given direction.
+	 *
+	 * @param dir the direction, which is not modified
+	 * @param outRadiance the radiance, scaled by scaleFactor
+	 * @param context scratch space of the calling thread
+	 */
+	public void evaluate(Vector3d dir, Colord outRadiance, ShadingContext context) {
 		// TODO#A7 Look up for the radiance of the environment mapping in a given direction
 		// don't forget to multiply the radiance by scaleFactor
 	
-		Vector2d outFace = new Vector2d();
-		int face = dirToFace(dir.clone(), outFace);
+		context.push();
+		Vector2d outFace = context.vector2();
+		int face = dirToFace(dir, outFace);
 		int loc = faceToIndex(face, outFace);
-	
+		context.pop();
 
 		float r = imageData[3*loc];
 		float g = imageData[3*loc + 1];
 		float b = imageData[3*loc + 2];
 		
-		Colord out = new Colord(r, g, b);
-		outRadiance.set(out.mul(scaleFactor));
-		
-		
-		
+		outRadiance.set(r, g, b).mul(scaleFactor);
 	}
 
 	protected int dirToFace(Vector3d dir, Vector2d outFaceUV) {
@@ -97,13 +148,14 @@ public class Cubemap {
 		return iFace;
 	}
 	
+	// Table of where to find each face in the 3x4 grid of the map
+	private static final int[][] faceLoc = { {2, 2}, {0, 2}, {1, 3}, {1, 1}, {1, 0}, {1, 2} };
+
 	protected int faceToIndex(int iFace, Vector2d faceUV) {
-		// Table of where to find each face in the 3x4 grid of the map
-		final int[][] faceLoc = { {2, 2}, {0, 2}, {1, 3}, {1, 1}, {1, 0}, {1, 2} }; 
 
-		// (iu, iv) are the pixel coordinates within the face
-		int iu = (int) (blockSz * (faceUV.x + 1) / 2);
-		int iv = (int) (blockSz * (faceUV.y + 1) / 2);
+		// (iu, iv) are the pixel coordinates within the face; the far edges belong to the last pixels
+		int iu = Math.min((int) (blockSz * (faceUV.x + 1) / 2), blockSz - 1);
+		int iv = Math.min((int) (blockSz * (faceUV.y + 1) / 2), blockSz - 1);
 
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = iu + blockSz * faceLoc[iFace][0];
@@ -112,32 +164,68 @@ public class Cubemap {
 		return ix + width * iy;
 	}
 	
-	public void generate(Vector2d seed, Vector3d outDirection) {
-
-		// choose a pixel
-		double searchProb = seed.x;
-		int k = 0;
-
-		for (int p = mapBits-1; p >= 0; p--)
-			if (searchProb > cumProb[k + (1 << p)])
-				k += (1 << p);
-
-		double pixelProb = cumProb[k + 1] - cumProb[k];
-		seed.x = (searchProb - cumProb[k]) / pixelProb;
+	/**
+	 * Choose a direction with probability proportional to the radiance of the
+	 * environment, as given by pdf.
+	 *
+	 * @param seed two numbers in [0, 1) that decide the direction; modified
+	 * @param outDirection the unit direction chosen
+	 * @param context scratch space of the calling thread
+	 */
+	public void generate(Vector2d seed, Vector3d outDirection, ShadingContext context) {
+
+		// choose a slot of the alias table by seed.x and whether to take its alias by
+		// seed.y, keeping what is left of each for the position in the pixel. seed.x alone
+		// would not do: stratified values of it all leave the same remainder.
+		int n = aliasProb.length;
+		double x = seed.x * n;
+		int k = Math.min((int) x, n - 1);
+		seed.x = x - k;
+		if (seed.y < aliasProb[k]) {
+			seed.y = seed.y / aliasProb[k];
+		} else {
+			seed.y = (seed.y - aliasProb[k]) / (1 - aliasProb[k]);
+			k = alias[k];
+		}
+		seed.y = Math.min(seed.y, 1 - Math.ulp(1.0));
 
 		// choose u and v randomly in that pixel.  faceUV is the pixel center.
+		context.push();
+		Vector2d faceUV = context.vector2();
 		int iFace = indexToFace(k, faceUV);
 		faceUV.x += (2 * seed.x - 1) / blockSz;
 		faceUV.y += (2 * seed.y - 1) / blockSz;
 
 		// choose the direction based on face index and (u,v)
 		faceToDir(iFace, faceUV, outDirection);
+		context.pop();
+	}
+
+	/**
+	 * The probability density, per unit solid angle, with which generate chooses a
+	 * direction.
+	 *
+	 * @param dir the direction, which is not modified
+	 * @param context scratch space of the calling thread
+	 * @return the density
+	 */
+	public double pdf(Vector3d dir, ShadingContext context) {
+		context.push();
+		Vector2d faceUV = context.vector2();
+		int face = dirToFace(dir, faceUV);
+		int k = faceToIndex(face, faceUV);
+
+		// Uniform over the pixel's square on the face, which is 2 / blockSz wide and seen
+		// in a solid angle smaller by (1 + u^2 + v^2)^1.5
+		double r2 = 1 + faceUV.x * faceUV.x + faceUV.y * faceUV.y;
+		context.pop();
+		return pixelProb[k] * 0.25 * blockSz * blockSz * r2 * Math.sqrt(r2);
 	}
 
+	// Table of which face is at each position in the 3x4 grid of the map
+	private static final int[][] locFace = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
+
 	protected int indexToFace(int index, Vector2d outFaceUV) {
-		
-		// Table of which face is at each position in the 3x4 grid of the map
-		final int[][] locFace = { {-1, 4, -1}, { -1, 3, -1}, {1, 5, 0}, {-1, 2, -1} };
 
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = index % width;
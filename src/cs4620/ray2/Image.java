@@ -4,6 +4,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.file.Files;
 
 import javax.imageio.ImageIO;
@@ -19,23 +20,34 @@ import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
+ * Basic image class, containing RGB float pixels. Simple functionality for
  * setting pixel colors and writing to a PNG file is provided.
  *
+ * The pixels live in one direct, little-endian buffer, 3 floats per pixel, row-major
+ * with the top row (y = height - 1) first. That is the layout of an RGB32F OpenEXR
+ * frame buffer, so writeHDR hands the buffer over without copying, and whole rows of
+ * a tile are contiguous for setTile and getTile.
+ *
  * @author eschweic, nsavva
  */
 @SuppressWarnings("unused")
 public class Image {
-	
+
+	/** Number of floats stored per pixel */
+	private static final int CHANNELS = 3;
+
 	/** Image width * */
 	protected int width;
-	
+
 	/** Image height * */
 	protected int height;
-	
-	/** Data array* */
-	protected Colord[][] data;
-	
+
+	/** Pixel bytes, shared with data and handed to OpenEXR as they are * */
+	protected ByteBuffer bytes;
+
+	/** Data buffer, a float view of bytes * */
+	protected FloatBuffer data;
+
 	/**
 	 * Create an empty image
 	 *
@@ -45,7 +57,7 @@ public class Image {
 	public Image(int inW, int inH) {
 		setSize(inW, inH);
 	}
-	
+
 	/**
 	 * Copy constructor
 	 *
@@ -53,38 +65,32 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		bytes.put(oldImage.bytes.duplicate());
+		bytes.clear();
 	}
-	
+
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		for (int i = 0; i < data.capacity(); i++)
+			data.put(i, 0f);
 	}
-	
+
 	/**
 	 * @return the width of the image
 	 */
 	public int getWidth() {
 		return width;
 	}
-	
+
 	/**
 	 * @return the height of the image
 	 */
 	public int getHeight() {
 		return height;
 	}
-	
+
 	/**
 	 * Set the size of the image by recreating it.  Destroys all current image data.
 	 * @param newWidth width
@@ -93,14 +99,20 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		bytes = ByteBuffer.allocateDirect(4 * CHANNELS * width * height);
+		bytes.order(ByteOrder.LITTLE_ENDIAN);
+		data = bytes.asFloatBuffer();
 	}
-	
+
+	/**
+	 * @return the index in data of the red value of pixel (inX, inY)
+	 */
+	private int index(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return CHANNELS * ((height - 1 - inY) * width + inX);
+	}
+
 	/**
 	 * Get the color of a pixel.
 	 *
@@ -109,11 +121,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(new Colord(data.get(i), data.get(i + 1), data.get(i + 2)));
 	}
-	
+
 	/**
 	 * Get the color of a pixel.
 	 *
@@ -122,11 +133,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(data.get(i), data.get(i + 1), data.get(i + 2));
 	}
-	
+
 	/**
 	 * Set the color of a pixel.
 	 * @param inPixel Color value of pixel (inX,inY)
@@ -134,11 +144,9 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		setPixelColor(new Colord(inPixel), inX, inY);
 	}
-	
+
 	/**
 	 * Set the color of a pixel.
 	 * @param inPixel Colord value of pixel (inX, inY)
@@ -146,11 +154,95 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+		int i = index(inX, inY);
+		data.put(i, (float) inPixel.x);
+		data.put(i + 1, (float) inPixel.y);
+		data.put(i + 2, (float) inPixel.z);
+	}
+
+	/**
+	 * Copy a rectangle of pixels into the image. The tile holds 3 floats per pixel,
+	 * row by row, starting with the row at y = inY; so pixel (inX + i, inY + j) is at
+	 * 3 * (j * tileWidth + i). Disjoint tiles may be set from several threads at once.
+	 * Only absolute puts are used, so this neither allocates nor moves the buffer position.
+	 *
+	 * @param tile the pixel values
+	 * @param inX the x coordinate of the first pixel of the tile
+	 * @param inY the y coordinate of the first pixel of the tile
+	 * @param tileWidth the width of the tile
+	 * @param tileHeight the height of the tile
+	 */
+	public void setTile(float[] tile, int inX, int inY, int tileWidth, int tileHeight) {
+		checkTile(tile, inX, inY, tileWidth, tileHeight);
+		int rowLength = CHANNELS * tileWidth;
+		for (int j = 0; j < tileHeight; j++) {
+			int i = index(inX, inY + j);
+			int t = rowLength * j;
+			for (int k = 0; k < rowLength; k++)
+				data.put(i + k, tile[t + k]);
+		}
+	}
+
+	/**
+	 * Copy a rectangle of pixels out of the image, laid out as for setTile.
+	 *
+	 * @param tile the output pixel values
+	 * @param inX the x coordinate of the first pixel of the tile
+	 * @param inY the y coordinate of the first pixel of the tile
+	 * @param tileWidth the width of the tile
+	 * @param tileHeight the height of the tile
+	 */
+	public void getTile(float[] tile, int inX, int inY, int tileWidth, int tileHeight) {
+		checkTile(tile, inX, inY, tileWidth, tileHeight);
+		int rowLength = CHANNELS * tileWidth;
+		for (int j = 0; j < tileHeight; j++) {
+			int i = index(inX, inY + j);
+			int t = rowLength * j;
+			for (int k = 0; k < rowLength; k++)
+				tile[t + k] = data.get(i + k);
+		}
+	}
+
+	private void checkTile(float[] tile, int inX, int inY, int tileWidth, int tileHeight) {
+		if (inX < 0 || inY < 0 || tileWidth < 0 || tileHeight < 0
+				|| inX + tileWidth > width || inY + tileHeight > height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		if (tile.length < CHANNELS * tileWidth * tileHeight)
+			throw new IllegalArgumentException("Tile array is too small");
+	}
+
+	/**
+	 * Get gamma corrected 8 bit pixels of a rectangle, in the layout of
+	 * BufferedImage.setRGB: row by row from the top, each pixel packed as 0xRRGGBB.
+	 *
+	 * @param rgb the output pixels
+	 * @param inX the smallest x coordinate of the rectangle
+	 * @param inY the smallest y coordinate of the rectangle
+	 * @param rectWidth the width of the rectangle
+	 * @param rectHeight the height of the rectangle
+	 */
+	public void getRGB(int[] rgb, int inX, int inY, int rectWidth, int rectHeight) {
+		if (rectWidth == 0 || rectHeight == 0) return;
+		if (rgb.length < rectWidth * rectHeight)
+			throw new IllegalArgumentException("Pixel array is too small");
+		int o = 0;
+		for (int y = inY + rectHeight - 1; y >= inY; y--) {
+			int i = index(inX, y);
+			for (int x = 0; x < rectWidth; x++, i += CHANNELS) {
+				rgb[o++] = (toByte(data.get(i)) << 16) | (toByte(data.get(i + 1)) << 8) | toByte(data.get(i + 2));
+			}
+		}
 	}
-	
+
+	/**
+	 * Gamma correct a value with gamma 2.2 and map [0, 1] to [0, 255], as
+	 * Colord.gammaCorrect followed by Colord.toColor do.
+	 */
+	private static int toByte(double value) {
+		double c = Math.max(Math.min(Math.pow(value, 1.0 / 2.2), 1.0), 0.0);
+		return (int) (c * 255d + 0.5);
+	}
+
 	/**
 	 * Write this image to the filename.  The output is always written as a PNG regardless
 	 * of the extension on the filename given.
@@ -158,17 +250,11 @@ public class Image {
 	 */
 	public void write(String fileName) {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		
-		Colord pixelColor= new Colord();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
-			}
-		}
-		
+
+		int[] rgb = new int[width * height];
+		getRGB(rgb, 0, 0, width, height);
+		bufferedImage.setRGB(0, 0, width, height, rgb, 0, width);
+
 		try {
 			ImageIO.write(bufferedImage, "PNG", new File(fileName));
 		}
@@ -178,7 +264,7 @@ public class Image {
 			e.printStackTrace();
 		}
 	}
-	
+
 	/**
 	 * A quick openEXR-JNI write test
 	 * Write this image to the filename.  The output is always written as HDR regardless
@@ -186,35 +272,25 @@ public class Image {
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
-		
+
 		File outFile = new File(fileName);
 
         final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
+        final int numChannels = CHANNELS;
         final int elemSize    = pixelType.byteSize();
         final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
-    
+
 		Header hdrHeader = new Header(width, height);
-		
+
 		ChannelList channels = hdrHeader.getChannels();
         channels.insert("R", new Channel(pixelType));
         channels.insert("G", new Channel(pixelType));
         channels.insert("B", new Channel(pixelType));
-        
-		Colord pixelColor= new Colord();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
+
+        // The pixels are already stored the way the frame buffer wants them
+        ByteBuffer pixels = bytes.duplicate();
         pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
-        
+
      // Build the frame buffer
         FrameBuffer frameBuffer = new FrameBuffer();
         final int yStride = width * pixelSize;
@@ -227,14 +303,13 @@ public class Image {
         frameBuffer.insert("B", Slice.build()
                 .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
                 .xStride(pixelSize).yStride(yStride).get());
-        
+
         try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
              out.setFrameBuffer(frameBuffer);
              out.writePixels(height);
              System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
+
              //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
          }
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
@@ -26,6 +26,19 @@ public class IntersectionRecord {
 
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;  
+
+  /**
+   * The texture coordinate units that one unit of distance on the surface spans at
+   * location, or 0 if the surface does not say. Together with the ray's cone this
+   * gives the footprint to filter textures over.
+   */
+  public double texScale = 0;
+
+  /**
+   * Whether each of the scene's lights is blocked from location, when a packet of
+   * shadow rays has already answered that; null otherwise. Indexed like Scene.getLights().
+   */
+  public boolean[] shadowed = null;
   
   /**
    * Set this intersection record to the value of inRecord
@@ -38,5 +51,7 @@ public class IntersectionRecord {
     texCoords.set(inRecord.texCoords);
     surface = inRecord.surface;   
     t = inRecord.t;
+    texScale = inRecord.texScale;
+    shadowed = inRecord.shadowed;
   }
 }
\ No newline at end of file
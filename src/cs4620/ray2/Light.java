@@ -17,9 +17,19 @@ public abstract class Light {
 	/** How bright the light is. */
 	public final Colord intensity = new Colord(Color.White);
 	public void setIntensity(Colord intensity) { this.intensity.set(intensity); }
+
+	/** The position of this light in its scene's list of lights, set by Scene.addLight. */
+	int index = -1;
+	/** @return the position of this light in its scene's list of lights, or -1 before it is added */
+	public int getIndex() { return index; }
 	
-	/** Get direction from light to shaded point. */
-	public abstract Vector3d getDirection(Vector3d point); 
+	/**
+	 * Get direction from shaded point to light.
+	 * @param point the shaded point
+	 * @param outDirection the output direction, not normalized
+	 * @return outDirection
+	 */
+	public abstract Vector3d getDirection(Vector3d point, Vector3d outDirection);
 	
 	/**Get radius square from light to shaded point. */
 	public abstract double getRSq(Vector3d point);
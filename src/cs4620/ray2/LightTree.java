@@ -0,0 +1,187 @@
+package cs4620.ray2;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import egl.math.Vector3d;
+
+/**
+ * A bounding volume hierarchy over the point lights of a scene, used to choose a few
+ * lights for a shading point in proportion to how much each may contribute there,
+ * instead of visiting all of them.
+ *
+ * Every node keeps the bounding box of its lights and their total power. Choosing a
+ * light walks down from the root, at each node taking a child with probability
+ * proportional to an estimate of its contribution: its power over a squared distance
+ * to its box, times a bound on the cosine between the surface normal and any direction
+ * into the box. Children that lie entirely behind the surface are never taken. The
+ * probability of the light reached is the product of the choices made on the way, so
+ * dividing its contribution by that probability gives an unbiased estimate of the sum
+ * over all lights.
+ *
+ * Nodes are stored depth first in flat arrays: the left child of node i is node i + 1.
+ */
+public class LightTree {
+
+	/** The lights of the tree, in the order of its leaves. */
+	private final PointLight[] lights;
+
+	/** Bounding box corners of each node, 3 per node. */
+	private final double[] minBound, maxBound;
+	/** Total power of each node. */
+	private final double[] power;
+	/** For a leaf, the index of its light in lights; otherwise the index of its right child. */
+	private final int[] next;
+	/** Whether each node is a leaf. */
+	private final boolean[] leaf;
+	private int nodeCount = 0;
+
+	/**
+	 * Build the tree over lights, splitting the longest axis of the light positions at
+	 * the median until every leaf holds one light.
+	 *
+	 * @param lights the lights of the tree; must not be empty
+	 */
+	public LightTree(List<PointLight> lights) {
+		this.lights = lights.toArray(new PointLight[lights.size()]);
+		int n = 2 * this.lights.length - 1;
+		minBound = new double[3 * n];
+		maxBound = new double[3 * n];
+		power = new double[n];
+		next = new int[n];
+		leaf = new boolean[n];
+		build(0, this.lights.length);
+	}
+
+	/**
+	 * @return the number of lights in the tree
+	 */
+	public int size() {
+		return lights.length;
+	}
+
+	/**
+	 * The power of a light used to weigh it: the mean of its intensity's channels.
+	 */
+	static double power(Light light) {
+		return (light.intensity.x + light.intensity.y + light.intensity.z) / 3;
+	}
+
+	/**
+	 * Build the subtree over lights[start, end) and return its node index.
+	 */
+	private int build(int start, int end) {
+		int node = nodeCount++;
+		double[] lo = minBound, hi = maxBound;
+		lo[3*node] = lo[3*node+1] = lo[3*node+2] = Double.POSITIVE_INFINITY;
+		hi[3*node] = hi[3*node+1] = hi[3*node+2] = Double.NEGATIVE_INFINITY;
+		double total = 0;
+		for (int i = start; i < end; i++) {
+			Vector3d p = lights[i].position;
+			lo[3*node] = Math.min(lo[3*node], p.x);
+			lo[3*node+1] = Math.min(lo[3*node+1], p.y);
+			lo[3*node+2] = Math.min(lo[3*node+2], p.z);
+			hi[3*node] = Math.max(hi[3*node], p.x);
+			hi[3*node+1] = Math.max(hi[3*node+1], p.y);
+			hi[3*node+2] = Math.max(hi[3*node+2], p.z);
+			total += power(lights[i]);
+		}
+		power[node] = total;
+
+		if (end - start == 1) {
+			leaf[node] = true;
+			next[node] = start;
+			return node;
+		}
+
+		// Split the longest axis at the median light
+		double dx = hi[3*node] - lo[3*node];
+		double dy = hi[3*node+1] - lo[3*node+1];
+		double dz = hi[3*node+2] - lo[3*node+2];
+		final int axis = dx >= dy && dx >= dz ? 0 : (dy >= dz ? 1 : 2);
+		Arrays.sort(lights, start, end, new Comparator<PointLight>() {
+			@Override
+			public int compare(PointLight a, PointLight b) {
+				return Double.compare(coordinate(a.position, axis), coordinate(b.position, axis));
+			}
+		});
+		int mid = (start + end) / 2;
+		build(start, mid);
+		next[node] = build(mid, end);
+		return node;
+	}
+
+	private static double coordinate(Vector3d v, int axis) {
+		return axis == 0 ? v.x : (axis == 1 ? v.y : v.z);
+	}
+
+	/**
+	 * Estimate how much the lights of a node contribute at a point with the given
+	 * normal. Zero if they are all behind the surface.
+	 */
+	private double importance(int node, Vector3d point, Vector3d normal) {
+		if (power[node] == 0) return 0;
+		double cx = 0.5 * (minBound[3*node] + maxBound[3*node]) - point.x;
+		double cy = 0.5 * (minBound[3*node+1] + maxBound[3*node+1]) - point.y;
+		double cz = 0.5 * (minBound[3*node+2] + maxBound[3*node+2]) - point.z;
+		double ex = 0.5 * (maxBound[3*node] - minBound[3*node]);
+		double ey = 0.5 * (maxBound[3*node+1] - minBound[3*node+1]);
+		double ez = 0.5 * (maxBound[3*node+2] - minBound[3*node+2]);
+		double distSq = cx * cx + cy * cy + cz * cz;
+		double radiusSq = ex * ex + ey * ey + ez * ez;
+
+		// The cosine between the normal and the nearest direction into the bounding
+		// sphere of the node; 1 if the point is inside it
+		double cos = 1;
+		if (distSq > radiusSq) {
+			double dist = Math.sqrt(distSq);
+			double cosNormal = (normal.x * cx + normal.y * cy + normal.z * cz) / (dist * normal.len());
+			double cosSphere = Math.sqrt(1 - radiusSq / distSq);
+			if (cosNormal < cosSphere) {
+				double sinNormal = Math.sqrt(Math.max(0, 1 - cosNormal * cosNormal));
+				double sinSphere = Math.sqrt(radiusSq / distSq);
+				cos = cosNormal * cosSphere + sinNormal * sinSphere;
+				if (cos <= 0) return 0;
+			}
+		}
+		return power[node] * cos / Math.max(distSq, radiusSq);
+	}
+
+	/**
+	 * Choose a light for a shading point.
+	 *
+	 * @param point the shading point
+	 * @param normal the surface normal at point
+	 * @param u a number in [0, 1) that decides the choice
+	 * @param outPdf set to the probability that the returned light is chosen at point
+	 * @param k the index in outPdf to set
+	 * @return the light chosen, or null if no light can contribute at point
+	 */
+	public PointLight sample(Vector3d point, Vector3d normal, double u, double[] outPdf, int k) {
+		int node = 0;
+		double pdf = importance(0, point, normal) > 0 ? 1 : 0;
+		if (pdf == 0) return null;
+		while (!leaf[node]) {
+			int left = node + 1, right = next[node];
+			double wl = importance(left, point, normal);
+			double wr = importance(right, point, normal);
+			if (wl + wr <= 0) return null;
+			double pl = wl / (wl + wr);
+
+			// Reuse u for the choices further down by stretching the part taken to [0, 1)
+			if (u < pl) {
+				node = left;
+				pdf *= pl;
+				u = u / pl;
+			} else {
+				node = right;
+				pdf *= 1 - pl;
+				u = (u - pl) / (1 - pl);
+			}
+			u = Math.min(u, 1 - Math.ulp(1.0));
+		}
+		outPdf[k] = pdf;
+		return lights[next[node]];
+	}
+}
@@ -1,21 +1,24 @@
 package cs4620.ray2;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -98,6 +101,15 @@ import egl.math.Vector3d;
  * methods for each child type and they must take exactly one parameter
  * of the type of the child node.
  *
+ * The file is read as a stream of StAX events rather than built into a DOM
+ * tree first, and what is found by reflection is cached per class: the
+ * constructor, and for each child name the method it is given to, as a
+ * method handle. Classes named by type attributes are cached as well. Only
+ * the first node of each kind pays for the lookups, so that files with many
+ * surfaces load in time proportional to their size. Names are kept in a
+ * table of each call to parse, so they never carry over from one file to
+ * the next.
+ *
  * @author arbree Aug 18, 2005
  * Parser.java
  * Copyright 2005 Program of Computer Graphics, Cornell University
@@ -105,17 +117,25 @@ import egl.math.Vector3d;
 @SuppressWarnings("rawtypes")
 public class Parser {
 
-	/** Java document builder used to parse XML * */
-	private DocumentBuilder db;
+	/** Creates the readers for XML files. */
+	private final XMLInputFactory factory;
+
+	/** The binder of each class nodes have been parsed as, shared by all parsers. */
+	private static final ConcurrentHashMap<Class<?>, Binder> binders = new ConcurrentHashMap<Class<?>, Binder>();
+
+	/** The classes type attributes resolved to, by the base class name and the attribute. */
+	private static final ConcurrentHashMap<String, Class<?>> types = new ConcurrentHashMap<String, Class<?>>();
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** The type of the method handles of Setter. */
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
 
 	/** Creates a new Parser. */
 	public Parser() {
 
 		try {
-			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			factory = XMLInputFactory.newInstance();
+			// Text that the reader splits into several events comes as one
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
 		} catch (Exception e) {
 
 			throw new Error("Error instantiating the parser.");
@@ -123,6 +143,130 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * How to build objects of one class from nodes: its zero argument constructor and,
+	 * for each child node name, the method the child's value is given to. Each is looked
+	 * up the first time it is needed and kept from then on.
+	 */
+	private static final class Binder {
+		private final Class<?> type;
+		private volatile MethodHandle constructor;
+		private final ConcurrentHashMap<String, Setter> setters = new ConcurrentHashMap<String, Setter>();
+
+		Binder(Class<?> type) {
+			this.type = type;
+		}
+
+		/**
+		 * @return a new instance of the class
+		 */
+		Object newInstance() {
+			try {
+				MethodHandle handle = constructor;
+				if (handle == null) {
+					handle = MethodHandles.publicLookup()
+							.findConstructor(type, MethodType.methodType(void.class))
+							.asType(MethodType.methodType(Object.class));
+					constructor = handle;
+				}
+				return (Object) handle.invokeExact();
+			} catch (Throwable e) {
+				throw new Error("Error instantiating object of class: "
+						+ type.getName() + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * @param childName the name of a child node
+		 * @return the method that a child node with that name is given to
+		 */
+		Setter setter(String childName) {
+			Setter setter = setters.get(childName);
+			if (setter == null) {
+				setter = new Setter(type, childName);
+				setters.putIfAbsent(childName, setter);
+			}
+			return setter;
+		}
+	}
+
+	/**
+	 * The setXXX or addXXX method of a class for the child nodes named XXX, and the
+	 * class their values are parsed as.
+	 */
+	private static final class Setter {
+		final String name;
+		final Class<?> valueType;
+		private final MethodHandle handle;
+
+		Setter(Class<?> c, String childName) {
+			// Check setXXX
+			Method foundMethod = findMethod(c, "set" + childName);
+
+			// If can't find setXXX method, look for addXXX method instead
+			if (foundMethod == null)
+				foundMethod = findMethod(c, "add" + childName);
+
+			// Its an error if no method was found
+			if (foundMethod == null) {
+				throw new Error("Could not find a method to use to add "
+						+ childName + " to the class type " + c.getName()
+						+ ".");
+			}
+
+			// Check that the method has the right number of parameters
+			Class[] parameterTypes = foundMethod.getParameterTypes();
+			if (parameterTypes.length != 1) {
+				throw new Error("Method " + foundMethod.getName()
+						+ " must take exactly one parameter.");
+			}
+
+			// If the type is primitive, switch to corresponding Object type
+			// to parse. The handle unboxes the parsed value again.
+			Class parameterType = parameterTypes[0];
+			if (parameterType.isPrimitive()) {
+				if (parameterType == Integer.TYPE) {
+					parameterType = Integer.class;
+				} else if (parameterType == Float.TYPE) {
+					parameterType = Float.class;
+				} else if (parameterType == Double.TYPE) {
+					parameterType = Double.class;
+				} else {
+					throw new Error("Cannot parse primitives of type "
+							+ parameterType);
+				}
+			}
+
+			name = foundMethod.getName();
+			valueType = parameterType;
+			try {
+				handle = MethodHandles.publicLookup().unreflect(foundMethod).asType(SETTER_TYPE);
+			} catch (IllegalAccessException e) {
+				throw new Error("Cannot access the method " + name + " of " + c.getName() + ".");
+			}
+		}
+
+		/**
+		 * Give value to target.
+		 */
+		void invoke(Object target, Object value) throws Throwable {
+			handle.invokeExact(target, value);
+		}
+	}
+
+	/**
+	 * @return the binder for class c
+	 */
+	private static Binder binder(Class<?> c) {
+		Binder binder = binders.get(c);
+		if (binder == null) {
+			binder = new Binder(c);
+			Binder existing = binders.putIfAbsent(c, binder);
+			if (existing != null) binder = existing;
+		}
+		return binder;
+	}
+
 	/**
 	 * Parses the String and generates either an Integer object or a Double
 	 * object, depending on the given class.
@@ -263,7 +407,7 @@ public class Parser {
 	 * @param methodName the name of the method to find
 	 * @return the Method object if a method is found, null otherwise
 	 */
-	private Method findMethod(Class c, String methodName) {
+	private static Method findMethod(Class c, String methodName) {
 
 		// Get the method list
 		Method[] methods = c.getMethods();
@@ -278,67 +422,68 @@ public class Parser {
 	}
 
 	/**
-	 * Parse an object node. The node is assumed to be of Class c and is
-	 * represented by Node n.
+	 * Resolve the class named by a type attribute, which must extend or implement c.
+	 * Names are first looked up as they are and then in the package of c.
 	 *
-	 * @param c Class type to read from node n
-	 * @param n the node to parse into an instance of c
-	 * @return the object read
+	 * @param c the class the node would otherwise be parsed as
+	 * @param className the value of the type attribute
+	 * @return the class to parse the node as
 	 */
-	private Object parseObject(Class<?> c, Node n) {
-
-		Object resultingObject = null;
-		NamedNodeMap attributes = n.getAttributes();
-		Node typeAttribute = attributes.getNamedItem("type");
-		Node nameAttribute = attributes.getNamedItem("name");
-		Node refAttribute = attributes.getNamedItem("ref");
-
-		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
+	private static Class<?> resolveType(Class<?> c, String className) {
+		String key = c.getName() + " " + className;
+		Class<?> possibleClass = types.get(key);
+		if (possibleClass != null) return possibleClass;
+		try {
+			// Try to look up the class; if it fails, try looking in the package
+			// of the given base type
 			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
+				possibleClass = Class.forName(className);
 			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
+				possibleClass = Class.forName(c.getPackage().getName()
+						+ "." + className);
 			}
+		} catch (ClassNotFoundException e) {
+			throw new Error("Class could not be found: " + className);
+		}
+		if (!c.isAssignableFrom(possibleClass)) {
+			throw new Error("Type " + className
+					+ " does not extend or implement " + c.getName());
 		}
+		types.put(key, possibleClass);
+		return possibleClass;
+	}
+
+	/**
+	 * @return true if nodes of class c are parsed from their text rather than from child nodes
+	 */
+	private static boolean isText(Class<?> c) {
+		return (c.isArray() && c.getComponentType().isPrimitive())
+				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
+				|| Image.class.isAssignableFrom(c);
+	}
+
+	/**
+	 * Parse an object node. The node is assumed to be of Class c and reader is at its
+	 * start; on return reader is at its end.
+	 *
+	 * @param c Class type to read from the node
+	 * @param reader the reader of the file, at the start of the node to parse
+	 * @param references the named nodes of the file seen so far
+	 * @return the object read
+	 */
+	private Object parseObject(Class<?> c, XMLStreamReader reader, HashMap<String, Object> references)
+			throws XMLStreamException {
+
+		Object resultingObject = null;
+		String typeAttribute = reader.getAttributeValue(null, "type");
+		String nameAttribute = reader.getAttributeValue(null, "name");
+		String refAttribute = reader.getAttributeValue(null, "ref");
 
 		// If the node specifies a type, check that it is assignable to the current
 		// output type for this node
 		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
+			c = resolveType(c, typeAttribute);
 		}
 
 		// Check that our current type is valid
@@ -346,113 +491,60 @@ public class Parser {
 			throw new Error("Cannot parse arrays of non-primitive types");
 		}
 
-		// Get the sub elements of this node
-		NodeList children = n.getChildNodes();
-
 		//If the object is a reference, just return the value referenced
 		if (refAttribute != null) {
-			String name = refAttribute.getNodeValue();
-			resultingObject = references.get(name);
+			resultingObject = references.get(refAttribute);
 			if (resultingObject == null) {
-				throw new Error("Unresolved reference: " + name);
+				throw new Error("Unresolved reference: " + refAttribute);
 			}
+			skipElement(reader);
 		}
 
 		// Check for certain special classes of the current node
-		else if ((c.isArray() && c.getComponentType().isPrimitive())
-				|| c == String.class || c == Integer.class || c == Double.class
-				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
-				|| Image.class.isAssignableFrom(c)) {
-
-			// Interpret the text values of all children nodes as objects
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
-				if (child.getNodeType() == Node.TEXT_NODE) {
-					resultingObject = parseObject(c, child.getNodeValue());
-				} else {
+		else if (isText(c)) {
+
+			// Interpret the text of the node as an object
+			String text = null;
+			for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+				if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+						|| event == XMLStreamConstants.SPACE) {
+					text = text == null ? reader.getText() : text + reader.getText();
+				} else if (event == XMLStreamConstants.START_ELEMENT) {
 					throw new Error(
 							"Found a non-text node while trying to parse a "
 									+ c.getName());
 				}
 			}
+			if (text != null) {
+				resultingObject = parseObject(c, text);
+			}
 		}
 
 		// Otherwise the node represents a general object
 		else {
 
 			// Create one!
-			try {
-				resultingObject = c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName() + ": " + e.getMessage());
-			}
-
-			// For each child
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
+			Binder binder = binder(c);
+			resultingObject = binder.newInstance();
 
-				// Skip non-element nodes
-				if (child.getNodeType() != Node.ELEMENT_NODE) {
+			// For each child element; text and comments are skipped
+			for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+				if (event != XMLStreamConstants.START_ELEMENT) {
 					continue;
 				}
 
 				//Find the method to use for adding
-				Method foundMethod = null;
-				String childName = child.getNodeName();
-
-				// Check setXXX
-				foundMethod = findMethod(c, "set" + childName);
-
-				// If can't find setXXX method, look for addXXX method instead
-				if (foundMethod == null)
-					foundMethod = findMethod(c, "add" + childName);
-
-				// Its an error if no method was found
-				if (foundMethod == null) {
-					throw new Error("Could not find a method to use to add "
-							+ childName + " to the class type " + c.getName()
-							+ ".");
-				}
-
-				// Check that the method has the right number of parameters
-				Class[] parameterTypes = foundMethod.getParameterTypes();
-				if (parameterTypes.length != 1) {
-					throw new Error("Method " + foundMethod.getName()
-							+ " must take exactly one parameter.");
-				}
-
-				// If the type is primitive, switch to corresponding Object type
-				// to parse. Method invocation will automatically take care of
-				// converting Object types back into primitives.
-				Class parameterType = parameterTypes[0];
-				if (parameterType.isPrimitive()) {
-					if (parameterType == Integer.TYPE) {
-						parameterType = Integer.class;
-					} else if (parameterType == Float.TYPE) {
-						parameterType = Float.class;
-					} else if (parameterType == Double.TYPE) {
-						parameterType = Double.class;
-					} else {
-						throw new Error("Cannot parse primitives of type "
-								+ parameterType);
-					}
-				}
+				Setter setter = binder.setter(reader.getLocalName());
 
 				// Recursively parse value of child element
-				Object childValue = parseObject(parameterType, child);
+				Object childValue = parseObject(setter.valueType, reader, references);
 
 				// Call the setter method with the parsed value;
 				try {
-
-					System.out.println(foundMethod.getName());
-					//Invoke the setter method
-					foundMethod.invoke(resultingObject,
-							new Object[] { childValue });
-
-				} catch (Exception e) {
+					setter.invoke(resultingObject, childValue);
+				} catch (Throwable e) {
 					System.err.println("Error invoking the method "
-							+ foundMethod.getName() + ".");
+							+ setter.name + ".");
 					e.printStackTrace();
 				}
 			}
@@ -460,14 +552,25 @@ public class Parser {
 
 		//Place the object in the reference list
 		if (nameAttribute != null) {
-			String name = nameAttribute.getNodeValue();
-			references.put(name, resultingObject);
+			references.put(nameAttribute, resultingObject);
 		}
 
 		return resultingObject;
 
 	}
 
+	/**
+	 * Move reader from the start of a node to its end, past all of its content.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+
 	/**
 	 * Parses a given file to generate an object of the given class.
 	 *
@@ -479,13 +582,21 @@ public class Parser {
 
 		File file = new File(filename);
 
+		// Names are only visible within the file that declares them
+		HashMap<String, Object> references = new HashMap<String, Object>();
+
 		// Parse the XML
 		Object result = null;
-		try {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
 
-			Document doc = db.parse(file);
-			Element root = doc.getDocumentElement();
-			result = parseObject(c, root);
+			XMLStreamReader reader = factory.createXMLStreamReader(file.toURI().toString(), in);
+			try {
+				// Skip the prolog up to the root node
+				while (reader.next() != XMLStreamConstants.START_ELEMENT) { }
+				result = parseObject(c, reader, references);
+			} finally {
+				reader.close();
+			}
 
 		} catch (Exception e) {
 			System.out.println("Exception occurred while parsing: " + filename);
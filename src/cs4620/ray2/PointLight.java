@@ -16,10 +16,9 @@ public class PointLight extends Light {
 	public final Vector3d position = new Vector3d();
 	public void setPosition(Vector3d position) { this.position.set(position); }
 
-	/** Get direction from light to shaded point. */
-	public Vector3d getDirection(Vector3d point) {
-		Vector3d dir = position.clone().sub(point);
-		return dir;
+	/** Get direction from shaded point to light. */
+	public Vector3d getDirection(Vector3d point, Vector3d outDirection) {
+		return outDirection.set(position).sub(point);
 	}
 	
 	/**Get radius square from light to shaded point. */
@@ -29,7 +28,7 @@ public class PointLight extends Light {
 	
 
 	public double getShadowRayEnd(Vector3d point) {
-		return this.getDirection(point).len();
+		return Math.sqrt(point.distSq(this.position));
 	}
 	
 	/**
@@ -0,0 +1,242 @@
+package cs4620.ray2;
+
+import java.util.Random;
+
+import cs4620.ray2.camera.Camera;
+import cs4620.ray2.viewer.QuickViewer;
+import egl.math.Colord;
+
+/**
+ * Renders an image in passes instead of taking a fixed grid of samples in every pixel.
+ * Each pass adds randomly placed samples to a running mean per pixel and tracks the
+ * variance of the displayed pixel luminance, clamped to [0, 1] as in a PNG. After
+ * minPasses, a block whose pixels have a root mean square relative standard error
+ * below threshold gets no more samples, so flat regions stop early and the remaining
+ * passes go to edges, glass and the like. Rendering stops when every block has
+ * converged, after maxPasses, when timeLimit runs out or when the viewer window asks
+ * to stop; the viewer is refreshed after every pass. With RayTracer.VERBOSE, the
+ * progress of each pass and a summary of the render are printed.
+ *
+ * Select it from a scene file with
+ *
+ *   <progressive>
+ *     <samplesPerPass>1</samplesPerPass>
+ *     <minPasses>4</minPasses>
+ *     <maxPasses>256</maxPasses>
+ *     <threshold>0.02</threshold>
+ *     <timeLimit>60</timeLimit>
+ *   </progressive>
+ *
+ * where every child is optional, or for any scene with the '-progressive' option.
+ */
+public class ProgressiveRenderer {
+
+	/**
+	 * Luminances below this are treated as this when computing the relative error, so
+	 * that nearly black pixels do not need an absurd number of samples.
+	 */
+	public static final double DARK_LUMINANCE = 0.05;
+
+	/** Samples taken in each pixel of an unconverged block per pass. */
+	protected int samplesPerPass = 1;
+	public void setSamplesPerPass(int samplesPerPass) { this.samplesPerPass = Math.max(1, samplesPerPass); }
+
+	/** Passes over the whole image before any block may stop. */
+	protected int minPasses = 4;
+	public void setMinPasses(int minPasses) { this.minPasses = Math.max(2, minPasses); }
+
+	/** The largest number of passes. */
+	protected int maxPasses = 256;
+	public void setMaxPasses(int maxPasses) { this.maxPasses = Math.max(1, maxPasses); }
+
+	/** The relative standard error of a block below which it counts as converged. */
+	protected double threshold = 0.02;
+	public void setThreshold(double threshold) { this.threshold = threshold; }
+
+	/** The time budget in seconds, or 0 for none. No new pass is started once it is used up. */
+	protected double timeLimit = 0;
+	public void setTimeLimit(double timeLimit) { this.timeLimit = timeLimit; }
+
+	/** Per pixel sums of the samples, 3 per pixel, indexed by (y * width + x). */
+	private double[] sums;
+
+	/** Per pixel mean and sum of squared deviations of the sample luminance (Welford). */
+	private double[] lumMean, lumM2;
+
+	/** Per pixel sample counts. */
+	private int[] counts;
+
+	public ProgressiveRenderer() { }
+
+	/**
+	 * Render the scene into its image.
+	 *
+	 * @param scene the scene, whose camera is already initialized
+	 * @param viewer the viewer to refresh after each pass, or null
+	 * @param blockX the x index of each block, in the order blocks are handed out
+	 * @param blockY the y index of each block
+	 */
+	public void render(final Scene scene, QuickViewer viewer, final int[] blockX, final int[] blockY) {
+		final Image image = scene.getImage();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int numBlocks = blockX.length;
+
+		sums = new double[3 * width * height];
+		lumMean = new double[width * height];
+		lumM2 = new double[width * height];
+		counts = new int[width * height];
+
+		// The noise of each block after its last pass; a block is active while it is too noisy
+		final double[] noise = new double[numBlocks];
+		final int[] active = new int[numBlocks];
+		int numActive = numBlocks;
+		for(int i = 0; i < numBlocks; i++) active[i] = i;
+
+		long startTime = System.nanoTime();
+		int pass = 0;
+		long totalSamples = 0;
+		while(numActive > 0 && pass < maxPasses) {
+			final int currentPass = pass;
+			final int[] blocks = active;
+			RayTracer.forEachParallel(numActive, new RayTracer.IndexTask() {
+				@Override
+				public void run(int i) {
+					int b = blocks[i];
+					int offsetX = blockX[b]*RayTracer.SUB_WIDTH;
+					int offsetY = blockY[b]*RayTracer.SUB_HEIGHT;
+					int sizeX = Math.min(width-offsetX, RayTracer.SUB_WIDTH);
+					int sizeY = Math.min(height-offsetY, RayTracer.SUB_HEIGHT);
+					Random random = new Random((long)currentPass * numBlocks + b);
+					noise[b] = renderPass(scene, random, offsetX, offsetY, sizeX, sizeY);
+				}
+			});
+			for(int i = 0; i < numActive; i++) {
+				int b = active[i];
+				totalSamples += (long)samplesPerPass * Math.min(width-blockX[b]*RayTracer.SUB_WIDTH, RayTracer.SUB_WIDTH)
+						* Math.min(height-blockY[b]*RayTracer.SUB_HEIGHT, RayTracer.SUB_HEIGHT);
+			}
+			pass++;
+
+			// Keep only the blocks that are still too noisy
+			int kept = 0;
+			double maxNoise = 0;
+			for(int i = 0; i < numActive; i++) {
+				int b = active[i];
+				maxNoise = Math.max(maxNoise, noise[b]);
+				if(pass < minPasses || noise[b] > threshold) active[kept++] = b;
+			}
+			if(RayTracer.VERBOSE)
+				System.out.println("pass " + pass + ": " + numActive + "/" + numBlocks
+						+ " blocks, error " + maxNoise);
+			numActive = kept;
+
+			if(viewer != null) {
+				viewer.setImage(image);
+				if(viewer.isStopRequested()) break;
+			}
+			if(timeLimit > 0 && (System.nanoTime() - startTime) / 1e9 > timeLimit) break;
+		}
+
+		if(RayTracer.VERBOSE)
+			System.out.println("Progressive render: " + pass + " passes, "
+					+ (double)totalSamples / (width * height) + " samples per pixel, "
+					+ numActive + " blocks above the error threshold");
+	}
+
+	/**
+	 * Add samplesPerPass samples to every pixel of a block, write the new means to the
+	 * image and estimate the block's noise.
+	 *
+	 * @return the root mean square relative standard error of the pixels in the block
+	 */
+	private double renderPass(Scene scene, Random random, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+
+		ShadingContext context = ShadingContext.get();
+		context.push();
+		RayPacket packet = context.getPacket();
+		Colord[] rayColors = context.getRayColors();
+
+		// Samples land anywhere in their pixel, so their cones cover a whole pixel
+		Ray cone = context.ray();
+		cam.getRayCone(cone, (offsetX + sizeX * 0.5) / width, (offsetY + sizeY * 0.5) / height,
+				1.0 / width, context.ray());
+
+		for(int x0 = offsetX; x0 < (offsetX + sizeX); x0 += RayTracer.PACKET_WIDTH) {
+			for(int y0 = offsetY; y0 < (offsetY + sizeY); y0 += RayTracer.PACKET_HEIGHT) {
+				int x1 = Math.min(x0 + RayTracer.PACKET_WIDTH, offsetX + sizeX);
+				int y1 = Math.min(y0 + RayTracer.PACKET_HEIGHT, offsetY + sizeY);
+
+				for(int s = 0; s < samplesPerPass; s++) {
+					packet.clear();
+					for(int x = x0; x < x1; x++)
+						for(int y = y0; y < y1; y++) {
+							Ray ray = packet.add();
+							cam.getRay(ray, (x + random.nextDouble())/width, (y + random.nextDouble())/height);
+							ray.setCone(cone);
+						}
+
+					if(RayTracer.USE_PACKETS)
+						RayTracer.shadeRays(rayColors, scene, packet, 1, context);
+					else
+						for(int k = 0; k < packet.size; k++)
+							RayTracer.shadeRay(rayColors[k], scene, packet.rays[k], 1, context);
+
+					int k = 0;
+					for(int x = x0; x < x1; x++)
+						for(int y = y0; y < y1; y++)
+							addSample(y * width + x, rayColors[k++], exposure);
+				}
+			}
+		}
+
+		// Publish the running means and measure the noise
+		float[] tile = context.getTile(3 * sizeX * sizeY);
+		double sumSqError = 0;
+		for(int y = offsetY; y < offsetY + sizeY; y++) {
+			for(int x = offsetX; x < offsetX + sizeX; x++) {
+				int p = y * width + x;
+				int t = 3 * ((y - offsetY) * sizeX + (x - offsetX));
+				double scale = exposure / counts[p];
+				tile[t] = (float) (sums[3*p] * scale);
+				tile[t+1] = (float) (sums[3*p+1] * scale);
+				tile[t+2] = (float) (sums[3*p+2] * scale);
+				double error = relativeError(p);
+				sumSqError += error * error;
+			}
+		}
+		image.setTile(tile, offsetX, offsetY, sizeX, sizeY);
+		context.pop();
+		return Math.sqrt(sumSqError / (sizeX * sizeY));
+	}
+
+	/**
+	 * Add one sample to the running statistics of pixel p.
+	 */
+	private void addSample(int p, Colord c, double exposure) {
+		sums[3*p] += c.x;
+		sums[3*p+1] += c.y;
+		sums[3*p+2] += c.z;
+
+		double lum = Math.min(1, Math.max(0, exposure * (0.2126 * c.x + 0.7152 * c.y + 0.0722 * c.z)));
+		int n = ++counts[p];
+		double delta = lum - lumMean[p];
+		lumMean[p] += delta / n;
+		lumM2[p] += delta * (lum - lumMean[p]);
+	}
+
+	/**
+	 * @return the standard error of the mean luminance of pixel p, relative to that mean
+	 */
+	private double relativeError(int p) {
+		int n = counts[p];
+		if(n < 2) return Double.POSITIVE_INFINITY;
+		double variance = lumM2[p] / (n - 1);
+		return Math.sqrt(variance / n) / Math.max(lumMean[p], DARK_LUMINANCE);
+	}
+}
@@ -37,6 +37,13 @@ public class Ray {
   /** Ending t value of the ray **/
   public double end;
 
+  /**
+   * The cone around the ray that the sample it was traced for covers, which sizes
+   * texture filters: its width at the origin, and how much wider it gets per unit of
+   * distance. Both are 0 for a ray without a footprint.
+   */
+  public double coneWidth, coneSpread;
+
   /**
    * Default constructor generates a trivial ray.
    */
@@ -59,6 +66,8 @@ public class Ray {
 	  direction.set(r.direction);
 	  start = r.start;
 	  end = r.end;
+	  coneWidth = r.coneWidth;
+	  coneSpread = r.coneSpread;
   }
 
   /**
@@ -73,6 +82,34 @@ public class Ray {
   }
 
   
+  /**
+   * Sets the cone of this ray to that of r.
+   * @param r the ray whose cone to copy
+   */
+  public void setCone(Ray r) {
+	  coneWidth = r.coneWidth;
+	  coneSpread = r.coneSpread;
+  }
+
+  /**
+   * Sets the cone of this ray, which starts where parent hits a surface at t, to carry on
+   * from parent's cone there, as for a reflected or refracted ray.
+   * @param parent the ray that was hit
+   * @param t the parameter of the hit along parent
+   */
+  public void setConeFrom(Ray parent, double t) {
+	  coneWidth = parent.getConeWidth(t);
+	  coneSpread = parent.coneSpread;
+  }
+
+  /**
+   * @param t a parameter along this ray
+   * @return the width of this ray's cone at the point at t
+   */
+  public double getConeWidth(double t) {
+	  return coneWidth + coneSpread * t * direction.len();
+  }
+
   /**
    * Sets outPoint to the point on this ray t units from the origin.  Note that t can
    * be considered as distance along this ray only if the ray direction is normalized.
@@ -0,0 +1,113 @@
+package cs4620.ray2;
+
+/**
+ * A small bundle of rays that are traced together, such as the camera rays through a
+ * few neighbouring pixels or the shadow rays from those pixels to one light. Coherent
+ * rays visit mostly the same nodes of an acceleration structure, so a packet can cull
+ * a node once for all of its rays instead of once per ray.
+ *
+ * A packet owns its rays, records and scratch arrays and is reused from one bundle to
+ * the next, so tracing a packet does not allocate. It is not thread-safe; each render
+ * thread uses its own.
+ */
+public class RayPacket {
+
+	/** The largest number of rays in a packet; lanes are tracked as bits of an int. */
+	public static final int MAX_SIZE = 16;
+
+	/** The rays of the packet; only the first size are in use. */
+	public final Ray[] rays = new Ray[MAX_SIZE];
+
+	/** After intersection, the first hit of each ray that hit something. */
+	public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+	/** After intersection, whether each ray hit something. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/** The number of rays in use. */
+	public int size = 0;
+
+	/** Reciprocals of the ray directions, filled in by prepare(). */
+	public final double[] invX = new double[MAX_SIZE];
+	public final double[] invY = new double[MAX_SIZE];
+	public final double[] invZ = new double[MAX_SIZE];
+
+	/** The ray ends as they were before traversal shortened them. */
+	private final double[] ends = new double[MAX_SIZE];
+
+	/** Traversal stack, grown as needed. */
+	private int[] stack = new int[0];
+
+	/** Per ray storage for IntersectionRecord.shadowed, grown as needed. */
+	private final boolean[][] shadowFlags = new boolean[MAX_SIZE][0];
+
+	public RayPacket() {
+		for (int k = 0; k < MAX_SIZE; k++) {
+			rays[k] = new Ray();
+			records[k] = new IntersectionRecord();
+		}
+	}
+
+	/** Remove all rays from the packet. */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add a ray to the packet.
+	 *
+	 * @return the new ray, to be set up by the caller
+	 */
+	public Ray add() {
+		if (size == MAX_SIZE)
+			throw new IllegalStateException("A packet holds at most " + MAX_SIZE + " rays");
+		return rays[size++];
+	}
+
+	/** @return true if no more rays can be added */
+	public boolean isFull() {
+		return size == MAX_SIZE;
+	}
+
+	/**
+	 * Get ready for traversal: clear the hit flags, compute the reciprocal directions
+	 * and remember the ray ends so that restoreEnds() can put them back.
+	 */
+	public void prepare() {
+		for (int k = 0; k < size; k++) {
+			Ray r = rays[k];
+			hit[k] = false;
+			invX[k] = 1.0 / r.direction.x;
+			invY[k] = 1.0 / r.direction.y;
+			invZ[k] = 1.0 / r.direction.z;
+			ends[k] = r.end;
+		}
+	}
+
+	/** Undo any shortening of the ray ends since prepare(). */
+	public void restoreEnds() {
+		for (int k = 0; k < size; k++)
+			rays[k].end = ends[k];
+	}
+
+	/**
+	 * @param length the number of ints needed
+	 * @return a scratch stack of at least that length
+	 */
+	public int[] getStack(int length) {
+		if (stack.length < length)
+			stack = new int[length];
+		return stack;
+	}
+
+	/**
+	 * @param k the index of a ray
+	 * @param length the number of lights
+	 * @return scratch flags for the shadow tests of ray k, at least length long
+	 */
+	public boolean[] getShadowFlags(int k, int length) {
+		if (shadowFlags[k].length < length)
+			shadowFlags[k] = new boolean[length];
+		return shadowFlags[k];
+	}
+}
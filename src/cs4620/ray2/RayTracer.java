@@ -1,15 +1,20 @@
 package cs4620.ray2;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cs4620.ray2.Image;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.accel.Bvh;
+import cs4620.ray2.accel.LinearBvh;
 import cs4620.ray2.camera.Camera;
 import cs4620.ray2.shader.Shader;
 import cs4620.ray2.surface.Surface;
@@ -38,17 +43,32 @@ public class RayTracer {
 	protected static int SUB_HEIGHT = 32;
 
 	/**
-	 * Widget to draw the image spiral.
+	 * The number of worker threads that render sub-blocks in parallel.
+	 * May be overridden on the command line with the '-t' option.
 	 */
-	private static final BlockSpiral spiral = new BlockSpiral();
+	public static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
 
 	/**
-	 * Useful little display window that shows rendering progress.
-	 * The window actually take a bit of time to render itself, so
-	 * you can turn it on or off by setting the DISPLAY flag at the
-	 * top of the file.
+	 * Trace camera rays and their shadow rays in packets of neighbouring pixels.
+	 * May be turned off on the command line with the '-nopackets' option.
 	 */
-	private static QuickViewer viewer = null;
+	public static boolean USE_PACKETS = true;
+
+	/**
+	 * Render every scene progressively, even those that do not ask for it.
+	 * May be turned on on the command line with the '-progressive' option.
+	 */
+	public static boolean PROGRESSIVE = false;
+
+	/**
+	 * Print statistics about each acceleration structure built and the progress of each
+	 * progressive render. May be turned on on the command line with the '-verbose' option.
+	 */
+	public static boolean VERBOSE = false;
+
+	//Size of the pixel groups whose rays are traced as one packet
+	protected static final int PACKET_WIDTH = 4;
+	protected static final int PACKET_HEIGHT = 4;
 
 	public static class ScenePath {
 		/**
@@ -97,9 +117,25 @@ public class RayTracer {
 	}
 
 	/**
-	 * The Workspace For The Scene
+	 * The Workspace For The Scene Being Parsed On The Current Thread
+	 */
+	private static final ThreadLocal<ScenePath> sceneWorkspace = new ThreadLocal<ScenePath>();
+
+	/**
+	 * @return The Workspace Of The Scene Being Parsed On This Thread
+	 */
+	public static ScenePath getSceneWorkspace() {
+		return sceneWorkspace.get();
+	}
+
+	/**
+	 * Set The Workspace Used To Resolve Files Referenced By A Scene
+	 * @param p The Workspace (Or null To Clear It)
 	 */
-	public static ScenePath sceneWorkspace = null;
+	public static void setSceneWorkspace(ScenePath p) {
+		if(p == null) sceneWorkspace.remove();
+		else sceneWorkspace.set(p);
+	}
 
 	/**
 	 * This directory precedes the arguments passed in via the command line.
@@ -131,6 +167,23 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-t":
+				// Use A Different Number Of Render Threads
+				i++;
+				if(i < args.length) NUM_THREADS = Math.max(1, Integer.parseInt(args[i]));
+				break;
+			case "-nopackets":
+				// Trace Every Ray On Its Own
+				USE_PACKETS = false;
+				break;
+			case "-progressive":
+				// Refine The Image In Adaptive Passes
+				PROGRESSIVE = true;
+				break;
+			case "-verbose":
+				// Report Build Statistics
+				VERBOSE = true;
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -174,12 +227,16 @@ public class RayTracer {
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-t threads] [-nopackets] [-progressive] [-verbose] [-p path] [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
+		System.out.println("The -t option sets the number of render threads (default: the number of available processors).");
+		System.out.println("The -nopackets option traces every camera and shadow ray on its own instead of in packets.");
+		System.out.println("The -progressive option renders in passes, adding samples only where the image is still noisy.");
+		System.out.println("The -verbose option prints statistics about each acceleration structure built and the passes of progressive renders.");
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
 	}
 
@@ -194,10 +251,10 @@ public class RayTracer {
 		Parser parser = new Parser();
 		for (ScenePath p : args) {
 			// Set The Current Workspace For The Scene
-			sceneWorkspace = p;
+			setSceneWorkspace(p);
 
 			// Parse the input file
-			Scene scene = (Scene) parser.parse(sceneWorkspace.getFile(), Scene.class);
+			Scene scene = (Scene) parser.parse(p.getFile(), Scene.class);
 
 			// Propagate transformation matrix through the tree hierarchy
 			scene.setTransform();
@@ -211,63 +268,101 @@ public class RayTracer {
 			Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 			renderableSurfaces.toArray(surfaceArray);
 			scene.getAccelStruct().build(surfaceArray);
+			if (VERBOSE) printBuildStats(scene.getAccelStruct());
+
+			// And the tree lights are sampled from, if the scene samples them
+			scene.buildLightTree();
 
 			// Render the scene
 			renderImage(scene);
 
 			// Write the image out
 			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
+				scene.getImage().writeHDR(p.getFile() + ".exr");
 			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+				scene.getImage().write(p.getFile() + ".png");
 		}
+		setSceneWorkspace(null);
 	}
 
 	/**
-	 * The renderImage method renders the entire scene.
+	 * Print the statistics of an acceleration structure that keeps them.
+	 */
+	private static void printBuildStats(AccelStruct accel) {
+		if (accel instanceof Bvh)
+			System.out.println(((Bvh) accel).getLastStats());
+		else if (accel instanceof LinearBvh)
+			System.out.println(((LinearBvh) accel).getLastStats());
+	}
+
+	/**
+	 * The renderImage method renders the entire scene. Sub-blocks are handed out
+	 * in spiral order to NUM_THREADS workers; each worker takes the next block
+	 * as soon as it finishes its previous one. If the scene asks for progressive
+	 * rendering (or '-progressive' was given), the image is refined in passes instead.
 	 *
 	 * @param scene The scene to be rendered
 	 */
-	public void renderImage(Scene scene) {
+	public void renderImage(final Scene scene) {
 
 		// Get the output image
-		Image image = scene.getImage();
+		final Image image = scene.getImage();
 
-		// Setup viewer
-		if(DISPLAY)
-			viewer = QuickViewer.createImageViewer(image);
+		// Setup viewer (render boxes without a display just skip it)
+		final QuickViewer viewer = DISPLAY && !GraphicsEnvironment.isHeadless() ?
+				QuickViewer.createImageViewer(image) : null;
 
 		System.err.print("Starting render...");
 
 		// Set the camera aspect ratio to match output image
-		int width = image.getWidth();
-		int height = image.getHeight();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
 
-		//Setup the sub-block spiral
+		// Derived camera values must be ready before the workers share the camera
+		scene.getCamera().initView();
+
+		//Setup the sub-block spiral and record the order in which blocks are visited
+		BlockSpiral spiral = new BlockSpiral();
 		spiral.initSubblockSpiral(width, height);
+		final int totalSubblocks = spiral.totalSubblocks;
+		final int[] blockX = new int[totalSubblocks];
+		final int[] blockY = new int[totalSubblocks];
+		for(int i = 0; i < totalSubblocks; i++) {
+			spiral.incrementSublockSpiral();
+			blockX[i] = spiral.curSubX;
+			blockY[i] = spiral.curSubY;
+		}
 
 		// Timing counters
 		long startTime = System.currentTimeMillis();
 
-		//Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
-		for(int i = 0; i < spiral.totalSubblocks; i++) {
-
-			//Increment the block counter
-			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
-
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
-
-			//Update display
-			if(DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
-
-			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+		ProgressiveRenderer progressive = scene.getProgressive();
+		if(progressive == null && PROGRESSIVE)
+			progressive = new ProgressiveRenderer();
 
+		if(progressive != null) {
+			progressive.render(scene, viewer, blockX, blockY);
+		}
+		else {
+			//Loop over all blocks and render
+			final AtomicInteger finishedBlocks = new AtomicInteger();
+			forEachParallel(totalSubblocks, new IndexTask() {
+				@Override
+				public void run(int i) {
+					int offsetX = blockX[i]*SUB_WIDTH;
+					int offsetY = blockY[i]*SUB_HEIGHT;
+					int sizeX = Math.min(width-offsetX,SUB_WIDTH);
+					int sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+
+					renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+
+					//Update display
+					if(viewer != null)
+						viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+
+					System.out.println("finished " + finishedBlocks.incrementAndGet() + "/" + totalSubblocks + " blocks");
+				}
+			});
 		}
 
 		// Output time
@@ -276,6 +371,64 @@ public class RayTracer {
 				+ (totalTime / 1000.0) + " seconds");
 	}
 
+	/**
+	 * A piece of work that forEachParallel runs once for every index of a range.
+	 */
+	protected interface IndexTask {
+		void run(int i);
+	}
+
+	/**
+	 * Run task for every index in [0, count) on NUM_THREADS threads, one of which is
+	 * the calling thread. Indices are claimed in increasing order, each by the next
+	 * thread that becomes free. If a task fails, no more indices are handed out and
+	 * the failure is rethrown here once all threads have stopped.
+	 *
+	 * @param count the number of indices
+	 * @param task the work to do for each index
+	 */
+	protected static void forEachParallel(final int count, final IndexTask task) {
+		//Each worker loops, claiming the next unclaimed index until none are left
+		final AtomicInteger next = new AtomicInteger();
+		final Throwable[] failure = new Throwable[1];
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while((i = next.getAndIncrement()) < count) {
+					try {
+						task.run(i);
+					} catch(Throwable t) {
+						// Stop handing out work and report the error on the calling thread
+						next.set(count);
+						synchronized(failure) {
+							if(failure[0] == null) failure[0] = t;
+						}
+						return;
+					}
+				}
+			}
+		};
+
+		int numThreads = Math.max(1, Math.min(NUM_THREADS, count));
+		Thread[] workers = new Thread[numThreads - 1];
+		for(int t = 0; t < workers.length; t++) {
+			workers[t] = new Thread(worker, "RayTracer-" + (t+1));
+			workers[t].start();
+		}
+		worker.run();
+		for(int t = 0; t < workers.length; t++) {
+			try {
+				workers[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for render threads", e);
+			}
+		}
+		if(failure[0] != null)
+			throw new RuntimeException("Error in a render thread", failure[0]);
+	}
+
 
 	/**
 	 * This method returns the color along a single ray in outColor.
@@ -285,30 +438,112 @@ public class RayTracer {
 	 * @param ray the ray to shade
 	 */
 	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth) {
+		shadeRay(outColor, scene, ray, depth, ShadingContext.get());
+	}
+
+	/**
+	 * This method returns the color along a single ray in outColor, taking its
+	 * scratch objects from context.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param depth the recursion depth
+	 * @param context scratch space of the calling thread
+	 */
+	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth, ShadingContext context) {
 
 		outColor.setZero();
 
 		if(depth > MAX_DEPTH)
 			return;
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		context.push();
+		IntersectionRecord intersectionRecord = context.record();
+		intersectionRecord.shadowed = null;
 
 		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
 			if(scene.cubeMap != null)
-				scene.cubeMap.evaluate(ray.direction, outColor);
+				scene.cubeMap.evaluate(ray.direction, outColor, context);
 			else
 				outColor.set(scene.getBackColor());
+		}
+		else {
+			Shader shader = intersectionRecord.surface.getShader();
+			shader.shade(outColor, scene, ray, intersectionRecord, depth, context);
+		}
+		context.pop();
+	}
 
+	/**
+	 * Shade all rays of a packet, as shadeRay does for each of them. The first hits are
+	 * found in one traversal, and where the hit shader tests every light for shadows, the
+	 * shadow rays towards each light are traced together as another packet first.
+	 *
+	 * @param outColors output space, one color per ray
+	 * @param scene the scene
+	 * @param packet the rays to shade
+	 * @param depth the recursion depth
+	 * @param context scratch space of the calling thread; its shadow packet is used for
+	 * the shadow rays, so packet must not be that
+	 */
+	public static void shadeRays(Colord[] outColors, Scene scene, RayPacket packet, int depth, ShadingContext context) {
+		int n = packet.size;
+		if(depth > MAX_DEPTH) {
+			for(int k = 0; k < n; k++)
+				outColors[k].setZero();
 			return;
 		}
 
-		Shader shader = intersectionRecord.surface.getShader();
-		shader.shade(outColor, scene, ray, intersectionRecord, depth);
+		scene.getFirstIntersections(packet);
+
+		// Find the hits that need a shadow test towards every light; when lights are
+		// sampled, each hit tests only its own few, so there is nothing to share
+		List<Light> lights = scene.getLights();
+		boolean sampled = scene.getLightTree() != null;
+		int shadowMask = 0;
+		for(int k = 0; k < n; k++) {
+			IntersectionRecord record = packet.records[k];
+			record.shadowed = null;
+			if(!sampled && packet.hit[k] && record.surface.getShader().usesShadowRays()) {
+				record.shadowed = packet.getShadowFlags(k, lights.size());
+				shadowMask |= 1 << k;
+			}
+		}
+
+		// Trace the shadow rays to each light as one packet
+		if(shadowMask != 0) {
+			RayPacket shadowPacket = context.getShadowPacket();
+			for(int l = 0; l < lights.size(); l++) {
+				shadowPacket.clear();
+				for(int m = shadowMask; m != 0; m &= m - 1)
+					Shader.initShadowRay(lights.get(l), packet.records[Integer.numberOfTrailingZeros(m)], shadowPacket.add());
+				scene.getAnyIntersections(shadowPacket);
+				int s = 0;
+				for(int m = shadowMask; m != 0; m &= m - 1)
+					packet.records[Integer.numberOfTrailingZeros(m)].shadowed[l] = shadowPacket.hit[s++];
+			}
+		}
+
+		for(int k = 0; k < n; k++) {
+			Colord outColor = outColors[k];
+			outColor.setZero();
+			if(!packet.hit[k]) {
+				if(scene.cubeMap != null)
+					scene.cubeMap.evaluate(packet.rays[k].direction, outColor, context);
+				else
+					outColor.set(scene.getBackColor());
+				continue;
+			}
 
+			IntersectionRecord record = packet.records[k];
+			record.surface.getShader().shade(outColor, scene, packet.rays[k], record, depth, context);
+		}
 	}
 
 	/**
-	 * Render one block of the output image.
+	 * Render one block of the output image. Blocks only share read-only scene
+	 * data, so this may be called for disjoint blocks from several threads.
 	 *
 	 * @param scene The scene data
 	 * @param outImage the output image (write the output pixels here)
@@ -318,12 +553,18 @@ public class RayTracer {
 	 * @param sizeY the height of the block
 	 */
 	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
-
+		if(USE_PACKETS) {
+			renderBlockPackets(scene, outImage, offsetX, offsetY, sizeX, sizeY);
+			return;
+		}
 
 		// Do some basic setup
-		Ray ray = new Ray();
-		Colord pixelColor = new Colord();
-		Colord rayColor = new Colord();
+		ShadingContext context = ShadingContext.get();
+		context.push();
+		Ray ray = context.ray();
+		Colord pixelColor = context.color();
+		Colord rayColor = context.color();
+		float[] tile = context.getTile(3 * sizeX * sizeY);
 
 		// Set the camera aspect ratio to match output image
 		int width = outImage.getWidth();
@@ -337,6 +578,11 @@ public class RayTracer {
 
 		Camera cam = scene.getCamera();
 
+		// Rays across a block differ little, so they share the cone of its center sample
+		Ray cone = context.ray();
+		cam.getRayCone(cone, (offsetX + sizeX * 0.5) / width, (offsetY + sizeY * 0.5) / height,
+				sInv / width, context.ray());
+
 		for(int x = offsetX; x < (offsetX + sizeX); x++) {
 			for(int y = offsetY; y < (offsetY + sizeY); y++) {
 
@@ -349,13 +595,93 @@ public class RayTracer {
 				for(int i = 0; i < samples; i++) {
 					for(int j = 0; j < samples; j++) {
 						cam.getRay(ray, (double)(x2+i)/(samples*width),(double)(y2+j)/(samples*height));
-						shadeRay(rayColor, scene, ray, 1);
+						ray.setCone(cone);
+						shadeRay(rayColor, scene, ray, 1, context);
 						pixelColor.add(rayColor);
 					}
 				}
 				pixelColor.mul(exposure * sInvSqr);
-				outImage.setPixelColor(pixelColor, x, y);
+				int t = 3 * ((y - offsetY) * sizeX + (x - offsetX));
+				tile[t] = (float) pixelColor.x;
+				tile[t+1] = (float) pixelColor.y;
+				tile[t+2] = (float) pixelColor.z;
+			}
+		}
+		outImage.setTile(tile, offsetX, offsetY, sizeX, sizeY);
+		context.pop();
+	}
+
+	/**
+	 * Render one block of the output image like renderBlock, tracing the rays of
+	 * PACKET_WIDTH x PACKET_HEIGHT pixel groups as packets, one sample position at a time.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	private static void renderBlockPackets(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		ShadingContext context = ShadingContext.get();
+		context.push();
+		RayPacket packet = context.getPacket();
+		Colord[] pixelColors = context.getPixelColors();
+		Colord[] rayColors = context.getRayColors();
+		float[] tile = context.getTile(3 * sizeX * sizeY);
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+
+		int samples = scene.getSamples();
+		double sInv = 1.0/samples;
+		double sInvSqr = sInv * sInv;
+		double exposure = scene.getExposure();
+
+		Camera cam = scene.getCamera();
+
+		Ray cone = context.ray();
+		cam.getRayCone(cone, (offsetX + sizeX * 0.5) / width, (offsetY + sizeY * 0.5) / height,
+				sInv / width, context.ray());
+
+		for(int x0 = offsetX; x0 < (offsetX + sizeX); x0 += PACKET_WIDTH) {
+			for(int y0 = offsetY; y0 < (offsetY + sizeY); y0 += PACKET_HEIGHT) {
+				int x1 = Math.min(x0 + PACKET_WIDTH, offsetX + sizeX);
+				int y1 = Math.min(y0 + PACKET_HEIGHT, offsetY + sizeY);
+
+				for(int k = 0; k < RayPacket.MAX_SIZE; k++)
+					pixelColors[k].setZero();
+
+				// One packet per sample position, with a ray for each pixel of the group
+				for(int i = 0; i < samples; i++) {
+					for(int j = 0; j < samples; j++) {
+						packet.clear();
+						for(int x = x0; x < x1; x++)
+							for(int y = y0; y < y1; y++) {
+								Ray ray = packet.add();
+								cam.getRay(ray, (double)(x*samples+i)/(samples*width),(double)(y*samples+j)/(samples*height));
+								ray.setCone(cone);
+							}
+						shadeRays(rayColors, scene, packet, 1, context);
+						for(int k = 0; k < packet.size; k++)
+							pixelColors[k].add(rayColors[k]);
+					}
+				}
+
+				int k = 0;
+				for(int x = x0; x < x1; x++) {
+					for(int y = y0; y < y1; y++) {
+						Colord pixelColor = pixelColors[k++];
+						pixelColor.mul(exposure * sInvSqr);
+						int t = 3 * ((y - offsetY) * sizeX + (x - offsetX));
+						tile[t] = (float) pixelColor.x;
+						tile[t+1] = (float) pixelColor.y;
+						tile[t+2] = (float) pixelColor.z;
+					}
+				}
 			}
 		}
+		outImage.setTile(tile, offsetX, offsetY, sizeX, sizeY);
+		context.pop();
 	}
 }
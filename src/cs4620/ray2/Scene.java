@@ -9,6 +9,7 @@ import cs4620.ray2.accel.Bvh;
 import cs4620.ray2.camera.Camera;
 import egl.math.Colord;
 import egl.math.Matrix4d;
+import egl.math.Vector3d;
 import cs4620.ray2.shader.Shader;
 import cs4620.ray2.shader.Texture;
 import cs4620.ray2.surface.Surface;
@@ -47,8 +48,26 @@ public class Scene {
 	
 	/** The list of lights for the scene. */
 	protected ArrayList<Light> lights = new ArrayList<Light>();
-	public void addLight(Light toAdd) { lights.add(toAdd); }
+	public void addLight(Light toAdd) {
+		toAdd.index = lights.size();
+		lights.add(toAdd);
+	}
 	public List<Light> getLights() { return this.lights; }
+
+	/**
+	 * The number of lights shaders sample at each shading point, or 0 to visit every
+	 * light. When set, point lights are chosen from a LightTree by their estimated
+	 * contribution, so the number of shadow rays does not grow with the number of lights;
+	 * other lights are always visited.
+	 */
+	protected int lightSamples = 0;
+	public void setLightSamples(int lightSamples) { this.lightSamples = Math.max(0, lightSamples); }
+	public int getLightSamples() { return lightSamples; }
+
+	/** The tree lights are sampled from, and the lights that are always visited. */
+	protected LightTree lightTree;
+	protected ArrayList<Light> unsampledLights = new ArrayList<Light>();
+	public LightTree getLightTree() { return lightTree; }
 	
 	/** The list of surfaces for the scene. */
 	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
@@ -74,12 +93,26 @@ public class Scene {
 	protected Cubemap cubeMap;
 	public Cubemap getCubemap() { return this.cubeMap; }
 	public void setCubemap(Cubemap cubeMap) { this.cubeMap = cubeMap; }
+
+	/**
+	 * The number of directions shaders sample to light hits by the cubemap, both towards
+	 * bright parts of the cubemap and by the surface's BSDF; 0 to light hits only by the
+	 * lights. Without a cubemap it has no effect.
+	 */
+	protected int environmentSamples = 0;
+	public void setEnvironmentSamples(int environmentSamples) { this.environmentSamples = Math.max(0, environmentSamples); }
+	public int getEnvironmentSamples() { return environmentSamples; }
 	
 	/** samples^2 is the number of samples per pixel **/
 	protected int samples;
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/** Settings for progressive rendering, or null to render every block once **/
+	protected ProgressiveRenderer progressive;
+	public void setProgressive(ProgressiveRenderer progressive) { this.progressive = progressive; }
+	public ProgressiveRenderer getProgressive() { return progressive; }
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
@@ -97,6 +130,94 @@ public class Scene {
 		}
 	}
 
+	/**
+	 * Build the tree that point lights are sampled from, if lightSamples is set. Call once
+	 * all lights are added, before rendering.
+	 */
+	public void buildLightTree() {
+		lightTree = null;
+		unsampledLights.clear();
+		if (lightSamples == 0) return;
+
+		ArrayList<PointLight> pointLights = new ArrayList<PointLight>();
+		for (Light light : lights) {
+			if (light instanceof PointLight)
+				pointLights.add((PointLight) light);
+			else
+				unsampledLights.add(light);
+		}
+		if (!pointLights.isEmpty())
+			lightTree = new LightTree(pointLights);
+	}
+
+	/**
+	 * Choose the lights a shader adds up at a hit. Without a light tree these are all the
+	 * lights of the scene, in order and with weight 1. Otherwise lightSamples lights are
+	 * drawn from the tree, each weighted by one over lightSamples times its probability,
+	 * followed by the lights that are not in the tree with weight 1. A light may be
+	 * drawn more than once.
+	 *
+	 * The choice depends only on the hit, so it is the same on every thread and every run.
+	 *
+	 * @param record the hit being shaded
+	 * @param context scratch space of the calling thread; the lights and weights are
+	 * written to its getChosenLights and getChosenWeights arrays and stay valid until the
+	 * next call on this thread
+	 * @return the number of lights chosen
+	 */
+	public int chooseLights(IntersectionRecord record, ShadingContext context) {
+		if (lightTree == null) {
+			int n = lights.size();
+			Light[] chosen = context.getChosenLights(n);
+			double[] weights = context.getChosenWeights(n);
+			for (int i = 0; i < n; i++) {
+				chosen[i] = lights.get(i);
+				weights[i] = 1;
+			}
+			return n;
+		}
+
+		int n = lightSamples + unsampledLights.size();
+		Light[] chosen = context.getChosenLights(n);
+		double[] weights = context.getChosenWeights(n);
+
+		// One offset per hit, stratified over the samples
+		Vector3d p = record.location;
+		double offset = random(p, 0);
+
+		int count = 0;
+		for (int i = 0; i < lightSamples; i++) {
+			Light light = lightTree.sample(p, record.normal, (i + offset) / lightSamples, weights, count);
+			if (light == null) continue;
+			weights[count] = 1 / (lightSamples * weights[count]);
+			chosen[count++] = light;
+		}
+		for (int i = 0; i < unsampledLights.size(); i++) {
+			chosen[count] = unsampledLights.get(i);
+			weights[count++] = 1;
+		}
+		return count;
+	}
+
+	/**
+	 * A number in [0, 1) that looks random but depends only on a point and a salt, so that
+	 * sampling at a hit gives the same result on every thread and every run. Different
+	 * salts give independent numbers for the same point.
+	 *
+	 * @param p the point, usually a hit location
+	 * @param salt which number to return for p
+	 * @return the number
+	 */
+	public static double random(Vector3d p, int salt) {
+		long h = Double.doubleToLongBits(p.x) * 0x9E3779B97F4A7C15L;
+		h = (h ^ Double.doubleToLongBits(p.y)) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ Double.doubleToLongBits(p.z)) * 0x165667B19E3779F9L;
+		h = (h ^ salt ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h ^= h >>> 31;
+		return (h >>> 11) * 0x1.0p-53;
+	}
+
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
 	 * if there was an intersection and false otherwise. If no intersection was
@@ -119,7 +240,46 @@ public class Scene {
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		return accelStruct.findOccluder(ray) != null;
+	}
+
+	/**
+	 * Find whether a shadow ray towards a light is blocked, as getAnyIntersection does.
+	 * Neighbouring shading points are usually shadowed from a light by the same surface,
+	 * so the surface that last blocked a ray towards each light is kept per thread and
+	 * tested before the acceleration structure is searched. It is forgotten as soon as a
+	 * ray towards that light gets through.
+	 *
+	 * @param ray the shadow ray
+	 * @param light the light the ray goes to; it must be one of this scene's lights
+	 * @param context scratch space of the calling thread, which keeps the last occluders
+	 * @return true if any intersection is found
+	 */
+	public boolean isOccluded(Ray ray, Light light, ShadingContext context) {
+		Surface[] occluders = context.getOccluders(this, lights.size());
+		int index = light.index;
+		Surface last = occluders[index];
+		if (last != null && last.occludes(ray)) return true;
+
+		Surface occluder = accelStruct.findOccluder(ray);
+		occluders[index] = occluder;
+		return occluder != null;
+	}
+
+	/**
+	 * Find the first intersection of every ray in packet; see AccelStruct.
+	 * @param packet the rays to intersect
+	 */
+	public void getFirstIntersections(RayPacket packet) {
+		accelStruct.intersect(packet, false);
+	}
+
+	/**
+	 * Find whether each ray in packet intersects anything, as getAnyIntersection does for one ray.
+	 * @param packet the rays to intersect
+	 */
+	public void getAnyIntersections(RayPacket packet) {
+		accelStruct.intersect(packet, true);
 	}
 	
 }
\ No newline at end of file
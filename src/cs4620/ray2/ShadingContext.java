@@ -0,0 +1,214 @@
+package cs4620.ray2;
+
+import java.util.Arrays;
+
+import cs4620.ray2.surface.Surface;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Per-thread scratch space for tracing and shading rays, so that once a render thread
+ * has warmed up, shading a ray allocates nothing: no rays for reflections or shadows, no
+ * intersection records and no temporary vectors or colors.
+ *
+ * Scratch objects are handed out from stacks. A method calls push() before taking what it
+ * needs and pop() once it is done with it, which gives back everything taken since the
+ * push. A recursive call, such as the reflected ray traced by a glass shader, pushes its
+ * own frame on top of the caller's, so nested calls never share a scratch object. Objects
+ * keep whatever values they last held, so callers must set them before use.
+ *
+ * A context also keeps the packets and buffers that renderBlock reuses from one block to
+ * the next. It must only be used by one thread; get() returns the calling thread's.
+ */
+public final class ShadingContext {
+
+	/** The context of each thread. */
+	private static final ThreadLocal<ShadingContext> contexts = new ThreadLocal<ShadingContext>() {
+		@Override
+		protected ShadingContext initialValue() {
+			return new ShadingContext();
+		}
+	};
+
+	/**
+	 * @return the calling thread's context
+	 */
+	public static ShadingContext get() {
+		return contexts.get();
+	}
+
+	/**
+	 * A stack of reusable objects, created the first time they are needed.
+	 */
+	private static abstract class Pool<T> {
+		private Object[] items = new Object[16];
+		private int top = 0;
+
+		protected abstract T create();
+
+		@SuppressWarnings("unchecked")
+		T next() {
+			if (top == items.length) items = Arrays.copyOf(items, 2 * top);
+			if (items[top] == null) items[top] = create();
+			return (T) items[top++];
+		}
+	}
+
+	private final Pool<Ray> rays = new Pool<Ray>() {
+		@Override
+		protected Ray create() { return new Ray(); }
+	};
+
+	private final Pool<IntersectionRecord> records = new Pool<IntersectionRecord>() {
+		@Override
+		protected IntersectionRecord create() { return new IntersectionRecord(); }
+	};
+
+	private final Pool<Vector3d> vectors = new Pool<Vector3d>() {
+		@Override
+		protected Vector3d create() { return new Vector3d(); }
+	};
+
+	private final Pool<Vector2d> vectors2 = new Pool<Vector2d>() {
+		@Override
+		protected Vector2d create() { return new Vector2d(); }
+	};
+
+	private final Pool<Colord> colors = new Pool<Colord>() {
+		@Override
+		protected Colord create() { return new Colord(); }
+	};
+
+	/** The stack tops saved by push(), FRAME_SIZE per frame. */
+	private static final int FRAME_SIZE = 5;
+	private int[] frames = new int[FRAME_SIZE * (RayTracer.MAX_DEPTH + 2) * 2];
+	private int frameTop = 0;
+
+	/** Packets for the camera rays of a pixel group and for their shadow rays. */
+	private final RayPacket packet = new RayPacket();
+	private final RayPacket shadowPacket = new RayPacket();
+
+	/** Per ray colors of a packet, and per pixel sums of a pixel group. */
+	private final Colord[] rayColors = new Colord[RayPacket.MAX_SIZE];
+	private final Colord[] pixelColors = new Colord[RayPacket.MAX_SIZE];
+
+	/** Pixel values of a block, grown as needed. */
+	private float[] tile = new float[0];
+
+	/** Lights chosen by Scene.chooseLights and their weights, grown as needed. */
+	private Light[] chosenLights = new Light[0];
+	private double[] chosenWeights = new double[0];
+
+	/** The surface that last blocked a shadow ray towards each light of occluderScene. */
+	private Surface[] occluders = new Surface[0];
+	private Scene occluderScene;
+
+	public ShadingContext() {
+		for (int k = 0; k < RayPacket.MAX_SIZE; k++) {
+			rayColors[k] = new Colord();
+			pixelColors[k] = new Colord();
+		}
+	}
+
+	/**
+	 * Start a new frame. Everything taken from the context after this call is given back
+	 * by the matching pop().
+	 */
+	public void push() {
+		if (frameTop == frames.length) frames = Arrays.copyOf(frames, 2 * frameTop);
+		frames[frameTop++] = rays.top;
+		frames[frameTop++] = records.top;
+		frames[frameTop++] = vectors.top;
+		frames[frameTop++] = vectors2.top;
+		frames[frameTop++] = colors.top;
+	}
+
+	/**
+	 * Give back everything taken since the matching push().
+	 */
+	public void pop() {
+		if (frameTop == 0)
+			throw new IllegalStateException("pop() without a matching push()");
+		colors.top = frames[--frameTop];
+		vectors2.top = frames[--frameTop];
+		vectors.top = frames[--frameTop];
+		records.top = frames[--frameTop];
+		rays.top = frames[--frameTop];
+	}
+
+	/** @return a scratch ray, valid until the current frame is popped */
+	public Ray ray() { return rays.next(); }
+
+	/** @return a scratch intersection record, valid until the current frame is popped */
+	public IntersectionRecord record() { return records.next(); }
+
+	/** @return a scratch vector, valid until the current frame is popped */
+	public Vector3d vector() { return vectors.next(); }
+
+	/** @return a scratch 2D vector, valid until the current frame is popped */
+	public Vector2d vector2() { return vectors2.next(); }
+
+	/** @return a scratch color, valid until the current frame is popped */
+	public Colord color() { return colors.next(); }
+
+	/** @return the packet for camera rays */
+	public RayPacket getPacket() { return packet; }
+
+	/** @return the packet for shadow rays */
+	public RayPacket getShadowPacket() { return shadowPacket; }
+
+	/** @return RayPacket.MAX_SIZE colors, one for each ray of a packet */
+	public Colord[] getRayColors() { return rayColors; }
+
+	/** @return RayPacket.MAX_SIZE colors, one for each pixel of a packet */
+	public Colord[] getPixelColors() { return pixelColors; }
+
+	/**
+	 * @param length the number of floats needed
+	 * @return a scratch array of at least that length
+	 */
+	public float[] getTile(int length) {
+		if (tile.length < length)
+			tile = new float[length];
+		return tile;
+	}
+
+	/**
+	 * @param length the number of lights needed
+	 * @return a scratch array of at least that length for Scene.chooseLights
+	 */
+	public Light[] getChosenLights(int length) {
+		if (chosenLights.length < length)
+			chosenLights = new Light[length];
+		return chosenLights;
+	}
+
+	/**
+	 * @param length the number of weights needed
+	 * @return a scratch array of at least that length for Scene.chooseLights
+	 */
+	public double[] getChosenWeights(int length) {
+		if (chosenWeights.length < length)
+			chosenWeights = new double[length];
+		return chosenWeights;
+	}
+
+	/**
+	 * The surfaces kept by Scene.isOccluded, one per light, all null at first. They are
+	 * forgotten whenever the scene changes, since they belong to the scene they came from.
+	 *
+	 * @param scene the scene being rendered
+	 * @param length the number of lights of scene
+	 * @return a scratch array of at least that length
+	 */
+	public Surface[] getOccluders(Scene scene, int length) {
+		if (scene != occluderScene) {
+			Arrays.fill(occluders, null);
+			occluderScene = scene;
+		}
+		if (occluders.length < length)
+			occluders = Arrays.copyOf(occluders, length);
+		return occluders;
+	}
+}
@@ -2,6 +2,7 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
 import cs4620.ray2.surface.Surface;
 
 /**
@@ -29,4 +30,25 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Find any surface that blocks a ray between its start and end, as for a shadow ray.
+	 * Nothing is recorded and nodes may be visited in any order, since the search stops at
+	 * the first surface found, closest or not. This is the path intersect takes when
+	 * anyIntersection is set.
+	 *
+	 * @param rayIn The ray that is intersected with the scene; it is not modified.
+	 * @return a surface that blocks the ray, or null if none does.
+	 */
+	public Surface findOccluder(Ray rayIn);
+
+	/**
+	 * Intersect every ray of a packet with the scene. Afterwards packet.hit tells which rays
+	 * hit a surface and, unless anyIntersection is set, packet.records holds their first hits.
+	 * The rays themselves are left unchanged.
+	 *
+	 * @param packet The rays that are intersected with the scene.
+	 * @param anyIntersection True if the caller only needs to know whether each ray hits anything.
+	 */
+	public void intersect(RayPacket packet, boolean anyIntersection);
 }
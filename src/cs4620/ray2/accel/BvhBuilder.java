@@ -0,0 +1,357 @@
+package cs4620.ray2.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import cs4620.ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * Builds BvhNode trees using the surface area heuristic (SAH). Instead of sorting,
+ * the surfaces of a node are dropped into a fixed number of bins along each axis by
+ * the centers of their bounding boxes, and the best split between two bins is chosen
+ * by comparing the estimated cost of tracing a ray through each candidate pair of
+ * children. Large subtrees are built in parallel on a fork/join pool.
+ *
+ * The bounds of every surface are copied into primitive arrays once, and the builder
+ * works on a permutation of surface indices; the surfaces array is only reordered at
+ * the end so that every leaf covers a contiguous range of it. Primitives that are not
+ * Surfaces, such as the triangles of a TriangleSoup, can be passed in as bare boxes.
+ */
+public class BvhBuilder {
+
+	/** Estimated cost of visiting an interior node, relative to intersecting a surface. */
+	private static final double TRAVERSAL_COST = 1.0;
+
+	/** Estimated cost of intersecting a single surface. */
+	private static final double INTERSECTION_COST = 1.0;
+
+	/** Subtrees with fewer surfaces than this are built on the current thread. */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/** The largest number of surfaces allowed in a leaf. */
+	protected int maxLeafSize = 4;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+	public int getMaxLeafSize() { return maxLeafSize; }
+
+	/** The number of bins used to evaluate splits along each axis. */
+	protected int binCount = 16;
+	public void setBinCount(int binCount) { this.binCount = Math.max(2, binCount); }
+	public int getBinCount() { return binCount; }
+
+	/** The number of threads used to build large subtrees. */
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+	/** Statistics about the most recently built tree. */
+	private Stats lastStats;
+	public Stats getLastStats() { return lastStats; }
+
+	/* Per-build working state, indexed by primitive number. */
+	private double[] boxMin, boxMax, centroid;
+
+	/** The leaf order of the last build. */
+	private int[] order;
+
+	/**
+	 * Build a tree over all of the given surfaces. On return the surfaces array has been
+	 * reordered so that the range of every leaf indexes into it.
+	 *
+	 * @param surfaces the surfaces to build the tree over
+	 * @return the root of the new tree
+	 */
+	public BvhNode build(Surface[] surfaces) {
+		int n = surfaces.length;
+		double[] min = new double[3 * n];
+		double[] max = new double[3 * n];
+		for (int i = 0; i < n; i++) {
+			Vector3d minB = surfaces[i].getMinBound();
+			Vector3d maxB = surfaces[i].getMaxBound();
+			min[3*i] = minB.x; min[3*i+1] = minB.y; min[3*i+2] = minB.z;
+			max[3*i] = maxB.x; max[3*i+1] = maxB.y; max[3*i+2] = maxB.z;
+		}
+		BvhNode root = build(min, max, n);
+
+		// Put the surfaces in leaf order
+		Surface[] sorted = new Surface[n];
+		for (int i = 0; i < n; i++) sorted[i] = surfaces[order[i]];
+		System.arraycopy(sorted, 0, surfaces, 0, n);
+		return root;
+	}
+
+	/**
+	 * Build a tree over n primitives given only their bounding boxes. Leaf ranges index
+	 * into the permutation returned by getOrder(), which maps a position in leaf order
+	 * back to the primitive's original index.
+	 *
+	 * @param min the smaller corner of each primitive's box, 3 doubles per primitive
+	 * @param max the larger corner of each primitive's box, 3 doubles per primitive
+	 * @param n the number of primitives
+	 * @return the root of the new tree
+	 */
+	public BvhNode build(double[] min, double[] max, int n) {
+		long startTime = System.nanoTime();
+
+		boxMin = min;
+		boxMax = max;
+		centroid = new double[3 * n];
+		order = new int[n];
+		for (int i = 0; i < 3 * n; i++)
+			centroid[i] = 0.5 * (min[i] + max[i]);
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+
+		BvhNode root;
+		if (threads > 1 && n >= PARALLEL_THRESHOLD) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				root = pool.invoke(new BuildTask(0, n));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			root = createTree(0, n);
+		}
+
+		boxMin = boxMax = centroid = null;
+
+		lastStats = new Stats(root, maxLeafSize, (System.nanoTime() - startTime) / 1e6);
+		return root;
+	}
+
+	/**
+	 * @return the leaf order of the last build: entry i is the original index of the
+	 * primitive at position i
+	 */
+	public int[] getOrder() { return order; }
+
+	/** Builds one subtree, forking the first child when the range is large. */
+	private class BuildTask extends RecursiveTask<BvhNode> {
+		private static final long serialVersionUID = 1L;
+		final int start, end;
+
+		BuildTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createTree(start, end);
+		}
+	}
+
+	/**
+	 * Create a BVH [sub]tree over the surfaces order[start] to order[end-1].
+	 *
+	 * @param start The start index into order
+	 * @param end The end index into order
+	 */
+	private BvhNode createTree(int start, int end) {
+		int count = end - start;
+
+		// Bounds of the surfaces and of their centers
+		double[] bounds = emptyBounds();
+		double[] cBounds = emptyBounds();
+		for (int k = start; k < end; k++) {
+			int s = order[k];
+			for (int a = 0; a < 3; a++) {
+				bounds[a] = Math.min(bounds[a], boxMin[3*s+a]);
+				bounds[a+3] = Math.max(bounds[a+3], boxMax[3*s+a]);
+				cBounds[a] = Math.min(cBounds[a], centroid[3*s+a]);
+				cBounds[a+3] = Math.max(cBounds[a+3], centroid[3*s+a]);
+			}
+		}
+		Vector3d minBound = new Vector3d(bounds[0], bounds[1], bounds[2]);
+		Vector3d maxBound = new Vector3d(bounds[3], bounds[4], bounds[5]);
+
+		if (count <= 1)
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+
+		// Evaluate the binned splits along every axis and keep the cheapest
+		int bins = binCount;
+		int[] binSize = new int[bins];
+		double[] binBounds = new double[6 * bins];
+		double[] rightArea = new double[bins];
+		int[] rightCount = new int[bins];
+		double[] acc = new double[6];
+
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestBin = -1;
+		for (int a = 0; a < 3; a++) {
+			double cMin = cBounds[a], extent = cBounds[a+3] - cMin;
+			if (!(extent > 0)) continue;
+			double scale = bins / extent;
+
+			Arrays.fill(binSize, 0);
+			for (int b = 0; b < bins; b++) setEmpty(binBounds, 6 * b);
+			for (int k = start; k < end; k++) {
+				int s = order[k];
+				int b = binIndex(centroid[3*s+a], cMin, scale, bins);
+				binSize[b]++;
+				grow(binBounds, 6 * b, s);
+			}
+
+			// Sweep from the right, recording the area and count to the right of each plane
+			setEmpty(acc, 0);
+			int n = 0;
+			for (int b = bins - 1; b > 0; b--) {
+				merge(acc, binBounds, 6 * b);
+				n += binSize[b];
+				rightArea[b] = area(acc);
+				rightCount[b] = n;
+			}
+
+			// Sweep from the left, combining with the right to cost each plane
+			setEmpty(acc, 0);
+			n = 0;
+			for (int b = 1; b < bins; b++) {
+				merge(acc, binBounds, 6 * (b - 1));
+				n += binSize[b - 1];
+				if (n == 0 || rightCount[b] == 0) continue;
+				double cost = area(acc) * n + rightArea[b] * rightCount[b];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = a;
+					bestBin = b;
+				}
+			}
+		}
+
+		// Compare with the cost of simply making a leaf
+		double nodeArea = area(bounds);
+		double leafCost = INTERSECTION_COST * count;
+		double splitCost = nodeArea > 0 ?
+				TRAVERSAL_COST + INTERSECTION_COST * bestCost / nodeArea : Double.POSITIVE_INFINITY;
+		if (count <= maxLeafSize && (bestAxis < 0 || leafCost <= splitCost))
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centers coincide: no plane separates them, so split the range in half
+			mid = (start + end) / 2;
+		} else {
+			double cMin = cBounds[bestAxis];
+			double scale = bins / (cBounds[bestAxis+3] - cMin);
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (binIndex(centroid[3*order[i]+bestAxis], cMin, scale, bins) < bestBin) {
+					i++;
+				} else {
+					int tmp = order[i]; order[i] = order[j]; order[j] = tmp;
+					j--;
+				}
+			}
+			mid = i;
+		}
+
+		BvhNode left, right;
+		if (count >= PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+			BuildTask leftTask = new BuildTask(start, mid);
+			leftTask.fork();
+			right = createTree(mid, end);
+			left = leftTask.join();
+		} else {
+			left = createTree(start, mid);
+			right = createTree(mid, end);
+		}
+		return new BvhNode(minBound, maxBound, left, right, start, end);
+	}
+
+	private static int binIndex(double c, double cMin, double scale, int bins) {
+		int b = (int) ((c - cMin) * scale);
+		return b < 0 ? 0 : (b >= bins ? bins - 1 : b);
+	}
+
+	private static double[] emptyBounds() {
+		double[] b = new double[6];
+		setEmpty(b, 0);
+		return b;
+	}
+
+	private static void setEmpty(double[] b, int o) {
+		b[o] = b[o+1] = b[o+2] = Double.POSITIVE_INFINITY;
+		b[o+3] = b[o+4] = b[o+5] = Double.NEGATIVE_INFINITY;
+	}
+
+	/** Grow the box at b[o] to contain surface s. */
+	private void grow(double[] b, int o, int s) {
+		for (int a = 0; a < 3; a++) {
+			if (boxMin[3*s+a] < b[o+a]) b[o+a] = boxMin[3*s+a];
+			if (boxMax[3*s+a] > b[o+a+3]) b[o+a+3] = boxMax[3*s+a];
+		}
+	}
+
+	/** Grow the box acc to contain the box at b[o]. */
+	private static void merge(double[] acc, double[] b, int o) {
+		for (int a = 0; a < 3; a++) {
+			if (b[o+a] < acc[a]) acc[a] = b[o+a];
+			if (b[o+a+3] > acc[a+3]) acc[a+3] = b[o+a+3];
+		}
+	}
+
+	/** Surface area of a box given as min x, y, z followed by max x, y, z; 0 if empty. */
+	private static double area(double[] b) {
+		double dx = b[3] - b[0], dy = b[4] - b[1], dz = b[5] - b[2];
+		if (!(dx >= 0 && dy >= 0 && dz >= 0)) return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		if (!(dx >= 0 && dy >= 0 && dz >= 0)) return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Quality metrics of a built tree: its size, depth, the distribution of leaf sizes and
+	 * its SAH cost, which estimates the expected cost of tracing a random ray through it
+	 * in units of surface intersections.
+	 */
+	public static class Stats {
+		/** The time taken by the build, in milliseconds. */
+		public final double buildTimeMs;
+		public int nodeCount, leafCount, maxDepth;
+		public double sahCost;
+		/** leafHistogram[k] is the number of leaves holding k surfaces. */
+		public final int[] leafHistogram;
+
+		Stats(BvhNode root, int maxLeafSize, double buildTimeMs) {
+			this.buildTimeMs = buildTimeMs;
+			leafHistogram = new int[maxLeafSize + 1];
+			double rootArea = area(root);
+			visit(root, 1, rootArea > 0 ? 1 / rootArea : 0);
+		}
+
+		private void visit(BvhNode node, int depth, double invRootArea) {
+			nodeCount++;
+			maxDepth = Math.max(maxDepth, depth);
+			double relArea = area(node) * invRootArea;
+			if (node.isLeaf()) {
+				int size = node.surfaceIndexEnd - node.surfaceIndexStart;
+				leafCount++;
+				leafHistogram[Math.min(size, leafHistogram.length - 1)]++;
+				sahCost += relArea * INTERSECTION_COST * size;
+			} else {
+				sahCost += relArea * TRAVERSAL_COST;
+				visit(node.child[0], depth + 1, invRootArea);
+				visit(node.child[1], depth + 1, invRootArea);
+			}
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("BVH built in %.1f ms: %d nodes, %d leaves, depth %d, SAH cost %.2f, leaf sizes [",
+					buildTimeMs, nodeCount, leafCount, maxDepth, sahCost));
+			for (int k = 0; k < leafHistogram.length; k++) {
+				if (k > 0) sb.append(' ');
+				sb.append(k).append(':').append(leafHistogram[k]);
+			}
+			return sb.append(']').toString();
+		}
+	}
+}
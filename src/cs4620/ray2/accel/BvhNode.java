@@ -78,9 +78,9 @@ public class BvhNode {
 	}
 	
 	/** 
-	 * Check if the ray intersects the bounding box.
+	 * Check if the ray intersects the bounding box between its start and end.
 	 * @param ray
-	 * @return true if ray intersects the bounding box
+	 * @return true if ray intersects the bounding box within [ray.start, ray.end]
 	 */
 	public boolean intersects(Ray ray) {
 		// TODO#A7: fill in this function.
@@ -105,8 +105,9 @@ public class BvhNode {
 		double tzenter = Math.min(tzmin, tzmax);
 		double tzexit = Math.max(tzmin,  tzmax);
 		
-		double tenter = Math.max(txenter, Math.max(tyenter, tzenter));
-		double texit = Math.min(txexit, Math.min(tyexit, tzexit));
+		// Clip to the ray's extent, so that boxes beyond a hit already found are skipped
+		double tenter = Math.max(ray.start, Math.max(txenter, Math.max(tyenter, tzenter)));
+		double texit = Math.min(ray.end, Math.min(txexit, Math.min(tyexit, tzexit)));
 		
         return texit >= tenter;
 	}
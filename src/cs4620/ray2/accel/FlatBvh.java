@@ -0,0 +1,186 @@
+package cs4620.ray2.accel;
+
+/**
+ * The nodes of a bounding volume hierarchy stored as flat primitive arrays instead of a
+ * tree of BvhNode objects. Nodes are laid out in depth-first order, so the first child of
+ * an interior node is always the next node and only the index of the second child needs
+ * to be stored. Leaves refer to a contiguous range of primitives, whatever those are for
+ * the owner of the hierarchy.
+ *
+ * This class only stores the nodes and tests them against rays; the traversal loop lives
+ * with the primitives, so that leaves can be tested without any virtual calls.
+ */
+public final class FlatBvh {
+
+	/** Number of doubles stored per node in bounds. */
+	private static final int BOUNDS_STRIDE = 6;
+
+	/** Number of ints stored per node in info. */
+	private static final int INFO_STRIDE = 3;
+
+	/**
+	 * Node bounding boxes: minX, minY, minZ, maxX, maxY, maxZ for each node.
+	 */
+	private final double[] bounds;
+
+	/**
+	 * Node layout: for an interior node, the index of the second child, 0 and the split axis;
+	 * for a leaf, the index of the first primitive, the number of primitives and -1.
+	 */
+	private final int[] info;
+
+	/** The number of nodes. */
+	private int nodeCount;
+
+	/** The length of the longest root to leaf path, which bounds the traversal stack. */
+	private int maxDepth;
+
+	/** Per-thread traversal stacks, so that traversal never allocates. */
+	private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+	/**
+	 * Create the flattened copy of the tree under root.
+	 *
+	 * @param root the root of the tree to flatten, or null for an empty hierarchy
+	 */
+	public FlatBvh(BvhNode root) {
+		int n = countNodes(root);
+		bounds = new double[n * BOUNDS_STRIDE];
+		info = new int[n * INFO_STRIDE];
+		if (root != null) flatten(root, 1);
+	}
+
+	private static int countNodes(BvhNode node) {
+		if (node == null) return 0;
+		if (node.isLeaf()) return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	/**
+	 * Write node and its subtree into the arrays in depth-first order.
+	 *
+	 * @return the index node was written to
+	 */
+	private int flatten(BvhNode node, int depth) {
+		int index = nodeCount++;
+		maxDepth = Math.max(maxDepth, depth);
+
+		int b = index * BOUNDS_STRIDE;
+		bounds[b] = node.minBound.x;
+		bounds[b + 1] = node.minBound.y;
+		bounds[b + 2] = node.minBound.z;
+		bounds[b + 3] = node.maxBound.x;
+		bounds[b + 4] = node.maxBound.y;
+		bounds[b + 5] = node.maxBound.z;
+
+		int i = index * INFO_STRIDE;
+		if (node.isLeaf()) {
+			info[i] = node.surfaceIndexStart;
+			info[i + 1] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			info[i + 2] = -1;
+		} else {
+			flatten(node.child[0], depth + 1);
+			info[i] = flatten(node.child[1], depth + 1);
+			info[i + 1] = 0;
+			info[i + 2] = splitAxis(node);
+		}
+		return index;
+	}
+
+	/**
+	 * The axis along which the children of node are separated the most. It is only used to
+	 * pick which child to visit first, so an approximate answer is fine.
+	 */
+	private static int splitAxis(BvhNode node) {
+		BvhNode l = node.child[0], r = node.child[1];
+		double dx = Math.abs((r.minBound.x + r.maxBound.x) - (l.minBound.x + l.maxBound.x));
+		double dy = Math.abs((r.minBound.y + r.maxBound.y) - (l.minBound.y + l.maxBound.y));
+		double dz = Math.abs((r.minBound.z + r.maxBound.z) - (l.minBound.z + l.maxBound.z));
+		if (dx >= dy && dx >= dz) return 0;
+		return dy >= dz ? 1 : 2;
+	}
+
+	/** @return true if the hierarchy has no nodes */
+	public boolean isEmpty() { return nodeCount == 0; }
+
+	/** @return the number of nodes */
+	public int getNodeCount() { return nodeCount; }
+
+	/** @return the length of the longest root to leaf path */
+	public int getMaxDepth() { return maxDepth; }
+
+	/** @return true if node is a leaf */
+	public boolean isLeaf(int node) { return info[node * INFO_STRIDE + 2] < 0; }
+
+	/** @return the index of the first primitive under a leaf */
+	public int getFirst(int node) { return info[node * INFO_STRIDE]; }
+
+	/** @return the number of primitives under a leaf */
+	public int getCount(int node) { return info[node * INFO_STRIDE + 1]; }
+
+	/** @return the index of the second child of an interior node; the first is node + 1 */
+	public int getSecondChild(int node) { return info[node * INFO_STRIDE]; }
+
+	/** @return the axis along which the children of an interior node are separated */
+	public int getAxis(int node) { return info[node * INFO_STRIDE + 2]; }
+
+	/**
+	 * @return the smaller corner of a node's box along axis a
+	 */
+	public double getMin(int node, int a) { return bounds[node * BOUNDS_STRIDE + a]; }
+
+	/**
+	 * @return the larger corner of a node's box along axis a
+	 */
+	public double getMax(int node, int a) { return bounds[node * BOUNDS_STRIDE + 3 + a]; }
+
+	/**
+	 * @return this thread's traversal stack, large enough for the deepest path
+	 */
+	public int[] getStack() {
+		int[] stack = stacks.get();
+		if (stack == null || stack.length < maxDepth) {
+			stack = new int[maxDepth];
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Slab test of a node's box against the ray segment [tStart, tEnd]. Comparisons are
+	 * written so that the NaNs produced by axis-parallel rays never shrink the interval.
+	 *
+	 * @param node the node to test
+	 * @param ox the x coordinate of the ray origin; likewise oy and oz
+	 * @param invX the reciprocal of the x component of the ray direction; likewise invY, invZ
+	 * @param tStart the start of the ray segment
+	 * @param tEnd the end of the ray segment
+	 * @return true if the segment overlaps the box
+	 */
+	public boolean intersects(int node, double ox, double oy, double oz,
+			double invX, double invY, double invZ, double tStart, double tEnd) {
+		int b = node * BOUNDS_STRIDE;
+		double tMin = tStart, tMax = tEnd;
+
+		double t0 = (bounds[b] - ox) * invX;
+		double t1 = (bounds[b + 3] - ox) * invX;
+		if (invX < 0) { double tmp = t0; t0 = t1; t1 = tmp; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		if (tMin > tMax) return false;
+
+		t0 = (bounds[b + 1] - oy) * invY;
+		t1 = (bounds[b + 4] - oy) * invY;
+		if (invY < 0) { double tmp = t0; t0 = t1; t1 = tmp; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		if (tMin > tMax) return false;
+
+		t0 = (bounds[b + 2] - oz) * invZ;
+		t1 = (bounds[b + 5] - oz) * invZ;
+		if (invZ < 0) { double tmp = t0; t0 = t1; t1 = tmp; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return tMin <= tMax;
+	}
+}
@@ -0,0 +1,240 @@
+package cs4620.ray2.accel;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
+import cs4620.ray2.surface.Surface;
+
+/**
+ * A bounding volume hierarchy stored as flat primitive arrays (see FlatBvh) instead of
+ * a tree of BvhNode objects.
+ *
+ * Traversal is iterative with an explicit int stack, visits the nearer child first,
+ * and does not allocate anything per ray. Select it from a scene file with
+ *
+ *   <accelStruct type="LinearBvh">
+ *     <maxLeafSize>4</maxLeafSize>
+ *     <binCount>16</binCount>
+ *   </accelStruct>
+ *
+ * where both children are optional.
+ *
+ * Packets of rays are traced together: a node is culled only when none of the packet's
+ * rays overlap it, and the leaves are only tested against the rays that reached them.
+ */
+public class LinearBvh implements AccelStruct {
+
+	/** The surfaces, ordered so that every leaf covers a contiguous range. */
+	private Surface[] surfaces;
+
+	/** The flattened nodes. */
+	private FlatBvh nodes = new FlatBvh(null);
+
+	/** Builds the tree; its leaf size and bin count can be set from the scene file. */
+	protected final BvhBuilder builder = new BvhBuilder();
+	public void setMaxLeafSize(int maxLeafSize) { builder.setMaxLeafSize(maxLeafSize); }
+	public void setBinCount(int binCount) { builder.setBinCount(binCount); }
+
+	/** @return statistics about the tree made by the last build, or null before one */
+	public BvhBuilder.Stats getLastStats() { return builder.getLastStats(); }
+
+	public LinearBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		// Build a pointer based tree first; the builder reorders the array to match its leaves
+		this.surfaces = surfaces;
+		nodes = new FlatBvh(builder.build(surfaces));
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * The end of rayIn is shortened while searching and restored before returning.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (anyIntersection) return findOccluder(rayIn) != null;
+		FlatBvh nodes = this.nodes;
+		if (nodes.isEmpty()) return false;
+
+		// Surfaces only write a record when they are hit closer than ray.end, so hits can be
+		// written straight into the output; a record is only needed to learn the hit distance.
+		IntersectionRecord rec = outRecord;
+		if (rec == null) rec = new IntersectionRecord();
+
+		int[] stack = nodes.getStack();
+
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double invX = 1.0 / rayIn.direction.x;
+		double invY = 1.0 / rayIn.direction.y;
+		double invZ = 1.0 / rayIn.direction.z;
+		boolean negX = invX < 0, negY = invY < 0, negZ = invZ < 0;
+
+		double originalEnd = rayIn.end;
+		boolean hit = false;
+		int top = 0;
+		int node = 0;
+		try {
+			while (true) {
+				if (nodes.intersects(node, ox, oy, oz, invX, invY, invZ, rayIn.start, rayIn.end)) {
+					if (nodes.isLeaf(node)) {
+						// Leaf: linear search, shrinking the ray to the closest hit so far
+						int start = nodes.getFirst(node);
+						int end = start + nodes.getCount(node);
+						for (int i = start; i < end; i++) {
+							if (surfaces[i].intersect(rec, rayIn)) {
+								hit = true;
+								rayIn.end = rec.t;
+							}
+						}
+					} else {
+						// Interior: descend into the nearer child and defer the other one
+						int axis = nodes.getAxis(node);
+						boolean secondFirst = axis == 0 ? negX : (axis == 1 ? negY : negZ);
+						if (secondFirst) {
+							stack[top++] = node + 1;
+							node = nodes.getSecondChild(node);
+						} else {
+							stack[top++] = nodes.getSecondChild(node);
+							node = node + 1;
+						}
+						continue;
+					}
+				}
+				if (top == 0) break;
+				node = stack[--top];
+			}
+		} finally {
+			rayIn.end = originalEnd;
+		}
+
+		return hit;
+	}
+
+	/**
+	 * Find any surface that blocks rayIn. The ray is never shortened, so the order in
+	 * which children are visited does not matter: the first child is always taken first
+	 * and the search stops at the first surface that blocks the ray.
+	 *
+	 * @param rayIn the ray to intersect
+	 * @return a surface that blocks the ray, or null if none does
+	 */
+	public Surface findOccluder(Ray rayIn) {
+		FlatBvh nodes = this.nodes;
+		if (nodes.isEmpty()) return null;
+
+		int[] stack = nodes.getStack();
+
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double invX = 1.0 / rayIn.direction.x;
+		double invY = 1.0 / rayIn.direction.y;
+		double invZ = 1.0 / rayIn.direction.z;
+		double start = rayIn.start, end = rayIn.end;
+
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (nodes.intersects(node, ox, oy, oz, invX, invY, invZ, start, end)) {
+				if (nodes.isLeaf(node)) {
+					int first = nodes.getFirst(node);
+					int last = first + nodes.getCount(node);
+					for (int i = first; i < last; i++) {
+						if (surfaces[i].occludes(rayIn)) return surfaces[i];
+					}
+				} else {
+					stack[top++] = nodes.getSecondChild(node);
+					node = node + 1;
+					continue;
+				}
+			}
+			if (top == 0) break;
+			node = stack[--top];
+		}
+		return null;
+	}
+
+	/**
+	 * Intersect all rays of a packet in one traversal. Each node is tested against the
+	 * rays that reached its parent, and is skipped as soon as none of them overlap it;
+	 * rays that are done (any hit found) drop out of the packet.
+	 *
+	 * @param packet the rays to intersect
+	 * @param anyIntersection if true, each ray stops at its first intersection found
+	 */
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		FlatBvh nodes = this.nodes;
+		int n = packet.size;
+		packet.prepare();
+		if (nodes.isEmpty() || n == 0) return;
+
+		Ray[] rays = packet.rays;
+		IntersectionRecord[] records = packet.records;
+		boolean[] hit = packet.hit;
+		double[] invX = packet.invX, invY = packet.invY, invZ = packet.invZ;
+
+		// Stack entries are pairs of a node and the mask of rays that reached its parent
+		int[] stack = packet.getStack(2 * nodes.getMaxDepth());
+		int live = (1 << n) - 1;
+		int top = 0;
+		int node = 0;
+		int mask = live;
+		try {
+			while (true) {
+				// Find which of the rays still searching overlap this node
+				int inside = 0;
+				for (int m = mask & live; m != 0; m &= m - 1) {
+					int k = Integer.numberOfTrailingZeros(m);
+					Ray r = rays[k];
+					if (nodes.intersects(node, r.origin.x, r.origin.y, r.origin.z,
+							invX[k], invY[k], invZ[k], r.start, r.end))
+						inside |= 1 << k;
+				}
+
+				if (inside != 0) {
+					if (nodes.isLeaf(node)) {
+						int start = nodes.getFirst(node);
+						int end = start + nodes.getCount(node);
+						for (int i = start; i < end && inside != 0; i++) {
+							for (int m = inside; m != 0; m &= m - 1) {
+								int k = Integer.numberOfTrailingZeros(m);
+								// Any-hit rays need no record, so let surfaces take their occlusion shortcut
+								if (anyIntersection ? surfaces[i].occludes(rays[k]) : surfaces[i].intersect(records[k], rays[k])) {
+									hit[k] = true;
+									if (anyIntersection) {
+										live &= ~(1 << k);
+										inside &= ~(1 << k);
+									} else {
+										rays[k].end = records[k].t;
+									}
+								}
+							}
+						}
+						if (live == 0) break;
+					} else {
+						// Visit the child that is nearer for the first ray first
+						int k = Integer.numberOfTrailingZeros(inside);
+						int axis = nodes.getAxis(node);
+						boolean secondFirst = (axis == 0 ? invX[k] : (axis == 1 ? invY[k] : invZ[k])) < 0;
+						stack[top++] = secondFirst ? node + 1 : nodes.getSecondChild(node);
+						stack[top++] = inside;
+						node = secondFirst ? nodes.getSecondChild(node) : node + 1;
+						mask = inside;
+						continue;
+					}
+				}
+				if (top == 0) break;
+				mask = stack[--top];
+				node = stack[--top];
+			}
+		} finally {
+			packet.restoreEnds();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RayPacket;
 import cs4620.ray2.surface.Surface;
 /**
  * Provide a fake AABB that performs a linear search.
@@ -26,6 +27,7 @@ public class NaiveAccelStruct implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if(anyIntersection) return findOccluder(rayIn) != null;
 		boolean ret = false;
 		IntersectionRecord tmp = new IntersectionRecord();
 		Ray ray = new Ray(rayIn.origin, rayIn.direction);
@@ -33,7 +35,6 @@ public class NaiveAccelStruct implements AccelStruct {
 		ray.end = rayIn.end;
 		for(int i = 0; i < surfaces.length; i++) {
 			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
 				ret = true;
 				ray.end = tmp.t;
 				if(outRecord != null)
@@ -42,6 +43,30 @@ public class NaiveAccelStruct implements AccelStruct {
 		}
 		return ret;
 	}
+
+	/**
+	 * Return the first surface in the array that blocks rayIn.
+	 *
+	 * @param rayIn the ray to intersect
+	 * @return a surface that blocks the ray, or null if none does
+	 */
+	public Surface findOccluder(Ray rayIn) {
+		for(int i = 0; i < surfaces.length; i++) {
+			if(surfaces[i].occludes(rayIn)) return surfaces[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Intersect the rays of packet one at a time.
+	 *
+	 * @param packet the rays to intersect
+	 * @param anyIntersection if true, each ray stops at its first intersection found
+	 */
+	public void intersect(RayPacket packet, boolean anyIntersection) {
+		for (int k = 0; k < packet.size; k++)
+			packet.hit[k] = intersect(packet.records[k], packet.rays[k], anyIntersection);
+	}
 	
 	@Override
 	public void build(Surface[] surfaces) {
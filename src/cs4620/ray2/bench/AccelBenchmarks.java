@@ -0,0 +1,361 @@
+package cs4620.ray2.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.lwjgl.BufferUtils;
+
+import cs4620.bench.Benchmark;
+import cs4620.mesh.MeshData;
+import cs4620.ray2.Image;
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Light;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.accel.BvhNode;
+import cs4620.ray2.shader.Shader;
+import cs4620.ray2.surface.Mesh;
+import cs4620.ray2.surface.Sphere;
+import cs4620.ray2.surface.Surface;
+import cs4620.ray2.surface.Triangle;
+import cs4620.ray2.surface.TriangleSoup;
+import egl.math.Vector3d;
+import egl.math.Vector3i;
+
+/**
+ * Benchmarks of intersection: the intersection tests of single surfaces and boxes, and
+ * closest-hit and any-hit queries, shadow rays and builds of each acceleration structure
+ * on the scenes, as well as renderBlock on them.
+ */
+final class AccelBenchmarks {
+
+	private AccelBenchmarks() { }
+
+	/**
+	 * Add the benchmarks for the given scenes and acceleration structures to all.
+	 */
+	static void addTo(List<Benchmark> all, BenchmarkSuite suite, List<String> files, List<String> accels) {
+		all.add(new TriangleIntersect());
+		all.add(new SphereIntersect());
+		all.add(new BoxIntersect());
+		for (String file : files) {
+			all.add(new SoupIntersect(suite, file));
+			for (String accel : accels) {
+				all.add(new AccelIntersect(suite, file, accel, false));
+				all.add(new AccelIntersect(suite, file, accel, true));
+				all.add(new ShadowRays(suite, file, accel, false));
+				all.add(new ShadowRays(suite, file, accel, true));
+				all.add(new AccelBuild(suite, file, accel));
+			}
+		}
+		for (String file : files)
+			for (String accel : accels)
+				all.add(new RenderBlock(suite, file, accel));
+	}
+
+	/**
+	 * Triangle.intersect on one triangle spanning the unit cube's diagonal plane.
+	 */
+	static class TriangleIntersect extends Benchmark {
+		private Triangle triangle;
+		private Ray[] rays;
+		private final IntersectionRecord record = new IntersectionRecord();
+
+		TriangleIntersect() { super("Triangle.intersect", "rays"); }
+
+		@Override
+		public void setUp() {
+			MeshData data = new MeshData();
+			data.vertexCount = 3;
+			data.indexCount = 3;
+			data.positions = BufferUtils.createFloatBuffer(9);
+			data.positions.put(new float[] { -1, -1, 0, 1, -1, 0, 0, 1, 1 });
+			data.indices = BufferUtils.createIntBuffer(3);
+			data.indices.put(new int[] { 0, 1, 2 });
+			Mesh mesh = new Mesh(data);
+			BenchmarkSuite.setIdentity(mesh);
+			triangle = new Triangle(mesh, new Vector3i(0, 1, 2), Shader.DEFAULT_SHADER);
+			BenchmarkSuite.setIdentity(triangle);
+			rays = BenchmarkSuite.randomRays(new Random(1), BenchmarkSuite.RAY_COUNT);
+		}
+
+		@Override
+		public int run() {
+			int hits = 0;
+			for (Ray ray : rays)
+				if (triangle.intersect(record, ray)) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+
+	/**
+	 * Sphere.intersect on a unit sphere at the origin.
+	 */
+	static class SphereIntersect extends Benchmark {
+		private Sphere sphere;
+		private Ray[] rays;
+		private final IntersectionRecord record = new IntersectionRecord();
+
+		SphereIntersect() { super("Sphere.intersect", "rays"); }
+
+		@Override
+		public void setUp() {
+			sphere = new Sphere();
+			BenchmarkSuite.setIdentity(sphere);
+			rays = BenchmarkSuite.randomRays(new Random(2), BenchmarkSuite.RAY_COUNT);
+		}
+
+		@Override
+		public int run() {
+			int hits = 0;
+			for (Ray ray : rays)
+				if (sphere.intersect(record, ray)) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+
+	/**
+	 * BvhNode.intersects on the box [-1, 1]^3.
+	 */
+	static class BoxIntersect extends Benchmark {
+		private BvhNode node;
+		private Ray[] rays;
+
+		BoxIntersect() { super("BvhNode.intersects", "rays"); }
+
+		@Override
+		public void setUp() {
+			node = new BvhNode(new Vector3d(-1), new Vector3d(1), null, null, 0, 0);
+			rays = BenchmarkSuite.randomRays(new Random(3), BenchmarkSuite.RAY_COUNT);
+		}
+
+		@Override
+		public int run() {
+			int hits = 0;
+			for (Ray ray : rays)
+				if (node.intersects(ray)) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+	/**
+	 * TriangleSoup.intersect with the camera rays of a scene on the first mesh in it.
+	 */
+	static class SoupIntersect extends Benchmark {
+		private final BenchmarkSuite suite;
+		private final String file;
+		private TriangleSoup soup;
+		private Ray[] rays;
+		private final IntersectionRecord record = new IntersectionRecord();
+
+		SoupIntersect(BenchmarkSuite suite, String file) {
+			super("TriangleSoup.intersect:" + BenchmarkSuite.sceneName(file), "rays");
+			this.suite = suite;
+			this.file = file;
+		}
+
+		@Override
+		public void setUp() {
+			Scene scene = suite.scene(file);
+			for (Surface s : BenchmarkSuite.renderableSurfaces(scene))
+				if (s instanceof TriangleSoup) { soup = (TriangleSoup) s; break; }
+			if (soup == null) throw new NotApplicableException("the scene has no mesh");
+			rays = BenchmarkSuite.cameraRays(scene);
+		}
+
+		@Override
+		public int run() {
+			int hits = 0;
+			for (Ray ray : rays)
+				if (soup.intersect(record, ray)) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+
+	/**
+	 * AccelStruct.intersect on the surfaces of a scene: closest hits of its camera rays,
+	 * or any hits of shadow rays from those hits towards its first light.
+	 */
+	static class AccelIntersect extends Benchmark {
+		private final BenchmarkSuite suite;
+		private final String file, accelName;
+		private final boolean anyIntersection;
+		private AccelStruct accel;
+		private Ray[] rays;
+		private final IntersectionRecord record = new IntersectionRecord();
+
+		AccelIntersect(BenchmarkSuite suite, String file, String accelName, boolean anyIntersection) {
+			super((anyIntersection ? "AccelStruct.intersect.any:" : "AccelStruct.intersect.closest:")
+					+ BenchmarkSuite.sceneName(file) + ":" + accelName, "rays");
+			this.suite = suite;
+			this.file = file;
+			this.accelName = accelName;
+			this.anyIntersection = anyIntersection;
+		}
+
+		@Override
+		public void setUp() {
+			Scene scene = suite.scene(file);
+			accel = BenchmarkSuite.newAccelStruct(accelName);
+			accel.build(BenchmarkSuite.renderableSurfaces(scene));
+			rays = BenchmarkSuite.cameraRays(scene);
+			if (anyIntersection) {
+				if (scene.getLights().isEmpty()) throw new NotApplicableException("the scene has no lights");
+				List<Ray> shadowRays = new ArrayList<Ray>();
+				for (Ray ray : rays) {
+					if (accel.intersect(record, ray, false)) {
+						Ray shadowRay = new Ray();
+						Shader.initShadowRay(scene.getLights().get(0), record, shadowRay);
+						shadowRays.add(shadowRay);
+					}
+				}
+				rays = shadowRays.toArray(new Ray[shadowRays.size()]);
+				if (rays.length == 0) throw new NotApplicableException("no camera ray hits the scene");
+			}
+		}
+
+		@Override
+		public int run() {
+			int hits = 0;
+			for (Ray ray : rays)
+				if (accel.intersect(anyIntersection ? null : record, ray, anyIntersection)) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+
+	/**
+	 * Shadow rays from the hits of a scene's camera rays towards each of its lights, in the
+	 * order a shader traces them: either Scene.isOccluded, which first tests the surface
+	 * that last blocked each light, or Scene.getAnyIntersection, which always searches the
+	 * acceleration structure.
+	 */
+	static class ShadowRays extends Benchmark {
+		private final BenchmarkSuite suite;
+		private final String file, accelName;
+		private final boolean cached;
+		private Scene scene;
+		private Ray[] rays;
+		private Light[] lights;
+		private final IntersectionRecord record = new IntersectionRecord();
+
+		ShadowRays(BenchmarkSuite suite, String file, String accelName, boolean cached) {
+			super("Scene.isOccluded:" + BenchmarkSuite.sceneName(file) + ":" + accelName + (cached ? ":cached" : ":uncached"), "rays");
+			this.suite = suite;
+			this.file = file;
+			this.accelName = accelName;
+			this.cached = cached;
+		}
+
+		@Override
+		public void setUp() {
+			scene = suite.scene(file);
+			if (scene.getLights().isEmpty()) throw new NotApplicableException("the scene has no lights");
+			AccelStruct accel = BenchmarkSuite.newAccelStruct(accelName);
+			accel.build(BenchmarkSuite.renderableSurfaces(scene));
+			scene.setAccelStruct(accel);
+
+			List<Ray> shadowRays = new ArrayList<Ray>();
+			List<Light> rayLights = new ArrayList<Light>();
+			for (Ray ray : BenchmarkSuite.cameraRays(scene)) {
+				if (!scene.getFirstIntersection(record, ray)) continue;
+				for (Light light : scene.getLights()) {
+					Ray shadowRay = new Ray();
+					Shader.initShadowRay(light, record, shadowRay);
+					shadowRays.add(shadowRay);
+					rayLights.add(light);
+				}
+			}
+			if (shadowRays.isEmpty()) throw new NotApplicableException("no camera ray hits the scene");
+			rays = shadowRays.toArray(new Ray[shadowRays.size()]);
+			lights = rayLights.toArray(new Light[rayLights.size()]);
+		}
+
+		@Override
+		public int run() {
+			ShadingContext context = ShadingContext.get();
+			int hits = 0;
+			for (int i = 0; i < rays.length; i++)
+				if (cached ? scene.isOccluded(rays[i], lights[i], context) : scene.getAnyIntersection(rays[i])) hits++;
+			sink += hits;
+			return rays.length;
+		}
+	}
+
+	/**
+	 * AccelStruct.build on the surfaces of a scene.
+	 */
+	static class AccelBuild extends Benchmark {
+		private final BenchmarkSuite suite;
+		private final String file, accelName;
+		private Surface[] surfaces;
+
+		AccelBuild(BenchmarkSuite suite, String file, String accelName) {
+			super("AccelStruct.build:" + BenchmarkSuite.sceneName(file) + ":" + accelName, "builds");
+			this.suite = suite;
+			this.file = file;
+			this.accelName = accelName;
+		}
+
+		@Override
+		public void setUp() {
+			surfaces = BenchmarkSuite.renderableSurfaces(suite.scene(file));
+		}
+
+		@Override
+		public int run() {
+			AccelStruct accel = BenchmarkSuite.newAccelStruct(accelName);
+			accel.build(surfaces.clone());
+			sink += accel.hashCode();
+			return 1;
+		}
+	}
+
+	/**
+	 * RayTracer.renderBlock on the 2x2 blocks at the center of a scene's image.
+	 */
+	static class RenderBlock extends Benchmark {
+		private final BenchmarkSuite suite;
+		private final String file, accelName;
+		private Scene scene;
+		private int x0, y0, width, height;
+
+		RenderBlock(BenchmarkSuite suite, String file, String accelName) {
+			super("renderBlock:" + BenchmarkSuite.sceneName(file) + ":" + accelName, "rays");
+			this.suite = suite;
+			this.file = file;
+			this.accelName = accelName;
+		}
+
+		@Override
+		public void setUp() {
+			scene = suite.scene(file);
+			AccelStruct accel = BenchmarkSuite.newAccelStruct(accelName);
+			accel.build(BenchmarkSuite.renderableSurfaces(scene));
+			scene.setAccelStruct(accel);
+
+			Image image = scene.getImage();
+			width = Math.min(2 * BenchmarkSuite.BLOCK_SIZE, image.getWidth());
+			height = Math.min(2 * BenchmarkSuite.BLOCK_SIZE, image.getHeight());
+			x0 = (image.getWidth() - width) / 2;
+			y0 = (image.getHeight() - height) / 2;
+		}
+
+		@Override
+		public int run() {
+			Image image = scene.getImage();
+			for (int y = y0; y < y0 + height; y += BenchmarkSuite.BLOCK_SIZE)
+				for (int x = x0; x < x0 + width; x += BenchmarkSuite.BLOCK_SIZE)
+					RayTracer.renderBlock(scene, image, x, y,
+							Math.min(BenchmarkSuite.BLOCK_SIZE, x0 + width - x), Math.min(BenchmarkSuite.BLOCK_SIZE, y0 + height - y));
+			return width * height * scene.getSamples() * scene.getSamples();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package cs4620.ray2.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import cs4620.ray2.Image;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+
+/**
+ * Checks that rendering does not allocate once it has warmed up. Each scene is rendered
+ * a few times on the calling thread to fill its ShadingContext and let the JIT settle,
+ * then rendered again while the thread's allocated bytes are counted. The render loop
+ * is allocation free if that count, per camera ray, is zero.
+ *
+ * Usage: java cs4620.ray2.bench.AllocationBenchmark [-nopackets] [scene1.xml scene2.xml ...]
+ *
+ * With no scenes, a few of those in data/scenes/ray2 are used. The exit status is 1
+ * if any scene allocates more than MAX_BYTES_PER_RAY per camera ray.
+ */
+public class AllocationBenchmark {
+
+	/** Renders of the whole image before measuring. */
+	public static final int WARMUP_RENDERS = 5;
+
+	/** Renders of the whole image that are measured. */
+	public static final int MEASURED_RENDERS = 5;
+
+	/**
+	 * The most a camera ray may allocate on average. Reading the allocation counter
+	 * may itself allocate a few bytes, so the limit is not quite zero.
+	 */
+	public static final double MAX_BYTES_PER_RAY = 0.01;
+
+	private static final String[] DEFAULT_SCENES = { "glass-ball.xml", "groups.xml", "overlap.xml", "bunny-norms-aa.xml" };
+
+	public static void main(String[] args) {
+		List<String> files = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.equals("-nopackets"))
+				RayTracer.USE_PACKETS = false;
+			else
+				files.add(arg);
+		}
+		if (files.isEmpty())
+			for (String s : DEFAULT_SCENES)
+				files.add(RayTracer.directory + "/" + s);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		boolean ok = true;
+		System.out.printf("%-24s %12s %12s %14s%n", "scene", "ms/render", "Mrays/s", "bytes/ray");
+		for (String file : files) {
+			Scene scene = BenchmarkSuite.loadScene(file);
+			Image image = scene.getImage();
+			long raysPerRender = (long) image.getWidth() * image.getHeight() * scene.getSamples() * scene.getSamples();
+
+			for (int i = 0; i < WARMUP_RENDERS; i++)
+				BenchmarkSuite.renderImage(scene);
+
+			long startBytes = threads.getThreadAllocatedBytes(threadId);
+			long startTime = System.nanoTime();
+			for (int i = 0; i < MEASURED_RENDERS; i++)
+				BenchmarkSuite.renderImage(scene);
+			long time = System.nanoTime() - startTime;
+			long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+			double bytesPerRay = (double) bytes / (raysPerRender * MEASURED_RENDERS);
+			System.out.printf("%-24s %12.2f %12.3f %14.4f%n", file.substring(file.lastIndexOf('/') + 1),
+					time / 1e6 / MEASURED_RENDERS, raysPerRender * MEASURED_RENDERS * 1e3 / time, bytesPerRay);
+			if (bytesPerRay > MAX_BYTES_PER_RAY) ok = false;
+		}
+		RayTracer.setSceneWorkspace(null);
+
+		System.out.println(ok ? "The render loop does not allocate." : "The render loop allocates.");
+		if (!ok) System.exit(1);
+	}
+}
@@ -0,0 +1,262 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cs4620.bench.Benchmark;
+import cs4620.bench.BenchmarkRunner;
+import cs4620.ray2.Image;
+import cs4620.ray2.Parser;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.surface.Surface;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * Benchmarks of the ray2 hot paths. AccelBenchmarks times the intersection tests of
+ * single surfaces and boxes, closest-hit and any-hit queries and builds of each
+ * acceleration structure, shadow rays towards every light with and without the
+ * per-light occluder cache, and renderBlock on every scene in data/scenes/ray2;
+ * ShadingBenchmarks times cubemap lookups and sampling, filtered texture lookups and
+ * Lambertian shading under many lights; ParseBenchmarks times Parser.parse of generated
+ * scene files of many spheres. Mesh loading and skinning are timed by
+ * cs4620.mesh.MeshBenchmarks and cs4620.anim.SkinBenchmarks.
+ *
+ * The benchmarks are run and reported by a BenchmarkRunner. Benchmarks that differ only
+ * in their acceleration structure are also given relative to the first one listed with
+ * -accel.
+ *
+ * Usage: java cs4620.ray2.bench.BenchmarkSuite [options] [scene1.xml scene2.xml ...]
+ *
+ *   -accel Bvh,LinearBvh   the acceleration structures to compare
+ *
+ * as well as the options of BenchmarkRunner. With no scenes, every scene in
+ * data/scenes/ray2 is used. The exit status is 1 if any benchmark regressed or failed.
+ */
+public class BenchmarkSuite {
+
+	/** The number of random rays and directions the surface and cubemap benchmarks cycle through. */
+	static final int RAY_COUNT = 1024;
+
+	/** Camera rays per side for the acceleration structure benchmarks. */
+	static final int CAMERA_RAY_RESOLUTION = 64;
+
+	/** The size of the blocks RayTracer renders. */
+	public static final int BLOCK_SIZE = 32;
+
+	private List<String> accels = new ArrayList<String>(Arrays.asList("Bvh", "LinearBvh"));
+
+	/** Scenes loaded so far, by file. */
+	private final Map<String, Scene> scenes = new HashMap<String, Scene>();
+
+	public static void main(String[] args) {
+		BenchmarkSuite suite = new BenchmarkSuite();
+		BenchmarkRunner runner = new BenchmarkRunner();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			int last = runner.parseOption(args, i);
+			if (last >= 0) i = last;
+			else if (arg.equals("-accel")) suite.accels = Arrays.asList(args[++i].split(","));
+			else if (arg.startsWith("-")) {
+				System.err.println("Unknown option " + arg);
+				System.exit(2);
+			}
+			else files.add(arg);
+		}
+		if (files.isEmpty()) {
+			File[] sceneFiles = new File(RayTracer.directory).listFiles();
+			if (sceneFiles != null) {
+				Arrays.sort(sceneFiles);
+				for (File f : sceneFiles)
+					if (f.getName().endsWith(".xml")) files.add(f.getPath());
+			}
+		}
+
+		// Loading a scene whose mesh is missing exits the program, so leave those out
+		for (int i = files.size() - 1; i >= 0; i--) {
+			String missing = missingResource(files.get(i));
+			if (missing != null) {
+				System.out.println("Leaving out " + files.get(i) + ": " + missing + " is missing");
+				files.remove(i);
+			}
+		}
+
+		runner.compareVariants(suite.accels);
+		boolean ok = runner.run(suite.createBenchmarks(files));
+		RayTracer.setSceneWorkspace(null);
+		if (!ok) System.exit(1);
+	}
+
+	/**
+	 * Create the benchmarks for the given scenes.
+	 */
+	List<Benchmark> createBenchmarks(List<String> files) {
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		AccelBenchmarks.addTo(all, this, files, accels);
+		ShadingBenchmarks.addTo(all);
+		ParseBenchmarks.addTo(all);
+		return all;
+	}
+
+	/**
+	 * @return the scene in file, loaded the first time it is asked for
+	 */
+	Scene scene(String file) {
+		Scene scene = scenes.get(file);
+		if (scene == null) {
+			scene = loadScene(file);
+			scenes.put(file, scene);
+		}
+		RayTracer.setSceneWorkspace(new RayTracer.ScenePath(null, file));
+		return scene;
+	}
+
+	/**
+	 * Parse a scene, set up its transformations and camera and build its acceleration
+	 * structure and light tree, as RayTracer.run does before rendering.
+	 *
+	 * @param file the scene file
+	 * @return the scene, ready to render
+	 */
+	public static Scene loadScene(String file) {
+		RayTracer.setSceneWorkspace(new RayTracer.ScenePath(null, file));
+		Scene scene = (Scene) new Parser().parse(file, Scene.class);
+		scene.setTransform();
+		scene.getAccelStruct().build(renderableSurfaces(scene));
+		scene.buildLightTree();
+		scene.getCamera().initView();
+		return scene;
+	}
+
+	/**
+	 * @return the surfaces of scene as handed to its acceleration structure
+	 */
+	public static Surface[] renderableSurfaces(Scene scene) {
+		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
+		for (Surface s : scene.getSurfaces())
+			s.appendRenderableSurfaces(renderableSurfaces);
+		return renderableSurfaces.toArray(new Surface[renderableSurfaces.size()]);
+	}
+
+	/**
+	 * @param name the simple name of a class in cs4620.ray2.accel, such as "LinearBvh"
+	 * @return a new, empty acceleration structure of that class
+	 */
+	public static AccelStruct newAccelStruct(String name) {
+		try {
+			return (AccelStruct) Class.forName("cs4620.ray2.accel." + name).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("No acceleration structure named " + name, e);
+		}
+	}
+
+	/**
+	 * Render the whole image of scene block by block on the calling thread.
+	 */
+	public static void renderImage(Scene scene) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		for (int y = 0; y < height; y += BLOCK_SIZE)
+			for (int x = 0; x < width; x += BLOCK_SIZE)
+				RayTracer.renderBlock(scene, image, x, y, Math.min(BLOCK_SIZE, width - x), Math.min(BLOCK_SIZE, height - y));
+	}
+
+	/** The elements of a scene file that name meshes and cubemaps. */
+	private static final Pattern RESOURCE = Pattern.compile("<(data|filename)>\\s*([^<]*?)\\s*</");
+
+	/**
+	 * @return a file that the scene in file refers to but that does not exist, or null
+	 */
+	static String missingResource(String file) {
+		String text;
+		try {
+			text = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return file;
+		}
+		RayTracer.ScenePath path = new RayTracer.ScenePath(null, file);
+		Matcher m = RESOURCE.matcher(text);
+		while (m.find()) {
+			// Cubemaps open their file as given; meshes resolve it against the scene
+			String name = m.group(2);
+			String resolved = m.group(1).equals("filename") ? name : path.resolve(name);
+			if (!new File(resolved).exists()) return name;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the name of a scene file without its directory and extension
+	 */
+	static String sceneName(String file) {
+		String name = new File(file).getName();
+		return name.endsWith(".xml") ? name.substring(0, name.length() - 4) : name;
+	}
+
+	/**
+	 * Rays from random points on a sphere of radius 4 around the origin towards random
+	 * points in the cube [-1.5, 1.5]^3, so that roughly half of them hit a unit sphere.
+	 */
+	static Ray[] randomRays(Random random, int count) {
+		Ray[] rays = new Ray[count];
+		Vector3d target = new Vector3d();
+		for (int i = 0; i < count; i++) {
+			Ray ray = new Ray();
+			randomDirection(random, ray.origin).mul(4);
+			target.set(3 * random.nextDouble() - 1.5, 3 * random.nextDouble() - 1.5, 3 * random.nextDouble() - 1.5);
+			ray.direction.set(target).sub(ray.origin).normalize();
+			ray.makeOffsetRay();
+			rays[i] = ray;
+		}
+		return rays;
+	}
+
+	/**
+	 * Set out to a uniformly distributed unit vector.
+	 */
+	static Vector3d randomDirection(Random random, Vector3d out) {
+		do {
+			out.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+		} while (out.lenSq() < 1e-12);
+		return out.normalize();
+	}
+
+	/**
+	 * One ray through the center of each pixel of a CAMERA_RAY_RESOLUTION^2 grid.
+	 */
+	static Ray[] cameraRays(Scene scene) {
+		int n = CAMERA_RAY_RESOLUTION;
+		Ray[] rays = new Ray[n * n];
+		for (int y = 0; y < n; y++) {
+			for (int x = 0; x < n; x++) {
+				Ray ray = new Ray();
+				scene.getCamera().getRay(ray, (x + 0.5) / n, (y + 0.5) / n);
+				rays[y * n + x] = ray;
+			}
+		}
+		return rays;
+	}
+
+	/**
+	 * Identity transformations for surfaces made outside a scene.
+	 */
+	static void setIdentity(Surface s) {
+		s.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+	}
+}
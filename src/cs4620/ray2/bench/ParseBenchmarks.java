@@ -0,0 +1,92 @@
+package cs4620.ray2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import cs4620.bench.Benchmark;
+import cs4620.ray2.Parser;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+
+/**
+ * Benchmarks of Parser.parse on generated scene files of many spheres.
+ */
+final class ParseBenchmarks {
+
+	/** Sphere counts of the generated scene files the parser benchmarks read. */
+	private static final int[] SURFACE_COUNTS = { 1000, 100000 };
+
+	private ParseBenchmarks() { }
+
+	/**
+	 * Add the parser benchmarks to all.
+	 */
+	static void addTo(List<Benchmark> all) {
+		for (int surfaces : SURFACE_COUNTS)
+			all.add(new ParseScene(surfaces));
+	}
+
+	/**
+	 * Parser.parse of a generated scene file of many spheres, each naming its type and
+	 * referring to one of two shaders.
+	 */
+	static class ParseScene extends Benchmark {
+		private final int surfaces;
+		private File file;
+
+		ParseScene(int surfaces) {
+			super("Parser.parse:spheres:" + shortCount(surfaces), "surfaces");
+			this.surfaces = surfaces;
+		}
+
+		@Override
+		public void setUp() {
+			Random random = new Random(8);
+			try {
+				file = File.createTempFile("scene", ".xml");
+				PrintWriter out = new PrintWriter(file, "UTF-8");
+				try {
+					out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+					out.println("<scene>");
+					out.println("  <camera type=\"PerspectiveCamera\"><viewPoint>0 0 10</viewPoint><viewDir>0 0 -1</viewDir>"
+							+ "<viewUp>0 1 0</viewUp><projDistance>1</projDistance></camera>");
+					out.println("  <image>64 64</image>");
+					out.println("  <shader name=\"red\" type=\"Lambertian\"><diffuseColor>1 0 0</diffuseColor></shader>");
+					out.println("  <shader name=\"shiny\" type=\"Phong\"><diffuseColor>0.5 0.5 0.5</diffuseColor>"
+							+ "<specularColor>1 1 1</specularColor><exponent>50</exponent></shader>");
+					for (int i = 0; i < surfaces; i++) {
+						out.printf(Locale.ROOT, "  <surface type=\"Sphere\"><shader ref=\"%s\" />"
+								+ "<center>%.4f %.4f %.4f</center><radius>%.4f</radius></surface>%n",
+								i % 2 == 0 ? "red" : "shiny", 20 * random.nextDouble() - 10,
+								20 * random.nextDouble() - 10, 20 * random.nextDouble() - 10,
+								0.01 + 0.1 * random.nextDouble());
+					}
+					out.println("  <light type=\"PointLight\"><position>0 10 10</position>"
+							+ "<intensity>100 100 100</intensity></light>");
+					out.println("</scene>");
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			RayTracer.setSceneWorkspace(new RayTracer.ScenePath(null, file.getPath()));
+		}
+
+		@Override
+		public int run() {
+			Scene scene = (Scene) new Parser().parse(file.getPath(), Scene.class);
+			sink += scene.getSurfaces().size();
+			return surfaces;
+		}
+
+		@Override
+		public void tearDown() {
+			if (file != null) file.delete();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package cs4620.ray2.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import cs4620.bench.Benchmark;
+import cs4620.ray2.Cubemap;
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.PointLight;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RayTracer;
+import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
+import cs4620.ray2.shader.Lambertian;
+import cs4620.ray2.shader.RepeatTexture;
+import cs4620.ray2.shader.Shader;
+import cs4620.ray2.shader.Texture;
+import cs4620.ray2.surface.Sphere;
+import cs4620.ray2.surface.Surface;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Benchmarks of shading: cubemap lookups and sampling, filtered texture lookups, and
+ * Lambertian shading under many lights, visiting every light or sampling a few.
+ */
+final class ShadingBenchmarks {
+
+	/** The number of random directions, texture coordinates and shading points each benchmark cycles through. */
+	private static final int RAY_COUNT = BenchmarkSuite.RAY_COUNT;
+
+	/** Light counts of the scenes the shading benchmarks light, and the lights sampled from them. */
+	private static final int[] LIGHT_COUNTS = { 16, 256, 1024 };
+	private static final int LIGHT_SAMPLES = 4;
+
+	private ShadingBenchmarks() { }
+
+	/**
+	 * Add the shading benchmarks to all.
+	 */
+	static void addTo(List<Benchmark> all) {
+		all.add(new CubemapEvaluate());
+		all.add(new CubemapGenerate());
+		all.add(new TextureLookup(false));
+		all.add(new TextureLookup(true));
+		for (int lights : LIGHT_COUNTS) {
+			all.add(new Shade(lights, false));
+			all.add(new Shade(lights, true));
+		}
+	}
+
+	/**
+	 * Cubemap.evaluate in random directions, on a small generated cubemap since none
+	 * ship with the scenes.
+	 */
+	static class CubemapEvaluate extends Benchmark {
+		private static final int FACE_SIZE = 64;
+		private Cubemap cubemap;
+		private File file;
+		private Vector3d[] directions;
+		private final Colord radiance = new Colord();
+		private ShadingContext context;
+
+		CubemapEvaluate() { super("Cubemap.evaluate", "lookups"); }
+
+		@Override
+		public void setUp() {
+			try {
+				file = File.createTempFile("cubemap", ".pfm");
+				writeCrossPFM(file, FACE_SIZE);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			cubemap = new Cubemap();
+			cubemap.setFilename(file.getPath());
+
+			Random random = new Random(4);
+			directions = new Vector3d[RAY_COUNT];
+			for (int i = 0; i < directions.length; i++)
+				directions[i] = BenchmarkSuite.randomDirection(random, new Vector3d());
+			context = ShadingContext.get();
+		}
+
+		@Override
+		public int run() {
+			double sum = 0;
+			for (Vector3d d : directions) {
+				cubemap.evaluate(d, radiance, context);
+				sum += radiance.x;
+			}
+			sink += (long) sum;
+			return directions.length;
+		}
+
+		@Override
+		public void tearDown() {
+			if (file != null) file.delete();
+		}
+
+		/**
+		 * Write a vertical cross cubemap (3 faces wide, 4 high) with a smooth gradient.
+		 */
+		private static void writeCrossPFM(File file, int faceSize) throws IOException {
+			int width = 3 * faceSize, height = 4 * faceSize;
+			ByteBuffer pixels = ByteBuffer.allocate(12 * width * height).order(ByteOrder.LITTLE_ENDIAN);
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					pixels.putFloat(1 + (float) x / width).putFloat(1 + (float) y / height).putFloat(1);
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeBytes("PF\n" + width + " " + height + "\n-1.0\n");
+				out.write(pixels.array());
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Cubemap.generate and Cubemap.pdf of random seeds on the cubemap of CubemapEvaluate,
+	 * as environment lighting samples it.
+	 */
+	static class CubemapGenerate extends Benchmark {
+		private Cubemap cubemap;
+		private File file;
+		private Vector2d[] seeds;
+		private final Vector2d seed = new Vector2d();
+		private final Vector3d direction = new Vector3d();
+		private ShadingContext context;
+
+		CubemapGenerate() { super("Cubemap.generate", "directions"); }
+
+		@Override
+		public void setUp() {
+			try {
+				file = File.createTempFile("cubemap", ".pfm");
+				CubemapEvaluate.writeCrossPFM(file, CubemapEvaluate.FACE_SIZE);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			cubemap = new Cubemap();
+			cubemap.setFilename(file.getPath());
+
+			Random random = new Random(5);
+			seeds = new Vector2d[RAY_COUNT];
+			for (int i = 0; i < seeds.length; i++)
+				seeds[i] = new Vector2d(random.nextDouble(), random.nextDouble());
+			context = ShadingContext.get();
+		}
+
+		@Override
+		public int run() {
+			double sum = 0;
+			for (Vector2d s : seeds) {
+				seed.set(s);
+				cubemap.generate(seed, direction, context);
+				sum += cubemap.pdf(direction, context);
+			}
+			sink += (long) sum;
+			return seeds.length;
+		}
+
+		@Override
+		public void tearDown() {
+			if (file != null) file.delete();
+		}
+	}
+
+	/**
+	 * Texture.getTexColor at random texture coordinates of a repeating noise image,
+	 * bilinear in the full size image or trilinear over random footprints.
+	 */
+	static class TextureLookup extends Benchmark {
+		private static final int SIZE = 512;
+		private final boolean trilinear;
+		private Texture texture;
+		private File file;
+		private Vector2d[] texCoords;
+		private double[] footprints;
+		private final Colord color = new Colord();
+
+		TextureLookup(boolean trilinear) {
+			super("Texture.getTexColor:" + (trilinear ? "trilinear" : "bilinear"), "lookups");
+			this.trilinear = trilinear;
+		}
+
+		@Override
+		public void setUp() {
+			Random random = new Random(6);
+			BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < SIZE; y++)
+				for (int x = 0; x < SIZE; x++)
+					image.setRGB(x, y, random.nextInt(1 << 24));
+			try {
+				file = File.createTempFile("texture", ".png");
+				ImageIO.write(image, "png", file);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			RayTracer.setSceneWorkspace(new RayTracer.ScenePath(null, file.getPath()));
+			texture = new RepeatTexture();
+			texture.setImage(file.getName());
+
+			texCoords = new Vector2d[RAY_COUNT];
+			footprints = new double[RAY_COUNT];
+			for (int i = 0; i < RAY_COUNT; i++) {
+				texCoords[i] = new Vector2d(4 * random.nextDouble() - 2, 4 * random.nextDouble() - 2);
+				footprints[i] = trilinear ? Math.pow(2, -10 * random.nextDouble()) : 0;
+			}
+		}
+
+		@Override
+		public int run() {
+			double sum = 0;
+			for (int i = 0; i < RAY_COUNT; i++) {
+				texture.getTexColor(texCoords[i], footprints[i], color);
+				sum += color.x;
+			}
+			sink += (long) sum;
+			return RAY_COUNT;
+		}
+
+		@Override
+		public void tearDown() {
+			if (file != null) file.delete();
+		}
+	}
+
+	/**
+	 * Lambertian.shade of random points on a floor lit by many point lights above it,
+	 * visiting every light or sampling LIGHT_SAMPLES of them from the light tree.
+	 */
+	static class Shade extends Benchmark {
+		private final int lightCount;
+		private final boolean sampled;
+		private Scene scene;
+		private Shader shader;
+		private Ray[] rays;
+		private IntersectionRecord[] records;
+		private final Colord color = new Colord();
+
+		Shade(int lightCount, boolean sampled) {
+			super("Lambertian.shade:" + lightCount + "lights:" + (sampled ? "sampled" : "all"), "shades");
+			this.lightCount = lightCount;
+			this.sampled = sampled;
+		}
+
+		@Override
+		public void setUp() {
+			Random random = new Random(7);
+			scene = new Scene();
+			shader = new Lambertian();
+
+			// The floor is the top of a large sphere, with a few small ones casting shadows
+			Sphere floor = new Sphere();
+			floor.setCenter(new Vector3d(0, -1000, 0));
+			floor.setRadius(1000);
+			scene.addSurface(floor);
+			for (int i = 0; i < 16; i++) {
+				Sphere ball = new Sphere();
+				ball.setCenter(new Vector3d(20 * random.nextDouble() - 10, 1, 20 * random.nextDouble() - 10));
+				ball.setRadius(0.5);
+				scene.addSurface(ball);
+			}
+			for (Surface s : scene.getSurfaces()) {
+				s.setShader(shader);
+				BenchmarkSuite.setIdentity(s);
+			}
+			scene.getAccelStruct().build(BenchmarkSuite.renderableSurfaces(scene));
+
+			for (int i = 0; i < lightCount; i++) {
+				PointLight light = new PointLight();
+				light.setPosition(new Vector3d(20 * random.nextDouble() - 10, 1 + 3 * random.nextDouble(),
+						20 * random.nextDouble() - 10));
+				light.setIntensity(new Colord(random.nextDouble(), random.nextDouble(), random.nextDouble()));
+				scene.addLight(light);
+			}
+			scene.setLightSamples(sampled ? LIGHT_SAMPLES : 0);
+			scene.buildLightTree();
+
+			List<Ray> hitRays = new ArrayList<Ray>();
+			List<IntersectionRecord> hits = new ArrayList<IntersectionRecord>();
+			while (hits.size() < RAY_COUNT) {
+				Ray ray = new Ray(new Vector3d(20 * random.nextDouble() - 10, 10, 20 * random.nextDouble() - 10),
+						new Vector3d(0, -1, 0));
+				ray.makeOffsetRay();
+				IntersectionRecord record = new IntersectionRecord();
+				if (scene.getFirstIntersection(record, ray)) {
+					hitRays.add(ray);
+					hits.add(record);
+				}
+			}
+			rays = hitRays.toArray(new Ray[RAY_COUNT]);
+			records = hits.toArray(new IntersectionRecord[RAY_COUNT]);
+		}
+
+		@Override
+		public int run() {
+			ShadingContext context = ShadingContext.get();
+			double sum = 0;
+			for (int i = 0; i < RAY_COUNT; i++) {
+				shader.shade(color, scene, rays[i], records[i], 1, context);
+				sum += color.x;
+			}
+			sink += (long) sum;
+			return RAY_COUNT;
+		}
+	}
+}
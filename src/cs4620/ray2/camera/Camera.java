@@ -52,6 +52,13 @@ public abstract class Camera {
 	protected double viewHeight = 1.0;
 	public void setViewHeight(double viewHeight) { this.viewHeight = viewHeight; }
 	
+	/**
+	 * Initialize the derived view variables to prepare for using the camera.
+	 * This is called once before rendering starts, so that several threads
+	 * may generate rays from the same camera.
+	 */
+	public abstract void initView();
+	
 	/**
 	 * Generate a ray that points out into the scene for the given (u,v) coordinate.
 	 * This coordinate corresponds to a point on the viewing window, where (0,0) is the
@@ -62,6 +69,23 @@ public abstract class Camera {
 	 */
 	public abstract void getRay(Ray outRay, double u, double v);
 	
+	/**
+	 * Generate the ray for (u,v) as getRay does, and give it the cone that covers du of the
+	 * viewing window horizontally, found from the ray at (u + du, v).
+	 * @param outRay A space to return the output ray
+	 * @param u The horizontal coordinate (0 is left, 1 is right)
+	 * @param v The vertical coordinate (0 is bottom, 1 is top)
+	 * @param du The width of the window the ray's sample covers
+	 * @param scratch A space for the neighbouring ray
+	 */
+	public void getRayCone(Ray outRay, double u, double v, double du, Ray scratch) {
+		getRay(outRay, u, v);
+		getRay(scratch, u + du, v);
+		outRay.coneWidth = outRay.origin.dist(scratch.origin);
+		double cos = outRay.direction.dot(scratch.direction) / (outRay.direction.len() * scratch.direction.len());
+		outRay.coneSpread = Math.acos(Math.max(-1, Math.min(1, cos)));
+	}
+
 	/**
 	 * Code for unit testing of cameras.
 	 */
@@ -4,10 +4,10 @@ import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Color;
 import egl.math.Colord;
 import egl.math.Vector3d;
-import java.util.*;
 
 public class CookTorrance extends Shader {
 
@@ -38,6 +38,14 @@ public class CookTorrance extends Shader {
 		return "CookTorrance " + diffuseColor + " " + specularColor + " " + roughness + " end";
 	}
 
+	/**
+	 * Every light is tested with isShadowed.
+	 */
+	@Override
+	public boolean usesShadowRays() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the intensity for a given intersection using the CookTorrance shading model.
 	 *
@@ -46,23 +54,32 @@ public class CookTorrance extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
 		// TODO#A7 Fill in this function.
 		// create the outgoing ray from where the incoming ray hits the surface
-		Vector3d v = ray.origin.clone().sub(record.location).normalize();			// outgoing ray "viewing ray"
-		Vector3d l = new Vector3d();												// incoming ray
+		context.push();
+		Vector3d v = context.vector().set(ray.origin).sub(record.location).normalize();	// outgoing ray "viewing ray"
+		Vector3d l = context.vector();												// incoming ray
+		Ray shadowRay = context.ray();
+		Colord out = context.color();
 		
 		outIntensity.setZero();
 
     	// 1) Loop through each light in the scene.
-        for (Light light : scene.getLights()) {
+		int count = scene.chooseLights(record, context);
+		Light[] lights = context.getChosenLights(count);
+		double[] weights = context.getChosenWeights(count);
+        for (int i = 0; i < count; i++) {
+        	Light light = lights[i];
         	// 2) If the intersection point is shadowed, skip the calculation for the light.
     		//	  See Shader.java for a useful shadowing function.
-        	if (!isShadowed(scene, light, record, new Ray())) {
+        	if (!isShadowed(scene, light, record, shadowRay, context)) {
         		// 3) Compute the incoming direction by subtracting the intersection point from the light's position.
-        		l.set(light.getDirection(record.location)).normalize();
+        		light.getDirection(record.location, l).normalize();
         		Vector3d h = l.add(v).normalize();
         		
         		// 4) Compute the color of the point using the CookTorrance shading model. Add this value to the output.
@@ -87,14 +104,15 @@ public class CookTorrance extends Shader {
         		Colord kd = diffuseColor;
         	
 				double stuff = (F/Math.PI) * ((G * D)/(nv * nl));
-				Vector3d stuff2 = ks.mul(stuff).add(kd).mul(Math.max(nl, 0.0)).mul(light.intensity.div(r2));
 
-				Colord out = new Colord();					// our output colour calculations
-				out.set(stuff2);
+				// Work in a local colour so the shader and light colours are never modified
+				out.set(kd);								// our output colour calculations
+				out.addMultiple(stuff, ks).mul(Math.max(nl, 0.0)).mul(light.intensity).div(r2);
 
-        		outIntensity.add(out);			
+        		outIntensity.addMultiple(weights[i], out);			
         	}
         }
+        context.pop();
         
     }
 }
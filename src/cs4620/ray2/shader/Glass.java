@@ -4,6 +4,7 @@ import cs4620.ray2.RayTracer;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -40,22 +41,27 @@ public class Glass extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
+		context.push();
 		double n1, n2;
 		// v points from the surface to the light source
-		Vector3d v = ray.origin.clone().sub(record.location).normalize();
-		Vector3d norm = record.normal.clone();
+		Vector3d v = context.vector().set(ray.origin).sub(record.location).normalize();
+		Vector3d norm = context.vector().set(record.normal);
 		
-		Ray reflected = new Ray();
-		Ray refracted = new Ray();
+		Ray reflected = context.ray();
+		Ray refracted = context.ray();
 		reflected.makeOffsetRay();
 		refracted.makeOffsetRay();
+		reflected.setConeFrom(ray, record.t);
+		refracted.setConeFrom(ray, record.t);
 		
 		double cosTheta1;
 		double sinTheta1;
-		Vector3d reflDir;
+		Vector3d reflDir = context.vector();
 		boolean totalInternal = false;
 		
 		if (v.dot(norm) > 0) {
@@ -65,7 +71,7 @@ public class Glass extends Shader {
 			cosTheta1 = norm.dot(v);
 			sinTheta1 = Math.sqrt(1 - Math.pow(cosTheta1, 2));
 			
-			reflDir = norm.clone().sub(v).mul(2*v.dot(norm));
+			reflDir.set(norm).sub(v).mul(2*v.dot(norm));
 			reflected.set(record.location, reflDir);
 			
 			totalInternal = sinTheta1 > n2; 
@@ -77,30 +83,31 @@ public class Glass extends Shader {
 			cosTheta1 = norm.dot(v);
 			sinTheta1 = Math.sqrt(1 - Math.pow(cosTheta1, 2));
 			
-			reflDir = norm.clone().sub(v).mul(2*v.dot(norm));
+			reflDir.set(norm).sub(v).mul(2*v.dot(norm));
 			reflected.set(record.location, reflDir);
 			
 			totalInternal = sinTheta1 * n1 > 1; 
 		}
 		
 		if (totalInternal) {
-			Colord reflColour = new Colord(reflDir);
-			RayTracer.shadeRay(reflColour, scene,  reflected,  depth+1);
+			Colord reflColour = context.color();
+			RayTracer.shadeRay(reflColour, scene,  reflected,  depth+1, context);
 			outIntensity.add(reflColour);
 		} else {
 			double sinTheta2 = sinTheta1/n2;
 			double cosTheta2 = Math.sqrt(1 - Math.pow(sinTheta2, 2));
 			double R = fresnelCalc(norm, v, n1, n2);
-			Vector3d refrDir = norm.clone().mul((n1/n2)*cosTheta1 - cosTheta2).sub(v.mul(n1/n2));
+			Vector3d refrDir = context.vector().set(norm).mul((n1/n2)*cosTheta1 - cosTheta2).sub(v.mul(n1/n2));
 			refracted.set(record.location, refrDir);
 			
-			Colord reflColour = new Colord(reflDir);
-			Colord refrColour = new Colord(refrDir);
-			RayTracer.shadeRay(reflColour, scene,  reflected,  depth+1);
-			RayTracer.shadeRay(refrColour, scene, refracted, depth+1);
+			Colord reflColour = context.color();
+			Colord refrColour = context.color();
+			RayTracer.shadeRay(reflColour, scene,  reflected,  depth+1, context);
+			RayTracer.shadeRay(refrColour, scene, refracted, depth+1, context);
 			
 			outIntensity.setMultiple(R,reflColour).addMultiple(1-R, refrColour);
 		}
+		context.pop();
 	}
 				
 	protected double fresnelCalc(Vector3d normal, Vector3d outgoing, double n1, double n2) {
@@ -5,6 +5,7 @@ import cs4620.ray2.RayTracer;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -47,9 +48,11 @@ public class Glazed extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
 		// TODO#A7 EXTRA CREDIT: fill in this function.
         //  1) Compute the Fresnel term R
         //  2) Shade the substrate and multiply the result color by 1 - R
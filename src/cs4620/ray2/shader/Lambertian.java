@@ -4,6 +4,7 @@ import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Color;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -29,6 +30,14 @@ public class Lambertian extends Shader {
 		return "lambertian: " + diffuseColor;
 	}
 
+	/**
+	 * Every light is tested with isShadowed.
+	 */
+	@Override
+	public boolean usesShadowRays() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the intensity for a given intersection using the Lambert shading model.
 	 * 
@@ -37,35 +46,47 @@ public class Lambertian extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
-			
-		Vector3d incoming = new Vector3d();
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
+		context.push();
+		Vector3d incoming = context.vector();
+		Colord color = context.color();
+		Ray shadowRay = context.ray();
 		
+		// The texture is the same for every light, so it is looked up once
+		Colord diffuse = context.color();
+		if (texture == null)
+			diffuse.set(diffuseColor);
+		else
+			texture.getTexColor(record.texCoords, Texture.getFootprint(ray, record), diffuse);
+
 		outIntensity.setZero();
-		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
-								
-				double dotProd = record.normal.dot(incoming);
-				if (dotProd <= 0)
-					continue;
-				else {
-					double rSq= light.getRSq(record.location);
-					
-					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
-						 .mul(dotProd)
-						 .mul(light.intensity)
-						 .div(rSq);		
+		int count = scene.chooseLights(record, context);
+		Light[] lights = context.getChosenLights(count);
+		double[] weights = context.getChosenWeights(count);
+		for(int i = 0; i < count; i++) {
+			Light light = lights[i];
+			light.getDirection(record.location, incoming).normalize();
+
+			// Lights behind the surface add nothing, so they need no shadow ray
+			double dotProd = record.normal.dot(incoming);
+			if (dotProd <= 0 || isShadowed(scene, light, record, shadowRay, context))
+				continue;
+
+			double rSq= light.getRSq(record.location);
+			
+			color.set(diffuse);
+			color.mul(dotProd)
+				 .mul(light.intensity)
+				 .div(rSq);		
 
-					outIntensity.add(color);
-				}
-			}
+			outIntensity.addMultiple(weights[i], color);
 		}
+		addEnvironmentLight(outIntensity, scene, ray, record, diffuse, context);
+		context.pop();
 	}
 
 }
\ No newline at end of file
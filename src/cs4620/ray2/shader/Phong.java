@@ -4,6 +4,7 @@ import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Color;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -36,6 +37,14 @@ public class Phong extends Shader {
 		return "phong " + diffuseColor + " " + specularColor + " " + exponent + " end";
 	}
 
+	/**
+	 * Every light is tested with isShadowed.
+	 */
+	@Override
+	public boolean usesShadowRays() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the intensity for a given intersection using the Phong shading model.
 	 *
@@ -44,44 +53,128 @@ public class Phong extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
-		
-		Vector3d incoming = new Vector3d();
-		Vector3d outgoing = new Vector3d();
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
+		context.push();
+		Vector3d incoming = context.vector();
+		Vector3d outgoing = context.vector();
 		outgoing.set(ray.origin).sub(record.location).normalize();
+		Vector3d halfVec = context.vector();
 
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		Colord color = context.color();
+		Ray shadowRay = context.ray();
 		
+		// The texture is the same for every light, so it is looked up once
+		Colord diffuse = context.color();
+		if (texture == null)
+			diffuse.set(diffuseColor);
+		else
+			texture.getTexColor(record.texCoords, Texture.getFootprint(ray, record), diffuse);
+
 		outIntensity.setZero();
-		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
-				
-				double dotProd = record.normal.dot(incoming);
-				if (dotProd <= 0)
-					continue;
-				else {
-					Vector3d halfVec = new Vector3d();
-					halfVec.set(incoming).add(outgoing).normalize();
-					
-					double halfDotNormal = Math.max(0.0, halfVec.dot(record.normal));
-					double factor = Math.pow(halfDotNormal, exponent);
-					double rSq = light.getRSq(record.location);
-					
-					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
-						 .mul(dotProd)
-						 .addMultiple(factor, specularColor)
-						 .mul(light.intensity)
-						 .div(rSq);
-					
-					outIntensity.add(color);
-				}
-			}
+		int count = scene.chooseLights(record, context);
+		Light[] lights = context.getChosenLights(count);
+		double[] weights = context.getChosenWeights(count);
+		for(int i = 0; i < count; i++) {
+			Light light = lights[i];
+			light.getDirection(record.location, incoming).normalize();
+
+			// Lights behind the surface add nothing, so they need no shadow ray
+			double dotProd = record.normal.dot(incoming);
+			if (dotProd <= 0 || isShadowed(scene, light, record, shadowRay, context))
+				continue;
+
+			halfVec.set(incoming).add(outgoing).normalize();
+			
+			double halfDotNormal = Math.max(0.0, halfVec.dot(record.normal));
+			double factor = Math.pow(halfDotNormal, exponent);
+			double rSq = light.getRSq(record.location);
+			
+			color.set(diffuse);
+			color.mul(dotProd)
+				 .addMultiple(factor, specularColor)
+				 .mul(light.intensity)
+				 .div(rSq);
+			
+			outIntensity.addMultiple(weights[i], color);
+		}
+		addEnvironmentLight(outIntensity, scene, ray, record, diffuse, context);
+		context.pop();
+	}
+
+	/**
+	 * For light from the environment, the diffuse color as albedo plus a normalized
+	 * Blinn-Phong lobe: the specular color times (exponent + 8) / 8 pi times the cosine
+	 * between the half vector and the normal to the exponent.
+	 */
+	@Override
+	protected void bsdf(Vector3d incoming, Vector3d outgoing, IntersectionRecord record,
+			Colord diffuse, Colord outValue) {
+		double nh = halfCos(incoming, outgoing, record.normal);
+		double specular = nh > 0 ? (exponent + 8) / (8 * Math.PI) * Math.pow(nh, exponent) : 0;
+		outValue.set(diffuse).mul(1 / Math.PI).addMultiple(specular, specularColor);
+	}
+
+	/**
+	 * Choose between the cosine and the lobe in proportion to the diffuse and specular
+	 * colors, and sample the lobe by its half vector.
+	 */
+	@Override
+	protected double sampleBsdf(double u, double v, Vector3d outgoing, IntersectionRecord record,
+			Colord diffuse, Vector3d outIncoming) {
+		double pd = diffuseFraction(diffuse);
+		if (u < pd)
+			return super.sampleBsdf(u / pd, v, outgoing, record, diffuse, outIncoming);
+
+		u = Math.min((u - pd) / (1 - pd), 1 - Math.ulp(1.0));
+		double cos = Math.pow(1 - u, 1 / (exponent + 1));
+		double sin = Math.sqrt(Math.max(0, 1 - cos * cos));
+		double phi = 2 * Math.PI * v;
+		toWorld(record.normal, sin * Math.cos(phi), sin * Math.sin(phi), cos, outIncoming);
+
+		// Reflect outgoing about the half vector
+		double oh = outgoing.dot(outIncoming);
+		outIncoming.mul(2 * oh).sub(outgoing);
+		return bsdfPdf(outIncoming, outgoing, record, diffuse);
+	}
+
+	@Override
+	protected double bsdfPdf(Vector3d incoming, Vector3d outgoing, IntersectionRecord record, Colord diffuse) {
+		double cos = record.normal.dot(incoming);
+		if (cos <= 0) return 0;
+		double pd = diffuseFraction(diffuse);
+		double pdf = pd * cos / Math.PI;
+
+		double nh = halfCos(incoming, outgoing, record.normal);
+		if (nh > 0 && pd < 1) {
+			// The density of the half vector, over the 4 (o . h) that reflecting stretches it by
+			double hx = incoming.x + outgoing.x, hy = incoming.y + outgoing.y, hz = incoming.z + outgoing.z;
+			double oh = (outgoing.x * hx + outgoing.y * hy + outgoing.z * hz) / Math.sqrt(hx * hx + hy * hy + hz * hz);
+			if (oh > 0)
+				pdf += (1 - pd) * (exponent + 1) / (2 * Math.PI) * Math.pow(nh, exponent) / (4 * oh);
 		}
+		return pdf;
+	}
+
+	/**
+	 * The chance that sampleBsdf samples the diffuse part.
+	 */
+	private double diffuseFraction(Colord diffuse) {
+		double d = diffuse.x + diffuse.y + diffuse.z;
+		double s = specularColor.x + specularColor.y + specularColor.z;
+		return d + s > 0 ? d / (d + s) : 1;
+	}
+
+	/**
+	 * The cosine between the normal and the half vector of two unit directions.
+	 */
+	private static double halfCos(Vector3d incoming, Vector3d outgoing, Vector3d normal) {
+		double hx = incoming.x + outgoing.x, hy = incoming.y + outgoing.y, hz = incoming.z + outgoing.z;
+		double len = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		return len > 0 ? (normal.x * hx + normal.y * hy + normal.z * hz) / len : 0;
 	}
 
 }
\ No newline at end of file
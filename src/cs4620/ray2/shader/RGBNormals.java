@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Colord;
 
 public class RGBNormals extends Shader {
@@ -23,8 +24,11 @@ public class RGBNormals extends Shader {
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread.
 	 */
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			ShadingContext context) {
 		outIntensity.x = (record.normal.x + 1) / 2;
 		outIntensity.y = (record.normal.y + 1) / 2;
 		outIntensity.z = (record.normal.z + 1) / 2;
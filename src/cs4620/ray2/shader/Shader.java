@@ -1,10 +1,13 @@
 package cs4620.ray2.shader;
 
+import cs4620.ray2.Cubemap;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.ShadingContext;
 import egl.math.Colord;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 
 /**
@@ -32,9 +35,11 @@ public abstract class Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context Scratch space of the calling thread; whatever is taken from it is
+	 * given back before returning.
 	 */
 	public abstract void shade(Colord outIntensity, Scene scene, Ray ray, 
-			IntersectionRecord record, int depth);
+			IntersectionRecord record, int depth, ShadingContext context);
 	
 	/**
 	 * A utility method to check if there is any surface between the given intersection
@@ -46,23 +51,204 @@ public abstract class Shader {
 	 * @param record The intersection point on a surface.
 	 * @param shadowRay A ray that is set to point from the intersection point towards
 	 * the given light.
+	 * @param context Scratch space of the calling thread, which remembers what last
+	 * blocked each light.
 	 * @return true if there is any surface between the intersection point and the light;
 	 * false otherwise.
 	 */
-	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay) {		
+	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay,
+			ShadingContext context) {
+		initShadowRay(light, record, shadowRay);
+
+		// A packet of shadow rays may already have answered this
+		if (record.shadowed != null) {
+			int index = light.getIndex();
+			if (index >= 0 && index < record.shadowed.length)
+				return record.shadowed[index];
+		}
+
+		return scene.isOccluded(shadowRay, light, context);
+	}
+
+	/**
+	 * Set shadowRay to point from the intersection point towards the given light and
+	 * to end at the light.
+	 *
+	 * @param light A light in the scene.
+	 * @param record The intersection point on a surface.
+	 * @param shadowRay The ray to set up.
+	 */
+	public static void initShadowRay(Light light, IntersectionRecord record, Ray shadowRay) {
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(record.location);
-		shadowRay.direction.set(light.getDirection(record.location));
+		light.getDirection(record.location, shadowRay.direction);
 
 		double end = light.getShadowRayEnd(record.location);//shadowRay.direction.len();
 		shadowRay.direction.normalize();
 		
 		// Set the ray to end at the light
 		shadowRay.makeOffsetSegment(end);
-		
-		return scene.getAnyIntersection(shadowRay);
+	}
+
+	/**
+	 * Whether shade() calls isShadowed for every light in the scene. If so, the renderer
+	 * traces the shadow rays of neighbouring pixels together as a packet before shading.
+	 *
+	 * @return true if every light is tested for shadows
+	 */
+	public boolean usesShadowRays() {
+		return false;
 	}
 	
+	/**
+	 * Add the light of the scene's cubemap reflected by the surface at a hit, if the scene
+	 * sets environmentSamples. Each of the samples takes one direction towards a bright
+	 * part of the cubemap and one from the BSDF, and traces a shadow ray along each. The
+	 * two are combined by multiple importance sampling with the power heuristic, so that
+	 * small bright parts of the cubemap and glossy reflections both converge quickly.
+	 *
+	 * @param outIntensity the light is added to this
+	 * @param scene The scene in which the surface exists.
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param diffuse the diffuse color at the hit, for bsdf
+	 * @param context Scratch space of the calling thread.
+	 */
+	protected void addEnvironmentLight(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record,
+			Colord diffuse, ShadingContext context) {
+		Cubemap environment = scene.getCubemap();
+		int n = scene.getEnvironmentSamples();
+		if (environment == null || n == 0) return;
+
+		context.push();
+		Vector3d outgoing = context.vector().set(ray.direction).negate().normalize();
+		Vector3d incoming = context.vector();
+		Vector2d seed = context.vector2();
+		Ray shadowRay = context.ray();
+		Colord value = context.color();
+		Colord radiance = context.color();
+		Colord sum = context.color();
+		sum.setZero();
+
+		// Stratified in the first dimension, with a jitter and a second dimension of
+		// their own for every sample: a fixed pattern would line up with the rows of the
+		// cubemap's alias table and bias each hit
+		Vector3d p = record.location;
+		for (int i = 0; i < n; i++) {
+			double u = (i + Scene.random(p, 4 * i + 1)) / n;
+			double v = Scene.random(p, 4 * i + 2);
+
+			// A direction towards the environment
+			seed.set(u, v);
+			environment.generate(seed, incoming, context);
+			double pdfLight = environment.pdf(incoming, context);
+			double cos = record.normal.dot(incoming);
+			if (cos > 0 && pdfLight > 0) {
+				bsdf(incoming, outgoing, record, diffuse, value);
+				double pdfBsdf = bsdfPdf(incoming, outgoing, record, diffuse);
+				addEnvironmentSample(sum, scene, environment, record, incoming, value, cos,
+						pdfLight, pdfBsdf, shadowRay, radiance, context);
+			}
+
+			// A direction from the BSDF
+			u = (i + Scene.random(p, 4 * i + 3)) / n;
+			v = Scene.random(p, 4 * i + 4);
+			double pdfBsdf = sampleBsdf(u, v, outgoing, record, diffuse, incoming);
+			cos = record.normal.dot(incoming);
+			if (cos > 0 && pdfBsdf > 0) {
+				bsdf(incoming, outgoing, record, diffuse, value);
+				pdfLight = environment.pdf(incoming, context);
+				addEnvironmentSample(sum, scene, environment, record, incoming, value, cos,
+						pdfBsdf, pdfLight, shadowRay, radiance, context);
+			}
+		}
+		outIntensity.addMultiple(1.0 / n, sum);
+		context.pop();
+	}
+
+	/**
+	 * Add one sample of addEnvironmentLight, taken with density pdf while the other
+	 * strategy would have taken it with density pdfOther, if nothing blocks it.
+	 */
+	private static void addEnvironmentSample(Colord sum, Scene scene, Cubemap environment,
+			IntersectionRecord record, Vector3d incoming, Colord value, double cos,
+			double pdf, double pdfOther, Ray shadowRay, Colord radiance, ShadingContext context) {
+		if (value.x == 0 && value.y == 0 && value.z == 0) return;
+		environment.evaluate(incoming, radiance, context);
+		if (radiance.x == 0 && radiance.y == 0 && radiance.z == 0) return;
+
+		shadowRay.origin.set(record.location);
+		shadowRay.direction.set(incoming);
+		shadowRay.makeOffsetSegment(Double.MAX_VALUE);
+		if (scene.getAnyIntersection(shadowRay)) return;
+
+		double weight = pdf * pdf / (pdf * pdf + pdfOther * pdfOther);
+		radiance.mul(value).mul(cos * weight / pdf);
+		sum.add(radiance);
+	}
+
+	/**
+	 * The BSDF of the surface for light arriving from incoming and leaving towards
+	 * outgoing, as used by addEnvironmentLight. By default the surface is Lambertian with
+	 * the diffuse color as albedo, so that a white surface under a uniform environment is
+	 * as bright as the environment.
+	 *
+	 * @param incoming unit direction towards where the light comes from
+	 * @param outgoing unit direction towards where the light goes
+	 * @param record the hit
+	 * @param diffuse the diffuse color at the hit
+	 * @param outValue the BSDF value
+	 */
+	protected void bsdf(Vector3d incoming, Vector3d outgoing, IntersectionRecord record,
+			Colord diffuse, Colord outValue) {
+		outValue.set(diffuse).mul(1 / Math.PI);
+	}
+
+	/**
+	 * Choose an incoming direction in proportion to the BSDF, as used by
+	 * addEnvironmentLight. By default in proportion to the cosine with the normal.
+	 *
+	 * @param u a number in [0, 1)
+	 * @param v another number in [0, 1)
+	 * @param outgoing unit direction towards where the light goes
+	 * @param record the hit
+	 * @param diffuse the diffuse color at the hit
+	 * @param outIncoming the unit direction chosen
+	 * @return the density per unit solid angle of choosing outIncoming, as bsdfPdf
+	 */
+	protected double sampleBsdf(double u, double v, Vector3d outgoing, IntersectionRecord record,
+			Colord diffuse, Vector3d outIncoming) {
+		double r = Math.sqrt(u), phi = 2 * Math.PI * v;
+		toWorld(record.normal, r * Math.cos(phi), r * Math.sin(phi), Math.sqrt(Math.max(0, 1 - u)), outIncoming);
+		return bsdfPdf(outIncoming, outgoing, record, diffuse);
+	}
+
+	/**
+	 * The density per unit solid angle with which sampleBsdf chooses incoming.
+	 *
+	 * @param incoming unit direction towards where the light comes from
+	 * @param outgoing unit direction towards where the light goes
+	 * @param record the hit
+	 * @param diffuse the diffuse color at the hit
+	 * @return the density
+	 */
+	protected double bsdfPdf(Vector3d incoming, Vector3d outgoing, IntersectionRecord record, Colord diffuse) {
+		return Math.max(0, record.normal.dot(incoming)) / Math.PI;
+	}
+
+	/**
+	 * Set out to x, y and z in a frame whose z axis is the unit vector normal.
+	 */
+	protected static void toWorld(Vector3d normal, double x, double y, double z, Vector3d out) {
+		// Duff et al., "Building an orthonormal basis, revisited"
+		double sign = normal.z >= 0 ? 1 : -1;
+		double a = -1 / (sign + normal.z);
+		double b = normal.x * normal.y * a;
+		out.set(x * (1 + sign * normal.x * normal.x * a) + y * b + z * normal.x,
+				x * sign * b + y * (sign + normal.y * normal.y * a) + z * normal.y,
+				-x * sign * normal.x - y * normal.y + z * normal.z);
+	}
+
 	protected double fresnel(Vector3d normal, Vector3d outgoing, double refractiveIndex) {
 		//TODO#A7 compute the fresnel term using the equation in the lecture
 		double n1 = 1;		// assume air according to piazza
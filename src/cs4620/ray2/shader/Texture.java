@@ -5,42 +5,213 @@ import java.io.File;
 
 import javax.imageio.ImageIO;
 
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
 import cs4620.ray2.RayTracer;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
 /**
- * This class represents a simple 2D texture implementation for a shader. It stores and
- * reads from a BufferedImage which is read in from an arbitrary image file on disk.
- * 
+ * This class represents a simple 2D texture implementation for a shader. It reads an
+ * arbitrary image file from disk and decodes it once into RGB floats, along with a
+ * pyramid of mip levels each half the size of the one before. Lookups filter the level
+ * whose texels match the footprint of the ray bilinearly, and blend the two nearest
+ * levels (trilinear filtering), so that minified textures do not alias.
+ *
+ * Subclasses decide what happens to texels outside the image.
+ *
  * @author eschweickart
  *
  */
 public abstract class Texture {
+	/** The natural logarithm of 2, to turn footprints into mip levels. */
+	private static final double LN2 = Math.log(2);
+
+	/**
+	 * The smallest cosine of the angle between a ray and the surface used to stretch its
+	 * footprint, so that grazing hits do not blur to a single texel.
+	 */
+	private static final double MIN_COS = 0.1;
+
 	/** The image used when looking up UV coordinates. */
 	protected BufferedImage image;
+
+	/**
+	 * The image and its mip levels as RGB floats in [0, 1], 3 per texel, row by row from
+	 * the top of the image; level 0 is the image itself. Null until an image is set.
+	 */
+	protected float[][] levels;
+	/** The width and height of each mip level. */
+	protected int[] levelWidths, levelHeights;
+
 	/** Return the BufferedImage used for lookup. */
 	public BufferedImage getImage() { return image; }
 	/** Set the BufferedImage from a given file on disk. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
+		String path = RayTracer.getSceneWorkspace().resolve(filename);
+		System.out.println("Loading: " + path);
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
+			File f = new File(path);
 			image = ImageIO.read(f);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
+		decode();
 	}
-	
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
-	
+
+	/**
+	 * Decode image into the float texels of level 0 and halve it with a box filter until
+	 * a level is 1 x 1.
+	 */
+	private void decode() {
+		int width = image.getWidth(), height = image.getHeight();
+		int count = 1;
+		for (int w = width, h = height; w > 1 || h > 1; w = Math.max(1, w / 2), h = Math.max(1, h / 2))
+			count++;
+		levels = new float[count][];
+		levelWidths = new int[count];
+		levelHeights = new int[count];
+
+		// The colour model is only gone through once, for the whole image
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		float[] texels = new float[3 * rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			texels[3*i] = ((rgb[i] >> 16) & 0xFF) / 255.0f;
+			texels[3*i+1] = ((rgb[i] >> 8) & 0xFF) / 255.0f;
+			texels[3*i+2] = (rgb[i] & 0xFF) / 255.0f;
+		}
+		levels[0] = texels;
+		levelWidths[0] = width;
+		levelHeights[0] = height;
+
+		for (int l = 1; l < count; l++) {
+			float[] src = levels[l-1];
+			int sw = levelWidths[l-1], sh = levelHeights[l-1];
+			int w = Math.max(1, sw / 2), h = Math.max(1, sh / 2);
+			float[] dst = new float[3 * w * h];
+			for (int y = 0; y < h; y++) {
+				int y0 = Math.min(2 * y, sh - 1), y1 = Math.min(2 * y + 1, sh - 1);
+				for (int x = 0; x < w; x++) {
+					int x0 = Math.min(2 * x, sw - 1), x1 = Math.min(2 * x + 1, sw - 1);
+					int a = 3 * (y0 * sw + x0), b = 3 * (y0 * sw + x1);
+					int c = 3 * (y1 * sw + x0), d = 3 * (y1 * sw + x1);
+					int o = 3 * (y * w + x);
+					for (int k = 0; k < 3; k++)
+						dst[o+k] = 0.25f * (src[a+k] + src[b+k] + src[c+k] + src[d+k]);
+				}
+			}
+			levels[l] = dst;
+			levelWidths[l] = w;
+			levelHeights[l] = h;
+		}
+	}
+
+	/**
+	 * The footprint of a ray's cone where it hits a surface, in texture coordinate units,
+	 * for getTexColor. It is 0 when the ray has no cone or the surface no texture scale.
+	 *
+	 * @param ray the ray that hit
+	 * @param record the hit
+	 */
+	public static double getFootprint(Ray ray, IntersectionRecord record) {
+		if (record.texScale == 0) return 0;
+		double width = ray.getConeWidth(record.t);
+		if (width == 0) return 0;
+
+		// The cone is stretched along one axis of the surface by 1 / cos; an isotropic
+		// filter is given the geometric mean of the two axes
+		double cos = Math.abs(ray.direction.dot(record.normal)) / ray.direction.len();
+		return width * record.texScale / Math.sqrt(Math.max(cos, MIN_COS));
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate, filtered bilinearly over the full
+	 * size image.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param outColor The color at the given point.
+	 */
+	public void getTexColor(Vector2d texCoord, Colord outColor) {
+		getTexColor(texCoord, 0, outColor);
+	}
+
 	/**
-	 * Get the texture color at a given UV coordinate.
-	 * 
+	 * Get the texture color at a given UV coordinate, filtered over a footprint.
+	 *
 	 * @param texCoord The UV texture coordinates.
-	 * @return The color at the given point.
+	 * @param footprint The width of the area to filter over in UV units, as from
+	 * getFootprint; 0 for a bilinear lookup in the full size image.
+	 * @param outColor The color at the given point.
+	 */
+	public void getTexColor(Vector2d texCoord, double footprint, Colord outColor) {
+		outColor.setZero();
+		if (levels == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			return;
+		}
+
+		// The level whose texels are as wide as the footprint
+		int last = levels.length - 1;
+		double lod = footprint > 0
+				? Math.log(footprint * Math.max(levelWidths[0], levelHeights[0])) / LN2 : 0;
+		if (!(lod > 0)) {
+			addBilinear(0, texCoord.x, texCoord.y, 1, outColor);
+		} else if (lod >= last) {
+			addBilinear(last, texCoord.x, texCoord.y, 1, outColor);
+		} else {
+			int l = (int) lod;
+			double f = lod - l;
+			addBilinear(l, texCoord.x, texCoord.y, 1 - f, outColor);
+			addBilinear(l + 1, texCoord.x, texCoord.y, f, outColor);
+		}
+	}
+
+	/**
+	 * Add weight times the bilinear interpolation of the four texels of a level around
+	 * (u, v) to outColor.
+	 */
+	private void addBilinear(int level, double u, double v, double weight, Colord outColor) {
+		int width = levelWidths[level], height = levelHeights[level];
+		float[] texels = levels[level];
+
+		// Texel centers are at half integers; rows run from the top
+		double x = u * width - 0.5;
+		double y = (1.0 - v) * height - 0.5;
+		int x0 = (int) x, y0 = (int) y;
+		if (x < x0) x0--;
+		if (y < y0) y0--;
+		double tx = x - x0, ty = y - y0;
+
+		// Only texels outside the image need wrapping
+		int x1 = x0 + 1, y1 = y0 + 1;
+		if (x0 < 0 || x1 >= width) {
+			x0 = wrap(x0, width);
+			x1 = wrap(x1, width);
+		}
+		if (y0 < 0 || y1 >= height) {
+			y0 = wrap(y0, height);
+			y1 = wrap(y1, height);
+		}
+
+		int a = 3 * (y0 * width + x0), b = 3 * (y0 * width + x1);
+		int c = 3 * (y1 * width + x0), d = 3 * (y1 * width + x1);
+		double wa = weight * (1 - tx) * (1 - ty), wb = weight * tx * (1 - ty);
+		double wc = weight * (1 - tx) * ty, wd = weight * tx * ty;
+		outColor.x += wa * texels[a] + wb * texels[b] + wc * texels[c] + wd * texels[d];
+		outColor.y += wa * texels[a+1] + wb * texels[b+1] + wc * texels[c+1] + wd * texels[d+1];
+		outColor.z += wa * texels[a+2] + wb * texels[b+2] + wc * texels[c+2] + wd * texels[d+2];
+	}
+
+	/**
+	 * Map a texel index that may be outside the image to one inside it.
+	 *
+	 * @param i The texel index along one axis.
+	 * @param size The number of texels along that axis.
+	 * @return The index in [0, size) to read instead.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	protected abstract int wrap(int i, int size);
 }
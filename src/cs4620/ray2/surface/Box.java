@@ -81,13 +81,13 @@ public class Box extends Surface {
 		tMat.mulPos(averagePosition);
 
 		// convert from object to world so we can store min and max bounds
-		Vector3d worldMin = tMat.mulPos(minPt.clone());
-		Vector3d worldMax = tMat.mulPos(maxPt.clone());
-		
-		minBound = new Vector3d(worldMin.x, worldMin.y, worldMin.z);
-		maxBound = new Vector3d(worldMax.x, worldMax.y, worldMax.z);
+		setTransformedBounds(minPt, maxPt);
 	}
 
+	/**
+	 * A box is rendered as the triangles of its mesh, whose hits fill in texCoords and
+	 * texScale, so the box itself is never hit and never touches outRecord.
+	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
 		return false;
 	}
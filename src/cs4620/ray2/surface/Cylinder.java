@@ -43,7 +43,7 @@ public class Cylinder extends Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-		    Ray ray = untransformRay(rayIn);
+		    Ray ray = untransformRay(rayIn, getScratchRay());
 
 		    // Rename the common vectors so I don't have to type so much
 		    Vector3d d = ray.direction;
@@ -103,15 +103,11 @@ public class Cylinder extends Surface {
 		      t = t2;
 		    }
 
-		    Vector3d thit1 = new Vector3d(0); 
-		    ray.evaluate(thit1, tMin);
-		    Vector3d thit2 = new Vector3d(0); 
-		    ray.evaluate(thit2, tMax);
-
-		    double dx1 = thit1.x-c.x;  
-		    double dy1 = thit1.y-c.y; 
-		    double dx2 = thit2.x-c.x;  
-		    double dy2 = thit2.y-c.y; 
+		    // The points where the ray enters and leaves the slab between the caps
+		    double dx1 = (o.x + tMin * d.x)-c.x;  
+		    double dy1 = (o.y + tMin * d.y)-c.y; 
+		    double dx2 = (o.x + tMax * d.x)-c.x;  
+		    double dy2 = (o.y + tMax * d.y)-c.y; 
 
 		    if ((t < tMin || t > tMax) && dx1 * dx1 + dy1 * dy1 > rr && dx2 * dx2 + dy2 * dy2 > rr) {
 		      return false;
@@ -136,6 +132,9 @@ public class Cylinder extends Surface {
 		        outRecord.normal.negate();
 
 		      outRecord.surface = this;
+		      // There is no parametrization, so leave nothing of an earlier hit for textures
+		      outRecord.texCoords.setZero();
+		      outRecord.texScale = 0;
 
 		      tMat.mulPos(outRecord.location);
 		      tMatTInv.mulDir(outRecord.normal).normalize();
@@ -151,11 +150,8 @@ public class Cylinder extends Surface {
 		averagePosition = tMat.mulPos(center.clone());
 		
 		// convert from object to world so we can store min and max bounds
-		Vector3d worldMin = tMat.mulPos(new Vector3d(center.x - radius, center.y - radius, center.z - height));
-		Vector3d worldMax = tMat.mulPos(new Vector3d(center.x + radius, center.y + radius, center.z + height));
-		
-		minBound = new Vector3d(worldMin.x, worldMin.y, worldMin.z);
-		maxBound = new Vector3d(worldMax.x, worldMax.y, worldMax.z);
+		setTransformedBounds(new Vector3d(center.x - radius, center.y - radius, center.z - height),
+				new Vector3d(center.x + radius, center.y + radius, center.z + height));
 	}
 
 	/**
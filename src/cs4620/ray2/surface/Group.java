@@ -36,11 +36,8 @@ public class Group extends Surface {
     tMatInv = new Matrix4d(tMat).invert();
     tMatTInv = new Matrix4d(tMat).transpose().invert();
     
-    // Call setTransformation(tMat, tMatInv, tMatTInv) on each of the children.
-    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
-      Surface currSurface = iter.next();
-      currSurface.setTransformation(tMat, tMatInv, tMatTInv);
-    }
+    // The children are given tMat when they are appended, one instance per reference,
+    // so that a child referenced from several groups keeps each group's transformation
     computeBoundingBox();
   }
   
@@ -74,7 +71,13 @@ public class Group extends Surface {
   public void computeBoundingBox() {  }
 
   public void appendRenderableSurfaces (ArrayList<Surface> in) {
-    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
-      iter.next().appendRenderableSurfaces(in);
+    // A surface can be referenced from several groups, and a surface has only one
+    // transformation. Each child is appended as an instance of its own that carries
+    // this group's transformation, so every reference keeps its own transform.
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
+      Surface instance = iter.next().instance();
+      instance.setTransformation(tMat, tMatInv, tMatTInv);
+      instance.appendRenderableSurfaces(in);
+    }
   }
 }
\ No newline at end of file
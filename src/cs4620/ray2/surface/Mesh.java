@@ -3,18 +3,17 @@ package cs4620.ray2.surface;
 import java.util.ArrayList;
 
 import cs4620.mesh.MeshData;
-import cs4620.mesh.OBJParser;
+import cs4620.mesh.MeshCache;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
 import cs4620.ray2.RayTracer;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
-import egl.math.Vector3i;
 
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
- * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
+ * appendRenderableSurfaces on this object, it appends a TriangleSoup holding
+ * all triangles of the mesh onto the given ArrayList. This way, the Scene has direct access to
  * all intersectable Surfaces in the scene.
  * 
  * @author eschweic
@@ -25,6 +24,12 @@ public class Mesh extends Surface {
 	/** The underlying data of this Mesh. */
 	private MeshData mesh = null;
 
+	/**
+	 * The triangles of this mesh in object space, built the first time they are needed.
+	 * Every instance of this mesh shares them.
+	 */
+	private TriangleSoup geometry = null;
+
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
@@ -43,26 +48,34 @@ public class Mesh extends Surface {
 	 * @param fileName the name of a .obj file on disk.
 	 */
 	public void setData(String fileName) {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		mesh = (OBJParser.parse(RayTracer.sceneWorkspace.resolve(fileName))).flatten();
+		String path = RayTracer.getSceneWorkspace().resolve(fileName);
+		System.out.println("Loading " + path);
+		mesh = MeshCache.read(path);
+		geometry = null;
 	}
 	
+	/**
+	 * The geometry is built before copying, so that all instances share it.
+	 *
+	 * @see Surface#instance()
+	 */
+	@Override
+	public Surface instance() {
+		if (geometry == null) geometry = new TriangleSoup(mesh, shader);
+		return super.instance();
+	}
+
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
 	public void computeBoundingBox() {	}
 
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
-		for (int i=0; i<mesh.indexCount/3; i++) {
-			Vector3i triVec = new Vector3i(mesh.indices.get(3*i),
-										   mesh.indices.get(3*i+1),
-										   mesh.indices.get(3*i+2));
-			Triangle t = new Triangle(this, new Vector3i(triVec), shader);
-			
-			t.setShader(this.shader);
-			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
-			
-			t.computeBoundingBox();
-			in.add(t);
-		}
+		// All triangles go in as one TriangleSoup, which has its own hierarchy. A mesh
+		// referenced from several groups is appended once per reference (see
+		// Group.appendRenderableSurfaces), and the instances share one geometry.
+		if (geometry == null) geometry = new TriangleSoup(mesh, shader);
+		TriangleSoup soup = new TriangleSoup(geometry, shader);
+		soup.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
+		in.add(soup);
 	}
 	
 	/**
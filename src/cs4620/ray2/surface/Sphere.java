@@ -44,7 +44,7 @@ public class Sphere extends Surface {
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
 		//transform the ray into object space
-		Ray ray = untransformRay(rayIn);
+		Ray ray = untransformRay(rayIn, getScratchRay());
 		
 		// Rename the common vectors so I don't have to type so much
 		Vector3d d = ray.direction;
@@ -94,6 +94,13 @@ public class Sphere extends Surface {
 			double u = (phi + Math.PI) / (2 * Math.PI);
 			double v = (theta - Math.PI / 2) / Math.PI;
 			outRecord.texCoords.set(u, v);
+
+			// dP/du runs around the latitude and dP/dv along the meridian
+			double nx = outRecord.normal.x, ny = outRecord.normal.y, nz = outRecord.normal.z;
+			double cosTheta = Math.max(Math.sqrt(nx * nx + nz * nz), 1e-6);
+			double su = 2 * Math.PI * radius, sv = Math.PI * radius;
+			outRecord.texScale = texScale(su * nz, 0, -su * nx,
+					-sv * ny * nx / cosTheta, sv * cosTheta, -sv * ny * nz / cosTheta);
 			
 			//transform location and normal back to world space
 			tMat.mulPos(outRecord.location);
@@ -110,11 +117,8 @@ public class Sphere extends Surface {
 		averagePosition = tMat.mulPos(center.clone());
 		
 		// convert from object to world so we can store min and max bounds
-		Vector3d worldMin = tMat.mulPos(new Vector3d(center.x - radius, center.y - radius, center.z - radius));
-		Vector3d worldMax = tMat.mulPos(new Vector3d(center.x + radius, center.y + radius, center.z + radius));
-		
-		minBound = new Vector3d(worldMin.x, worldMin.y, worldMin.z);
-		maxBound = new Vector3d(worldMax.x, worldMax.y, worldMax.z);
+		setTransformedBounds(new Vector3d(center.x - radius, center.y - radius, center.z - radius),
+				new Vector3d(center.x + radius, center.y + radius, center.z + radius));
 
 	}
 
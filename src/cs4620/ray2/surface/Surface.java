@@ -16,7 +16,7 @@ import egl.math.Vector3d;
  *
  * @author ags, ss932
  */
-public abstract class Surface {
+public abstract class Surface implements Cloneable {
 	/* tMat, tMatInv, tMatTInv are calculated and stored in each instance to avoid recomputing */
 	
 	/** The transformation matrix. */
@@ -47,19 +47,65 @@ public abstract class Surface {
 	public Vector3d getMinBound() { return minBound; }
 	public Vector3d getMaxBound() { return maxBound; }	
 	
+	/** Per-thread rays for intersection tests in object space, so that they never allocate. */
+	private static final ThreadLocal<Ray> scratchRays = new ThreadLocal<Ray>() {
+		@Override
+		protected Ray initialValue() {
+			return new Ray();
+		}
+	};
+
+	/**
+	 * @return this thread's scratch ray. Intersection tests do not nest, so an intersect
+	 * method may use it until it returns.
+	 */
+	protected static Ray getScratchRay() {
+		return scratchRays.get();
+	}
+
 	/**
 	 * Un-transform rayIn using tMatInv 
 	 * @param rayIn Input ray
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		return untransformRay(rayIn, new Ray());
+	}
 
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
-		return ray;
+	/**
+	 * Un-transform rayIn using tMatInv 
+	 * @param rayIn Input ray
+	 * @param outRay Output ray, which may not be rayIn
+	 * @return outRay, set to tMatInv * rayIn
+	 */
+	public Ray untransformRay(Ray rayIn, Ray outRay) {
+		outRay.set(rayIn.origin, rayIn.direction);
+		outRay.start = rayIn.start;
+		outRay.end = rayIn.end;
+
+		tMatInv.mulDir(outRay.direction);
+		tMatInv.mulPos(outRay.origin);
+		return outRay;
+	}
+	
+	/**
+	 * Set minBound and maxBound to the world space box enclosing an object space box.
+	 * All eight corners are transformed, so the result is correct under rotation.
+	 * @param objMin The smaller corner of the box in object space
+	 * @param objMax The larger corner of the box in object space
+	 */
+	protected void setTransformedBounds(Vector3d objMin, Vector3d objMax) {
+		minBound = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		Vector3d corner = new Vector3d();
+		for (int i = 0; i < 8; i++) {
+			corner.set((i & 1) == 0 ? objMin.x : objMax.x,
+					(i & 2) == 0 ? objMin.y : objMax.y,
+					(i & 4) == 0 ? objMin.z : objMax.z);
+			tMat.mulPos(corner);
+			minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+			maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+		}
 	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
@@ -68,6 +114,33 @@ public abstract class Surface {
 		tMatTInv = aTInv;
 		computeBoundingBox();
 	}
+
+	/**
+	 * @return the area of the parallelogram spanned by the object space vectors a and b,
+	 * once they are transformed to world space
+	 */
+	protected double worldArea(double ax, double ay, double az, double bx, double by, double bz) {
+		double[] m = tMat.m;
+		double wax = m[0] * ax + m[4] * ay + m[8] * az;
+		double way = m[1] * ax + m[5] * ay + m[9] * az;
+		double waz = m[2] * ax + m[6] * ay + m[10] * az;
+		double wbx = m[0] * bx + m[4] * by + m[8] * bz;
+		double wby = m[1] * bx + m[5] * by + m[9] * bz;
+		double wbz = m[2] * bx + m[6] * by + m[10] * bz;
+		double cx = way * wbz - waz * wby;
+		double cy = waz * wbx - wax * wbz;
+		double cz = wax * wby - way * wbx;
+		return Math.sqrt(cx * cx + cy * cy + cz * cz);
+	}
+
+	/**
+	 * @return the texture scale (see IntersectionRecord.texScale) of a parametrization
+	 * whose object space partial derivatives are a and b for unit steps in u and v
+	 */
+	protected double texScale(double ax, double ay, double az, double bx, double by, double bz) {
+		double area = worldArea(ax, ay, az, bx, by, bz);
+		return area > 0 ? 1 / Math.sqrt(area) : 0;
+	}
 	
 	/**
 	 * Tests this surface for intersection with ray. If an intersection is found
@@ -81,12 +154,40 @@ public abstract class Surface {
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * Tests whether any part of this surface lies on ray between its start and end, as for
+	 * a shadow ray. Nothing is recorded, and surfaces made of many parts may stop at the
+	 * first part they find rather than the closest.
+	 *
+	 * @param ray the ray to test; it is not modified
+	 * @return true if the surface blocks the ray
+	 */
+	public boolean occludes(Ray ray) {
+		return intersect(null, ray);
+	}
+
 	/**
 	 * Compute the bounding box and store the result in
 	 * averagePosition, minBound, and maxBound.
 	 */
 	public abstract void computeBoundingBox();
 	
+	/**
+	 * Make a surface for one reference to this surface from a Group. It shares this
+	 * surface's shape and shader but has a transformation of its own, so a surface that
+	 * is referenced from several groups appears once under each of them. The copy is
+	 * shallow: only the transformation and bounds set on it afterwards are its own.
+	 *
+	 * @return a new surface; its transformation still has to be set
+	 */
+	public Surface instance() {
+		try {
+			return (Surface) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new Error(e);
+		}
+	}
+
 	/**
 	 * Add this surface to the array list in. This array list will be used
 	 * in the AABB tree construction.
@@ -2,6 +2,7 @@ package cs4620.ray2.surface;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Vector3i;
 import cs4620.ray2.shader.Shader;
@@ -66,9 +67,9 @@ public class Triangle extends Surface {
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
 		//transform ray into object space
-		Ray ray = untransformRay(rayIn);		
+		Ray ray = untransformRay(rayIn, getScratchRay());
 		
-		Vector3d v0 = owner.getPosition(index.x).clone();
+		Vector3d v0 = owner.getPosition(index.x);
 		
 		double g = ray.direction.x;
 		double h = ray.direction.y;
@@ -122,10 +123,18 @@ public class Triangle extends Surface {
 			
 			outRecord.normal.normalize();
 			if (owner.hasUVs()) {
+				Vector2d uv0 = owner.getUV(index.x), uv1 = owner.getUV(index.y), uv2 = owner.getUV(index.z);
 				outRecord.texCoords.setZero()
-						.addMultiple(1 - beta - gamma, owner.getUV(index.x))
-						.addMultiple(beta, owner.getUV(index.y))
-						.addMultiple(gamma, owner.getUV(index.z));
+						.addMultiple(1 - beta - gamma, uv0)
+						.addMultiple(beta, uv1)
+						.addMultiple(gamma, uv2);
+
+				double uvArea = Math.abs((uv0.x - uv1.x) * (uv0.y - uv2.y) - (uv0.y - uv1.y) * (uv0.x - uv2.x));
+				double area = worldArea(a, b, c, d, e, f);
+				outRecord.texScale = area > 0 ? Math.sqrt(uvArea / area) : 0;
+			} else {
+				outRecord.texCoords.setZero();
+				outRecord.texScale = 0;
 			}
 		}
 
@@ -0,0 +1,332 @@
+package cs4620.ray2.surface;
+
+import cs4620.mesh.MeshData;
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.accel.BvhBuilder;
+import cs4620.ray2.accel.FlatBvh;
+import cs4620.ray2.shader.Shader;
+import egl.math.Vector3d;
+
+/**
+ * All the triangles of a Mesh packed into flat arrays, with a bounding volume hierarchy
+ * over them in object space. This replaces one Triangle object per face: the scene's
+ * acceleration structure sees a single surface, the ray is brought into object space once
+ * per mesh instead of once per triangle, and triangles are tested in place without any
+ * allocation. Only the closest hit is turned into an IntersectionRecord.
+ *
+ * The arrays and the hierarchy are in object space and never change, so they can be
+ * shared: every instance of a Mesh is a TriangleSoup with its own transformation and
+ * shader over the same geometry (see the copy constructor). The scene's acceleration
+ * structure is then the top level over instance bounds, and each soup is a bottom level
+ * hierarchy that is built once per unique mesh.
+ */
+public class TriangleSoup extends Surface {
+
+	/** Number of doubles stored per triangle in tris. */
+	private static final int TRI_STRIDE = 9;
+
+	/**
+	 * Per triangle, in leaf order: the first vertex v0, then v0 - v1 and v0 - v2. These are
+	 * the terms of the Cramer's rule solve used by Triangle.
+	 */
+	private final double[] tris;
+
+	/** Per triangle, in leaf order: the indices of its three vertices. */
+	private final int[] vertexIndices;
+
+	/** Object space vertex positions, 3 floats per vertex. */
+	private final float[] positions;
+
+	/** Vertex normals, 3 floats per vertex, or null to use face normals. */
+	private final float[] normals;
+
+	/** Vertex texture coordinates, 2 floats per vertex, or null. */
+	private final float[] uvs;
+
+	/** The hierarchy over the triangles, whose leaves index into tris. */
+	private final FlatBvh nodes;
+
+	/**
+	 * Pack the triangles of a mesh.
+	 *
+	 * @param mesh the mesh data; it is copied, so it may be released afterwards
+	 * @param shader the shader for every triangle
+	 */
+	public TriangleSoup(MeshData mesh, Shader shader) {
+		int vertexCount = mesh.vertexCount;
+		int triCount = mesh.indexCount / 3;
+
+		positions = new float[3 * vertexCount];
+		for (int i = 0; i < positions.length; i++) positions[i] = mesh.positions.get(i);
+		if (mesh.hasNormals()) {
+			normals = new float[3 * vertexCount];
+			for (int i = 0; i < normals.length; i++) normals[i] = mesh.normals.get(i);
+		} else {
+			normals = null;
+		}
+		if (mesh.hasUVs()) {
+			uvs = new float[2 * vertexCount];
+			for (int i = 0; i < uvs.length; i++) uvs[i] = mesh.uvs.get(i);
+		} else {
+			uvs = null;
+		}
+
+		// Build the hierarchy from the triangle boxes
+		double[] min = new double[3 * triCount];
+		double[] max = new double[3 * triCount];
+		for (int t = 0; t < triCount; t++) {
+			for (int a = 0; a < 3; a++) {
+				double p0 = positions[3 * mesh.indices.get(3*t) + a];
+				double p1 = positions[3 * mesh.indices.get(3*t+1) + a];
+				double p2 = positions[3 * mesh.indices.get(3*t+2) + a];
+				min[3*t+a] = Math.min(p0, Math.min(p1, p2));
+				max[3*t+a] = Math.max(p0, Math.max(p1, p2));
+			}
+		}
+		BvhBuilder builder = new BvhBuilder();
+		nodes = new FlatBvh(builder.build(min, max, triCount));
+		int[] order = builder.getOrder();
+
+		// Store the triangles in leaf order
+		tris = new double[TRI_STRIDE * triCount];
+		vertexIndices = new int[3 * triCount];
+		for (int t = 0; t < triCount; t++) {
+			int src = order[t];
+			int i0 = mesh.indices.get(3*src);
+			int i1 = mesh.indices.get(3*src+1);
+			int i2 = mesh.indices.get(3*src+2);
+			vertexIndices[3*t] = i0;
+			vertexIndices[3*t+1] = i1;
+			vertexIndices[3*t+2] = i2;
+
+			int o = TRI_STRIDE * t;
+			for (int a = 0; a < 3; a++) {
+				double v0 = positions[3*i0+a];
+				tris[o+a] = v0;
+				tris[o+3+a] = v0 - positions[3*i1+a];
+				tris[o+6+a] = v0 - positions[3*i2+a];
+			}
+		}
+
+		setShader(shader);
+	}
+
+	/**
+	 * Create another instance of the geometry of soup. The arrays and the hierarchy are
+	 * shared, so this is cheap; the transformation still has to be set.
+	 *
+	 * @param soup the soup whose geometry to share
+	 * @param shader the shader for every triangle of this instance
+	 */
+	public TriangleSoup(TriangleSoup soup, Shader shader) {
+		tris = soup.tris;
+		vertexIndices = soup.vertexIndices;
+		positions = soup.positions;
+		normals = soup.normals;
+		uvs = soup.uvs;
+		nodes = soup.nodes;
+		setShader(shader);
+	}
+
+	/** @return the number of triangles */
+	public int getTriangleCount() {
+		return vertexIndices.length / 3;
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		return traverse(outRecord, rayIn, false);
+	}
+
+	/**
+	 * Stops at the first triangle found, without computing anything but its distance.
+	 *
+	 * @see Surface#occludes(Ray)
+	 */
+	@Override
+	public boolean occludes(Ray rayIn) {
+		return traverse(null, rayIn, true);
+	}
+
+	/**
+	 * Find the closest triangle hit by rayIn and fill outRecord for it if it is not null,
+	 * or only whether any triangle is hit if anyHit is set.
+	 */
+	private boolean traverse(IntersectionRecord outRecord, Ray rayIn, boolean anyHit) {
+		if (nodes.isEmpty()) return false;
+
+		// Transform the ray into object space without making a new Ray
+		double[] m = tMatInv.m;
+		double wx = rayIn.origin.x, wy = rayIn.origin.y, wz = rayIn.origin.z;
+		double ox = m[0] * wx + m[4] * wy + m[8] * wz + m[12];
+		double oy = m[1] * wx + m[5] * wy + m[9] * wz + m[13];
+		double oz = m[2] * wx + m[6] * wy + m[10] * wz + m[14];
+		wx = rayIn.direction.x; wy = rayIn.direction.y; wz = rayIn.direction.z;
+		double dx = m[0] * wx + m[4] * wy + m[8] * wz;
+		double dy = m[1] * wx + m[5] * wy + m[9] * wz;
+		double dz = m[2] * wx + m[6] * wy + m[10] * wz;
+
+		double invX = 1.0 / dx, invY = 1.0 / dy, invZ = 1.0 / dz;
+		boolean negX = invX < 0, negY = invY < 0, negZ = invZ < 0;
+
+		double tStart = rayIn.start;
+		double tEnd = rayIn.end;
+		int hitTri = -1;
+
+		int[] stack = nodes.getStack();
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (nodes.intersects(node, ox, oy, oz, invX, invY, invZ, tStart, tEnd)) {
+				if (nodes.isLeaf(node)) {
+					int end = nodes.getFirst(node) + nodes.getCount(node);
+					for (int t = nodes.getFirst(node); t < end; t++) {
+						double tHit = intersectTriangle(t, ox, oy, oz, dx, dy, dz, tStart, tEnd);
+						if (tHit == tHit) {
+							if (anyHit) return true;
+							tEnd = tHit;
+							hitTri = t;
+						}
+					}
+				} else {
+					int axis = nodes.getAxis(node);
+					boolean secondFirst = axis == 0 ? negX : (axis == 1 ? negY : negZ);
+					if (secondFirst) {
+						stack[top++] = node + 1;
+						node = nodes.getSecondChild(node);
+					} else {
+						stack[top++] = nodes.getSecondChild(node);
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (top == 0) break;
+			node = stack[--top];
+		}
+
+		if (hitTri < 0) return false;
+		if (outRecord != null) fillRecord(outRecord, hitTri, tEnd, ox, oy, oz, dx, dy, dz);
+		return true;
+	}
+
+	/**
+	 * Intersect an object space ray with one triangle.
+	 *
+	 * @return the ray parameter of the hit, or NaN if the ray misses within [tStart, tEnd]
+	 */
+	private double intersectTriangle(int tri, double ox, double oy, double oz,
+			double g, double h, double i, double tStart, double tEnd) {
+		int o = TRI_STRIDE * tri;
+		double a = tris[o+3], b = tris[o+4], c = tris[o+5];
+		double d = tris[o+6], e = tris[o+7], f = tris[o+8];
+		double j = tris[o] - ox;
+		double k = tris[o+1] - oy;
+		double l = tris[o+2] - oz;
+
+		double ei_hf = e * i - h * f;
+		double gf_di = g * f - d * i;
+		double dh_eg = d * h - e * g;
+		double M = a * ei_hf + b * gf_di + c * dh_eg;
+
+		double ak_jb = a * k - j * b;
+		double jc_al = j * c - a * l;
+		double bl_kc = b * l - k * c;
+
+		// Written so that degenerate triangles, which give NaNs, are misses
+		double t = -(f * ak_jb + e * jc_al + d * bl_kc) / M;
+		if (!(t >= tStart && t <= tEnd))
+			return Double.NaN;
+
+		double beta = (j * ei_hf + k * gf_di + l * dh_eg) / M;
+		if (!(beta >= 0 && beta <= 1))
+			return Double.NaN;
+
+		double gamma = (i * ak_jb + h * jc_al + g * bl_kc) / M;
+		if (!(gamma >= 0 && gamma + beta <= 1))
+			return Double.NaN;
+
+		return t;
+	}
+
+	/**
+	 * Fill outRecord for a hit on triangle tri at parameter t of the object space ray.
+	 */
+	private void fillRecord(IntersectionRecord outRecord, int tri, double t,
+			double ox, double oy, double oz, double g, double h, double i) {
+		int o = TRI_STRIDE * tri;
+		double a = tris[o+3], b = tris[o+4], c = tris[o+5];
+		double d = tris[o+6], e = tris[o+7], f = tris[o+8];
+		double j = tris[o] - ox;
+		double k = tris[o+1] - oy;
+		double l = tris[o+2] - oz;
+		double M = a * (e * i - h * f) + b * (g * f - d * i) + c * (d * h - e * g);
+		double beta = (j * (e * i - h * f) + k * (g * f - d * i) + l * (d * h - e * g)) / M;
+		double gamma = (i * (a * k - j * b) + h * (j * c - a * l) + g * (b * l - k * c)) / M;
+		double alpha = 1 - beta - gamma;
+
+		outRecord.t = t;
+		outRecord.location.set(ox + t * g, oy + t * h, oz + t * i);
+		tMat.mulPos(outRecord.location);
+		outRecord.surface = this;
+
+		int i0 = 3 * vertexIndices[3*tri], i1 = 3 * vertexIndices[3*tri+1], i2 = 3 * vertexIndices[3*tri+2];
+		if (normals == null) {
+			// Face normal (v1 - v0) x (v2 - v0), which equals (v0 - v1) x (v0 - v2)
+			outRecord.normal.set(b * f - c * e, c * d - a * f, a * e - b * d).normalize();
+		} else {
+			outRecord.normal.set(
+					alpha * normals[i0] + beta * normals[i1] + gamma * normals[i2],
+					alpha * normals[i0+1] + beta * normals[i1+1] + gamma * normals[i2+1],
+					alpha * normals[i0+2] + beta * normals[i1+2] + gamma * normals[i2+2]);
+		}
+		tMatTInv.mulDir(outRecord.normal);
+		outRecord.normal.normalize();
+
+		if (uvs != null) {
+			int u0 = 2 * vertexIndices[3*tri], u1 = 2 * vertexIndices[3*tri+1], u2 = 2 * vertexIndices[3*tri+2];
+			outRecord.texCoords.set(
+					alpha * uvs[u0] + beta * uvs[u1] + gamma * uvs[u2],
+					alpha * uvs[u0+1] + beta * uvs[u1+1] + gamma * uvs[u2+1]);
+
+			// The edges v0 - v1 and v0 - v2 span both areas
+			double uvArea = Math.abs((uvs[u0] - uvs[u1]) * (uvs[u0+1] - uvs[u2+1])
+					- (uvs[u0+1] - uvs[u1+1]) * (uvs[u0] - uvs[u2]));
+			double area = worldArea(a, b, c, d, e, f);
+			outRecord.texScale = area > 0 ? Math.sqrt(uvArea / area) : 0;
+		} else {
+			outRecord.texCoords.setZero();
+			outRecord.texScale = 0;
+		}
+	}
+
+	public void computeBoundingBox() {
+		// The root box of the shared hierarchy bounds the mesh in object space, so an
+		// instance only transforms its 8 corners rather than every vertex
+		if (nodes.isEmpty()) {
+			minBound = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+			maxBound = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		} else {
+			setTransformedBounds(new Vector3d(nodes.getMin(0, 0), nodes.getMin(0, 1), nodes.getMin(0, 2)),
+					new Vector3d(nodes.getMax(0, 0), nodes.getMax(0, 1), nodes.getMax(0, 2)));
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "TriangleSoup " + getTriangleCount();
+	}
+}
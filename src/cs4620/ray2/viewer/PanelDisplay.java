@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import cs4620.ray2.Image;
 
 
@@ -108,17 +107,13 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
+		// Image rows run bottom to top, display rows top to bottom
 		int h = image.getHeight();
-		Colord pixelColor = new Colord();
-		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
-			}
-		}
+		int w = xh - xl;
+		if (w <= 0 || yh <= yl) return;
+		int[] rgb = new int[w * (yh - yl)];
+		image.getRGB(rgb, xl, yl, w, yh - yl);
+		bufferedImage.setRGB(xl, h - yh, w, yh - yl, rgb, 0, w);
 	}
 	
 }
\ No newline at end of file
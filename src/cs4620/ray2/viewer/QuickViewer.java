@@ -3,6 +3,11 @@
  */
 package cs4620.ray2.viewer;
 
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
 import javax.swing.JFrame;
 
 import cs4620.ray2.Image;
@@ -19,12 +24,30 @@ public class QuickViewer extends JFrame {
 	 * Internal panel used to display images
 	 */
 	protected PanelDisplay imageDisplayPanel;
+
+	/**
+	 * Set when the window is closed or Escape is pressed, asking a progressive render to stop
+	 */
+	private volatile boolean stopRequested = false;
+	public boolean isStopRequested() { return stopRequested; }
 	
 	/**
 	 * Constructor sets the close action of this frame
 	 */
 	public QuickViewer() {
 		setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				stopRequested = true;
+			}
+		});
+		addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_ESCAPE) stopRequested = true;
+			}
+		});
 	}
 	
 	/**